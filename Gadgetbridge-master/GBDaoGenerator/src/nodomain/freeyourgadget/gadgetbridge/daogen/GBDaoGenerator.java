@@ -45,7 +45,7 @@ public class GBDaoGenerator {
 
 
     public static void main(String[] args) throws Exception {
-        Schema schema = new Schema(18, MAIN_PACKAGE + ".entities");
+        Schema schema = new Schema(20, MAIN_PACKAGE + ".entities");
 
         Entity userAttributes = addUserAttributes(schema);
         Entity user = addUserInfo(schema, userAttributes);
@@ -66,6 +66,10 @@ public class GBDaoGenerator {
 
         addBipActivitySummary(schema, user, device);
 
+        addSampleColumnChunk(schema, device);
+
+        addActivityRollup(schema, device);
+
         new DaoGenerator().generateAll(schema, "app/src/main/java");
     }
 
@@ -239,6 +243,52 @@ public class GBDaoGenerator {
         summary.addToOne(user, userId);
     }
 
+    private static void addSampleColumnChunk(Schema schema, Entity device) {
+        Entity chunk = addEntity(schema, "SampleColumnChunk");
+        chunk.setJavaDoc(
+                "One day of activity samples of a device, stored as encoded primitive columns.\n" +
+                        "This is a derived copy of the device's sample table, see ColumnarSampleStore.");
+        chunk.addIdProperty();
+        Property deviceId = chunk.addLongProperty("deviceId").notNull().getProperty();
+        Property dayTimestamp = chunk.addIntProperty("dayTimestamp").notNull().javaDocGetterAndSetter("The start of the (UTC) day in seconds").getProperty();
+        Index indexUnique = new Index();
+        indexUnique.addProperty(deviceId);
+        indexUnique.addProperty(dayTimestamp);
+        indexUnique.makeUnique();
+        chunk.addIndex(indexUnique);
+        chunk.addToOne(device, deviceId);
+        chunk.addIntProperty("sampleCount").notNull();
+        chunk.addByteArrayProperty("encodedSamples").notNull();
+    }
+
+    private static void addActivityRollup(Schema schema, Entity device) {
+        Entity rollup = addEntity(schema, "ActivityRollup");
+        rollup.setJavaDoc(
+                "Aggregated activity samples of one hour of a device.\n" +
+                        "This is derived from the device's sample table, see ActivityRollupStore.");
+        rollup.addIdProperty();
+        Property deviceId = rollup.addLongProperty("deviceId").notNull().getProperty();
+        Property hourTimestamp = rollup.addIntProperty("hourTimestamp").notNull().javaDocGetterAndSetter("The start of the hour in seconds").getProperty();
+        Index indexUnique = new Index();
+        indexUnique.addProperty(deviceId);
+        indexUnique.addProperty(hourTimestamp);
+        indexUnique.makeUnique();
+        rollup.addIndex(indexUnique);
+        rollup.addToOne(device, deviceId);
+        rollup.addIntProperty("sampleCount").notNull();
+        rollup.addIntProperty("deepSleepSteps").notNull();
+        rollup.addIntProperty("lightSleepSteps").notNull();
+        rollup.addIntProperty("activitySteps").notNull().javaDocGetterAndSetter("The steps of all samples that are neither sleep nor while the device was not worn");
+        rollup.addIntProperty("deepSleepSeconds").notNull();
+        rollup.addIntProperty("lightSleepSeconds").notNull();
+        rollup.addIntProperty("activitySeconds").notNull();
+        rollup.addIntProperty("notWornSeconds").notNull();
+        rollup.addIntProperty("heartRateMin").notNull();
+        rollup.addIntProperty("heartRateMax").notNull();
+        rollup.addIntProperty("heartRateSum").notNull();
+        rollup.addIntProperty("heartRateCount").notNull().javaDocGetterAndSetter("The number of samples with a valid heart rate");
+    }
+
     private static Entity addEntity(Schema schema, String className) {
         Entity entity = schema.addEntity(className);
         entity.addImport("de.greenrobot.dao.AbstractDao");
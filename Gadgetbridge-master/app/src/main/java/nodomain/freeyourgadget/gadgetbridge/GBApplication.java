@@ -56,6 +56,9 @@ import java.util.concurrent.locks.ReentrantLock;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
 import nodomain.freeyourgadget.gadgetbridge.database.DBOpenHelper;
+import nodomain.freeyourgadget.gadgetbridge.database.DBReaderPool;
+import nodomain.freeyourgadget.gadgetbridge.database.DBWriter;
+import nodomain.freeyourgadget.gadgetbridge.database.ExclusiveDBHandler;
 import nodomain.freeyourgadget.gadgetbridge.devices.DeviceManager;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoMaster;
 import nodomain.freeyourgadget.gadgetbridge.externalevents.BluetoothStateChangeReceiver;
@@ -93,6 +96,31 @@ public class GBApplication extends Application {
     private static Prefs prefs;
     private static GBPrefs gbPrefs;
     private static LockHandler lockHandler;
+    /**
+     * Invalidates the cached user entity when the user changes their data.
+     * Must be referenced here, since SharedPreferences only keeps weak references to listeners.
+     */
+    private static final SharedPreferences.OnSharedPreferenceChangeListener userPrefsListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            if (key == null) {
+                // all preferences were cleared
+                DBHelper.invalidateUser();
+                return;
+            }
+            switch (key) {
+                case ActivityUser.PREF_USER_NAME:
+                case ActivityUser.PREF_USER_YEAR_OF_BIRTH:
+                case ActivityUser.PREF_USER_GENDER:
+                case ActivityUser.PREF_USER_HEIGHT_CM:
+                case ActivityUser.PREF_USER_WEIGHT_KG:
+                case ActivityUser.PREF_USER_SLEEP_DURATION:
+                case ActivityUser.PREF_USER_STEPS_GOAL:
+                    DBHelper.invalidateUser();
+                    break;
+            }
+        }
+    };
     /**
      * Note: is null on Lollipop and Kitkat
      */
@@ -168,6 +196,7 @@ public class GBApplication extends Application {
         if (getPrefsFileVersion() != CURRENT_PREFS_VERSION) {
             migratePrefs(getPrefsFileVersion());
         }
+        sharedPrefs.registerOnSharedPreferenceChangeListener(userPrefsListener);
 
         setupExceptionHandler();
 
@@ -247,6 +276,8 @@ public class GBApplication extends Application {
             helper = new DaoMaster.DevOpenHelper(this, null, null);
         } else {
             helper = new DBOpenHelper(this, DATABASE_NAME, null);
+            // allows readers to run concurrently with a writer, see DBReaderPool
+            helper.setWriteAheadLoggingEnabled(true);
         }
         SQLiteDatabase db = helper.getWritableDatabase();
         DaoMaster daoMaster = new DaoMaster(db);
@@ -283,7 +314,7 @@ public class GBApplication extends Application {
      * @throws GBException
      * @see #releaseDB()
      */
-    public static DBHandler acquireDB() throws GBException {
+    public static ExclusiveDBHandler acquireDB() throws GBException {
         try {
             if (dbLock.tryLock(30, TimeUnit.SECONDS)) {
                 return lockHandler;
@@ -294,6 +325,28 @@ public class GBApplication extends Application {
         throw new GBException("Unable to access the database.");
     }
 
+    /**
+     * Returns a DBHandler instance for reading only, or throws GBException
+     * when that was not successful. Unlike #acquireDB, this does not wait for
+     * other readers or writers, unless all readers are in use.
+     * <p>
+     * Callers must close the returned instance when they are done.
+     *
+     * @return the DBHandler
+     * @throws GBException
+     * @see DBReaderPool
+     */
+    public static DBHandler acquireReadOnlyDB() throws GBException {
+        return lockHandler.getReaderPool().acquire(30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns the thread for asynchronous, batched database writes.
+     */
+    public static DBWriter dbWriter() {
+        return lockHandler.getWriter();
+    }
+
     /**
      * Releases the database lock.
      *
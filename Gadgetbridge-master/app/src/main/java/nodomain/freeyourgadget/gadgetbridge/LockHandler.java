@@ -19,20 +19,26 @@ package nodomain.freeyourgadget.gadgetbridge;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
-import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
+import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
+import nodomain.freeyourgadget.gadgetbridge.database.DBReaderPool;
+import nodomain.freeyourgadget.gadgetbridge.database.DBWriter;
+import nodomain.freeyourgadget.gadgetbridge.database.ExclusiveDBHandler;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoMaster;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 
 /**
  * Provides low-level access to the database.
  */
-public class LockHandler implements DBHandler {
+public class LockHandler implements ExclusiveDBHandler {
 
     private DaoMaster daoMaster = null;
     private DaoSession session = null;
     private SQLiteOpenHelper helper = null;
+    private final DBReaderPool readerPool = new DBReaderPool();
+    private final DBWriter writer = new DBWriter();
 
     public LockHandler() {
+        writer.start();
     }
 
     public void init(DaoMaster daoMaster, DaoMaster.OpenHelper helper) {
@@ -52,6 +58,8 @@ public class LockHandler implements DBHandler {
         if (session == null) {
             throw new RuntimeException("Unable to create database session");
         }
+        readerPool.init(daoMaster);
+        writer.init(daoMaster, session);
     }
 
     @Override
@@ -89,6 +97,9 @@ public class LockHandler implements DBHandler {
         if (session == null) {
             throw new IllegalStateException("session must not be null");
         }
+        readerPool.close();
+        writer.close();
+        DBHelper.invalidateEntityCache();
         session.clear();
         session.getDatabase().close();
         session = null;
@@ -96,6 +107,20 @@ public class LockHandler implements DBHandler {
         daoMaster = null;
     }
 
+    /**
+     * Returns the pool of handlers for concurrent reading, which do not need the lock.
+     */
+    public DBReaderPool getReaderPool() {
+        return readerPool;
+    }
+
+    /**
+     * Returns the thread for asynchronous writes, which do not need the lock.
+     */
+    public DBWriter getWriter() {
+        return writer;
+    }
+
     @Override
     public SQLiteOpenHelper getHelper() {
         ensureValid();
@@ -28,6 +28,7 @@ import android.support.v4.app.FragmentActivity;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.TypedValue;
+import android.view.MotionEvent;
 import android.view.View;
 
 import com.github.mikephil.charting.charts.BarChart;
@@ -41,6 +42,8 @@ import com.github.mikephil.charting.data.LineData;
 import com.github.mikephil.charting.data.LineDataSet;
 import com.github.mikephil.charting.formatter.IAxisValueFormatter;
 import com.github.mikephil.charting.interfaces.datasets.ILineDataSet;
+import com.github.mikephil.charting.listener.ChartTouchListener;
+import com.github.mikephil.charting.listener.OnChartGestureListener;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -56,9 +59,9 @@ import java.util.List;
 import java.util.Set;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.GBException;
 import nodomain.freeyourgadget.gadgetbridge.R;
 import nodomain.freeyourgadget.gadgetbridge.activities.AbstractGBFragment;
-import nodomain.freeyourgadget.gadgetbridge.activities.HeartRateUtils;
 import nodomain.freeyourgadget.gadgetbridge.database.DBAccess;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.devices.DeviceCoordinator;
@@ -104,6 +107,10 @@ public abstract class AbstractChartFragment extends AbstractGBFragment {
     };
     private boolean mChartDirty = true;
     private AsyncTask refreshTask;
+    private AsyncTask rebucketTask;
+    private final ActivityChartDataBuilder mChartDataBuilder = new ActivityChartDataBuilder();
+    private BarLineChartBase<LineData> mRebucketChart;
+    private int mChartWidthPixels;
 
     public boolean isChartDirty() {
         return mChartDirty;
@@ -163,6 +170,7 @@ public abstract class AbstractChartFragment extends AbstractGBFragment {
         super.onCreate(savedInstanceState);
 
         init();
+        mChartWidthPixels = getResources().getDisplayMetrics().widthPixels;
 
         IntentFilter filter = new IntentFilter();
         for (String action : mIntentFilterActions) {
@@ -399,6 +407,9 @@ public abstract class AbstractChartFragment extends AbstractGBFragment {
                 if (refreshTask != null && refreshTask.getStatus() != AsyncTask.Status.FINISHED) {
                     refreshTask.cancel(true);
                 }
+                if (rebucketTask != null && rebucketTask.getStatus() != AsyncTask.Status.FINISHED) {
+                    rebucketTask.cancel(true);
+                }
                 refreshTask = createRefreshTask("Visualizing data", getActivity()).execute();
             }
         }
@@ -418,163 +429,119 @@ public abstract class AbstractChartFragment extends AbstractGBFragment {
     protected abstract void renderCharts();
 
     protected DefaultChartsData<LineData> refresh(GBDevice gbDevice, List<? extends ActivitySample> samples) {
-//        Calendar cal = GregorianCalendar.getInstance();
-//        cal.clear();
-        TimestampTranslation tsTranslation = new TimestampTranslation();
-//        Date date;
-//        String dateStringFrom = "";
-//        String dateStringTo = "";
-//        ArrayList<String> xLabels = null;
-
         LOG.info("" + getTitle() + ": number of samples:" + samples.size());
-        LineData lineData;
-        if (samples.size() > 1) {
-            boolean annotate = true;
-            boolean use_steps_as_movement;
-
-            int last_type = ActivityKind.TYPE_UNKNOWN;
-
-            int numEntries = samples.size();
-            List<Entry> activityEntries = new ArrayList<>(numEntries);
-            List<Entry> deepSleepEntries = new ArrayList<>(numEntries);
-            List<Entry> lightSleepEntries = new ArrayList<>(numEntries);
-            List<Entry> notWornEntries = new ArrayList<>(numEntries);
-            boolean hr = supportsHeartrate(gbDevice);
-            List<Entry> heartrateEntries = hr ? new ArrayList<Entry>(numEntries) : null;
-            List<Integer> colors = new ArrayList<>(numEntries); // this is kinda inefficient...
-            int lastHrSampleIndex = -1;
-
-            for (int i = 0; i < numEntries; i++) {
-                ActivitySample sample = samples.get(i);
-                int type = sample.getKind();
-                int ts = tsTranslation.shorten(sample.getTimestamp());
-
-//                System.out.println(ts);
-//                ts = i;
-                // determine start and end dates
-//                if (i == 0) {
-//                    cal.setTimeInMillis(ts * 1000L); // make sure it's converted to long
-//                    date = cal.getTime();
-//                    dateStringFrom = dateFormat.format(date);
-//                } else if (i == samples.size() - 1) {
-//                    cal.setTimeInMillis(ts * 1000L); // same here
-//                    date = cal.getTime();
-//                    dateStringTo = dateFormat.format(date);
-//                }
-
-                float movement = sample.getIntensity();
-
-                float value = movement;
-                switch (type) {
-                    case ActivityKind.TYPE_DEEP_SLEEP:
-                        if (last_type != type) { //FIXME: this is ugly but it works (repeated in each case)
-                            deepSleepEntries.add(createLineEntry(0, ts - 1));
-
-                            lightSleepEntries.add(createLineEntry(0, ts));
-                            notWornEntries.add(createLineEntry(0, ts));
-                            activityEntries.add(createLineEntry(0, ts));
-                        }
-                        deepSleepEntries.add(createLineEntry(value + SleepUtils.Y_VALUE_DEEP_SLEEP, ts));
-                        break;
-                    case ActivityKind.TYPE_LIGHT_SLEEP:
-                        if (last_type != type) {
-                            lightSleepEntries.add(createLineEntry(0, ts - 1));
+        ActivityChartDataBuilder.Series series = mChartDataBuilder.build(samples, supportsHeartrate(gbDevice), mChartWidthPixels);
+        LineData lineData = createLineData(series);
 
-                            deepSleepEntries.add(createLineEntry(0, ts));
-                            notWornEntries.add(createLineEntry(0, ts));
-                            activityEntries.add(createLineEntry(0, ts));
-                        }
-                        lightSleepEntries.add(createLineEntry(value, ts));
-                        break;
-                    case ActivityKind.TYPE_NOT_WORN:
-                        if (last_type != type) {
-                            notWornEntries.add(createLineEntry(0, ts - 1));
+        IAxisValueFormatter xValueFormatter = new SampleXLabelFormatter(mChartDataBuilder.getTimestampTranslation());
+        return new DefaultChartsData(lineData, xValueFormatter);
+    }
+
+    private LineData createLineData(@Nullable ActivityChartDataBuilder.Series series) {
+        if (series == null) {
+            return new LineData();
+        }
+        List<ILineDataSet> lineDataSets = new ArrayList<>();
+        LineDataSet activitySet = createDataSet(series.activityEntries, akActivity.color, "Activity");
+        lineDataSets.add(activitySet);
+        LineDataSet deepSleepSet = createDataSet(series.deepSleepEntries, akDeepSleep.color, "Deep Sleep");
+        lineDataSets.add(deepSleepSet);
+        LineDataSet lightSleepSet = createDataSet(series.lightSleepEntries, akLightSleep.color, "Light Sleep");
+        lineDataSets.add(lightSleepSet);
+        LineDataSet notWornSet = createDataSet(series.notWornEntries, akNotWorn.color, "Not worn");
+        lineDataSets.add(notWornSet);
+
+        if (series.heartrateEntries != null && series.heartrateEntries.size() > 0) {
+            LineDataSet heartrateSet = createHeartrateSet(series.heartrateEntries, "Heart Rate");
+            lineDataSets.add(heartrateSet);
+        }
+        return new SeriesLineData(lineDataSets, series);
+    }
+
+    /**
+     * Tells the chart data builder which of its series the given chart displays now,
+     * so that the entries of the series displayed before can be reused.
+     */
+    private void onChartDataDisplayed(BarLineChartBase<LineData> chart) {
+        LineData data = chart.getData();
+        mChartDataBuilder.onDisplayed(data instanceof SeriesLineData ? ((SeriesLineData) data).series : null);
+    }
+
+    /**
+     * Makes the given chart, which displays the result of #refresh(GBDevice, List),
+     * re-bucket its entries for the visible range whenever the user zoomed in or out.
+     */
+    protected void enableRebucketOnZoom(final BarLineChartBase<LineData> chart) {
+        mRebucketChart = chart;
+        chart.setOnChartGestureListener(new OnChartGestureListener() {
+            @Override
+            public void onChartGestureStart(MotionEvent me, ChartTouchListener.ChartGesture lastPerformedGesture) {
+            }
 
-                            lightSleepEntries.add(createLineEntry(0, ts));
-                            deepSleepEntries.add(createLineEntry(0, ts));
-                            activityEntries.add(createLineEntry(0, ts));
+            @Override
+            public void onChartGestureEnd(MotionEvent me, ChartTouchListener.ChartGesture lastPerformedGesture) {
+                switch (lastPerformedGesture) {
+                    case X_ZOOM:
+                    case PINCH_ZOOM:
+                    case DOUBLE_TAP:
+                        if (refreshTask == null || refreshTask.getStatus() == AsyncTask.Status.FINISHED) {
+                            rebucket(chart);
                         }
-                        notWornEntries.add(createLineEntry(SleepUtils.Y_VALUE_DEEP_SLEEP, ts)); //a small value, just to show something on the graphs
                         break;
-                    default:
-//                        short steps = sample.getSteps();
-//                        if (use_steps_as_movement && steps != 0) {
-//                            // I'm not sure using steps for this is actually a good idea
-//                            movement = steps;
-//                        }
-//                        value = ((float) movement) / movement_divisor;
-                        if (last_type != type) {
-                            activityEntries.add(createLineEntry(0, ts - 1));
-
-                            lightSleepEntries.add(createLineEntry(0, ts));
-                            notWornEntries.add(createLineEntry(0, ts));
-                            deepSleepEntries.add(createLineEntry(0, ts));
-                        }
-                        activityEntries.add(createLineEntry(value, ts));
                 }
-                if (hr && sample.getKind() != ActivityKind.TYPE_NOT_WORN && HeartRateUtils.isValidHeartRateValue(sample.getHeartRate())) {
-                    if (lastHrSampleIndex > -1 && ts - lastHrSampleIndex > 1800*HeartRateUtils.MAX_HR_MEASUREMENTS_GAP_MINUTES) {
-                        heartrateEntries.add(createLineEntry(0, lastHrSampleIndex + 1));
-                        heartrateEntries.add(createLineEntry(0, ts - 1));
-                    }
+            }
 
-                    heartrateEntries.add(createLineEntry(sample.getHeartRate(), ts));
-                    lastHrSampleIndex = ts;
-                }
+            @Override
+            public void onChartLongPressed(MotionEvent me) {
+            }
 
-                String xLabel = "";
-                if (annotate) {
-//                    cal.setTimeInMillis((ts + tsOffset) * 1000L);
-//                    date = cal.getTime();
-//                    String dateString = annotationDateFormat.format(date);
-//                    xLabel = dateString;
-//                    if (last_type != type) {
-//                        if (isSleep(last_type) && !isSleep(type)) {
-//                            // woken up
-//                            LimitLine line = new LimitLine(i, dateString);
-//                            line.enableDashedLine(8, 8, 0);
-//                            line.setTextColor(Color.WHITE);
-//                            line.setTextSize(15);
-//                            chart.getXAxis().addLimitLine(line);
-//                        } else if (!isSleep(last_type) && isSleep(type)) {
-//                            // fallen asleep
-//                            LimitLine line = new LimitLine(i, dateString);
-//                            line.enableDashedLine(8, 8, 0);
-//                            line.setTextSize(15);
-//                            line.setTextColor(Color.WHITE);
-//                            chart.getXAxis().addLimitLine(line);
-//                        }
-//                    }
-                }
-                last_type = type;
+            @Override
+            public void onChartDoubleTapped(MotionEvent me) {
             }
 
+            @Override
+            public void onChartSingleTapped(MotionEvent me) {
+            }
 
-            List<ILineDataSet> lineDataSets = new ArrayList<>();
-            LineDataSet activitySet = createDataSet(activityEntries, akActivity.color, "Activity");
-            lineDataSets.add(activitySet);
-            LineDataSet deepSleepSet = createDataSet(deepSleepEntries, akDeepSleep.color, "Deep Sleep");
-            lineDataSets.add(deepSleepSet);
-            LineDataSet lightSleepSet = createDataSet(lightSleepEntries, akLightSleep.color, "Light Sleep");
-            lineDataSets.add(lightSleepSet);
-            LineDataSet notWornSet = createDataSet(notWornEntries, akNotWorn.color, "Not worn");
-            lineDataSets.add(notWornSet);
+            @Override
+            public void onChartFling(MotionEvent me1, MotionEvent me2, float velocityX, float velocityY) {
+            }
 
-            if (hr && heartrateEntries.size() > 0) {
-                LineDataSet heartrateSet = createHeartrateSet(heartrateEntries, "Heart Rate");
+            @Override
+            public void onChartScale(MotionEvent me, float scaleX, float scaleY) {
+            }
 
-                lineDataSets.add(heartrateSet);
+            @Override
+            public void onChartTranslate(MotionEvent me, float dX, float dY) {
             }
-            lineData = new LineData(lineDataSets);
+        });
+    }
 
-//            chart.setDescription(getString(R.string.sleep_activity_date_range, dateStringFrom, dateStringTo));
-//            chart.setDescriptionPosition(?, ?);
-        } else {
-            lineData = new LineData();
+    private void rebucket(final BarLineChartBase<LineData> chart) {
+        if (rebucketTask != null && rebucketTask.getStatus() != AsyncTask.Status.FINISHED) {
+            rebucketTask.cancel(true);
         }
+        final float fromX = chart.getLowestVisibleX();
+        final float toX = chart.getHighestVisibleX();
+        final int width = chart.getWidth() > 0 ? chart.getWidth() : mChartWidthPixels;
+        rebucketTask = new AsyncTask<Void, Void, LineData>() {
+            @Override
+            protected LineData doInBackground(Void... params) {
+                ActivityChartDataBuilder.Series series = mChartDataBuilder.rebuild(fromX, toX, width);
+                return series != null ? createLineData(series) : null;
+            }
 
-        IAxisValueFormatter xValueFormatter = new SampleXLabelFormatter(tsTranslation);
-        return new DefaultChartsData(lineData, xValueFormatter);
+            @Override
+            protected void onPostExecute(LineData lineData) {
+                FragmentActivity activity = getActivity();
+                if (lineData != null && activity != null && !activity.isFinishing()) {
+                    // keeps the current viewport, as the x range of the data does not change
+                    chart.setData(lineData);
+                    onChartDataDisplayed(chart);
+                    chart.invalidate();
+                }
+            }
+        }.execute();
     }
 
     /**
@@ -645,6 +612,12 @@ public abstract class AbstractChartFragment extends AbstractGBFragment {
             super(task, context);
         }
 
+        @Override
+        protected DBHandler acquireDB() throws GBException {
+            // charts only read, so they need not wait for a running sync
+            return GBApplication.acquireReadOnlyDB();
+        }
+
         @Override
         protected void doInBackground(DBHandler db) {
             ChartsHost chartsHost = getChartsHost();
@@ -662,6 +635,13 @@ public abstract class AbstractChartFragment extends AbstractGBFragment {
             if (activity != null && !activity.isFinishing() && !activity.isDestroyed()) {
                 updateChartsnUIThread(chartsData);
                 renderCharts();
+                if (mRebucketChart != null) {
+                    onChartDataDisplayed(mRebucketChart);
+                    if (mRebucketChart.getScaleX() > 1) {
+                        // the new entries were bucketed for the whole time span
+                        rebucket(mRebucketChart);
+                    }
+                }
             } else {
                 LOG.info("Not rendering charts because activity is not available anymore");
             }
@@ -740,11 +720,11 @@ public abstract class AbstractChartFragment extends AbstractGBFragment {
         return sample;
     }
 
-    private int getTSEnd() {
+    protected int getTSEnd() {
         return toTimestamp(getEndDate());
     }
 
-    private int getTSStart() {
+    protected int getTSStart() {
         return toTimestamp(getStartDate());
     }
 
@@ -752,6 +732,18 @@ public abstract class AbstractChartFragment extends AbstractGBFragment {
         return (int) ((date.getTime() / 1000));
     }
 
+    /**
+     * Line data remembering the series its entries were taken from.
+     */
+    private static class SeriesLineData extends LineData {
+        private final ActivityChartDataBuilder.Series series;
+
+        SeriesLineData(List<ILineDataSet> dataSets, ActivityChartDataBuilder.Series series) {
+            super(dataSets);
+            this.series = series;
+        }
+    }
+
     public static class DefaultChartsData<T extends ChartData<?>> extends ChartsData {
         private final T data;
         private IAxisValueFormatter xValueFormatter;
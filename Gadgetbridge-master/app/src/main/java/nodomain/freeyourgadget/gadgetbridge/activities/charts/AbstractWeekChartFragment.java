@@ -162,7 +162,12 @@ public abstract class AbstractWeekChartFragment extends AbstractChartFragment {
             set.setValueFormatter(getPieValueFormatter());
         }
 
-        return new DayData(data, formatPieValue((int) totalValue));
+        String centerText = formatPieValue((int) totalValue);
+        if (amounts.hasHeartRate() && supportsHeartrate(device)) {
+            centerText += "\n" + getString(R.string.weekchart_heart_rate_range,
+                    amounts.getHeartRateMin(), amounts.getHeartRateMax(), amounts.getHeartRateAverage());
+        }
+        return new DayData(data, centerText);
     }
 
     @Override
@@ -233,7 +238,7 @@ public abstract class AbstractWeekChartFragment extends AbstractChartFragment {
         yAxisRight.setTextColor(CHART_TEXT_COLOR);
     }
 
-    private List<? extends ActivitySample> getSamplesOfDay(DBHandler db, Calendar day, int offsetHours, GBDevice device) {
+    private ActivityAmounts getActivityAmountsOfDay(DBHandler db, Calendar day, int offsetHours, GBDevice device) {
         int startTs;
         int endTs;
 
@@ -246,7 +251,7 @@ public abstract class AbstractWeekChartFragment extends AbstractChartFragment {
         startTs = (int) (day.getTimeInMillis() / 1000);
         endTs = startTs + 24 * 60 * 60 - 1;
 
-        return getSamples(db, device, startTs, endTs);
+        return getProvider(db, device).getActivityAmounts(startTs, endTs);
     }
 
     @Override
@@ -295,8 +300,7 @@ public abstract class AbstractWeekChartFragment extends AbstractChartFragment {
         }
 
         if (amounts == null) {
-            ActivityAnalysis analysis = new ActivityAnalysis();
-            amounts = analysis.calculateActivityAmounts(getSamplesOfDay(db, day, mOffsetHours, device));
+            amounts = getActivityAmountsOfDay(db, day, mOffsetHours, device);
             if (activityAmountCache != null) {
                 activityAmountCache.add(key, amounts);
             }
@@ -17,101 +17,167 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.activities.charts;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import nodomain.freeyourgadget.gadgetbridge.devices.ColumnarSampleStore;
+import nodomain.freeyourgadget.gadgetbridge.devices.SampleColumns;
+import nodomain.freeyourgadget.gadgetbridge.devices.SampleProvider;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmount;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmounts;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
 
+/**
+ * Calculates the activity amounts and speed zones of a list of samples.
+ * <p/>
+ * The samples are analyzed as primitive columns. Longer time spans are split into
+ * one chunk per day, which are analyzed in parallel and merged afterwards. Each sample
+ * only depends on its predecessor, so chunks can be merged in any order.
+ * <p/>
+ * The chunks run on a small fixed thread pool, because ForkJoinPool is only available
+ * from API level 21 on. As the chunks are flat and of similar size, work stealing would
+ * not gain much anyway. Only the speed zones analyze time spans long enough to be split:
+ * the sleep chart shows a single day, and the week charts read hourly rollups instead.
+ */
 class ActivityAnalysis {
-    private static final Logger LOG = LoggerFactory.getLogger(ActivityAnalysis.class);
+    /**
+     * Time spans with fewer samples than this are analyzed in the calling thread.
+     */
+    private static final int MIN_PARALLEL_SAMPLES = 3 * 24 * 60;
+
+    private static ExecutorService executor;
 
-    // store raw steps and duration
-    protected HashMap<Integer, Long> stats = new HashMap<Integer, Long>();
+    // time spent at each speed (steps per sample), in seconds
+    private long[] speedZoneSeconds = new long[0];
     // max speed determined from samples
     private int maxSpeed = 0;
 
     ActivityAmounts calculateActivityAmounts(List<? extends ActivitySample> samples) {
-        ActivityAmount deepSleep = new ActivityAmount(ActivityKind.TYPE_DEEP_SLEEP);
-        ActivityAmount lightSleep = new ActivityAmount(ActivityKind.TYPE_LIGHT_SLEEP);
-        ActivityAmount notWorn = new ActivityAmount(ActivityKind.TYPE_NOT_WORN);
-        ActivityAmount activity = new ActivityAmount(ActivityKind.TYPE_ACTIVITY);
+        int count = samples.size();
+        int[] timestamps = new int[count];
+        int[] kinds = new int[count];
+        int[] rawKinds = new int[count];
+        int[] steps = new int[count];
+        for (int i = 0; i < count; i++) {
+            ActivitySample sample = samples.get(i);
+            timestamps[i] = sample.getTimestamp();
+            kinds[i] = sample.getKind();
+            rawKinds[i] = sample.getRawKind();
+            steps[i] = sample.getSteps();
+        }
+        return calculateActivityAmounts(timestamps, kinds, rawKinds, steps, count);
+    }
 
-        ActivityAmount previousAmount = null;
-        ActivitySample previousSample = null;
-        for (ActivitySample sample : samples) {
-            ActivityAmount amount;
-            switch (sample.getKind()) {
-                case ActivityKind.TYPE_DEEP_SLEEP:
-                    amount = deepSleep;
-                    break;
-                case ActivityKind.TYPE_LIGHT_SLEEP:
-                    amount = lightSleep;
-                    break;
-                case ActivityKind.TYPE_NOT_WORN:
-                    amount = notWorn;
-                    break;
-                case ActivityKind.TYPE_ACTIVITY:
-                default:
-                    amount = activity;
-                    break;
-            }
+    /**
+     * Same as #calculateActivityAmounts(List), but avoids creating sample objects,
+     * which is considerably cheaper for long time spans.
+     *
+     * @param samples the samples to analyze
+     * @param provider the provider the samples were read from, used to normalize the kinds
+     */
+    ActivityAmounts calculateActivityAmounts(SampleColumns samples, SampleProvider<?> provider) {
+        int count = samples.size();
+        int[] rawKinds = samples.getRawKinds();
+        int[] kinds = new int[count];
+        for (int i = 0; i < count; i++) {
+            kinds[i] = provider.normalizeType(rawKinds[i]);
+        }
+        return calculateActivityAmounts(samples.getTimestamps(), kinds, rawKinds, samples.getSteps(), count);
+    }
 
-            int steps = sample.getSteps();
-            if (steps > 0) {
-                amount.addSteps(steps);
-            }
+    private ActivityAmounts calculateActivityAmounts(int[] timestamps, int[] kinds, int[] rawKinds, int[] steps, int count) {
+        Chunk chunk;
+        if (count < MIN_PARALLEL_SAMPLES) {
+            chunk = new Chunk(timestamps, kinds, rawKinds, steps, 0, count).call();
+        } else {
+            chunk = analyzeInParallel(timestamps, kinds, rawKinds, steps, count);
+        }
 
-            if (previousSample != null) {
-                long timeDifference = sample.getTimestamp() - previousSample.getTimestamp();
-                if (previousSample.getRawKind() == sample.getRawKind()) {
-                    amount.addSeconds(timeDifference);
-                } else {
-                    long sharedTimeDifference = (long) (timeDifference / 2.0f);
-                    previousAmount.addSeconds(sharedTimeDifference);
-                    amount.addSeconds(sharedTimeDifference);
-                }
+        speedZoneSeconds = chunk.speedZoneSeconds;
+        maxSpeed = chunk.maxSpeed;
 
-                // add time
-                if (steps > 0 && sample.getKind() == ActivityKind.TYPE_ACTIVITY) {
-                    if (steps > maxSpeed) {
-                        maxSpeed = steps;
-                    }
+        ActivityAmounts result = new ActivityAmounts();
+        addAmount(result, ActivityKind.TYPE_DEEP_SLEEP, chunk);
+        addAmount(result, ActivityKind.TYPE_LIGHT_SLEEP, chunk);
+        addAmount(result, ActivityKind.TYPE_ACTIVITY, chunk);
+        result.calculatePercentages();
 
-                    if (!stats.containsKey(steps)) {
-                        LOG.info("Adding: " + steps);
-                        stats.put(steps, timeDifference);
-                    } else {
-                        long time = stats.get(steps);
-                        LOG.info("Updating: " + steps + " " + timeDifference + time);
-                        stats.put(steps, timeDifference + time);
-                    }
-                }
-            }
+        return result;
+    }
 
-            previousAmount = amount;
-            previousSample = sample;
+    private static void addAmount(ActivityAmounts result, int kind, Chunk chunk) {
+        int index = Chunk.getAmountIndex(kind);
+        if (chunk.seconds[index] > 0) {
+            ActivityAmount amount = new ActivityAmount(kind);
+            amount.addSeconds(chunk.seconds[index]);
+            amount.addSteps(chunk.steps[index]);
+            result.addAmount(amount);
         }
+    }
 
-        ActivityAmounts result = new ActivityAmounts();
-        if (deepSleep.getTotalSeconds() > 0) {
-            result.addAmount(deepSleep);
+    private static Chunk analyzeInParallel(int[] timestamps, int[] kinds, int[] rawKinds, int[] steps, int count) {
+        List<Chunk> chunks = new ArrayList<>();
+        int from = 0;
+        while (from < count) {
+            int nextDay = ColumnarSampleStore.getDayTimestamp(timestamps[from]) + ColumnarSampleStore.SECONDS_PER_DAY;
+            int to = from + 1;
+            while (to < count && timestamps[to] < nextDay) {
+                to++;
+            }
+            chunks.add(new Chunk(timestamps, kinds, rawKinds, steps, from, to));
+            from = to;
         }
-        if (lightSleep.getTotalSeconds() > 0) {
-            result.addAmount(lightSleep);
+
+        Chunk result = new Chunk(timestamps, kinds, rawKinds, steps, 0, 0);
+        try {
+            for (Future<Chunk> future : getExecutor().invokeAll(chunks)) {
+                result.merge(future.get());
+            }
+        } catch (InterruptedException ex) {
+            // the calling task was cancelled, the result will not be used anyway
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("Error analyzing activity samples", ex.getCause());
         }
-        if (activity.getTotalSeconds() > 0) {
-            result.addAmount(activity);
+        return result;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Gadgetbridge Activity Analysis " + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
         }
-        result.calculatePercentages();
+        return executor;
+    }
 
-        return result;
+    /**
+     * Returns the time spent with the given number of steps per sample, in seconds.
+     */
+    long getSpeedZoneSeconds(int steps) {
+        return steps >= 0 && steps < speedZoneSeconds.length ? speedZoneSeconds[steps] : 0;
+    }
+
+    int getMaxSpeed() {
+        return maxSpeed;
     }
 
     int calculateTotalSteps(List<? extends ActivitySample> samples) {
@@ -124,4 +190,102 @@ class ActivityAnalysis {
         }
         return totalSteps;
     }
+
+    /**
+     * Analysis of the samples in the index range [from, to). The time between a sample
+     * and its predecessor is accounted to the sample, even if the predecessor belongs to
+     * the previous chunk.
+     */
+    private static class Chunk implements Callable<Chunk> {
+        private static final int DEEP_SLEEP = 0;
+        private static final int LIGHT_SLEEP = 1;
+        private static final int NOT_WORN = 2;
+        private static final int ACTIVITY = 3;
+
+        private final int[] timestamps;
+        private final int[] kinds;
+        private final int[] rawKinds;
+        private final int[] sampleSteps;
+        private final int from;
+        private final int to;
+
+        final long[] seconds = new long[4];
+        final long[] steps = new long[4];
+        long[] speedZoneSeconds = new long[0];
+        int maxSpeed;
+
+        Chunk(int[] timestamps, int[] kinds, int[] rawKinds, int[] steps, int from, int to) {
+            this.timestamps = timestamps;
+            this.kinds = kinds;
+            this.rawKinds = rawKinds;
+            this.sampleSteps = steps;
+            this.from = from;
+            this.to = to;
+        }
+
+        static int getAmountIndex(int kind) {
+            switch (kind) {
+                case ActivityKind.TYPE_DEEP_SLEEP:
+                    return DEEP_SLEEP;
+                case ActivityKind.TYPE_LIGHT_SLEEP:
+                    return LIGHT_SLEEP;
+                case ActivityKind.TYPE_NOT_WORN:
+                    return NOT_WORN;
+                case ActivityKind.TYPE_ACTIVITY:
+                default:
+                    return ACTIVITY;
+            }
+        }
+
+        @Override
+        public Chunk call() {
+            for (int i = from; i < to; i++) {
+                int amount = getAmountIndex(kinds[i]);
+                int stepCount = sampleSteps[i];
+                if (stepCount > 0) {
+                    steps[amount] += stepCount;
+                }
+
+                if (i > 0) {
+                    long timeDifference = timestamps[i] - timestamps[i - 1];
+                    if (rawKinds[i - 1] == rawKinds[i]) {
+                        seconds[amount] += timeDifference;
+                    } else {
+                        long sharedTimeDifference = timeDifference / 2;
+                        seconds[getAmountIndex(kinds[i - 1])] += sharedTimeDifference;
+                        seconds[amount] += sharedTimeDifference;
+                    }
+
+                    if (stepCount > 0 && kinds[i] == ActivityKind.TYPE_ACTIVITY) {
+                        if (stepCount > maxSpeed) {
+                            maxSpeed = stepCount;
+                        }
+                        ensureSpeedZone(stepCount);
+                        speedZoneSeconds[stepCount] += timeDifference;
+                    }
+                }
+            }
+            return this;
+        }
+
+        private void ensureSpeedZone(int speed) {
+            if (speed >= speedZoneSeconds.length) {
+                speedZoneSeconds = Arrays.copyOf(speedZoneSeconds, Math.max(speed + 1, speedZoneSeconds.length * 2));
+            }
+        }
+
+        void merge(Chunk other) {
+            for (int i = 0; i < seconds.length; i++) {
+                seconds[i] += other.seconds[i];
+                steps[i] += other.steps[i];
+            }
+            if (other.speedZoneSeconds.length > 0) {
+                ensureSpeedZone(other.speedZoneSeconds.length - 1);
+                for (int i = 0; i < other.speedZoneSeconds.length; i++) {
+                    speedZoneSeconds[i] += other.speedZoneSeconds[i];
+                }
+            }
+            maxSpeed = Math.max(maxSpeed, other.maxSpeed);
+        }
+    }
 }
@@ -0,0 +1,294 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.activities.charts;
+
+import android.support.annotation.Nullable;
+
+import com.github.mikephil.charting.data.Entry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.activities.HeartRateUtils;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+
+/**
+ * Builds the entries of the activity/sleep line charts from a list of samples.
+ * <p/>
+ * Instead of one entry per sample and series, the samples are grouped into buckets of
+ * roughly one pixel width of the visible range, and only the minimum and maximum of each
+ * bucket are kept. Transitions between activity kinds are always kept exact. The samples are
+ * retained in primitive arrays, so that the entries can be re-bucketed when the chart is zoomed,
+ * see {@link #rebuild(float, float, int)}.
+ * <p/>
+ * Each build takes its entries from its own pool. A pool is only reused by later builds after
+ * the chart has switched from its series to another one, so callers must call
+ * {@link #onDisplayed(Series)} whenever they have set a series to the chart. Pools of series
+ * that were never displayed are simply dropped.
+ */
+class ActivityChartDataBuilder {
+
+    /**
+     * The entries of the individual series. They are reused by later builds once another
+     * series has been {@link #onDisplayed(Series) displayed} instead of this one.
+     */
+    static class Series {
+        private final EntryPool pool;
+        final List<Entry> activityEntries;
+        final List<Entry> deepSleepEntries;
+        final List<Entry> lightSleepEntries;
+        final List<Entry> notWornEntries;
+        final List<Entry> heartrateEntries;
+
+        private Series(EntryPool pool, int capacity, boolean heartRate) {
+            this.pool = pool;
+            activityEntries = new ArrayList<>(capacity);
+            deepSleepEntries = new ArrayList<>(capacity);
+            lightSleepEntries = new ArrayList<>(capacity);
+            notWornEntries = new ArrayList<>(capacity);
+            heartrateEntries = heartRate ? new ArrayList<Entry>(capacity) : null;
+        }
+    }
+
+    private final List<EntryPool> freePools = new ArrayList<>();
+    private EntryPool displayedPool;
+
+    private AbstractChartFragment.TimestampTranslation tsTranslation = new AbstractChartFragment.TimestampTranslation();
+    private int[] timestamps = new int[0];
+    private int[] kinds = new int[0];
+    private float[] intensities = new float[0];
+    private int[] heartRates = new int[0];
+    private int size;
+    private boolean heartRate;
+
+    /**
+     * Replaces the samples and builds the entries for the whole time span of them.
+     *
+     * @param samples the samples, ordered by timestamp
+     * @param heartRate whether to build the heart rate series
+     * @param pixelWidth the width of the chart in pixels
+     * @return the series, or null if there are not enough samples to draw anything
+     */
+    public synchronized Series build(List<? extends ActivitySample> samples, boolean heartRate, int pixelWidth) {
+        setSamples(samples, heartRate);
+        if (size <= 1) {
+            return null;
+        }
+        return build(timestamps[0], timestamps[size - 1], pixelWidth);
+    }
+
+    /**
+     * Builds the entries of the current samples again, with buckets matching the given
+     * visible range. The entries still cover the whole time span of the samples.
+     *
+     * @param fromX the lowest visible x value
+     * @param toX the highest visible x value
+     * @param pixelWidth the width of the chart in pixels
+     * @return the series, or null if there are not enough samples to draw anything
+     */
+    public synchronized Series rebuild(float fromX, float toX, int pixelWidth) {
+        if (size <= 1) {
+            return null;
+        }
+        return build(fromX, toX, pixelWidth);
+    }
+
+    public synchronized AbstractChartFragment.TimestampTranslation getTimestampTranslation() {
+        return tsTranslation;
+    }
+
+    /**
+     * Marks the given series as being displayed by the chart, so that its entries are not
+     * reused. The entries of the series displayed before are released for reuse, so this
+     * must only be called after the chart has switched to the given series.
+     *
+     * @param series the series now displayed, or null if the chart shows none of them
+     */
+    public synchronized void onDisplayed(@Nullable Series series) {
+        EntryPool pool = series != null ? series.pool : null;
+        if (pool == displayedPool) {
+            return;
+        }
+        if (displayedPool != null) {
+            freePools.add(displayedPool);
+        }
+        displayedPool = pool;
+    }
+
+    private void setSamples(List<? extends ActivitySample> samples, boolean heartRate) {
+        int count = samples.size();
+        if (timestamps.length < count) {
+            timestamps = new int[count];
+            kinds = new int[count];
+            intensities = new float[count];
+            heartRates = new int[count];
+        }
+        tsTranslation = new AbstractChartFragment.TimestampTranslation();
+        for (int i = 0; i < count; i++) {
+            ActivitySample sample = samples.get(i);
+            timestamps[i] = tsTranslation.shorten(sample.getTimestamp());
+            kinds[i] = sample.getKind();
+            intensities[i] = sample.getIntensity();
+            heartRates[i] = sample.getHeartRate();
+        }
+        size = count;
+        this.heartRate = heartRate;
+    }
+
+    private Series build(float fromX, float toX, int pixelWidth) {
+        EntryPool pool = freePools.isEmpty() ? new EntryPool() : freePools.remove(freePools.size() - 1);
+        pool.reset();
+
+        int bucketWidth = Math.max(1, (int) ((toX - fromX) / Math.max(1, pixelWidth)));
+        // at most two entries per bucket, plus the transitions
+        Series series = new Series(pool, (int) Math.min(size, 2L * (timestamps[size - 1] - timestamps[0]) / bucketWidth + 2), heartRate);
+        Bucket kindBucket = new Bucket(pool);
+        Bucket heartrateBucket = new Bucket(pool);
+
+        int lastType = ActivityKind.TYPE_UNKNOWN;
+        int lastHrTimestamp = -1;
+        for (int i = 0; i < size; i++) {
+            int type = kinds[i];
+            int ts = timestamps[i];
+
+            List<Entry> entries;
+            float value;
+            switch (type) {
+                case ActivityKind.TYPE_DEEP_SLEEP:
+                    entries = series.deepSleepEntries;
+                    value = intensities[i] + SleepUtils.Y_VALUE_DEEP_SLEEP;
+                    break;
+                case ActivityKind.TYPE_LIGHT_SLEEP:
+                    entries = series.lightSleepEntries;
+                    value = intensities[i];
+                    break;
+                case ActivityKind.TYPE_NOT_WORN:
+                    entries = series.notWornEntries;
+                    value = SleepUtils.Y_VALUE_DEEP_SLEEP; // a small value, just to show something on the graphs
+                    break;
+                default:
+                    entries = series.activityEntries;
+                    value = intensities[i];
+            }
+
+            if (lastType != type) {
+                kindBucket.flush();
+                entries.add(pool.obtain(ts - 1, 0));
+                addTransition(series.activityEntries, entries, ts, pool);
+                addTransition(series.deepSleepEntries, entries, ts, pool);
+                addTransition(series.lightSleepEntries, entries, ts, pool);
+                addTransition(series.notWornEntries, entries, ts, pool);
+            }
+            kindBucket.add(entries, ts / bucketWidth, ts, value);
+
+            if (heartRate && type != ActivityKind.TYPE_NOT_WORN && HeartRateUtils.isValidHeartRateValue(heartRates[i])) {
+                if (lastHrTimestamp > -1 && ts - lastHrTimestamp > 1800 * HeartRateUtils.MAX_HR_MEASUREMENTS_GAP_MINUTES) {
+                    heartrateBucket.flush();
+                    series.heartrateEntries.add(pool.obtain(lastHrTimestamp + 1, 0));
+                    series.heartrateEntries.add(pool.obtain(ts - 1, 0));
+                }
+                heartrateBucket.add(series.heartrateEntries, ts / bucketWidth, ts, heartRates[i]);
+                lastHrTimestamp = ts;
+            }
+            lastType = type;
+        }
+        kindBucket.flush();
+        heartrateBucket.flush();
+        return series;
+    }
+
+    private static void addTransition(List<Entry> entries, List<Entry> currentEntries, int ts, EntryPool pool) {
+        if (entries != currentEntries) {
+            entries.add(pool.obtain(ts, 0));
+        }
+    }
+
+    /**
+     * Collects the minimum and maximum value of the samples of one series within one bucket.
+     */
+    private static class Bucket {
+        private final EntryPool pool;
+        private List<Entry> entries;
+        private int index;
+        private int minX;
+        private float minY;
+        private int maxX;
+        private float maxY;
+
+        Bucket(EntryPool pool) {
+            this.pool = pool;
+        }
+
+        void add(List<Entry> entries, int index, int x, float y) {
+            if (this.entries != entries || this.index != index) {
+                flush();
+                this.entries = entries;
+                this.index = index;
+                minX = maxX = x;
+                minY = maxY = y;
+                return;
+            }
+            if (y < minY) {
+                minX = x;
+                minY = y;
+            } else if (y > maxY) {
+                maxX = x;
+                maxY = y;
+            }
+        }
+
+        void flush() {
+            if (entries == null) {
+                return;
+            }
+            if (minX == maxX) {
+                entries.add(pool.obtain(minX, minY));
+            } else if (minX < maxX) {
+                entries.add(pool.obtain(minX, minY));
+                entries.add(pool.obtain(maxX, maxY));
+            } else {
+                entries.add(pool.obtain(maxX, maxY));
+                entries.add(pool.obtain(minX, minY));
+            }
+            entries = null;
+        }
+    }
+
+    private static class EntryPool {
+        private final ArrayList<Entry> entries = new ArrayList<>();
+        private int used;
+
+        Entry obtain(float x, float y) {
+            Entry entry;
+            if (used < entries.size()) {
+                entry = entries.get(used);
+                entry.setX(x);
+                entry.setY(y);
+            } else {
+                entry = new Entry(x, y);
+                entries.add(entry);
+            }
+            used++;
+            return entry;
+        }
+
+        void reset() {
+            used = 0;
+        }
+    }
+}
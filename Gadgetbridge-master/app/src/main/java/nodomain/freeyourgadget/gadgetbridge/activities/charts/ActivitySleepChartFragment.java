@@ -76,6 +76,7 @@ public class ActivitySleepChartFragment extends AbstractChartFragment {
         mChart.setBackgroundColor(BACKGROUND_COLOR);
         mChart.getDescription().setTextColor(DESCRIPTION_COLOR);
         configureBarLineChartDefaults(mChart);
+        enableRebucketOnZoom(mChart);
 
 
         XAxis x = mChart.getXAxis();
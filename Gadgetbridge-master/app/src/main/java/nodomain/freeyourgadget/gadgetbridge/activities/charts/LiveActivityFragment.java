@@ -16,15 +16,12 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.activities.charts;
 
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.graphics.Paint;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.support.v4.app.FragmentActivity;
-import android.support.v4.content.LocalBroadcastManager;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -39,8 +36,6 @@ import com.github.mikephil.charting.components.YAxis;
 import com.github.mikephil.charting.data.BarData;
 import com.github.mikephil.charting.data.BarDataSet;
 import com.github.mikephil.charting.data.BarEntry;
-import com.github.mikephil.charting.data.ChartData;
-import com.github.mikephil.charting.data.Entry;
 import com.github.mikephil.charting.data.LineData;
 import com.github.mikephil.charting.data.LineDataSet;
 import com.github.mikephil.charting.utils.Utils;
@@ -62,6 +57,7 @@ import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.model.DeviceService;
 import nodomain.freeyourgadget.gadgetbridge.model.Measurement;
+import nodomain.freeyourgadget.gadgetbridge.model.RealtimeSampleListener;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
 
 public class LiveActivityFragment extends AbstractChartFragment {
@@ -69,12 +65,16 @@ public class LiveActivityFragment extends AbstractChartFragment {
     private static final int MAX_STEPS_PER_MINUTE = 300;
     private static final int MIN_STEPS_PER_MINUTE = 60;
     private static final int RESET_COUNT = 10; // reset the max steps per minute value every 10s
+    private static final String PREF_HISTORY_WINDOW_MINUTES = "charts_live_activity_history_minutes";
+    private static final int DEFAULT_HISTORY_WINDOW_MINUTES = 60;
+    private static final int MAX_HISTORY_WINDOW_MINUTES = 24 * 60;
 
     private BarEntry totalStepsEntry;
     private BarEntry stepsPerMinuteEntry;
     private BarDataSet mStepsPerMinuteData;
     private BarDataSet mTotalStepsData;
     private LineDataSet mHistorySet;
+    private LiveChartSeries mHistorySeries;
     private BarLineChartBase mStepsPerMinuteHistoryChart;
     private CustomBarChart mStepsPerMinuteCurrentChart;
     private CustomBarChart mTotalStepsChart;
@@ -84,9 +84,22 @@ public class LiveActivityFragment extends AbstractChartFragment {
     private int maxStepsResetCounter;
     private List<Measurement> heartRateValues;
     private LineDataSet mHeartRateSet;
+    private LiveChartSeries mHeartRateSeries;
     private int mHeartRate;
     private TimestampTranslation tsTranslation;
 
+    // the values last shown, to only redraw the charts when they change
+    private int mLastTotalSteps = -1;
+    private int mLastStepsPerMinute = -1;
+    private int mLastMaxStepsPerMinute = -1;
+    private int mLastHistoryTimestamp;
+    private int mLastHistoryStepsPerMinute = -1;
+    private int mLastHistoryHeartRate = -1;
+    private int mLastUnchangedTimestamp;
+    private boolean mTotalStepsChanged;
+    private boolean mStepsPerMinuteChanged;
+    private boolean mHistoryChanged;
+
     private class Steps {
         private int steps;
         private int lastTimestamp;
@@ -151,36 +164,32 @@ public class LiveActivityFragment extends AbstractChartFragment {
         }
     }
 
-    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // the device whose samples are shown
+    private GBDevice mSampleDevice;
+
+    private final RealtimeSampleListener mSampleListener = new RealtimeSampleListener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-            switch (action) {
-                case DeviceService.ACTION_REALTIME_SAMPLES: {
-                    ActivitySample sample = (ActivitySample) intent.getSerializableExtra(DeviceService.EXTRA_REALTIME_SAMPLE);
-                    addSample(sample);
-                    break;
+        public void onRealtimeSample(GBDevice device, final int timestamp, final int steps, final int heartRate) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    addSample(timestamp, steps, heartRate);
                 }
-            }
+            });
         }
     };
 
-    private void addSample(ActivitySample sample) {
-        int heartRate = sample.getHeartRate();
-        int timestamp = tsTranslation.shorten(sample.getTimestamp());
+    private void addSample(int sampleTimestamp, int steps, int heartRate) {
+        int timestamp = tsTranslation.shorten(sampleTimestamp);
         if (HeartRateUtils.isValidHeartRateValue(heartRate)) {
             setCurrentHeartRate(heartRate, timestamp);
         }
-        int steps = sample.getSteps();
         if (steps != ActivitySample.NOT_MEASURED) {
             addEntries(steps, timestamp);
         }
     }
 
-    private int translateTimestampFrom(Intent intent) {
-        return translateTimestamp(intent.getLongExtra(DeviceService.EXTRA_TIMESTAMP, System.currentTimeMillis()));
-    }
-
     private int translateTimestamp(long tsMillis) {
         int timestamp = (int) (tsMillis / 1000); // translate to seconds
         return tsTranslation.shorten(timestamp); // and shorten
@@ -210,33 +219,67 @@ public class LiveActivityFragment extends AbstractChartFragment {
     }
 
     private void addEntries(int timestamp) {
-        mTotalStepsChart.setSingleEntryYValue(mSteps.getTotalSteps());
-        YAxis stepsPerMinuteCurrentYAxis = mStepsPerMinuteCurrentChart.getAxisLeft();
+        int totalSteps = mSteps.getTotalSteps();
+        if (totalSteps != mLastTotalSteps) {
+            mTotalStepsChart.setSingleEntryYValue(totalSteps);
+            mLastTotalSteps = totalSteps;
+            mTotalStepsChanged = true;
+        }
         int maxStepsPerMinute = mSteps.getMaxStepsPerMinute();
-//        int extraRoom = maxStepsPerMinute/5;
-//        buggy in MPAndroidChart? Disable.
-//        stepsPerMinuteCurrentYAxis.setAxisMaxValue(Math.max(MIN_STEPS_PER_MINUTE, maxStepsPerMinute + extraRoom));
-        LimitLine target = new LimitLine(maxStepsPerMinute);
-        stepsPerMinuteCurrentYAxis.removeAllLimitLines();
-        stepsPerMinuteCurrentYAxis.addLimitLine(target);
+        if (maxStepsPerMinute != mLastMaxStepsPerMinute) {
+            YAxis stepsPerMinuteCurrentYAxis = mStepsPerMinuteCurrentChart.getAxisLeft();
+//            int extraRoom = maxStepsPerMinute/5;
+//            buggy in MPAndroidChart? Disable.
+//            stepsPerMinuteCurrentYAxis.setAxisMaxValue(Math.max(MIN_STEPS_PER_MINUTE, maxStepsPerMinute + extraRoom));
+            LimitLine target = new LimitLine(maxStepsPerMinute);
+            stepsPerMinuteCurrentYAxis.removeAllLimitLines();
+            stepsPerMinuteCurrentYAxis.addLimitLine(target);
+            mLastMaxStepsPerMinute = maxStepsPerMinute;
+            mStepsPerMinuteChanged = true;
+        }
 
         int stepsPerMinute = mSteps.getStepsPerMinute(true);
-        mStepsPerMinuteCurrentChart.setSingleEntryYValue(stepsPerMinute);
+        if (stepsPerMinute != mLastStepsPerMinute) {
+            mStepsPerMinuteCurrentChart.setSingleEntryYValue(stepsPerMinute);
+            mLastStepsPerMinute = stepsPerMinute;
+            mStepsPerMinuteChanged = true;
+        }
 
         if (!addHistoryDataSet(false)) {
             return;
         }
 
-        ChartData data = mStepsPerMinuteHistoryChart.getData();
         if (stepsPerMinute < 0) {
             stepsPerMinute = 0;
         }
-        mHistorySet.addEntry(new Entry(timestamp, stepsPerMinute));
         int hr = getCurrentHeartRate();
         if (hr < 0) {
             hr = 0;
         }
-        mHeartRateSet.addEntry(new Entry(timestamp, hr));
+        addHistoryEntries(timestamp, stepsPerMinute, hr);
+    }
+
+    /**
+     * Adds the given values to the history chart. Runs of unchanged values are stored as
+     * their first and last entry only, so the chart is not redrawn while nothing changes.
+     */
+    private void addHistoryEntries(int timestamp, int stepsPerMinute, int heartRate) {
+        if (stepsPerMinute == mLastHistoryStepsPerMinute && heartRate == mLastHistoryHeartRate) {
+            mLastUnchangedTimestamp = timestamp;
+            return;
+        }
+        if (mLastUnchangedTimestamp > mLastHistoryTimestamp) {
+            // end the run of unchanged values
+            mHistorySeries.add(mLastUnchangedTimestamp, mLastHistoryStepsPerMinute);
+            mHeartRateSeries.add(mLastUnchangedTimestamp, mLastHistoryHeartRate);
+        }
+        mHistorySeries.add(timestamp, stepsPerMinute);
+        mHeartRateSeries.add(timestamp, heartRate);
+        mLastHistoryTimestamp = timestamp;
+        mLastUnchangedTimestamp = timestamp;
+        mLastHistoryStepsPerMinute = stepsPerMinute;
+        mLastHistoryHeartRate = heartRate;
+        mHistoryChanged = true;
     }
 
     private boolean addHistoryDataSet(boolean force) {
@@ -247,6 +290,9 @@ public class LiveActivityFragment extends AbstractChartFragment {
                 data.addDataSet(mHistorySet);
                 data.addDataSet(mHeartRateSet);
                 mStepsPerMinuteHistoryChart.setData(data);
+                mTotalStepsChanged = true;
+                mStepsPerMinuteChanged = true;
+                mHistoryChanged = true;
                 return true;
             }
             return false;
@@ -257,8 +303,6 @@ public class LiveActivityFragment extends AbstractChartFragment {
     @Nullable
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
-        IntentFilter filterLocal = new IntentFilter();
-        filterLocal.addAction(DeviceService.ACTION_REALTIME_SAMPLES);
         heartRateValues = new ArrayList<>();
         tsTranslation = new TimestampTranslation();
 
@@ -275,7 +319,10 @@ public class LiveActivityFragment extends AbstractChartFragment {
         mTotalStepsData = setupTotalStepsChart(mTotalStepsChart, totalStepsEntry, getString(R.string.live_activity_total_steps));
         setupHistoryChart(mStepsPerMinuteHistoryChart);
 
-        LocalBroadcastManager.getInstance(getActivity()).registerReceiver(mReceiver, filterLocal);
+        mSampleDevice = getChartsHost().getDevice();
+        if (mSampleDevice != null) {
+            RealtimeSampleListener.Registry.addListener(mSampleDevice, mSampleListener);
+        }
 
         return rootView;
     }
@@ -329,15 +376,24 @@ public class LiveActivityFragment extends AbstractChartFragment {
             return;
         }
 
-        historyData.notifyDataChanged();
-        mTotalStepsData.notifyDataSetChanged();
-        mStepsPerMinuteData.notifyDataSetChanged();
-        mStepsPerMinuteHistoryChart.notifyDataSetChanged();
-
-        renderCharts();
-
-        // have to enable it again and again to keep it measureing
-        GBApplication.deviceService().onEnableRealtimeHeartRateMeasurement(true);
+        if (mTotalStepsChanged) {
+            mTotalStepsData.notifyDataSetChanged();
+            mTotalStepsChart.animateY(150);
+            mTotalStepsChanged = false;
+        }
+        if (mStepsPerMinuteChanged) {
+            mStepsPerMinuteData.notifyDataSetChanged();
+            mStepsPerMinuteCurrentChart.animateY(150);
+            mStepsPerMinuteChanged = false;
+        }
+        if (mHistoryChanged) {
+            mHistorySet.notifyDataSetChanged();
+            mHeartRateSet.notifyDataSetChanged();
+            historyData.notifyDataChanged();
+            mStepsPerMinuteHistoryChart.notifyDataSetChanged();
+            mStepsPerMinuteHistoryChart.invalidate();
+            mHistoryChanged = false;
+        }
     }
 
     private int getPulseIntervalMillis() {
@@ -356,8 +412,11 @@ public class LiveActivityFragment extends AbstractChartFragment {
             return;
         }
 
-        GBApplication.deviceService().onEnableRealtimeSteps(enable);
-        GBApplication.deviceService().onEnableRealtimeHeartRateMeasurement(enable);
+        if (mSampleDevice != null) {
+            DeviceService deviceService = GBApplication.deviceService().forDevice(mSampleDevice);
+            deviceService.onEnableRealtimeSteps(enable);
+            deviceService.onEnableRealtimeHeartRateMeasurement(enable);
+        }
         if (enable) {
             if (getActivity() != null) {
                 getActivity().getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
@@ -380,7 +439,11 @@ public class LiveActivityFragment extends AbstractChartFragment {
     @Override
     public void onDestroyView() {
         onMadeInvisibleInActivity();
-        LocalBroadcastManager.getInstance(getActivity()).unregisterReceiver(mReceiver);
+        if (mSampleDevice != null) {
+            RealtimeSampleListener.Registry.removeListener(mSampleDevice, mSampleListener);
+            mSampleDevice = null;
+        }
+        mHandler.removeCallbacksAndMessages(null);
         super.onDestroyView();
     }
 
@@ -473,7 +536,10 @@ public class LiveActivityFragment extends AbstractChartFragment {
         yAxisRight.setAxisMaximum(HeartRateUtils.MAX_HEART_RATE_VALUE);
         yAxisRight.setAxisMinimum(HeartRateUtils.MIN_HEART_RATE_VALUE);
 
-        mHistorySet = new LineDataSet(new ArrayList<Entry>(), getString(R.string.live_activity_steps_history));
+        // the entries are only added through the series, not the data sets
+        int historyWindowSeconds = getHistoryWindowSeconds();
+        mHistorySeries = LiveChartSeries.forWindow(historyWindowSeconds);
+        mHistorySet = new LineDataSet(mHistorySeries, getString(R.string.live_activity_steps_history));
         mHistorySet.setAxisDependency(YAxis.AxisDependency.LEFT);
         mHistorySet.setColor(akActivity.color);
         mHistorySet.setDrawCircles(false);
@@ -481,10 +547,23 @@ public class LiveActivityFragment extends AbstractChartFragment {
         mHistorySet.setDrawFilled(true);
         mHistorySet.setDrawValues(false);
 
-        mHeartRateSet = createHeartrateSet(new ArrayList<Entry>(), getString(R.string.live_activity_heart_rate));
+        mHeartRateSeries = LiveChartSeries.forWindow(historyWindowSeconds);
+        mHeartRateSet = createHeartrateSet(mHeartRateSeries, getString(R.string.live_activity_heart_rate));
         mHeartRateSet.setDrawValues(false);
     }
 
+    /**
+     * Returns the time span covered by the history chart, as configured in the settings.
+     */
+    private static int getHistoryWindowSeconds() {
+        int minutes = GBApplication.getPrefs().getInt(PREF_HISTORY_WINDOW_MINUTES, DEFAULT_HISTORY_WINDOW_MINUTES);
+        if (minutes < 1 || minutes > MAX_HISTORY_WINDOW_MINUTES) {
+            LOG.warn("Invalid live activity history window: " + minutes + " minutes");
+            minutes = DEFAULT_HISTORY_WINDOW_MINUTES;
+        }
+        return minutes * 60;
+    }
+
     @Override
     public String getTitle() {
         return getContext().getString(R.string.liveactivity_live_activity);
@@ -0,0 +1,241 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.activities.charts;
+
+import com.github.mikephil.charting.data.Entry;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * A bounded series of chart values over a time window, to be used as the entry list of a
+ * live chart's data set. The x values are timestamps in seconds.
+ * <p/>
+ * The most recent values are kept as they were added, which need not be evenly spaced.
+ * Older values are decimated in tiers by time: values that become older than the span of
+ * a tier are averaged into fixed buckets of the next coarser tier, shown at the start of
+ * their bucket, and values older than the whole window are dropped. The bucket that is
+ * still being filled is part of the series as well. Each tier is a ring buffer of primitive
+ * values that reuses the {@link Entry} of each slot, so adding values does not allocate
+ * once the series is full.
+ * <p/>
+ * The list is read-only for the chart, values are added with {@link #add(float, float)}.
+ * Entries are sorted by x value, as long as values are added in ascending x order.
+ */
+public class LiveChartSeries extends AbstractList<Entry> implements RandomAccess {
+    private static final int FINE_SECONDS = 5 * 60;
+    private static final int MEDIUM_SECONDS = 30 * 60;
+    private static final int MEDIUM_BUCKET_SECONDS = 10;
+    private static final int COARSE_BUCKET_SECONDS = 60;
+
+    private static final class Tier {
+        private final int span;
+        private final int bucketLength;
+        private final float[] xs;
+        private final float[] ys;
+        private final Entry[] entries;
+        private int start;
+        private int size;
+        // the bucket of this tier that is still being filled with values of the finer tier
+        private float pendingX;
+        private float pendingY;
+        private int pendingCount;
+        private Entry pendingEntry;
+
+        private Tier(int span, int bucketLength) {
+            this.span = span;
+            this.bucketLength = bucketLength;
+            // one more for a bucket that is only partially older than the span, one for rounding
+            int capacity = span / bucketLength + 2;
+            xs = new float[capacity];
+            ys = new float[capacity];
+            entries = new Entry[capacity];
+        }
+
+        private int slot(int index) {
+            int slot = start + index;
+            return slot < xs.length ? slot : slot - xs.length;
+        }
+
+        private int entryCount() {
+            return pendingCount > 0 ? size + 1 : size;
+        }
+    }
+
+    private final Tier[] tiers;
+
+    /**
+     * @param spans         the time span of each tier in seconds, most recent tier first
+     * @param bucketLengths for each tier, the length of the buckets its values are averaged
+     *                      into, in seconds; for the first tier, the minimum distance of the
+     *                      added values, which is only used to size the buffer
+     */
+    public LiveChartSeries(int[] spans, int[] bucketLengths) {
+        if (spans.length == 0 || spans.length != bucketLengths.length) {
+            throw new IllegalArgumentException("invalid tiers");
+        }
+        tiers = new Tier[spans.length];
+        for (int i = 0; i < spans.length; i++) {
+            if (spans[i] <= 0 || bucketLengths[i] <= 0) {
+                throw new IllegalArgumentException("invalid tier " + i + ": " + spans[i] + ", " + bucketLengths[i]);
+            }
+            tiers[i] = new Tier(spans[i], bucketLengths[i]);
+        }
+    }
+
+    /**
+     * Creates a series for at most one value per second, covering the given time span: the
+     * last five minutes as they were added, the following half hour as 10 second averages
+     * and the rest as minute averages.
+     */
+    public static LiveChartSeries forWindow(int windowSeconds) {
+        int remaining = Math.max(windowSeconds, 1);
+        int fine = Math.min(remaining, FINE_SECONDS);
+        remaining -= fine;
+        int medium = Math.min(remaining, MEDIUM_SECONDS);
+        remaining -= medium;
+        if (medium == 0) {
+            return new LiveChartSeries(new int[] { fine }, new int[] { 1 });
+        }
+        if (remaining == 0) {
+            return new LiveChartSeries(new int[] { fine, medium }, new int[] { 1, MEDIUM_BUCKET_SECONDS });
+        }
+        return new LiveChartSeries(new int[] { fine, medium, remaining },
+                new int[] { 1, MEDIUM_BUCKET_SECONDS, COARSE_BUCKET_SECONDS });
+    }
+
+    /**
+     * Adds a value, decimating or dropping the values that became too old.
+     */
+    public void add(float x, float y) {
+        insert(0, x, y);
+        float cutoff = x;
+        for (int i = 0; i < tiers.length; i++) {
+            Tier tier = tiers[i];
+            cutoff -= tier.span;
+            while (tier.size > 0 && tier.xs[tier.start] < cutoff) {
+                removeOldest(i);
+            }
+            if (tier.pendingCount > 0 && tier.pendingX + tier.bucketLength <= cutoff) {
+                // the whole bucket is too old for this tier already
+                float pendingX = tier.pendingX;
+                float pendingY = tier.pendingY / tier.pendingCount;
+                tier.pendingCount = 0;
+                moveDown(i + 1, pendingX, pendingY);
+            }
+        }
+        modCount++;
+    }
+
+    private void insert(int tierIndex, float x, float y) {
+        Tier tier = tiers[tierIndex];
+        if (tier.size == tier.xs.length) {
+            // more values than expected, e.g. several per second
+            removeOldest(tierIndex);
+        }
+
+        int slot = tier.slot(tier.size);
+        tier.xs[slot] = x;
+        tier.ys[slot] = y;
+        Entry entry = tier.entries[slot];
+        if (entry == null) {
+            tier.entries[slot] = new Entry(x, y);
+        } else {
+            entry.setX(x);
+            entry.setY(y);
+        }
+        tier.size++;
+    }
+
+    private void removeOldest(int tierIndex) {
+        Tier tier = tiers[tierIndex];
+        float oldestX = tier.xs[tier.start];
+        float oldestY = tier.ys[tier.start];
+        tier.start = tier.slot(1);
+        tier.size--;
+        moveDown(tierIndex + 1, oldestX, oldestY);
+    }
+
+    /**
+     * Adds a value that left the finer tier to the bucket of the given tier it belongs to,
+     * or drops it if there is no coarser tier.
+     */
+    private void moveDown(int tierIndex, float x, float y) {
+        if (tierIndex >= tiers.length) {
+            return;
+        }
+        Tier tier = tiers[tierIndex];
+        float bucketX = (float) Math.floor(x / tier.bucketLength) * tier.bucketLength;
+        if (tier.pendingCount > 0 && bucketX != tier.pendingX) {
+            float pendingY = tier.pendingY / tier.pendingCount;
+            tier.pendingCount = 0;
+            insert(tierIndex, tier.pendingX, pendingY);
+        }
+        if (tier.pendingCount == 0) {
+            tier.pendingX = bucketX;
+            tier.pendingY = 0;
+        }
+        tier.pendingY += y;
+        tier.pendingCount++;
+    }
+
+    /**
+     * Returns the entry at the given index, the oldest (and coarsest) entries first.
+     * The returned entry is reused when the series changes.
+     */
+    @Override
+    public Entry get(int index) {
+        if (index < 0) {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size());
+        }
+        int offset = index;
+        for (int i = tiers.length - 1; i >= 0; i--) {
+            Tier tier = tiers[i];
+            if (offset < tier.size) {
+                return tier.entries[tier.slot(offset)];
+            }
+            offset -= tier.size;
+            if (tier.pendingCount > 0) {
+                if (offset == 0) {
+                    return getPendingEntry(tier);
+                }
+                offset--;
+            }
+        }
+        throw new IndexOutOfBoundsException("index: " + index + ", size: " + size());
+    }
+
+    private Entry getPendingEntry(Tier tier) {
+        float y = tier.pendingY / tier.pendingCount;
+        if (tier.pendingEntry == null) {
+            tier.pendingEntry = new Entry(tier.pendingX, y);
+        } else {
+            tier.pendingEntry.setX(tier.pendingX);
+            tier.pendingEntry.setY(y);
+        }
+        return tier.pendingEntry;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Tier tier : tiers) {
+            size += tier.entryCount();
+        }
+        return size;
+    }
+}
@@ -177,6 +177,7 @@ public class SleepChartFragment extends AbstractChartFragment {
         mActivityChart.setBackgroundColor(BACKGROUND_COLOR);
         mActivityChart.getDescription().setTextColor(DESCRIPTION_COLOR);
         configureBarLineChartDefaults(mActivityChart);
+        enableRebucketOnZoom(mActivityChart);
 
         XAxis x = mActivityChart.getXAxis();
         x.setDrawLabels(true);
@@ -35,10 +35,12 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 import nodomain.freeyourgadget.gadgetbridge.R;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
+import nodomain.freeyourgadget.gadgetbridge.devices.SampleColumns;
+import nodomain.freeyourgadget.gadgetbridge.devices.SampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
@@ -52,16 +54,18 @@ public class SpeedZonesFragment extends AbstractChartFragment {
 
     @Override
     protected ChartsData refreshInBackground(ChartsHost chartsHost, DBHandler db, GBDevice device) {
-        List<? extends ActivitySample> samples = getSamples(db, device);
+        // the speed zones may span a long time, so avoid creating a sample object per minute
+        SampleProvider<? extends AbstractActivitySample> provider = getProvider(db, device);
+        SampleColumns samples = provider.getSampleColumns(getTSStart(), getTSEnd());
 
-        MySpeedZonesData mySpeedZonesData = refreshStats(samples);
+        MySpeedZonesData mySpeedZonesData = refreshStats(samples, provider);
 
         return new MyChartsData(mySpeedZonesData);
     }
 
-    private MySpeedZonesData refreshStats(List<? extends ActivitySample> samples) {
+    private MySpeedZonesData refreshStats(SampleColumns samples, SampleProvider<?> provider) {
         ActivityAnalysis analysis = new ActivityAnalysis();
-        analysis.calculateActivityAmounts(samples);
+        analysis.calculateActivityAmounts(samples, provider);
         BarData data = new BarData();
         data.setValueTextColor(CHART_TEXT_COLOR);
         List<BarEntry> entries = new ArrayList<>();
@@ -74,8 +78,11 @@ public class SpeedZonesFragment extends AbstractChartFragment {
             distanceFactorCm = user.getHeightCm() * user.GENDER_FEMALE_DISTANCE_FACTOR / 1000;
         }*/
 
-        for (Map.Entry<Integer, Long> entry : analysis.stats.entrySet()) {
-            entries.add(new BarEntry(entry.getKey(), entry.getValue() / 60));
+        for (int speed = 1; speed <= analysis.getMaxSpeed(); speed++) {
+            long seconds = analysis.getSpeedZoneSeconds(speed);
+            if (seconds > 0) {
+                entries.add(new BarEntry(speed, seconds / 60));
+            }
         }
 
         BarDataSet set = new BarDataSet(entries, "");
@@ -29,7 +29,7 @@ public class ActivitySummariesAdapter extends AbstractItemAdapter<BaseActivitySu
 
     @Override
     public void loadItems() {
-        try (DBHandler handler = GBApplication.acquireDB()) {
+        try (DBHandler handler = GBApplication.acquireReadOnlyDB()) {
             BaseActivitySummaryDao summaryDao = handler.getDaoSession().getBaseActivitySummaryDao();
             Device dbDevice = DBHelper.findDevice(device, handler.getDaoSession());
 
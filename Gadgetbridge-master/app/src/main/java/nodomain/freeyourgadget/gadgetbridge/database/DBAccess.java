@@ -21,6 +21,7 @@ import android.os.AsyncTask;
 import android.widget.Toast;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.GBException;
 import nodomain.freeyourgadget.gadgetbridge.R;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
 
@@ -40,9 +41,17 @@ public abstract class DBAccess extends AsyncTask {
 
     protected abstract void doInBackground(DBHandler handler);
 
+    /**
+     * Returns the handler passed to #doInBackground(DBHandler). Override this to
+     * return a reader if the task does not write, see GBApplication#acquireReadOnlyDB().
+     */
+    protected DBHandler acquireDB() throws GBException {
+        return GBApplication.acquireDB();
+    }
+
     @Override
     protected Object doInBackground(Object[] params) {
-        try (DBHandler db = GBApplication.acquireDB()) {
+        try (DBHandler db = acquireDB()) {
             doInBackground(db);
         } catch (Exception e) {
             mError = e;
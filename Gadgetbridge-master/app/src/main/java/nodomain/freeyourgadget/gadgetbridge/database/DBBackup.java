@@ -0,0 +1,379 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
+
+/**
+ * Exports the database while it stays open. Readers keep working during the export, only
+ * writers have to wait, because the caller holds the exclusive database handler.
+ * <p/>
+ * Before copying, the {@link DBWriter} is paused and the write-ahead log is checkpointed
+ * into the database file, so that the file is complete and does not change while it is copied.
+ * <p/>
+ * Exports to a {@link Uri} that can be opened for random access are incremental: the digest
+ * of each database page is remembered, and only changed pages are written the next time.
+ * This is only done if the provider reports the same size and modification time of the
+ * document as after the previous export, otherwise everything is written. An interrupted
+ * export can simply be started again. Other documents are written as a whole.
+ */
+public class DBBackup {
+    private static final Logger LOG = LoggerFactory.getLogger(DBBackup.class);
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final String PAGES_FILE_NAME = "export-pages.dat";
+    private static final int PAGES_FILE_VERSION = 2;
+    /**
+     * A cryptographic digest rather than a CRC, so that a changed page is practically
+     * never mistaken for an unchanged one.
+     */
+    private static final String PAGE_DIGEST_ALGORITHM = "SHA-1";
+    private static final int CHECKPOINT_ATTEMPTS = 5;
+    private static final long CHECKPOINT_RETRY_MILLIS = 200;
+
+    private final Context context;
+
+    public DBBackup(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Copies the database to the given file.
+     */
+    public void exportTo(DBHandler dbHandler, File destFile) throws IOException {
+        File dbFile = beginExport(dbHandler);
+        try {
+            FileUtils.copyFile(dbFile, destFile);
+        } finally {
+            endExport();
+        }
+    }
+
+    /**
+     * Copies the database to the given stream, which is not closed.
+     */
+    public void exportTo(DBHandler dbHandler, OutputStream dest) throws IOException {
+        File dbFile = beginExport(dbHandler);
+        try (FileChannel in = new FileInputStream(dbFile).getChannel()) {
+            WritableByteChannel out = Channels.newChannel(dest);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+            }
+            dest.flush();
+        } finally {
+            endExport();
+        }
+    }
+
+    /**
+     * Copies the database to the given document. If it was the destination of the previous
+     * export, has not been modified since and can be written at random positions, only the
+     * pages changed since then are written.
+     */
+    public void exportTo(DBHandler dbHandler, Uri dest) throws IOException {
+        long[] previousState = getDocumentState(dest);
+        ParcelFileDescriptor descriptor = openForRandomAccess(dest);
+        if (descriptor == null) {
+            forgetPages();
+            OutputStream out = context.getContentResolver().openOutputStream(dest, "wt");
+            if (out == null) {
+                throw new IOException("Unable to open output stream for " + dest);
+            }
+            try (OutputStream stream = out) {
+                exportTo(dbHandler, stream);
+            }
+            return;
+        }
+
+        int pageSize = 0;
+        byte[][] pages = null;
+        byte[][] previousPages = null;
+        boolean success = false;
+        File dbFile = beginExport(dbHandler);
+        try (FileChannel in = new FileInputStream(dbFile).getChannel();
+             FileChannel out = new ParcelFileDescriptor.AutoCloseOutputStream(descriptor).getChannel()) {
+            pageSize = getPageSize(dbHandler.getDatabase());
+            previousPages = readPages(dest, pageSize, previousState);
+            pages = new byte[(int) ((in.size() + pageSize - 1) / pageSize)][];
+            exportPages(in, out, pageSize, pages, previousPages);
+            success = true;
+        } finally {
+            endExport();
+            if (pages != null) {
+                // now that the document is closed, its size and modification time are final
+                if (success) {
+                    writePages(dest, pageSize, pages);
+                } else {
+                    // remember the pages written so far, so that a restarted export can skip them
+                    writePages(dest, pageSize, merge(pages, previousPages));
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens the given document for writing at random positions, or returns null if that
+     * is not possible, e.g. for a pipe of a cloud provider or if the provider does not
+     * support the mode at all.
+     */
+    private ParcelFileDescriptor openForRandomAccess(Uri dest) throws IOException {
+        ParcelFileDescriptor descriptor;
+        try {
+            descriptor = context.getContentResolver().openFileDescriptor(dest, "rw");
+        } catch (FileNotFoundException | IllegalArgumentException | UnsupportedOperationException ex) {
+            LOG.info("Unable to open " + dest + " for random access, exporting as a whole: " + ex.getMessage());
+            return null;
+        }
+        if (descriptor != null && descriptor.getStatSize() < 0) {
+            // not a file, so it can only be written as a whole
+            descriptor.close();
+            return null;
+        }
+        return descriptor;
+    }
+
+    private void exportPages(FileChannel in, FileChannel out, int pageSize, byte[][] pages, byte[][] previousPages) throws IOException {
+        long length = in.size();
+        int pageCount = pages.length;
+        int pagesPerBuffer = Math.max(1, BUFFER_SIZE / pageSize);
+        ByteBuffer buffer = ByteBuffer.allocate(pagesPerBuffer * pageSize);
+        MessageDigest digest = createPageDigest();
+        int writtenPages = 0;
+
+        for (int first = 0; first < pageCount; first += pagesPerBuffer) {
+            buffer.clear();
+            long position = (long) first * pageSize;
+            while (buffer.hasRemaining() && in.read(buffer, position + buffer.position()) != -1) {
+                // continue until the buffer is full or the end of the file is reached
+            }
+            int bytes = buffer.position();
+            for (int page = first; page < pageCount && (long) (page - first) * pageSize < bytes; page++) {
+                int offset = (page - first) * pageSize;
+                int pageLength = Math.min(pageSize, bytes - offset);
+                digest.update(buffer.array(), offset, pageLength);
+                byte[] pageDigest = digest.digest();
+                if (previousPages == null || page >= previousPages.length || !Arrays.equals(previousPages[page], pageDigest)) {
+                    ByteBuffer pageBuffer = ByteBuffer.wrap(buffer.array(), offset, pageLength);
+                    long pagePosition = (long) page * pageSize;
+                    while (pageBuffer.hasRemaining()) {
+                        out.write(pageBuffer, pagePosition + pageBuffer.position() - offset);
+                    }
+                    writtenPages++;
+                }
+                pages[page] = pageDigest;
+            }
+        }
+        out.truncate(length);
+        out.force(false);
+        LOG.info("Exported database: wrote " + writtenPages + " of " + pageCount + " pages");
+    }
+
+    private static MessageDigest createPageDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(PAGE_DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException("Unable to calculate page digests", ex);
+        }
+    }
+
+    /**
+     * Returns the digests of the destination after an export failed. Pages are exported in
+     * order, so the destination contains the new pages up to the first unknown one (which may
+     * have been written partially), and the previous ones after it.
+     */
+    private static byte[][] merge(byte[][] pages, byte[][] previousPages) {
+        byte[][] result = Arrays.copyOf(pages, pages.length);
+        int failedPage = 0;
+        while (failedPage < pages.length && pages[failedPage] != null) {
+            failedPage++;
+        }
+        for (int i = failedPage + 1; i < result.length; i++) {
+            result[i] = previousPages != null && i < previousPages.length ? previousPages[i] : null;
+        }
+        return result;
+    }
+
+    private File beginExport(DBHandler dbHandler) throws IOException {
+        GBApplication.dbWriter().pause();
+        boolean success = false;
+        try {
+            SQLiteDatabase db = dbHandler.getDatabase();
+            checkpoint(db);
+            success = true;
+            return new File(db.getPath());
+        } finally {
+            if (!success) {
+                GBApplication.dbWriter().resume();
+            }
+        }
+    }
+
+    private void endExport() {
+        GBApplication.dbWriter().resume();
+    }
+
+    /**
+     * Writes all frames of the write-ahead log to the database file. Readers may keep the
+     * checkpoint from completing, so it is retried a few times.
+     */
+    private static void checkpoint(SQLiteDatabase db) throws IOException {
+        if (!db.isWriteAheadLoggingEnabled()) {
+            return;
+        }
+        for (int attempt = 1; ; attempt++) {
+            try (Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(FULL)", null)) {
+                // busy, frames in the log, frames checkpointed
+                if (!cursor.moveToFirst() || (cursor.getInt(0) == 0 && cursor.getInt(1) == cursor.getInt(2))) {
+                    return;
+                }
+            }
+            if (attempt == CHECKPOINT_ATTEMPTS) {
+                throw new IOException("Unable to checkpoint the database, it is still in use");
+            }
+            LOG.info("Database is still in use, retrying the checkpoint");
+            try {
+                Thread.sleep(attempt * CHECKPOINT_RETRY_MILLIS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the database", ex);
+            }
+        }
+    }
+
+    private static int getPageSize(SQLiteDatabase db) throws IOException {
+        try (Cursor cursor = db.rawQuery("PRAGMA page_size", null)) {
+            if (cursor.moveToFirst()) {
+                return cursor.getInt(0);
+            }
+        }
+        throw new IOException("Unable to determine the database page size");
+    }
+
+    /**
+     * Returns the size and the modification time of the given document, or null if the
+     * provider does not report them.
+     */
+    private long[] getDocumentState(Uri uri) {
+        String[] projection = new String[] { DocumentsContract.Document.COLUMN_SIZE, DocumentsContract.Document.COLUMN_LAST_MODIFIED };
+        try (Cursor cursor = context.getContentResolver().query(uri, projection, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0) && !cursor.isNull(1)) {
+                return new long[] { cursor.getLong(0), cursor.getLong(1) };
+            }
+        } catch (RuntimeException ex) {
+            LOG.info("Unable to query the state of " + uri + ": " + ex.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Returns the page digests of the previous export to the given destination, or null if
+     * the destination is not known to contain them, i.e. if it was modified in the meantime.
+     */
+    private byte[][] readPages(Uri dest, int pageSize, long[] destState) {
+        File file = new File(context.getFilesDir(), PAGES_FILE_NAME);
+        if (destState == null || !file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != PAGES_FILE_VERSION
+                    || !dest.toString().equals(in.readUTF())
+                    || in.readInt() != pageSize
+                    || in.readLong() != destState[0]
+                    || in.readLong() != destState[1]) {
+                return null;
+            }
+            byte[][] pages = new byte[in.readInt()][];
+            int digestLength = in.readInt();
+            for (int i = 0; i < pages.length; i++) {
+                if (in.readBoolean()) {
+                    pages[i] = new byte[digestLength];
+                    in.readFully(pages[i]);
+                }
+            }
+            return pages;
+        } catch (IOException ex) {
+            LOG.warn("Unable to read the pages of the previous export, exporting everything", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Remembers the page digests of the given destination, together with its current state.
+     */
+    private void writePages(Uri dest, int pageSize, byte[][] pages) {
+        long[] destState = getDocumentState(dest);
+        if (destState == null) {
+            forgetPages();
+            return;
+        }
+        File file = new File(context.getFilesDir(), PAGES_FILE_NAME);
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(PAGES_FILE_VERSION);
+            out.writeUTF(dest.toString());
+            out.writeInt(pageSize);
+            out.writeLong(destState[0]);
+            out.writeLong(destState[1]);
+            out.writeInt(pages.length);
+            out.writeInt(createPageDigest().getDigestLength());
+            for (byte[] page : pages) {
+                out.writeBoolean(page != null);
+                if (page != null) {
+                    out.write(page);
+                }
+            }
+        } catch (IOException ex) {
+            LOG.warn("Unable to remember the exported pages", ex);
+            file.delete();
+        }
+    }
+
+    private void forgetPages() {
+        new File(context.getFilesDir(), PAGES_FILE_NAME).delete();
+    }
+}
@@ -36,7 +36,10 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import de.greenrobot.dao.Property;
 import de.greenrobot.dao.query.Query;
@@ -74,6 +77,23 @@ import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
 public class DBHelper {
     private static final Logger LOG = LoggerFactory.getLogger(DBHelper.class);
 
+    /**
+     * Device entities by device address, for #findDevice(). Dropped after each write of the
+     * DBWriter, see #invalidateCachedEntities().
+     */
+    private static final Map<String, Device> cachedDevices = new ConcurrentHashMap<>();
+    /**
+     * The state of each GBDevice when its entity and attributes were last brought up to date
+     * by #getDevice(), see #getDeviceState()
+     */
+    private static final Map<String, String> upToDateDeviceStates = new ConcurrentHashMap<>();
+    /**
+     * The user entity, if it is up to date with the preferences
+     */
+    private static volatile User cachedUser;
+    private static final AtomicLong entityCacheHits = new AtomicLong();
+    private static final AtomicLong entityCacheMisses = new AtomicLong();
+
     private final Context context;
 
     public DBHelper(Context context) {
@@ -82,14 +102,14 @@ public class DBHelper {
 
     /**
      * Closes the database and returns its name.
-     * Important: after calling this, you have to DBHandler#openDb() it again
+     * Important: after calling this, you have to ExclusiveDBHandler#openDb() it again
      * to get it back to work.
      *
      * @param dbHandler
      * @return
      * @throws IllegalStateException
      */
-    private String getClosedDBPath(DBHandler dbHandler) throws IllegalStateException {
+    private String getClosedDBPath(ExclusiveDBHandler dbHandler) throws IllegalStateException {
         SQLiteDatabase db = dbHandler.getDatabase();
         String path = db.getPath();
         dbHandler.closeDb();
@@ -99,45 +119,57 @@ public class DBHelper {
         return path;
     }
 
+    /**
+     * Exports the database to the given directory, without closing it.
+     * An existing export in that directory is renamed.
+     *
+     * @see DBBackup
+     */
     public File exportDB(DBHandler dbHandler, File toDir) throws IllegalStateException, IOException {
-        String dbPath = getClosedDBPath(dbHandler);
-        try {
-            File sourceFile = new File(dbPath);
-            File destFile = new File(toDir, sourceFile.getName());
-            if (destFile.exists()) {
-                File backup = new File(toDir, destFile.getName() + "_" + getDate());
-                destFile.renameTo(backup);
-            } else if (!toDir.exists()) {
-                if (!toDir.mkdirs()) {
-                    throw new IOException("Unable to create directory: " + toDir.getAbsolutePath());
-                }
+        File destFile = new File(toDir, new File(dbHandler.getDatabase().getPath()).getName());
+        if (destFile.exists()) {
+            File backup = new File(toDir, destFile.getName() + "_" + getDate());
+            destFile.renameTo(backup);
+        } else if (!toDir.exists()) {
+            if (!toDir.mkdirs()) {
+                throw new IOException("Unable to create directory: " + toDir.getAbsolutePath());
             }
-
-            FileUtils.copyFile(sourceFile, destFile);
-            return destFile;
-        } finally {
-            dbHandler.openDb();
         }
+
+        new DBBackup(context).exportTo(dbHandler, destFile);
+        return destFile;
     }
 
+    /**
+     * Exports the database to the given stream, without closing it.
+     *
+     * @see DBBackup
+     */
     public void exportDB(DBHandler dbHandler, OutputStream dest) throws IOException {
-        String dbPath = getClosedDBPath(dbHandler);
-        try {
-            File source = new File(dbPath);
-            FileUtils.copyFileToStream(source, dest);
-        } finally {
-            dbHandler.openDb();
-        }
+        new DBBackup(context).exportTo(dbHandler, dest);
+    }
+
+    /**
+     * Exports the database to the given document, without closing it. Only the
+     * parts changed since the previous export to that document are written, if possible.
+     *
+     * @see DBBackup
+     */
+    public void exportDB(DBHandler dbHandler, Uri dest) throws IOException {
+        new DBBackup(context).exportTo(dbHandler, dest);
     }
 
     private String getDate() {
         return new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
     }
 
-    public void importDB(DBHandler dbHandler, File fromFile) throws IllegalStateException, IOException {
+    public void importDB(ExclusiveDBHandler dbHandler, File fromFile) throws IllegalStateException, IOException {
         String dbPath = getClosedDBPath(dbHandler);
         try {
             File toFile = new File(dbPath);
+            // the write-ahead log of the old database must not be applied to the imported one
+            new File(dbPath + "-wal").delete();
+            new File(dbPath + "-shm").delete();
             FileUtils.copyFile(fromFile, toFile);
         } finally {
             dbHandler.openDb();
@@ -203,6 +235,13 @@ public class DBHelper {
      */
     @NonNull
     public static User getUser(DaoSession session) {
+        User cached = cachedUser;
+        if (cached != null) {
+            countEntityCacheAccess(true);
+            return cached;
+        }
+        countEntityCacheAccess(false);
+
         ActivityUser prefsUser = new ActivityUser();
         UserDao userDao = session.getUserDao();
         User user;
@@ -214,6 +253,7 @@ public class DBHelper {
             ensureUserUpToDate(user, prefsUser, session);
         }
         ensureUserAttributes(user, prefsUser, session);
+        cachedUser = user;
 
         return user;
     }
@@ -363,11 +403,21 @@ public class DBHelper {
     }
 
     public static Device findDevice(GBDevice gbDevice, DaoSession session) {
+        Device cached = cachedDevices.get(gbDevice.getAddress());
+        if (cached != null) {
+            countEntityCacheAccess(true);
+            return cached;
+        }
+        countEntityCacheAccess(false);
+
         DeviceDao deviceDao = session.getDeviceDao();
+
         Query<Device> query = deviceDao.queryBuilder().where(DeviceDao.Properties.Identifier.eq(gbDevice.getAddress())).build();
         List<Device> devices = query.list();
         if (devices.size() > 0) {
-            return devices.get(0);
+            Device device = devices.get(0);
+            cachedDevices.put(gbDevice.getAddress(), device);
+            return device;
         }
         return null;
     }
@@ -390,7 +440,12 @@ public class DBHelper {
      * @return the device entity corresponding to the given GBDevice
      */
     public static Device getDevice(GBDevice gbDevice, DaoSession session) {
+        String deviceState = getDeviceState(gbDevice);
         Device device = findDevice(gbDevice, session);
+        if (device != null && deviceState.equals(upToDateDeviceStates.get(gbDevice.getAddress()))) {
+            return device;
+        }
+
         if (device == null) {
             device = createDevice(gbDevice, session);
         } else {
@@ -399,10 +454,70 @@ public class DBHelper {
         if (gbDevice.isInitialized()) {
             ensureDeviceAttributes(device, gbDevice, session);
         }
+        cachedDevices.put(gbDevice.getAddress(), device);
+        upToDateDeviceStates.put(gbDevice.getAddress(), deviceState);
 
         return device;
     }
 
+    /**
+     * Returns everything of the given device that #getDevice() stores in the database.
+     */
+    private static String getDeviceState(GBDevice gbDevice) {
+        return gbDevice.getName() + '|' + gbDevice.getType() + '|' + gbDevice.getModel() + '|'
+                + gbDevice.getFirmwareVersion() + '|' + gbDevice.getFirmwareVersion2() + '|'
+                + gbDevice.getVolatileAddress() + '|' + gbDevice.isInitialized();
+    }
+
+    /**
+     * Forgets the cached entity of the given device, e.g. after it was deleted.
+     */
+    public static void invalidateDevice(String address) {
+        cachedDevices.remove(address);
+        upToDateDeviceStates.remove(address);
+    }
+
+    /**
+     * Forgets the cached user entity, e.g. after the user preferences were changed.
+     */
+    public static void invalidateUser() {
+        cachedUser = null;
+    }
+
+    /**
+     * Forgets the cached entities, but not which devices are up to date. Called after each
+     * write of the DBWriter, which may have changed the rows of cached entities.
+     */
+    static void invalidateCachedEntities() {
+        cachedDevices.clear();
+        cachedUser = null;
+    }
+
+    /**
+     * Forgets all cached entities. Must be called when the database is closed,
+     * since a different database may be opened afterwards.
+     */
+    public static void invalidateEntityCache() {
+        invalidateCachedEntities();
+        upToDateDeviceStates.clear();
+        LOG.info("Entity cache cleared, " + getEntityCacheStatistics());
+    }
+
+    public static String getEntityCacheStatistics() {
+        long hits = entityCacheHits.get();
+        long misses = entityCacheMisses.get();
+        long total = hits + misses;
+        return "entity cache hits: " + hits + ", misses: " + misses
+                + ", hit rate: " + (total > 0 ? (hits * 100 / total) : 0) + "%";
+    }
+
+    private static void countEntityCacheAccess(boolean hit) {
+        long count = (hit ? entityCacheHits.incrementAndGet() : entityCacheMisses.incrementAndGet());
+        if (LOG.isDebugEnabled() && count % 1000 == 0) {
+            LOG.debug(getEntityCacheStatistics());
+        }
+    }
+
     @NonNull
     public static DeviceAttributes getDeviceAttributes(Device device) {
         List<DeviceAttributes> list = device.getDeviceAttributesList();
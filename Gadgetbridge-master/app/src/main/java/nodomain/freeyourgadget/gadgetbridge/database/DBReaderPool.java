@@ -0,0 +1,193 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import de.greenrobot.dao.identityscope.IdentityScopeType;
+import nodomain.freeyourgadget.gadgetbridge.GBException;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoMaster;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+
+/**
+ * A pool of database handlers for reading, each with its own read-only connection and
+ * session. Readers do not take the exclusive database lock, so with write-ahead logging
+ * enabled, they are not blocked by a running write transaction.
+ * <p/>
+ * Readers cannot write anything, not even derived data like cached aggregates; such
+ * writes have to be submitted to the {@link DBWriter}.
+ */
+public class DBReaderPool {
+    private static final Logger LOG = LoggerFactory.getLogger(DBReaderPool.class);
+
+    public static final int POOL_SIZE = 4;
+
+    private static final String IN_MEMORY_PATH = ":memory:";
+
+    private final BlockingQueue<Reader> idleReaders = new ArrayBlockingQueue<>(POOL_SIZE);
+    private DaoMaster daoMaster;
+    private int readerCount;
+    private int generation;
+
+    public synchronized void init(DaoMaster daoMaster) {
+        this.daoMaster = daoMaster;
+    }
+
+    /**
+     * Returns a reader, waiting at most the given time for one to become available.
+     * Callers must close the returned handler when they are done, to give it back to the pool.
+     *
+     * @throws GBException if no reader became available in time or the database is closed
+     */
+    public DBHandler acquire(long timeout, TimeUnit unit) throws GBException {
+        Reader reader = idleReaders.poll();
+        if (reader == null) {
+            reader = createReader();
+        }
+        if (reader == null) {
+            try {
+                reader = idleReaders.poll(timeout, unit);
+            } catch (InterruptedException ex) {
+                LOG.info("Interrupted while waiting for a database reader");
+            }
+        }
+        if (reader == null) {
+            throw new GBException("Unable to access the database for reading.");
+        }
+        return reader;
+    }
+
+    private synchronized Reader createReader() throws GBException {
+        if (daoMaster == null || readerCount >= POOL_SIZE) {
+            return null;
+        }
+        Reader reader = new Reader(openReadOnly(daoMaster), generation);
+        readerCount++;
+        return reader;
+    }
+
+    /**
+     * Opens a separate read-only connection to the database of the given master. In-memory
+     * databases (e.g. in tests) cannot be opened twice, so the given connection is shared then.
+     */
+    private static DaoMaster openReadOnly(DaoMaster daoMaster) throws GBException {
+        String path = daoMaster.getDatabase().getPath();
+        if (path == null || IN_MEMORY_PATH.equals(path)) {
+            return daoMaster;
+        }
+        try {
+            SQLiteDatabase db = SQLiteDatabase.openDatabase(path, null,
+                    SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+            return new DaoMaster(db);
+        } catch (SQLiteException ex) {
+            throw new GBException("Unable to open the database for reading.", ex);
+        }
+    }
+
+    private synchronized void release(Reader reader) {
+        if (reader.generation == generation) {
+            idleReaders.add(reader);
+        } else {
+            reader.discard();
+        }
+    }
+
+    /**
+     * Waits for all readers to be returned and discards them, so that the database may be closed.
+     * No readers are handed out until {@link #init(DaoMaster)} is called again.
+     */
+    public void close() {
+        int count;
+        synchronized (this) {
+            daoMaster = null;
+            count = readerCount;
+        }
+        for (int i = 0; i < count; i++) {
+            Reader reader = null;
+            try {
+                reader = idleReaders.poll(30, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                LOG.info("Interrupted while waiting for database readers");
+            }
+            if (reader == null) {
+                // it will be discarded when it is returned
+                LOG.warn("Database reader still in use, closing anyway");
+                break;
+            }
+            reader.discard();
+        }
+        synchronized (this) {
+            Reader reader;
+            while ((reader = idleReaders.poll()) != null) {
+                reader.discard();
+            }
+            readerCount = 0;
+            generation++;
+        }
+    }
+
+    private class Reader implements DBHandler {
+        private final DaoMaster daoMaster;
+        private final DaoSession session;
+        private final int generation;
+
+        Reader(DaoMaster daoMaster, int generation) {
+            this.daoMaster = daoMaster;
+            this.generation = generation;
+            // no identity scope: entities read here are never shared with other sessions
+            session = daoMaster.newSession(IdentityScopeType.None);
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+
+        /**
+         * Closes the connection of this reader, unless it is shared.
+         */
+        void discard() {
+            SQLiteDatabase db = daoMaster.getDatabase();
+            if (db.isReadOnly()) {
+                db.close();
+            }
+        }
+
+        @Override
+        public SQLiteDatabase getDatabase() {
+            return daoMaster.getDatabase();
+        }
+
+        @Override
+        public DaoMaster getDaoMaster() {
+            return daoMaster;
+        }
+
+        @Override
+        public DaoSession getDaoSession() {
+            return session;
+        }
+    }
+}
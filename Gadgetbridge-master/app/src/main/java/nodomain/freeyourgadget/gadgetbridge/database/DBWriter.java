@@ -0,0 +1,252 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import de.greenrobot.dao.identityscope.IdentityScopeType;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoMaster;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+
+/**
+ * A single thread that performs queued database writes. All writes that are pending when the
+ * thread gets to run are performed in one transaction, so that frequent small writes
+ * (e.g. realtime samples) do not block their callers.
+ * <p/>
+ * The writer has its own session and does not take the exclusive database lock; SQLite
+ * serializes its transactions with those of the exclusive handler. It only waits while the
+ * database is closed (see {@link #close()}) or writing is paused, e.g. during an export.
+ * The thread runs as long as the process.
+ * <p/>
+ * The writer's session has no identity scope. Since entities cached in the identity scope
+ * of the shared session may be stale after a write, that scope is cleared after each batch,
+ * along with the entity cache of {@link DBHelper}.
+ */
+public class DBWriter {
+    private static final Logger LOG = LoggerFactory.getLogger(DBWriter.class);
+
+    public static final int MAX_BATCH_SIZE = 64;
+
+    public interface WriteTask {
+        /**
+         * Called on the writer thread, inside a transaction that may contain other tasks.
+         * Throwing an exception rolls the transaction back, after which the tasks are
+         * retried one by one.
+         */
+        void write(DBHandler handler) throws Exception;
+    }
+
+    private final BlockingQueue<WriteTask> pendingTasks = new LinkedBlockingQueue<>();
+    private final Thread writerThread;
+    /**
+     * Guards the following fields.
+     */
+    private final Object stateLock = new Object();
+    private Writer writer;
+    private int pauseCount;
+    private boolean writing;
+
+    public DBWriter() {
+        writerThread = new Thread("Gadgetbridge DB Writer") {
+            @Override
+            public void run() {
+                List<WriteTask> batch = new ArrayList<>(MAX_BATCH_SIZE);
+                while (true) {
+                    try {
+                        batch.add(pendingTasks.take());
+                    } catch (InterruptedException ex) {
+                        LOG.warn("Ignoring interruption of the DB writer thread");
+                        continue;
+                    }
+                    pendingTasks.drainTo(batch, MAX_BATCH_SIZE - 1);
+                    Writer current = beginWriting();
+                    try {
+                        write(current, batch);
+                    } finally {
+                        endWriting();
+                    }
+                    batch.clear();
+                }
+            }
+        };
+        writerThread.setDaemon(true);
+    }
+
+    public void start() {
+        writerThread.start();
+    }
+
+    /**
+     * Lets the writer use the given, newly opened database.
+     *
+     * @param sharedSession the identity scoped session used by everyone else, whose
+     *                      cached entities are dropped after each write
+     */
+    public void init(DaoMaster daoMaster, DaoSession sharedSession) {
+        synchronized (stateLock) {
+            writer = new Writer(daoMaster, sharedSession);
+            stateLock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits for a running write to complete and keeps all further ones pending,
+     * until {@link #init(DaoMaster, DaoSession)} is called, so that the database can be closed.
+     */
+    public void close() {
+        synchronized (stateLock) {
+            writer = null;
+            awaitIdle();
+        }
+    }
+
+    /**
+     * Waits for a running write to complete and keeps all further ones pending,
+     * until {@link #resume()} is called.
+     */
+    void pause() {
+        synchronized (stateLock) {
+            pauseCount++;
+            awaitIdle();
+        }
+    }
+
+    void resume() {
+        synchronized (stateLock) {
+            pauseCount--;
+            stateLock.notifyAll();
+        }
+    }
+
+    /**
+     * Queues the given task. It will be run asynchronously on the writer thread.
+     */
+    public void submit(WriteTask task) {
+        pendingTasks.add(task);
+    }
+
+    private Writer beginWriting() {
+        synchronized (stateLock) {
+            while (writer == null || pauseCount > 0) {
+                try {
+                    stateLock.wait();
+                } catch (InterruptedException ex) {
+                    LOG.warn("Ignoring interruption of the DB writer thread");
+                }
+            }
+            writing = true;
+            return writer;
+        }
+    }
+
+    private void endWriting() {
+        synchronized (stateLock) {
+            writing = false;
+            stateLock.notifyAll();
+        }
+    }
+
+    /**
+     * Must be called with stateLock held.
+     */
+    private void awaitIdle() {
+        boolean interrupted = false;
+        while (writing) {
+            try {
+                stateLock.wait();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(Writer handler, List<WriteTask> batch) {
+        if (!writeInTransaction(handler, batch) && batch.size() > 1) {
+            for (WriteTask task : batch) {
+                try {
+                    task.write(handler);
+                } catch (Exception ex) {
+                    LOG.error("Error writing to the database", ex);
+                }
+            }
+        }
+        // also after a failed batch, since its tasks are retried one by one
+        handler.sharedSession.clear();
+        DBHelper.invalidateCachedEntities();
+    }
+
+    private boolean writeInTransaction(DBHandler handler, List<WriteTask> batch) {
+        SQLiteDatabase db = handler.getDatabase();
+        db.beginTransaction();
+        try {
+            for (WriteTask task : batch) {
+                task.write(handler);
+            }
+            db.setTransactionSuccessful();
+            return true;
+        } catch (Exception ex) {
+            LOG.warn("Error writing a batch of " + batch.size() + " to the database", ex);
+            return false;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static class Writer implements DBHandler {
+        private final DaoMaster daoMaster;
+        private final DaoSession session;
+        private final DaoSession sharedSession;
+
+        Writer(DaoMaster daoMaster, DaoSession sharedSession) {
+            this.daoMaster = daoMaster;
+            this.sharedSession = sharedSession;
+            // no identity scope: entities written here are never shared with other sessions
+            session = daoMaster.newSession(IdentityScopeType.None);
+        }
+
+        @Override
+        public void close() {
+            // the writer thread keeps using it until the database is closed
+        }
+
+        @Override
+        public SQLiteDatabase getDatabase() {
+            return daoMaster.getDatabase();
+        }
+
+        @Override
+        public DaoMaster getDaoMaster() {
+            return daoMaster;
+        }
+
+        @Override
+        public DaoSession getDaoSession() {
+            return session;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.database;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.v4.app.JobIntentService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.R;
+import nodomain.freeyourgadget.gadgetbridge.devices.DeviceCoordinator;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.export.ActivitySampleExporter;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.util.DeviceHelper;
+import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
+import nodomain.freeyourgadget.gadgetbridge.util.GB;
+import nodomain.freeyourgadget.gadgetbridge.util.GBPrefs;
+
+/**
+ * Performs the periodic export scheduled by {@link PeriodicExporter}. The export can take
+ * longer than a broadcast receiver may run, so it is done in a job (or a service before
+ * Android 8), which the system keeps alive until it is done.
+ */
+public class PeriodicExportService extends JobIntentService {
+    private static final Logger LOG = LoggerFactory.getLogger(PeriodicExportService.class);
+
+    private static final int JOB_ID = 1000;
+
+    public static void enqueueExport(Context context) {
+        enqueueWork(context, PeriodicExportService.class, JOB_ID, new Intent(context, PeriodicExportService.class));
+    }
+
+    @Override
+    protected void onHandleWork(@NonNull Intent intent) {
+        exportDB(this);
+        if (GBApplication.getPrefs().getBoolean(GBPrefs.AUTO_EXPORT_SAMPLES, false)) {
+            exportSamples(this);
+        }
+    }
+
+    private void exportDB(Context context) {
+        LOG.info("Exporting DB");
+        try (DBHandler dbHandler = GBApplication.acquireDB()) {
+            DBHelper helper = new DBHelper(context);
+            String dst = GBApplication.getPrefs().getString(GBPrefs.AUTO_EXPORT_LOCATION, null);
+            if (dst == null) {
+                LOG.info("Unable to export DB, export location not set");
+                return;
+            }
+            Uri dstUri = Uri.parse(dst);
+            helper.exportDB(dbHandler, dstUri);
+        } catch (Exception ex) {
+            GB.updateExportFailedNotification(context.getString(R.string.notif_export_failed_title), context);
+            LOG.info("Exception while exporting DB: ", ex);
+        }
+    }
+
+    /**
+     * Appends the samples of all complete days since the last export to one file per device,
+     * see {@link ActivitySampleExporter}.
+     */
+    private void exportSamples(Context context) {
+        LOG.info("Exporting activity samples");
+        try (DBHandler dbHandler = GBApplication.acquireReadOnlyDB()) {
+            File dir = new File(FileUtils.getExternalFilesDir(), "samples");
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Unable to create directory " + dir);
+            }
+            DaoSession session = dbHandler.getDaoSession();
+            for (Device dbDevice : DBHelper.getActiveDevices(session)) {
+                GBDevice gbDevice = DeviceHelper.getInstance().toGBDevice(dbDevice);
+                if (!DeviceHelper.getInstance().getSupportedType(gbDevice)) {
+                    continue;
+                }
+                DeviceCoordinator coordinator = DeviceHelper.getInstance().getCoordinator(gbDevice);
+                if (!coordinator.supportsActivityTracking()) {
+                    continue;
+                }
+                File target = new File(dir, gbDevice.getAddress().replace(":", "") + ".gbsamples");
+                new ActivitySampleExporter(coordinator.getSampleProvider(gbDevice, session)).performExport(target);
+            }
+        } catch (Exception ex) {
+            GB.updateExportFailedNotification(context.getString(R.string.notif_export_failed_title), context);
+            LOG.info("Exception while exporting activity samples: ", ex);
+        }
+    }
+}
@@ -21,17 +21,12 @@ import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.net.Uri;
 import android.os.SystemClock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.OutputStream;
-
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
-import nodomain.freeyourgadget.gadgetbridge.R;
-import nodomain.freeyourgadget.gadgetbridge.util.GB;
 import nodomain.freeyourgadget.gadgetbridge.util.GBPrefs;
 import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
 
@@ -72,21 +67,6 @@ public class PeriodicExporter extends BroadcastReceiver {
 
     @Override
     public void onReceive(Context context, Intent intent) {
-        LOG.info("Exporting DB");
-        try (DBHandler dbHandler = GBApplication.acquireDB()) {
-            DBHelper helper = new DBHelper(context);
-            String dst = GBApplication.getPrefs().getString(GBPrefs.AUTO_EXPORT_LOCATION, null);
-            if (dst == null) {
-                LOG.info("Unable to export DB, export location not set");
-                return;
-            }
-            Uri dstUri = Uri.parse(dst);
-            try (OutputStream out = context.getContentResolver().openOutputStream(dstUri)) {
-                helper.exportDB(dbHandler, out);
-            }
-        } catch (Exception ex) {
-            GB.updateExportFailedNotification(context.getString(R.string.notif_export_failed_title), context);
-            LOG.info("Exception while exporting DB: ", ex);
-        }
+        PeriodicExportService.enqueueExport(context);
     }
 }
@@ -73,6 +73,9 @@ public abstract class AbstractDeviceCoordinator implements DeviceCoordinator {
             Device device = DBHelper.findDevice(gbDevice, session);
             if (device != null) {
                 deleteDevice(gbDevice, device, session);
+                ColumnarSampleStore.invalidateAll(session.getDatabase(), device.getId());
+                ActivityRollupStore.deleteAll(session.getDatabase(), device.getId());
+                DBHelper.invalidateDevice(gbDevice.getAddress());
                 QueryBuilder<?> qb = session.getDeviceAttributesDao().queryBuilder();
                 qb.where(DeviceAttributesDao.Properties.DeviceId.eq(device.getId())).buildDelete().executeDeleteWithoutDetachingEntities();
                 session.getDeviceDao().delete(device);
@@ -32,6 +32,7 @@ import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmounts;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
 
 /**
@@ -80,19 +81,164 @@ public abstract class AbstractSampleProvider<T extends AbstractActivitySample> i
         }
     }
 
+    @NonNull
+    @Override
+    public SampleColumns getSampleColumns(int timestamp_from, int timestamp_to) {
+        return getSampleColumns(timestamp_from, timestamp_to, true);
+    }
+
+    @NonNull
+    @Override
+    public SampleColumns getUncachedSampleColumns(int timestamp_from, int timestamp_to) {
+        return getSampleColumns(timestamp_from, timestamp_to, false);
+    }
+
+    private SampleColumns getSampleColumns(int timestamp_from, int timestamp_to, boolean cached) {
+        Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
+        if (dbDevice == null) {
+            // no device, no samples
+            return new SampleColumns(0);
+        }
+        ColumnarSampleStore store = createColumnarSampleStore();
+        if (store != null) {
+            if (cached) {
+                return store.getSamples(dbDevice.getId(), timestamp_from, timestamp_to);
+            }
+            return store.getUncachedSamples(dbDevice.getId(), timestamp_from, timestamp_to);
+        }
+
+        List<T> samples = getAllActivitySamples(timestamp_from, timestamp_to);
+        SampleColumns columns = new SampleColumns(samples.size());
+        for (T sample : samples) {
+            columns.add(sample.getTimestamp(), sample.getRawKind(), sample.getRawIntensity(), sample.getSteps(), sample.getHeartRate());
+        }
+        return columns;
+    }
+
+    @NonNull
+    @Override
+    public ActivityAmounts getActivityAmounts(int timestamp_from, int timestamp_to) {
+        Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
+        if (dbDevice == null) {
+            // no device, no samples
+            return new ActivityAmounts();
+        }
+        return new ActivityRollupStore(this, getSession(), dbDevice.getId()).getActivityAmounts(timestamp_from, timestamp_to);
+    }
+
     @Override
     public void addGBActivitySample(T activitySample) {
         getSampleDao().insertOrReplace(activitySample);
+        invalidateSampleColumns(activitySample.getTimestamp(), activitySample.getTimestamp());
+        updateActivityRollups(activitySample.getTimestamp(), activitySample.getTimestamp());
     }
 
     @Override
     public void addGBActivitySamples(T[] activitySamples) {
         getSampleDao().insertOrReplaceInTx(activitySamples);
+        if (activitySamples.length > 0) {
+            int from = Integer.MAX_VALUE;
+            int to = Integer.MIN_VALUE;
+            for (T sample : activitySamples) {
+                from = Math.min(from, sample.getTimestamp());
+                to = Math.max(to, sample.getTimestamp());
+            }
+            invalidateSampleColumns(from, to);
+            updateActivityRollups(from, to);
+        }
+    }
+
+    /**
+     * Recalculates the stored hourly aggregates of the samples in the given time span.
+     * Called by {@link #addGBActivitySamples(AbstractActivitySample[])}, so this only needs to be
+     * called explicitly after writing samples by other means.
+     * @see ActivityRollupStore#update(int, int)
+     */
+    public void updateActivityRollups(int timestamp_from, int timestamp_to) {
+        Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
+        if (dbDevice != null) {
+            new ActivityRollupStore(this, getSession(), dbDevice.getId()).update(timestamp_from, timestamp_to);
+        }
+    }
+
+    /**
+     * Builds the columnar copies of the samples of the days in the given time span, after they
+     * were fetched from the device. Does nothing if the provider does not support them.
+     * @see ColumnarSampleStore#update(long, int, int)
+     */
+    public void updateSampleColumns(int timestamp_from, int timestamp_to) {
+        ColumnarSampleStore store = createColumnarSampleStore();
+        if (store == null) {
+            return;
+        }
+        Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
+        if (dbDevice != null) {
+            store.update(dbDevice.getId(), timestamp_from, timestamp_to);
+        }
+    }
+
+    /**
+     * Discards the columnar copies of the samples in the given time span, after they were changed.
+     */
+    protected void invalidateSampleColumns(int timestamp_from, int timestamp_to) {
+        int currentDay = ColumnarSampleStore.getDayTimestamp((int) (System.currentTimeMillis() / 1000));
+        if (ColumnarSampleStore.getDayTimestamp(timestamp_from) >= currentDay) {
+            // the current day is never stored in columns
+            return;
+        }
+        if (createColumnarSampleStore() == null) {
+            return;
+        }
+        Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
+        if (dbDevice != null) {
+            ColumnarSampleStore.invalidate(getSession().getDatabase(), dbDevice.getId(), timestamp_from, timestamp_to);
+        }
+    }
+
+    /**
+     * Returns the columnar store for the samples of this provider, or null if this provider
+     * does not support one. In that case, {@link #getSampleColumns(int, int)} is
+     * implemented by converting the sample objects.
+     */
+    @Nullable
+    protected ColumnarSampleStore createColumnarSampleStore() {
+        return null;
     }
 
     @Nullable
     @Override
     public T getLatestActivitySample() {
+        return getBoundaryActivitySample(true);
+    }
+
+    @Nullable
+    @Override
+    public T getFirstActivitySample() {
+        return getBoundaryActivitySample(false);
+    }
+
+    /**
+     * Returns the latest sample before the given timestamp, or null if none.
+     * Unlike the samples returned by {@link #getAllActivitySamples(int, int)}, the sample is not
+     * postprocessed, so only its timestamp should be used.
+     */
+    @Nullable
+    T getActivitySampleBefore(int timestamp) {
+        return getBoundaryActivitySample(true, getTimestampSampleProperty().lt(timestamp));
+    }
+
+    /**
+     * Returns the first sample at or after the given timestamp, or null if none.
+     * Unlike the samples returned by {@link #getAllActivitySamples(int, int)}, the sample is not
+     * postprocessed, so only its timestamp should be used.
+     */
+    @Nullable
+    T getActivitySampleFrom(int timestamp) {
+        return getBoundaryActivitySample(false, getTimestampSampleProperty().ge(timestamp));
+    }
+
+    @Nullable
+    private T getBoundaryActivitySample(boolean latest, WhereCondition... conditions) {
         QueryBuilder<T> qb = getSampleDao().queryBuilder();
         Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
         if (dbDevice == null) {
@@ -100,8 +246,13 @@ public abstract class AbstractSampleProvider<T extends AbstractActivitySample> i
             return null;
         }
         Property deviceProperty = getDeviceIdentifierSampleProperty();
-        qb.where(deviceProperty.eq(dbDevice.getId())).orderDesc(getTimestampSampleProperty()).limit(1);
-        List<T> samples = qb.build().list();
+        qb.where(deviceProperty.eq(dbDevice.getId()), conditions);
+        if (latest) {
+            qb.orderDesc(getTimestampSampleProperty());
+        } else {
+            qb.orderAsc(getTimestampSampleProperty());
+        }
+        List<T> samples = qb.limit(1).build().list();
         if (samples.isEmpty()) {
             return null;
         }
@@ -0,0 +1,392 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.devices;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.activities.HeartRateUtils;
+import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.entities.ActivityRollup;
+import nodomain.freeyourgadget.gadgetbridge.entities.ActivityRollupDao;
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmount;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmounts;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+
+/**
+ * Persisted hourly aggregates of the activity samples of a device: steps, seconds per
+ * activity kind and heart rate min/max/average.
+ * <p/>
+ * The device's sample table remains the primary storage. Hours are only stored by
+ * {@link #update(int, int)}, whenever samples are written; reading never writes. The stored
+ * hours are kept contiguous from the hour of the first sample up to the last hour that is
+ * over, so only the current hour, and hours of samples written before the first update,
+ * are aggregated from the samples when they are read. Daily values are summed up from the
+ * hours of the day, because the start of a day depends on the time zone and the chart.
+ * <p/>
+ * The steps and seconds per kind are calculated like in the charts' activity analysis:
+ * the time between two samples is accounted to the kind of the later sample, or shared
+ * equally if the kinds differ. An hour contains the time since the sample before its
+ * first sample, however long ago that was, so the time before the first sample of a
+ * time span is subtracted again when the amounts of the time span are returned.
+ */
+public class ActivityRollupStore {
+    public static final int SECONDS_PER_HOUR = 60 * 60;
+    /**
+     * The number of hours calculated at once when storing, to limit the number of samples in memory.
+     */
+    private static final int MAX_HOURS_PER_CALCULATION = 7 * 24;
+
+    private final AbstractSampleProvider<?> provider;
+    private final DaoSession session;
+    private final long deviceId;
+
+    public ActivityRollupStore(AbstractSampleProvider<?> provider, DaoSession session, long deviceId) {
+        this.provider = provider;
+        this.session = session;
+        this.deviceId = deviceId;
+    }
+
+    public static int getHourTimestamp(int timestamp) {
+        return timestamp - (int) (((long) timestamp) % SECONDS_PER_HOUR + SECONDS_PER_HOUR) % SECONDS_PER_HOUR;
+    }
+
+    /**
+     * Returns the activity amounts of the given time span (inclusive). Hours that are
+     * only partially covered by the time span are calculated from the samples.
+     */
+    public ActivityAmounts getActivityAmounts(int timestampFrom, int timestampTo) {
+        ActivityRollup total = createRollup(timestampFrom);
+        int firstHour = getHourTimestamp(timestampFrom);
+        if (firstHour < timestampFrom) {
+            firstHour += SECONDS_PER_HOUR;
+        }
+        int lastHour = getHourTimestamp(timestampTo + 1) - SECONDS_PER_HOUR;
+
+        if (firstHour > lastHour) {
+            add(total, calculate(timestampFrom, timestampTo, timestampTo - timestampFrom + 1, 1)[0]);
+        } else {
+            if (timestampFrom < firstHour) {
+                add(total, calculate(timestampFrom, firstHour - 1, firstHour - timestampFrom, 1)[0]);
+            }
+            for (ActivityRollup rollup : getHours(firstHour, lastHour)) {
+                add(total, rollup);
+            }
+            if (lastHour + SECONDS_PER_HOUR <= timestampTo) {
+                int from = lastHour + SECONDS_PER_HOUR;
+                add(total, calculate(from, timestampTo, timestampTo - from + 1, 1)[0]);
+            }
+        }
+        subtractLeadingSeconds(total, timestampFrom, timestampTo);
+        return toActivityAmounts(total);
+    }
+
+    /**
+     * The activity analysis does not account any time to the first sample of a time span,
+     * because it does not know the sample before it.
+     */
+    private void subtractLeadingSeconds(ActivityRollup total, int timestampFrom, int timestampTo) {
+        AbstractActivitySample first = provider.getActivitySampleFrom(timestampFrom);
+        if (first == null || first.getTimestamp() > timestampTo) {
+            return;
+        }
+        AbstractActivitySample previous = provider.getActivitySampleBefore(timestampFrom);
+        if (previous == null) {
+            return;
+        }
+        // read both again, to get the same kinds as the aggregates
+        List<? extends ActivitySample> samples = provider.getAllActivitySamples(previous.getTimestamp(), first.getTimestamp());
+        if (samples.size() < 2) {
+            return;
+        }
+        ActivityRollup leading = createRollup(timestampFrom);
+        addTimeDifference(leading, samples.get(samples.size() - 2), samples.get(samples.size() - 1));
+        total.setDeepSleepSeconds(total.getDeepSleepSeconds() - leading.getDeepSleepSeconds());
+        total.setLightSleepSeconds(total.getLightSleepSeconds() - leading.getLightSleepSeconds());
+        total.setActivitySeconds(total.getActivitySeconds() - leading.getActivitySeconds());
+        total.setNotWornSeconds(total.getNotWornSeconds() - leading.getNotWornSeconds());
+    }
+
+    /**
+     * Returns the aggregates of all hours from firstHour to lastHour (both inclusive, hour aligned).
+     * Missing hours are calculated from the samples, but not stored.
+     */
+    public List<ActivityRollup> getHours(int firstHour, int lastHour) {
+        SparseArray<ActivityRollup> stored = loadHours(firstHour, lastHour);
+        int hourCount = (lastHour - firstHour) / SECONDS_PER_HOUR + 1;
+        if (stored.size() == hourCount) {
+            List<ActivityRollup> result = new ArrayList<>(hourCount);
+            for (int i = 0; i < hourCount; i++) {
+                result.add(stored.valueAt(i));
+            }
+            return result;
+        }
+
+        // calculate everything from the first to the last missing hour in one go
+        int firstMissing = firstHour;
+        while (stored.get(firstMissing) != null) {
+            firstMissing += SECONDS_PER_HOUR;
+        }
+        int lastMissing = lastHour;
+        while (stored.get(lastMissing) != null) {
+            lastMissing -= SECONDS_PER_HOUR;
+        }
+        for (ActivityRollup rollup : calculateHours(firstMissing, lastMissing)) {
+            if (stored.get(rollup.getHourTimestamp()) == null) {
+                stored.put(rollup.getHourTimestamp(), rollup);
+            }
+        }
+
+        List<ActivityRollup> result = new ArrayList<>(hourCount);
+        for (int hour = firstHour; hour <= lastHour; hour += SECONDS_PER_HOUR) {
+            result.add(stored.get(hour));
+        }
+        return result;
+    }
+
+    /**
+     * Recalculates and stores the aggregates of all hours that are over and touched by the
+     * given time span, including the hour of the first sample after it, whose time is accounted
+     * relative to the changed ones. Hours that are over but not stored yet are stored as well.
+     * Must be called whenever samples in that time span were written or changed.
+     * <p/>
+     * Samples written in realtime belong to the current hour, which is never stored, so this
+     * only costs a single query for them, except for the first one of each hour.
+     */
+    public void update(int timestampFrom, int timestampTo) {
+        int currentHour = getHourTimestamp((int) (System.currentTimeMillis() / 1000));
+        int firstHour = getHourTimestamp(timestampFrom);
+        int lastHour = getHourTimestamp(timestampTo);
+        if (firstHour < currentHour) {
+            AbstractActivitySample next = provider.getActivitySampleFrom(timestampTo + 1);
+            if (next != null) {
+                lastHour = Math.max(lastHour, getHourTimestamp(next.getTimestamp()));
+            }
+        }
+        int firstMissingHour = getFirstMissingHour();
+        if (firstMissingHour < currentHour) {
+            firstHour = Math.min(firstHour, firstMissingHour);
+            lastHour = currentHour - SECONDS_PER_HOUR;
+        }
+        lastHour = Math.min(lastHour, currentHour - SECONDS_PER_HOUR);
+        for (int hour = firstHour; hour <= lastHour; hour += MAX_HOURS_PER_CALCULATION * SECONDS_PER_HOUR) {
+            storeHours(hour, Math.min(lastHour, hour + (MAX_HOURS_PER_CALCULATION - 1) * SECONDS_PER_HOUR));
+        }
+    }
+
+    /**
+     * Returns the hour after the last stored one, or the hour of the first sample if no hour
+     * is stored yet, or Integer.MAX_VALUE if there are no samples.
+     */
+    private int getFirstMissingHour() {
+        ActivityRollupDao dao = session.getActivityRollupDao();
+        List<ActivityRollup> last = dao.queryBuilder()
+                .where(ActivityRollupDao.Properties.DeviceId.eq(deviceId))
+                .orderDesc(ActivityRollupDao.Properties.HourTimestamp).limit(1).build().list();
+        dao.detachAll();
+        if (!last.isEmpty()) {
+            return last.get(0).getHourTimestamp() + SECONDS_PER_HOUR;
+        }
+        AbstractActivitySample first = provider.getFirstActivitySample();
+        return first != null ? getHourTimestamp(first.getTimestamp()) : Integer.MAX_VALUE;
+    }
+
+    private void storeHours(int firstHour, int lastHour) {
+        ActivityRollup[] rollups = calculateHours(firstHour, lastHour);
+        List<ActivityRollup> list = new ArrayList<>(rollups.length);
+        for (ActivityRollup rollup : rollups) {
+            list.add(rollup);
+        }
+        session.getActivityRollupDao().insertOrReplaceInTx(list);
+        session.getActivityRollupDao().detachAll();
+    }
+
+    private SparseArray<ActivityRollup> loadHours(int firstHour, int lastHour) {
+        ActivityRollupDao dao = session.getActivityRollupDao();
+        List<ActivityRollup> rollups = dao.queryBuilder().where(
+                ActivityRollupDao.Properties.DeviceId.eq(deviceId),
+                ActivityRollupDao.Properties.HourTimestamp.between(firstHour, lastHour))
+                .orderAsc(ActivityRollupDao.Properties.HourTimestamp).build().list();
+        dao.detachAll();
+        SparseArray<ActivityRollup> result = new SparseArray<>(rollups.size());
+        for (ActivityRollup rollup : rollups) {
+            result.put(rollup.getHourTimestamp(), rollup);
+        }
+        return result;
+    }
+
+    private ActivityRollup[] calculateHours(int firstHour, int lastHour) {
+        int count = (lastHour - firstHour) / SECONDS_PER_HOUR + 1;
+        return calculate(firstHour, lastHour + SECONDS_PER_HOUR - 1, SECONDS_PER_HOUR, count);
+    }
+
+    /**
+     * Aggregates the samples in the given time span into count consecutive buckets of the given length.
+     * The sample before the time span is used to account the time of the first sample.
+     */
+    private ActivityRollup[] calculate(int timestampFrom, int timestampTo, int bucketLength, int count) {
+        ActivityRollup[] buckets = new ActivityRollup[count];
+        for (int i = 0; i < count; i++) {
+            buckets[i] = createRollup(timestampFrom + i * bucketLength);
+        }
+
+        AbstractActivitySample before = provider.getActivitySampleBefore(timestampFrom);
+        int readFrom = before != null ? before.getTimestamp() : timestampFrom;
+        List<? extends ActivitySample> samples = provider.getAllActivitySamples(readFrom, timestampTo);
+        ActivitySample previous = null;
+        for (ActivitySample sample : samples) {
+            int timestamp = sample.getTimestamp();
+            if (timestamp >= timestampFrom) {
+                ActivityRollup bucket = buckets[Math.min((timestamp - timestampFrom) / bucketLength, count - 1)];
+                bucket.setSampleCount(bucket.getSampleCount() + 1);
+                if (sample.getSteps() > 0) {
+                    addSteps(bucket, getAmountKind(sample.getKind()), sample.getSteps());
+                }
+                int heartRate = sample.getHeartRate();
+                if (HeartRateUtils.isValidHeartRateValue(heartRate)) {
+                    bucket.setHeartRateMin(bucket.getHeartRateCount() == 0 ? heartRate : Math.min(bucket.getHeartRateMin(), heartRate));
+                    bucket.setHeartRateMax(Math.max(bucket.getHeartRateMax(), heartRate));
+                    bucket.setHeartRateSum(bucket.getHeartRateSum() + heartRate);
+                    bucket.setHeartRateCount(bucket.getHeartRateCount() + 1);
+                }
+                if (previous != null) {
+                    addTimeDifference(bucket, previous, sample);
+                }
+            }
+            previous = sample;
+        }
+        return buckets;
+    }
+
+    private ActivityRollup createRollup(int timestamp) {
+        ActivityRollup rollup = new ActivityRollup();
+        rollup.setDeviceId(deviceId);
+        rollup.setHourTimestamp(timestamp);
+        return rollup;
+    }
+
+    private static int getAmountKind(int kind) {
+        switch (kind) {
+            case ActivityKind.TYPE_DEEP_SLEEP:
+            case ActivityKind.TYPE_LIGHT_SLEEP:
+            case ActivityKind.TYPE_NOT_WORN:
+                return kind;
+            default:
+                return ActivityKind.TYPE_ACTIVITY;
+        }
+    }
+
+    private static void addTimeDifference(ActivityRollup rollup, ActivitySample previous, ActivitySample sample) {
+        int timeDifference = sample.getTimestamp() - previous.getTimestamp();
+        int kind = getAmountKind(sample.getKind());
+        if (previous.getRawKind() == sample.getRawKind()) {
+            addSeconds(rollup, kind, timeDifference);
+        } else {
+            int sharedTimeDifference = timeDifference / 2;
+            addSeconds(rollup, getAmountKind(previous.getKind()), sharedTimeDifference);
+            addSeconds(rollup, kind, sharedTimeDifference);
+        }
+    }
+
+    private static void addSteps(ActivityRollup rollup, int kind, int steps) {
+        switch (kind) {
+            case ActivityKind.TYPE_DEEP_SLEEP:
+                rollup.setDeepSleepSteps(rollup.getDeepSleepSteps() + steps);
+                break;
+            case ActivityKind.TYPE_LIGHT_SLEEP:
+                rollup.setLightSleepSteps(rollup.getLightSleepSteps() + steps);
+                break;
+            case ActivityKind.TYPE_NOT_WORN:
+                // like in the activity analysis, these are never shown
+                break;
+            default:
+                rollup.setActivitySteps(rollup.getActivitySteps() + steps);
+                break;
+        }
+    }
+
+    private static void addSeconds(ActivityRollup rollup, int kind, int seconds) {
+        switch (kind) {
+            case ActivityKind.TYPE_DEEP_SLEEP:
+                rollup.setDeepSleepSeconds(rollup.getDeepSleepSeconds() + seconds);
+                break;
+            case ActivityKind.TYPE_LIGHT_SLEEP:
+                rollup.setLightSleepSeconds(rollup.getLightSleepSeconds() + seconds);
+                break;
+            case ActivityKind.TYPE_NOT_WORN:
+                rollup.setNotWornSeconds(rollup.getNotWornSeconds() + seconds);
+                break;
+            default:
+                rollup.setActivitySeconds(rollup.getActivitySeconds() + seconds);
+                break;
+        }
+    }
+
+    private static void add(ActivityRollup total, ActivityRollup rollup) {
+        total.setSampleCount(total.getSampleCount() + rollup.getSampleCount());
+        total.setDeepSleepSteps(total.getDeepSleepSteps() + rollup.getDeepSleepSteps());
+        total.setLightSleepSteps(total.getLightSleepSteps() + rollup.getLightSleepSteps());
+        total.setActivitySteps(total.getActivitySteps() + rollup.getActivitySteps());
+        total.setDeepSleepSeconds(total.getDeepSleepSeconds() + rollup.getDeepSleepSeconds());
+        total.setLightSleepSeconds(total.getLightSleepSeconds() + rollup.getLightSleepSeconds());
+        total.setActivitySeconds(total.getActivitySeconds() + rollup.getActivitySeconds());
+        total.setNotWornSeconds(total.getNotWornSeconds() + rollup.getNotWornSeconds());
+        if (rollup.getHeartRateCount() > 0) {
+            total.setHeartRateMin(total.getHeartRateCount() == 0 ? rollup.getHeartRateMin() : Math.min(total.getHeartRateMin(), rollup.getHeartRateMin()));
+            total.setHeartRateMax(Math.max(total.getHeartRateMax(), rollup.getHeartRateMax()));
+            total.setHeartRateSum(total.getHeartRateSum() + rollup.getHeartRateSum());
+            total.setHeartRateCount(total.getHeartRateCount() + rollup.getHeartRateCount());
+        }
+    }
+
+    private static ActivityAmounts toActivityAmounts(ActivityRollup total) {
+        ActivityAmounts result = new ActivityAmounts();
+        addAmount(result, ActivityKind.TYPE_DEEP_SLEEP, total.getDeepSleepSeconds(), total.getDeepSleepSteps());
+        addAmount(result, ActivityKind.TYPE_LIGHT_SLEEP, total.getLightSleepSeconds(), total.getLightSleepSteps());
+        addAmount(result, ActivityKind.TYPE_ACTIVITY, total.getActivitySeconds(), total.getActivitySteps());
+        result.calculatePercentages();
+        int heartRateCount = total.getHeartRateCount();
+        if (heartRateCount > 0) {
+            result.setHeartRate(total.getHeartRateMin(), Math.round(total.getHeartRateSum() / (float) heartRateCount),
+                    total.getHeartRateMax(), heartRateCount);
+        }
+        return result;
+    }
+
+    private static void addAmount(ActivityAmounts amounts, int kind, int seconds, int steps) {
+        if (seconds > 0) {
+            ActivityAmount amount = new ActivityAmount(kind);
+            amount.addSeconds(seconds);
+            amount.addSteps(steps);
+            amounts.addAmount(amount);
+        }
+    }
+
+    /**
+     * Discards all aggregates of the given device.
+     */
+    public static void deleteAll(SQLiteDatabase db, long deviceId) {
+        db.delete(ActivityRollupDao.TABLENAME,
+                ActivityRollupDao.Properties.DeviceId.columnName + "=?",
+                new String[] { String.valueOf(deviceId) });
+    }
+}
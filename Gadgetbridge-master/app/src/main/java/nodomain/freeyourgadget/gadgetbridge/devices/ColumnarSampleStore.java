@@ -0,0 +1,188 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.devices;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
+import nodomain.freeyourgadget.gadgetbridge.entities.SampleColumnChunk;
+import nodomain.freeyourgadget.gadgetbridge.entities.SampleColumnChunkDao;
+
+/**
+ * Read-optimized storage of activity samples as day-partitioned, encoded primitive columns
+ * (see {@link SampleColumnsCodec}).
+ * <p/>
+ * The device's sample table remains the primary storage. Chunks are only built by
+ * {@link #update(long, int, int)}, after samples were fetched from the device, and must be
+ * invalidated whenever samples of their day are written, see
+ * {@link #invalidate(SQLiteDatabase, long, int, int)}. Reading never writes: days without a
+ * chunk, and the current day, are read from the sample table.
+ * <p/>
+ * Currently only the speed zones chart reads samples this way; the activity and sleep charts
+ * still need sample objects.
+ */
+public class ColumnarSampleStore {
+    private static final Logger LOG = LoggerFactory.getLogger(ColumnarSampleStore.class);
+
+    public static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+    private final DaoSession session;
+    private final String rowQuery;
+
+    /**
+     * @param session the session to use
+     * @param tableName the sample table of the device
+     * @param timestampColumn the timestamp column of the sample table
+     * @param deviceIdColumn the device id column of the sample table
+     * @param rawKindColumn the raw kind column of the sample table
+     * @param rawIntensityColumn the raw intensity column of the sample table
+     * @param stepsColumn the steps column of the sample table
+     * @param heartRateColumn the heart rate column of the sample table
+     */
+    public ColumnarSampleStore(DaoSession session, String tableName, String timestampColumn, String deviceIdColumn,
+                               String rawKindColumn, String rawIntensityColumn, String stepsColumn, String heartRateColumn) {
+        this.session = session;
+        rowQuery = "SELECT " + timestampColumn + "," + rawKindColumn + "," + rawIntensityColumn + "," + stepsColumn + "," + heartRateColumn
+                + " FROM " + tableName
+                + " WHERE " + deviceIdColumn + "=? AND " + timestampColumn + ">=? AND " + timestampColumn + "<=?"
+                + " ORDER BY " + timestampColumn;
+    }
+
+    public static int getDayTimestamp(int timestamp) {
+        return timestamp - (int) (((long) timestamp) % SECONDS_PER_DAY + SECONDS_PER_DAY) % SECONDS_PER_DAY;
+    }
+
+    /**
+     * Returns all samples of the given device within the given time span (inclusive).
+     */
+    public SampleColumns getSamples(long deviceId, int timestampFrom, int timestampTo) {
+        int firstDay = getDayTimestamp(timestampFrom);
+        int lastDay = getDayTimestamp(timestampTo);
+        int currentDay = getDayTimestamp((int) (System.currentTimeMillis() / 1000));
+        int days = (lastDay - firstDay) / SECONDS_PER_DAY + 1;
+        SampleColumns result = new SampleColumns(Math.min(days, 366) * 24 * 60);
+
+        for (int day = firstDay; day <= lastDay; day += SECONDS_PER_DAY) {
+            if (day >= currentDay) {
+                readRows(session.getDatabase(), deviceId, Math.max(day, timestampFrom), timestampTo, result);
+                break;
+            }
+            SampleColumns daySamples = getDaySamples(deviceId, day);
+            if (day >= timestampFrom && day + SECONDS_PER_DAY - 1 <= timestampTo) {
+                result.addRange(daySamples, day, day + SECONDS_PER_DAY - 1);
+            } else {
+                result.addRange(daySamples, timestampFrom, timestampTo);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns all samples of the given device within the given time span (inclusive),
+     * read from the sample table, without using or building chunks.
+     */
+    public SampleColumns getUncachedSamples(long deviceId, int timestampFrom, int timestampTo) {
+        int days = (getDayTimestamp(timestampTo) - getDayTimestamp(timestampFrom)) / SECONDS_PER_DAY + 1;
+        SampleColumns result = new SampleColumns(Math.min(days, 366) * 24 * 60);
+        readRows(session.getDatabase(), deviceId, timestampFrom, timestampTo, result);
+        return result;
+    }
+
+    private SampleColumns getDaySamples(long deviceId, int day) {
+        SampleColumnChunk chunk = loadChunk(deviceId, day);
+        if (chunk != null) {
+            SampleColumns samples = new SampleColumns(chunk.getSampleCount());
+            try {
+                SampleColumnsCodec.decode(chunk.getEncodedSamples(), day, samples);
+                return samples;
+            } catch (IllegalArgumentException ex) {
+                LOG.warn("Unable to decode sample chunk of day " + day + ", reading the samples instead", ex);
+            }
+        }
+
+        SampleColumns samples = new SampleColumns(24 * 60);
+        readRows(session.getDatabase(), deviceId, day, day + SECONDS_PER_DAY - 1, samples);
+        return samples;
+    }
+
+    /**
+     * Builds the chunks of all days before the current one that end within the given time span,
+     * from the samples of the whole day. Meant to be called after samples were fetched up to
+     * timestampTo; a day that is only partially fetched is built by the fetch that completes it.
+     */
+    public void update(long deviceId, int timestampFrom, int timestampTo) {
+        int currentDay = getDayTimestamp((int) (System.currentTimeMillis() / 1000));
+        SampleColumnChunkDao dao = session.getSampleColumnChunkDao();
+        for (int day = getDayTimestamp(timestampFrom); day < currentDay && day + SECONDS_PER_DAY - 1 <= timestampTo; day += SECONDS_PER_DAY) {
+            SampleColumns samples = new SampleColumns(24 * 60);
+            readRows(session.getDatabase(), deviceId, day, day + SECONDS_PER_DAY - 1, samples);
+            SampleColumnChunk chunk = new SampleColumnChunk();
+            chunk.setDeviceId(deviceId);
+            chunk.setDayTimestamp(day);
+            chunk.setSampleCount(samples.size());
+            chunk.setEncodedSamples(SampleColumnsCodec.encode(samples, day));
+            // also replaces a chunk that could not be decoded
+            dao.insertOrReplace(chunk);
+        }
+        dao.detachAll();
+    }
+
+    private SampleColumnChunk loadChunk(long deviceId, int day) {
+        SampleColumnChunkDao dao = session.getSampleColumnChunkDao();
+        List<SampleColumnChunk> chunks = dao.queryBuilder().where(
+                SampleColumnChunkDao.Properties.DeviceId.eq(deviceId),
+                SampleColumnChunkDao.Properties.DayTimestamp.eq(day)).limit(1).build().list();
+        dao.detachAll();
+        return chunks.isEmpty() ? null : chunks.get(0);
+    }
+
+    private void readRows(SQLiteDatabase db, long deviceId, int timestampFrom, int timestampTo, SampleColumns result) {
+        String[] args = new String[] { String.valueOf(deviceId), String.valueOf(timestampFrom), String.valueOf(timestampTo) };
+        try (Cursor cursor = db.rawQuery(rowQuery, args)) {
+            while (cursor.moveToNext()) {
+                result.add(cursor.getInt(0), cursor.getInt(1), cursor.getInt(2), cursor.getInt(3), cursor.getInt(4));
+            }
+        }
+    }
+
+    /**
+     * Discards the chunks of all days touched by the given time span. Must be called
+     * whenever samples in that time span are added or changed.
+     */
+    public static void invalidate(SQLiteDatabase db, long deviceId, int timestampFrom, int timestampTo) {
+        db.delete(SampleColumnChunkDao.TABLENAME,
+                SampleColumnChunkDao.Properties.DeviceId.columnName + "=? AND "
+                        + SampleColumnChunkDao.Properties.DayTimestamp.columnName + ">=? AND "
+                        + SampleColumnChunkDao.Properties.DayTimestamp.columnName + "<=?",
+                new String[] { String.valueOf(deviceId), String.valueOf(getDayTimestamp(timestampFrom)), String.valueOf(getDayTimestamp(timestampTo)) });
+    }
+
+    /**
+     * Discards all chunks of the given device.
+     */
+    public static void invalidateAll(SQLiteDatabase db, long deviceId) {
+        db.delete(SampleColumnChunkDao.TABLENAME,
+                SampleColumnChunkDao.Properties.DeviceId.columnName + "=?",
+                new String[] { String.valueOf(deviceId) });
+    }
+}
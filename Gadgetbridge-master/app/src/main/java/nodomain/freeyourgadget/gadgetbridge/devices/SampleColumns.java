@@ -0,0 +1,149 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.devices;
+
+import java.util.Arrays;
+
+/**
+ * A read-mostly view of activity samples as primitive columns, ordered by timestamp.
+ * Values are the raw, device specific ones, see {@link SampleProvider} for normalizing them.
+ * <p/>
+ * The arrays returned by the getters are the backing arrays; only the first
+ * {@link #size()} elements are valid, and they must not be modified, because they
+ * may be shared with cached columns. Use {@link #withRawKinds(int[])} to change kinds.
+ */
+public class SampleColumns {
+    private int[] timestamps;
+    private int[] rawKinds;
+    private int[] rawIntensities;
+    private int[] steps;
+    private int[] heartRates;
+    private int size;
+
+    public SampleColumns(int initialCapacity) {
+        int capacity = Math.max(initialCapacity, 16);
+        timestamps = new int[capacity];
+        rawKinds = new int[capacity];
+        rawIntensities = new int[capacity];
+        steps = new int[capacity];
+        heartRates = new int[capacity];
+    }
+
+    private SampleColumns(SampleColumns other, int[] rawKinds) {
+        timestamps = other.timestamps;
+        this.rawKinds = rawKinds;
+        rawIntensities = other.rawIntensities;
+        steps = other.steps;
+        heartRates = other.heartRates;
+        size = other.size;
+    }
+
+    /**
+     * Returns columns with the given raw kinds instead of these ones, and all other
+     * columns shared with these ones, e.g. for post-processing the kinds.
+     *
+     * @param rawKinds the raw kinds, at least {@link #size()} elements
+     */
+    public SampleColumns withRawKinds(int[] rawKinds) {
+        if (rawKinds.length < size) {
+            throw new IllegalArgumentException("expected " + size + " raw kinds, got " + rawKinds.length);
+        }
+        return new SampleColumns(this, rawKinds);
+    }
+
+    public void add(int timestamp, int rawKind, int rawIntensity, int steps, int heartRate) {
+        ensureCapacity(size + 1);
+        timestamps[size] = timestamp;
+        rawKinds[size] = rawKind;
+        rawIntensities[size] = rawIntensity;
+        this.steps[size] = steps;
+        heartRates[size] = heartRate;
+        size++;
+    }
+
+    /**
+     * Appends the samples of the given columns whose timestamps are within the given range (inclusive).
+     */
+    public void addRange(SampleColumns other, int timestampFrom, int timestampTo) {
+        int from = other.indexOf(timestampFrom);
+        int to = other.indexOf(timestampTo + 1);
+        int count = to - from;
+        if (count <= 0) {
+            return;
+        }
+        ensureCapacity(size + count);
+        System.arraycopy(other.timestamps, from, timestamps, size, count);
+        System.arraycopy(other.rawKinds, from, rawKinds, size, count);
+        System.arraycopy(other.rawIntensities, from, rawIntensities, size, count);
+        System.arraycopy(other.steps, from, steps, size, count);
+        System.arraycopy(other.heartRates, from, heartRates, size, count);
+        size += count;
+    }
+
+    /**
+     * Returns the index of the first sample with a timestamp greater than or equal to the given one,
+     * or {@link #size()} if there is none.
+     */
+    public int indexOf(int timestamp) {
+        int index = Arrays.binarySearch(timestamps, 0, size, timestamp);
+        if (index < 0) {
+            return -index - 1;
+        }
+        // timestamps are unique, no need to search for the first occurrence
+        return index;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= timestamps.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, timestamps.length * 2);
+        timestamps = Arrays.copyOf(timestamps, newCapacity);
+        rawKinds = Arrays.copyOf(rawKinds, newCapacity);
+        rawIntensities = Arrays.copyOf(rawIntensities, newCapacity);
+        steps = Arrays.copyOf(steps, newCapacity);
+        heartRates = Arrays.copyOf(heartRates, newCapacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int[] getTimestamps() {
+        return timestamps;
+    }
+
+    public int[] getRawKinds() {
+        return rawKinds;
+    }
+
+    public int[] getRawIntensities() {
+        return rawIntensities;
+    }
+
+    public int[] getSteps() {
+        return steps;
+    }
+
+    public int[] getHeartRates() {
+        return heartRates;
+    }
+}
@@ -0,0 +1,166 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.devices;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Compact binary encoding of {@link SampleColumns}.
+ * <p/>
+ * Format (version 1):
+ * <ul>
+ * <li>version byte</li>
+ * <li>number of samples (varint)</li>
+ * <li>timestamps: the first one relative to the base timestamp, the others relative to their
+ * predecessor (varints, i.e. a single byte for the usual 60 seconds)</li>
+ * <li>raw kind, raw intensity, steps and heart rate columns: one byte with the number of bits per
+ * value, followed by the bit-packed values</li>
+ * </ul>
+ */
+public final class SampleColumnsCodec {
+    private static final int VERSION = 1;
+
+    private SampleColumnsCodec() {
+    }
+
+    /**
+     * Encodes the given columns. All timestamps must be greater than or equal to the base timestamp.
+     */
+    public static byte[] encode(SampleColumns columns, int baseTimestamp) {
+        int size = columns.size();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + size * 5);
+        out.write(VERSION);
+        writeVarint(out, size);
+        int[] timestamps = columns.getTimestamps();
+        int previous = baseTimestamp;
+        for (int i = 0; i < size; i++) {
+            writeVarint(out, timestamps[i] - previous);
+            previous = timestamps[i];
+        }
+        writePacked(out, columns.getRawKinds(), size);
+        writePacked(out, columns.getRawIntensities(), size);
+        writePacked(out, columns.getSteps(), size);
+        writePacked(out, columns.getHeartRates(), size);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes the given data and appends the samples to the given columns.
+     *
+     * @throws IllegalArgumentException if the data cannot be decoded
+     */
+    public static void decode(byte[] data, int baseTimestamp, SampleColumns result) {
+        if (data.length == 0 || data[0] != VERSION) {
+            throw new IllegalArgumentException("Unsupported sample column encoding");
+        }
+        int[] pos = new int[] { 1 };
+        int size = readVarint(data, pos);
+        int[] timestamps = new int[size];
+        int timestamp = baseTimestamp;
+        for (int i = 0; i < size; i++) {
+            timestamp += readVarint(data, pos);
+            timestamps[i] = timestamp;
+        }
+        int[] rawKinds = readPacked(data, pos, size);
+        int[] rawIntensities = readPacked(data, pos, size);
+        int[] steps = readPacked(data, pos, size);
+        int[] heartRates = readPacked(data, pos, size);
+        for (int i = 0; i < size; i++) {
+            result.add(timestamps[i], rawKinds[i], rawIntensities[i], steps[i], heartRates[i]);
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] data, int[] pos) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            if (pos[0] >= data.length || shift > 28) {
+                throw new IllegalArgumentException("Malformed varint at " + pos[0]);
+            }
+            byte b = data[pos[0]++];
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    private static void writePacked(ByteArrayOutputStream out, int[] values, int size) {
+        int bits = 0;
+        for (int i = 0; i < size; i++) {
+            // negative values (e.g. NOT_MEASURED) need all 32 bits
+            bits = Math.max(bits, 32 - Integer.numberOfLeadingZeros(values[i]));
+        }
+        out.write(bits);
+        if (bits == 0) {
+            return;
+        }
+        long buffer = 0;
+        int bufferedBits = 0;
+        for (int i = 0; i < size; i++) {
+            buffer |= (values[i] & 0xffffffffL) << bufferedBits;
+            bufferedBits += bits;
+            while (bufferedBits >= 8) {
+                out.write((int) (buffer & 0xff));
+                buffer >>>= 8;
+                bufferedBits -= 8;
+            }
+        }
+        if (bufferedBits > 0) {
+            out.write((int) (buffer & 0xff));
+        }
+    }
+
+    private static int[] readPacked(byte[] data, int[] pos, int size) {
+        if (pos[0] >= data.length) {
+            throw new IllegalArgumentException("Truncated sample column data");
+        }
+        int bits = data[pos[0]++];
+        int[] values = new int[size];
+        if (bits == 0) {
+            return values;
+        }
+        if (bits < 0 || bits > 32) {
+            throw new IllegalArgumentException("Invalid bit width: " + bits);
+        }
+        long mask = (1L << bits) - 1;
+        long buffer = 0;
+        int bufferedBits = 0;
+        for (int i = 0; i < size; i++) {
+            while (bufferedBits < bits) {
+                if (pos[0] >= data.length) {
+                    throw new IllegalArgumentException("Truncated sample column data");
+                }
+                buffer |= (data[pos[0]++] & 0xffL) << bufferedBits;
+                bufferedBits += 8;
+            }
+            values[i] = (int) (buffer & mask);
+            buffer >>>= bits;
+            bufferedBits -= bits;
+        }
+        return values;
+    }
+}
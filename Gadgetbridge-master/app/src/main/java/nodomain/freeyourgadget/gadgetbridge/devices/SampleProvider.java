@@ -23,6 +23,7 @@ import android.support.annotation.Nullable;
 import java.util.List;
 
 import nodomain.freeyourgadget.gadgetbridge.entities.AbstractActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmounts;
 
 /**
  * Interface to retrieve samples from the database, and also create and add samples to the database.
@@ -74,6 +75,40 @@ public interface SampleProvider<T extends AbstractActivitySample> {
     @NonNull
     List<T> getSleepSamples(int timestamp_from, int timestamp_to);
 
+    /**
+     * Returns all samples, of any type, within the given time span as primitive columns.
+     * This is considerably cheaper than {@link #getAllActivitySamples(int, int)} for long
+     * time spans, because no sample objects are created.
+     * @param timestamp_from the start timestamp
+     * @param timestamp_to the end timestamp
+     * @return the samples of any type, with raw values; like in the sample objects, the raw
+     * kinds may have been post-processed by the provider
+     */
+    @NonNull
+    SampleColumns getSampleColumns(int timestamp_from, int timestamp_to);
+
+    /**
+     * Same as {@link #getSampleColumns(int, int)}, but always reads the samples from the
+     * sample table, without using or building cached copies, and returns them exactly as
+     * stored, without post-processing. Meant for reading all samples once, e.g. for an export,
+     * which would otherwise fill the cache with rarely read days.
+     * @param timestamp_from the start timestamp
+     * @param timestamp_to the end timestamp
+     * @return the samples of any type, with the raw values as stored
+     */
+    @NonNull
+    SampleColumns getUncachedSampleColumns(int timestamp_from, int timestamp_to);
+
+    /**
+     * Returns the steps and durations per activity kind within the given time span.
+     * This is read from hourly aggregates where possible, instead of analyzing all samples.
+     * @param timestamp_from the start timestamp
+     * @param timestamp_to the end timestamp
+     * @return the activity amounts
+     */
+    @NonNull
+    ActivityAmounts getActivityAmounts(int timestamp_from, int timestamp_to);
+
     /**
      * Adds the given sample to the database. An existing sample with the same
      * timestamp will be overwritten.
@@ -100,4 +135,11 @@ public interface SampleProvider<T extends AbstractActivitySample> {
      */
     @Nullable
     T getLatestActivitySample();
+
+    /**
+     * Returns the activity sample with the lowest timestamp. or null if none
+     * @return the first sample or null
+     */
+    @Nullable
+    T getFirstActivitySample();
 }
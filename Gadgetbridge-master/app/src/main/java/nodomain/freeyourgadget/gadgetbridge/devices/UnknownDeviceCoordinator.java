@@ -32,6 +32,7 @@ import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDeviceCandidate;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityAmounts;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
 import nodomain.freeyourgadget.gadgetbridge.model.DeviceType;
 
@@ -69,6 +70,21 @@ public class UnknownDeviceCoordinator extends AbstractDeviceCoordinator {
             return null;
         }
 
+        @Override
+        public SampleColumns getSampleColumns(int timestamp_from, int timestamp_to) {
+            return new SampleColumns(0);
+        }
+
+        @Override
+        public SampleColumns getUncachedSampleColumns(int timestamp_from, int timestamp_to) {
+            return new SampleColumns(0);
+        }
+
+        @Override
+        public ActivityAmounts getActivityAmounts(int timestamp_from, int timestamp_to) {
+            return new ActivityAmounts();
+        }
+
         @Override
         public void addGBActivitySample(AbstractActivitySample activitySample) {
         }
@@ -87,6 +103,12 @@ public class UnknownDeviceCoordinator extends AbstractDeviceCoordinator {
         public AbstractActivitySample getLatestActivitySample() {
             return null;
         }
+
+        @Nullable
+        @Override
+        public AbstractActivitySample getFirstActivitySample() {
+            return null;
+        }
     }
 
     public UnknownDeviceCoordinator() {
@@ -24,6 +24,7 @@ import java.io.IOException;
 
 import nodomain.freeyourgadget.gadgetbridge.devices.huami.HuamiFWHelper;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.amazfitbip.AmazfitBipFirmwareInfo;
+import nodomain.freeyourgadget.gadgetbridge.util.FirmwareSource;
 
 public class AmazfitBipFWHelper extends HuamiFWHelper {
 
@@ -33,8 +34,8 @@ public class AmazfitBipFWHelper extends HuamiFWHelper {
 
     @NonNull
     @Override
-    protected void determineFirmwareInfo(byte[] wholeFirmwareBytes) {
-        firmwareInfo = new AmazfitBipFirmwareInfo(wholeFirmwareBytes);
+    protected void determineFirmwareInfo(FirmwareSource firmware) {
+        firmwareInfo = new AmazfitBipFirmwareInfo(firmware.getBuffer(), firmware.getCrc16(), firmware.getCrc32());
         if (!firmwareInfo.isHeaderValid()) {
             throw new IllegalArgumentException("Not a an Amazifit Bip firmware");
         }
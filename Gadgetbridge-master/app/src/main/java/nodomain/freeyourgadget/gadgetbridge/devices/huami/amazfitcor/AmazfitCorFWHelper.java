@@ -23,6 +23,7 @@ import java.io.IOException;
 
 import nodomain.freeyourgadget.gadgetbridge.devices.huami.HuamiFWHelper;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.amazfitcor.AmazfitCorFirmwareInfo;
+import nodomain.freeyourgadget.gadgetbridge.util.FirmwareSource;
 
 public class AmazfitCorFWHelper extends HuamiFWHelper {
 
@@ -31,8 +32,8 @@ public class AmazfitCorFWHelper extends HuamiFWHelper {
     }
 
     @Override
-    protected void determineFirmwareInfo(byte[] wholeFirmwareBytes) {
-        firmwareInfo = new AmazfitCorFirmwareInfo(wholeFirmwareBytes);
+    protected void determineFirmwareInfo(FirmwareSource firmware) {
+        firmwareInfo = new AmazfitCorFirmwareInfo(firmware.getBuffer(), firmware.getCrc16(), firmware.getCrc32());
         if (!firmwareInfo.isHeaderValid()) {
             throw new IllegalArgumentException("Not a an Amazfit Cor firmware");
         }
@@ -24,6 +24,7 @@ import java.io.IOException;
 
 import nodomain.freeyourgadget.gadgetbridge.devices.huami.HuamiFWHelper;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.miband2.Mi2FirmwareInfo;
+import nodomain.freeyourgadget.gadgetbridge.util.FirmwareSource;
 
 public class MiBand2FWHelper extends HuamiFWHelper {
 
@@ -33,8 +34,8 @@ public class MiBand2FWHelper extends HuamiFWHelper {
 
     @NonNull
     @Override
-    protected void determineFirmwareInfo(byte[] wholeFirmwareBytes) {
-        firmwareInfo = new Mi2FirmwareInfo(wholeFirmwareBytes);
+    protected void determineFirmwareInfo(FirmwareSource firmware) {
+        firmwareInfo = new Mi2FirmwareInfo(firmware.getBuffer(), firmware.getCrc16(), firmware.getCrc32());
         if (!firmwareInfo.isHeaderValid()) {
             throw new IllegalArgumentException("Not a Mi Band 2 firmware");
         }
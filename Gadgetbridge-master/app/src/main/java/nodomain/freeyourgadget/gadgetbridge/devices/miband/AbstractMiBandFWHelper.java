@@ -23,14 +23,13 @@ import android.support.annotation.NonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.R;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
-import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
+import nodomain.freeyourgadget.gadgetbridge.util.CheckSums;
+import nodomain.freeyourgadget.gadgetbridge.util.FirmwareSource;
 import nodomain.freeyourgadget.gadgetbridge.util.UriHelper;
 
 /**
@@ -39,8 +38,10 @@ import nodomain.freeyourgadget.gadgetbridge.util.UriHelper;
 public abstract class AbstractMiBandFWHelper {
     private static final Logger LOG = LoggerFactory.getLogger(AbstractMiBandFWHelper.class);
 
+    private static final long MAX_FIRMWARE_LENGTH = 1024 * 1536; // 1.5 MB
+
     @NonNull
-    private final byte[] fw;
+    private final FirmwareSource fw;
 
     public AbstractMiBandFWHelper(Uri uri, Context context) throws IOException {
         UriHelper uriHelper = UriHelper.get(uri, context);
@@ -49,8 +50,8 @@ public abstract class AbstractMiBandFWHelper {
             throw new IOException("Firmware has a filename that looks like a Pebble app/firmware.");
         }
 
-        try (InputStream in = new BufferedInputStream(uriHelper.openInputStream())) {
-            this.fw = FileUtils.readAll(in, 1024 * 1536); // 1.5 MB
+        try {
+            this.fw = FirmwareSource.open(uri, context, MAX_FIRMWARE_LENGTH);
             determineFirmwareInfo(fw);
         } catch (IOException ex) {
             throw ex; // pass through
@@ -92,11 +93,30 @@ public abstract class AbstractMiBandFWHelper {
         return formatFirmwareVersion(version);
     }
 
+    /**
+     * Returns the whole firmware file as an array, copied to the heap on the first call.
+     * Prefer {@link #getFirmwareSource()} for large files.
+     */
     @NonNull
     public byte[] getFw() {
+        return fw.toByteArray();
+    }
+
+    /**
+     * Returns the memory-mapped firmware file.
+     */
+    @NonNull
+    public FirmwareSource getFirmwareSource() {
         return fw;
     }
 
+    /**
+     * Returns the CRC16 of the whole firmware file, see {@link CheckSums#getCRC16(byte[])}.
+     */
+    public int getFwCrc16() {
+        return fw.getCrc16();
+    }
+
     public boolean isFirmwareWhitelisted() {
         for (int wlf : getWhitelistedFirmwareVersions()) {
             if (wlf == getFirmwareVersion()) {
@@ -113,12 +133,10 @@ public abstract class AbstractMiBandFWHelper {
     public abstract boolean isSingleFirmware();
 
     /**
-     * @param wholeFirmwareBytes
-     * @return
+     * @param firmware the whole firmware file
      * @throws IllegalArgumentException when the data is not recognized as firmware data
      */
-    @NonNull
-    protected abstract void determineFirmwareInfo(byte[] wholeFirmwareBytes);
+    protected abstract void determineFirmwareInfo(FirmwareSource firmware);
 
     public abstract void checkValid() throws IllegalArgumentException;
 }
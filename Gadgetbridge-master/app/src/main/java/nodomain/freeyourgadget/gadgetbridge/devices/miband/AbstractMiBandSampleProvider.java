@@ -21,6 +21,7 @@ import android.support.annotation.NonNull;
 import de.greenrobot.dao.AbstractDao;
 import de.greenrobot.dao.Property;
 import nodomain.freeyourgadget.gadgetbridge.devices.AbstractSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.devices.ColumnarSampleStore;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySampleDao;
@@ -66,6 +67,17 @@ public abstract class AbstractMiBandSampleProvider extends AbstractSampleProvide
         return MiBandActivitySampleDao.Properties.RawKind;
     }
 
+    @Override
+    protected ColumnarSampleStore createColumnarSampleStore() {
+        return new ColumnarSampleStore(getSession(), MiBandActivitySampleDao.TABLENAME,
+                MiBandActivitySampleDao.Properties.Timestamp.columnName,
+                MiBandActivitySampleDao.Properties.DeviceId.columnName,
+                MiBandActivitySampleDao.Properties.RawKind.columnName,
+                MiBandActivitySampleDao.Properties.RawIntensity.columnName,
+                MiBandActivitySampleDao.Properties.Steps.columnName,
+                MiBandActivitySampleDao.Properties.HeartRate.columnName);
+    }
+
     @Override
     public MiBandActivitySample createActivitySample() {
         return new MiBandActivitySample();
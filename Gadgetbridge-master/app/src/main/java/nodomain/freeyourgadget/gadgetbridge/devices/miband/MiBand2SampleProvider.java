@@ -17,10 +17,14 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.devices.miband;
 
+import java.util.Arrays;
 import java.util.List;
 
 import de.greenrobot.dao.query.QueryBuilder;
+import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
+import nodomain.freeyourgadget.gadgetbridge.devices.SampleColumns;
 import nodomain.freeyourgadget.gadgetbridge.devices.miband2.MiBand2Const;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySampleDao;
@@ -40,6 +44,47 @@ public class MiBand2SampleProvider extends AbstractMiBandSampleProvider {
         return samples;
     }
 
+    @Override
+    public SampleColumns getSampleColumns(int timestamp_from, int timestamp_to) {
+        return postprocess(super.getSampleColumns(timestamp_from, timestamp_to));
+    }
+
+    /**
+     * Same as {@link #postprocess(List)}, for columns. The given columns may be cached
+     * and are left unchanged.
+     * @param columns
+     * @return columns with the post-processed kinds
+     */
+    private SampleColumns postprocess(SampleColumns columns) {
+        if (columns.isEmpty()) {
+            return columns;
+        }
+
+        int[] rawKinds = Arrays.copyOf(columns.getRawKinds(), columns.size());
+        Device dbDevice = DBHelper.findDevice(getDevice(), getSession());
+        int lastValidKind = dbDevice != null ? determinePreviousValidActivityType(dbDevice.getId(), null, columns.getTimestamps()[0]) : TYPE_UNSET;
+        for (int i = 0; i < columns.size(); i++) {
+            int rawKind = rawKinds[i];
+            if (rawKind != TYPE_UNSET) {
+                rawKind &= 0xf;
+                rawKinds[i] = rawKind;
+            }
+
+            switch (rawKind) {
+                case TYPE_IGNORE:
+                case TYPE_NO_CHANGE:
+                    if (lastValidKind != TYPE_UNSET) {
+                        rawKinds[i] = lastValidKind;
+                    }
+                    break;
+                default:
+                    lastValidKind = rawKind;
+                    break;
+            }
+        }
+        return columns.withRawKinds(rawKinds);
+    }
+
     /**
      * "Temporary" runtime post processing of activity kinds.
      * @param samples
@@ -49,7 +94,8 @@ public class MiBand2SampleProvider extends AbstractMiBandSampleProvider {
             return;
         }
 
-        int lastValidKind = determinePreviousValidActivityType(samples.get(0));
+        MiBandActivitySample first = samples.get(0);
+        int lastValidKind = determinePreviousValidActivityType(first.getDeviceId(), first.getUserId(), first.getTimestamp());
         for (MiBandActivitySample sample : samples) {
             int rawKind = sample.getRawKind();
             if (rawKind != TYPE_UNSET) {
@@ -71,12 +117,14 @@ public class MiBand2SampleProvider extends AbstractMiBandSampleProvider {
         }
     }
 
-    private int determinePreviousValidActivityType(MiBandActivitySample sample) {
+    private int determinePreviousValidActivityType(long deviceId, Long userId, int timestamp) {
         QueryBuilder<MiBandActivitySample> qb = getSampleDao().queryBuilder();
-        qb.where(MiBandActivitySampleDao.Properties.DeviceId.eq(sample.getDeviceId()),
-                MiBandActivitySampleDao.Properties.UserId.eq(sample.getUserId()),
-                MiBandActivitySampleDao.Properties.Timestamp.lt(sample.getTimestamp()),
+        qb.where(MiBandActivitySampleDao.Properties.DeviceId.eq(deviceId),
+                MiBandActivitySampleDao.Properties.Timestamp.lt(timestamp),
                 MiBandActivitySampleDao.Properties.RawKind.notIn(TYPE_NO_CHANGE, TYPE_IGNORE, TYPE_UNSET, 16, 80, 96, 112)); // all I ever had that are 0 when doing &=0xf
+        if (userId != null) {
+            qb.where(MiBandActivitySampleDao.Properties.UserId.eq(userId));
+        }
         qb.orderDesc(MiBandActivitySampleDao.Properties.Timestamp);
         qb.limit(1);
         List<MiBandActivitySample> result = qb.build().list();
@@ -0,0 +1,139 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.devices.miband;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.ColumnarSampleStore;
+import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySampleDao;
+
+/**
+ * Buffers raw Mi Band activity samples (one per minute) in primitive columns and writes
+ * them to the database in batches with a precompiled statement, without creating a
+ * {@link nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySample} entity per minute.
+ * <p/>
+ * Timestamps are not stored, they are derived from the start timestamp and the index of a sample.
+ */
+public class MiBandActivitySampleWriter {
+    /**
+     * One day of samples.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 60 * 24;
+
+    private static final String INSERT_SQL = "INSERT OR REPLACE INTO " + MiBandActivitySampleDao.TABLENAME + " ("
+            + MiBandActivitySampleDao.Properties.Timestamp.columnName + ","
+            + MiBandActivitySampleDao.Properties.DeviceId.columnName + ","
+            + MiBandActivitySampleDao.Properties.UserId.columnName + ","
+            + MiBandActivitySampleDao.Properties.RawIntensity.columnName + ","
+            + MiBandActivitySampleDao.Properties.Steps.columnName + ","
+            + MiBandActivitySampleDao.Properties.RawKind.columnName + ","
+            + MiBandActivitySampleDao.Properties.HeartRate.columnName
+            + ") VALUES (?,?,?,?,?,?,?)";
+
+    private final byte[] kinds;
+    private final byte[] intensities;
+    private final byte[] steps;
+    private final byte[] heartRates;
+    private int size;
+    private int startTimestamp;
+
+    public MiBandActivitySampleWriter(int batchSize) {
+        kinds = new byte[batchSize];
+        intensities = new byte[batchSize];
+        steps = new byte[batchSize];
+        heartRates = new byte[batchSize];
+    }
+
+    /**
+     * Sets the timestamp of the next sample to be added and discards all buffered samples.
+     *
+     * @param timestamp the timestamp in seconds
+     */
+    public void setStartTimestamp(int timestamp) {
+        startTimestamp = timestamp;
+        size = 0;
+    }
+
+    /**
+     * Returns the timestamp (in seconds) that the next sample added will get.
+     */
+    public int getNextTimestamp() {
+        return startTimestamp + size * 60;
+    }
+
+    /**
+     * Adds a sample with the raw values as sent by the band.
+     *
+     * @throws IllegalStateException if the buffer is full and needs to be flushed first
+     */
+    public void add(byte kind, byte intensity, byte steps, byte heartRate) {
+        if (isFull()) {
+            throw new IllegalStateException("Sample buffer is full, flush it first");
+        }
+        kinds[size] = kind;
+        intensities[size] = intensity;
+        this.steps[size] = steps;
+        heartRates[size] = heartRate;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == kinds.length;
+    }
+
+    /**
+     * Writes all buffered samples in a single transaction and empties the buffer.
+     * The following samples will continue with the next minute.
+     *
+     * @return the number of samples written
+     */
+    public int flush(SQLiteDatabase db, long deviceId, long userId) {
+        int count = size;
+        if (count == 0) {
+            return 0;
+        }
+        SQLiteStatement statement = db.compileStatement(INSERT_SQL);
+        db.beginTransaction();
+        try {
+            int timestamp = startTimestamp;
+            for (int i = 0; i < count; i++) {
+                statement.bindLong(1, timestamp);
+                statement.bindLong(2, deviceId);
+                statement.bindLong(3, userId);
+                statement.bindLong(4, intensities[i] & 0xff);
+                statement.bindLong(5, steps[i] & 0xff);
+                statement.bindLong(6, kinds[i] & 0xff);
+                statement.bindLong(7, heartRates[i] & 0xff);
+                statement.executeInsert();
+                timestamp += 60;
+            }
+            ColumnarSampleStore.invalidate(db, deviceId, startTimestamp, timestamp - 60);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            statement.close();
+        }
+        startTimestamp += count * 60;
+        size = 0;
+        return count;
+    }
+}
@@ -39,6 +39,7 @@ public final class MiBandConst {
     public static final String PREF_MIBAND_BUTTON_ACTION_DELAY = "mi_button_press_count_match_delay";
     public static final String PREF_MIBAND_BUTTON_PRESS_BROADCAST = "mi_button_press_broadcast";
     public static final String PREF_MIBAND_USE_HR_FOR_SLEEP_DETECTION = "mi_hr_sleep_detection";
+    public static final String PREF_MIBAND_REALTIME_FLUSH_INTERVAL = "mi_realtime_flush_interval";
 	public static final String PREF_MIBAND_DEVICE_TIME_OFFSET_HOURS = "mi_device_time_offset_hours";
 	public static final String PREF_MI2_DATEFORMAT = "mi2_dateformat";
     public static final String PREF_MI2_GOAL_NOTIFICATION = "mi2_goal_notification";
@@ -68,6 +69,7 @@ public final class MiBandConst {
     public static final String PREF_MI2_INACTIVITY_WARNINGS_DND_START = "mi2_inactivity_warnings_dnd_start";
     public static final String PREF_MI2_INACTIVITY_WARNINGS_DND_END = "mi2_inactivity_warnings_dnd_end";
     public static final String PREF_MIBAND_SETUP_BT_PAIRING = "mi_setup_bt_pairing";
+    public static final String PREF_MI2_LARGE_FIRMWARE_PACKETS = "mi2_large_fw_packets";
 
 
     public static final String ORIGIN_INCOMING_CALL = "incoming_call";
@@ -115,6 +117,7 @@ public final class MiBandConst {
 
     public static final String DEFAULT_VALUE_VIBRATION_PROFILE = "short";
     public static final int DEFAULT_VALUE_VIBRATION_COUNT = 3;
+    public static final int DEFAULT_VALUE_REALTIME_FLUSH_INTERVAL = 60; // s
     public static final int DEFAULT_VALUE_VIBRATION_DURATION = 500; // ms
     public static final int DEFAULT_VALUE_VIBRATION_PAUSE = 500; // ms
     public static final int DEFAULT_VALUE_FLASH_COUNT = 10; // ms
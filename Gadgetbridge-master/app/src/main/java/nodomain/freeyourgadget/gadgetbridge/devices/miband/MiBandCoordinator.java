@@ -237,6 +237,15 @@ public class MiBandCoordinator extends AbstractDeviceCoordinator {
 		return prefs.getInt(MiBandConst.PREF_MIBAND_DEVICE_TIME_OFFSET_HOURS, 0);
 	}
 
+    /**
+     * Returns the maximum time in seconds that live activity samples are kept in memory
+     * before they are stored.
+     */
+    public static int getRealtimeFlushInterval() {
+        Prefs prefs = GBApplication.getPrefs();
+        return Math.max(0, prefs.getInt(MiBandConst.PREF_MIBAND_REALTIME_FLUSH_INTERVAL, MiBandConst.DEFAULT_VALUE_REALTIME_FLUSH_INTERVAL));
+    }
+
     public static boolean getHeartrateSleepSupport(String miBandAddress) throws IllegalArgumentException {
         Prefs prefs = GBApplication.getPrefs();
         return prefs.getBoolean(MiBandConst.PREF_MIBAND_USE_HR_FOR_SLEEP_DETECTION, false);
@@ -30,6 +30,7 @@ import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.R;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.miband.AbstractMiFirmwareInfo;
+import nodomain.freeyourgadget.gadgetbridge.util.FirmwareSource;
 
 /**
  * Also see Mi1SFirmwareInfo.
@@ -108,13 +109,12 @@ public class MiBandFWHelper extends AbstractMiBandFWHelper {
     }
 
     /**
-     * @param wholeFirmwareBytes
-     * @return
+     * Mi Band 1 firmware is small, so it is analyzed as an array.
      * @throws IllegalArgumentException when the data is not recognized as firmware data
      */
     @Override
-    protected void determineFirmwareInfo(byte[] wholeFirmwareBytes) {
-        firmwareInfo = AbstractMiFirmwareInfo.determineFirmwareInfoFor(wholeFirmwareBytes);
+    protected void determineFirmwareInfo(FirmwareSource firmware) {
+        firmwareInfo = AbstractMiFirmwareInfo.determineFirmwareInfoFor(firmware.toByteArray());
     }
 
     @Override
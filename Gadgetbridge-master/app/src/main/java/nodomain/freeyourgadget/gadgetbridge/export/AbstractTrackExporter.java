@@ -0,0 +1,136 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.export;
+
+import android.support.annotation.NonNull;
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.util.Date;
+
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
+import nodomain.freeyourgadget.gadgetbridge.model.GPSCoordinate;
+import nodomain.freeyourgadget.gadgetbridge.util.DateTimeUtils;
+import nodomain.freeyourgadget.gadgetbridge.util.FileUtils;
+
+/**
+ * Base class for exporters writing a track as XML in a single pass over its points.
+ * Heart rates are merged with a {@link HeartRateMerger}, and coordinates are formatted
+ * with a {@link FixedPointFormatter}, so the export runs in linear time.
+ * <p/>
+ * Instances are not thread-safe.
+ */
+public abstract class AbstractTrackExporter implements ActivityTrackExporter {
+    private String creator;
+    private boolean includeHeartRate = true;
+    private boolean includeHeartRateOfNearestSample = true;
+
+    private final FixedPointFormatter locationFormatter = new FixedPointFormatter(GPSCoordinate.GPS_DECIMAL_DEGREES_SCALE);
+    private DateFormat timeFormat;
+    private final Date time = new Date();
+    private HeartRateMerger heartRateMerger;
+
+    @NonNull
+    @Override
+    public String getDefaultFileName(@NonNull ActivityTrack track) {
+        return FileUtils.makeValidFileName(track.getName());
+    }
+
+    @Override
+    public void performExport(ActivityTrack track, File targetFile) throws IOException, GPXTrackEmptyException {
+        String encoding = StandardCharsets.UTF_8.name();
+        XmlSerializer ser = Xml.newSerializer();
+        timeFormat = DateTimeUtils.createIso8601Format();
+        heartRateMerger = new HeartRateMerger(track, includeHeartRateOfNearestSample);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(targetFile), 64 * 1024)) {
+            try {
+                ser.setOutput(out, encoding);
+                ser.startDocument(encoding, Boolean.TRUE);
+                exportDocument(ser, track);
+                ser.endDocument();
+            } finally {
+                ser.flush();
+            }
+        } finally {
+            heartRateMerger = null;
+        }
+    }
+
+    /**
+     * Writes the document element with the given track.
+     *
+     * @throws GPXTrackEmptyException if the track has no points that can be exported
+     */
+    protected abstract void exportDocument(XmlSerializer ser, ActivityTrack track) throws IOException, GPXTrackEmptyException;
+
+    /**
+     * Returns the heart rate to export for the point with the given index, or 0 if there is none.
+     * Must be called for the points in ascending order.
+     */
+    protected int getHeartRate(int index) {
+        if (!includeHeartRate) {
+            return 0;
+        }
+        return heartRateMerger.getHeartRate(index);
+    }
+
+    protected String formatTime(Date date) {
+        return timeFormat.format(date);
+    }
+
+    protected String formatTime(long millis) {
+        time.setTime(millis);
+        return timeFormat.format(time);
+    }
+
+    protected String formatLocation(double value) {
+        locationFormatter.format(value);
+        return locationFormatter.toString();
+    }
+
+    /**
+     * Writes the given coordinate value as text, without creating a string.
+     */
+    protected void textLocation(XmlSerializer ser, double value) throws IOException {
+        int length = locationFormatter.format(value);
+        ser.text(locationFormatter.getBuffer(), locationFormatter.getStart(), length);
+    }
+
+    public String getCreator() {
+        return creator; // TODO: move to some kind of BrandingInfo class
+    }
+
+    public void setCreator(String creator) {
+        this.creator = creator;
+    }
+
+    public void setIncludeHeartRate(boolean includeHeartRate) {
+        this.includeHeartRate = includeHeartRate;
+    }
+
+    public boolean isIncludeHeartRate() {
+        return includeHeartRate;
+    }
+}
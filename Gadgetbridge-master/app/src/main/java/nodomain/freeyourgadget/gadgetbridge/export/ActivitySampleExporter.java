@@ -0,0 +1,176 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.export;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.zip.Deflater;
+
+import nodomain.freeyourgadget.gadgetbridge.devices.ColumnarSampleStore;
+import nodomain.freeyourgadget.gadgetbridge.devices.SampleColumns;
+import nodomain.freeyourgadget.gadgetbridge.devices.SampleColumnsCodec;
+import nodomain.freeyourgadget.gadgetbridge.devices.SampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+
+/**
+ * Incrementally exports all activity samples of a device into a file of compressed,
+ * day-partitioned columns (timestamp, raw kind, raw intensity, steps and heart rate), with
+ * the values as stored, without the post-processing of the sample provider.
+ * <p/>
+ * Format (version 1), all integers big endian:
+ * <ul>
+ * <li>magic "GBSC" and format version (4 bytes each)</li>
+ * <li>one chunk per day, in ascending order: day timestamp, number of samples and length of
+ * the data (4 bytes each), followed by the deflated {@link SampleColumnsCodec} encoding
+ * of the samples of that day, relative to the day timestamp</li>
+ * </ul>
+ * The last chunk in the file is the high-water mark: an export appends the days after it,
+ * so only new days are read from the database. A day is only exported once a sample of a
+ * later day exists, because until then the device may still deliver samples for it.
+ * Incomplete chunks, e.g. from an interrupted export, are discarded.
+ */
+public class ActivitySampleExporter {
+    private static final Logger LOG = LoggerFactory.getLogger(ActivitySampleExporter.class);
+
+    private static final int MAGIC = 0x47425343; // "GBSC"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final int CHUNK_HEADER_LENGTH = 12;
+    private static final int SECONDS_PER_DAY = ColumnarSampleStore.SECONDS_PER_DAY;
+
+    private final SampleProvider<? extends ActivitySample> provider;
+    private Deflater deflater;
+    private byte[] buffer = new byte[8192];
+
+    public ActivitySampleExporter(SampleProvider<? extends ActivitySample> provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * Appends all complete days after the last day already contained in the given file.
+     *
+     * @return the number of exported days
+     * @throws IOException if the file cannot be written or is not an export file
+     */
+    public int performExport(File targetFile) throws IOException {
+        deflater = new Deflater();
+        try (RandomAccessFile file = new RandomAccessFile(targetFile, "rw")) {
+            long lastDay = resume(file);
+
+            ActivitySample latest = provider.getLatestActivitySample();
+            if (latest == null) {
+                return 0;
+            }
+            int firstDay;
+            if (lastDay == Long.MIN_VALUE) {
+                ActivitySample first = provider.getFirstActivitySample();
+                if (first == null) {
+                    return 0;
+                }
+                firstDay = ColumnarSampleStore.getDayTimestamp(first.getTimestamp());
+            } else {
+                firstDay = (int) lastDay + SECONDS_PER_DAY;
+            }
+            int endDay = Math.min(ColumnarSampleStore.getDayTimestamp(latest.getTimestamp()),
+                    ColumnarSampleStore.getDayTimestamp((int) (System.currentTimeMillis() / 1000)));
+
+            int days = 0;
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(file.getChannel()), 64 * 1024));
+            for (int day = firstDay; day < endDay; day += SECONDS_PER_DAY) {
+                // every day is read only once, so it is not worth caching
+                SampleColumns samples = provider.getUncachedSampleColumns(day, day + SECONDS_PER_DAY - 1);
+                int length = deflate(SampleColumnsCodec.encode(samples, day));
+                out.writeInt(day);
+                out.writeInt(samples.size());
+                out.writeInt(length);
+                out.write(buffer, 0, length);
+                days++;
+            }
+            out.flush();
+            LOG.info("Exported " + days + " days of samples to " + targetFile);
+            return days;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Validates the header of the given file, or writes it if the file is empty, and positions
+     * the file after the last complete chunk.
+     *
+     * @return the day timestamp of the last complete chunk, or Long.MIN_VALUE if there is none
+     */
+    private long resume(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        if (length < HEADER_LENGTH) {
+            file.setLength(0);
+            file.writeInt(MAGIC);
+            file.writeInt(VERSION);
+            return Long.MIN_VALUE;
+        }
+        if (file.readInt() != MAGIC || file.readInt() != VERSION) {
+            throw new IOException("Not a sample export file of version " + VERSION);
+        }
+
+        long lastDay = Long.MIN_VALUE;
+        long pos = HEADER_LENGTH;
+        while (pos + CHUNK_HEADER_LENGTH <= length) {
+            file.seek(pos);
+            int day = file.readInt();
+            file.readInt(); // number of samples
+            int chunkLength = file.readInt();
+            long next = pos + CHUNK_HEADER_LENGTH + chunkLength;
+            if (chunkLength < 0 || next > length) {
+                break;
+            }
+            lastDay = day;
+            pos = next;
+        }
+        if (pos < length) {
+            LOG.warn("Discarding incomplete sample chunk at offset " + pos);
+            file.setLength(pos);
+        }
+        file.seek(pos);
+        return lastDay;
+    }
+
+    /**
+     * Compresses the given data into the buffer and returns the compressed length.
+     */
+    private int deflate(byte[] data) {
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buffer.length) {
+                byte[] larger = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, larger, 0, length);
+                buffer = larger;
+            }
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        return length;
+    }
+}
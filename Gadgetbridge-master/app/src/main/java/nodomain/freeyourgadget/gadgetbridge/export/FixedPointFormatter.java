@@ -0,0 +1,90 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.export;
+
+/**
+ * Formats decimal numbers with a fixed number of fraction digits into a reusable buffer.
+ * An instance must not be shared between threads.
+ * <p/>
+ * The value is rounded half up after scaling it in double arithmetic. This is not the same as
+ * <code>new BigDecimal(value).setScale(scale, RoundingMode.HALF_UP)</code>, which rounds the
+ * exact binary value: for values within about one ulp of a rounding boundary, the last digit
+ * may differ by one. For coordinates with 7 or more fraction digits, that is far below the
+ * precision of any GPS fix.
+ */
+public class FixedPointFormatter {
+    private final int scale;
+    private final double factor;
+    private final double maxValue;
+    private final char[] buffer = new char[32];
+    private int start;
+
+    public FixedPointFormatter(int scale) {
+        this.scale = scale;
+        factor = Math.pow(10, scale);
+        maxValue = Long.MAX_VALUE / factor / 2;
+    }
+
+    /**
+     * Formats the given value into the buffer.
+     *
+     * @return the number of characters, starting at {@link #getStart()}
+     * @throws IllegalArgumentException if the value is not finite or too large
+     */
+    public int format(double value) {
+        double abs = Math.abs(value);
+        if (!(abs < maxValue)) {
+            throw new IllegalArgumentException("Unable to format " + value);
+        }
+        long scaled = (long) Math.floor(abs * factor + 0.5);
+        boolean negative = value < 0 && scaled != 0;
+
+        int pos = buffer.length;
+        for (int i = 0; i < scale; i++) {
+            buffer[--pos] = (char) ('0' + scaled % 10);
+            scaled /= 10;
+        }
+        if (scale > 0) {
+            buffer[--pos] = '.';
+        }
+        do {
+            buffer[--pos] = (char) ('0' + scaled % 10);
+            scaled /= 10;
+        } while (scaled != 0);
+        if (negative) {
+            buffer[--pos] = '-';
+        }
+        start = pos;
+        return buffer.length - pos;
+    }
+
+    public char[] getBuffer() {
+        return buffer;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * Returns the last formatted value as a string.
+     */
+    @Override
+    public String toString() {
+        return new String(buffer, start, buffer.length - start);
+    }
+}
@@ -0,0 +1,67 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.export;
+
+import nodomain.freeyourgadget.gadgetbridge.activities.HeartRateUtils;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
+
+/**
+ * Determines the heart rate of the points of a track in a single forward pass.
+ * <p/>
+ * A point without a valid heart rate gets the one of the latest preceding point with
+ * a valid heart rate, if that is less than two minutes earlier. Points must be passed in
+ * ascending order.
+ */
+public class HeartRateMerger {
+    private static final long MAX_DISTANCE_MILLIS = 2 * 60 * 1000;
+
+    private final ActivityTrack track;
+    private final boolean includeHeartRateOfNearestSample;
+    private int next;
+    private int latestValid = -1;
+
+    public HeartRateMerger(ActivityTrack track, boolean includeHeartRateOfNearestSample) {
+        this.track = track;
+        this.includeHeartRateOfNearestSample = includeHeartRateOfNearestSample;
+    }
+
+    /**
+     * Returns the heart rate for the point with the given index, or 0 if there is none.
+     */
+    public int getHeartRate(int index) {
+        int hr = track.getHeartRate(index);
+        if (HeartRateUtils.isValidHeartRateValue(hr)) {
+            return hr;
+        }
+        if (!includeHeartRateOfNearestSample) {
+            return 0;
+        }
+
+        long time = track.getTime(index);
+        int size = track.size();
+        while (next < size && track.getTime(next) < time) {
+            if (HeartRateUtils.isValidHeartRateValue(track.getHeartRate(next))) {
+                latestValid = next;
+            }
+            next++;
+        }
+        if (latestValid >= 0 && time - track.getTime(latestValid) < MAX_DISTANCE_MILLIS) {
+            return track.getHeartRate(latestValid);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,168 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.export;
+
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.IOException;
+
+import nodomain.freeyourgadget.gadgetbridge.activities.HeartRateUtils;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityKind;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
+
+/**
+ * Exports a track as a Garmin Training Center (TCX) activity with a single lap.
+ * Unlike GPX, points without a location are exported as well, with their heart rate only.
+ * <p/>
+ * The distance is summed up from the locations of the points. Calories are not known
+ * and therefore left out.
+ */
+public class TCXExporter extends AbstractTrackExporter {
+    private static final String NS_DEFAULT = "";
+    private static final String NS_DEFAULT_URI = "http://www.garmin.com/xmlschemas/TrainingCenterDatabase/v2";
+    private static final String NS_XSI_URI = "http://www.w3.org/2001/XMLSchema-instance";
+    private static final double EARTH_RADIUS_METERS = 6371000;
+
+    private int activityKind = ActivityKind.TYPE_UNKNOWN;
+
+    /**
+     * Sets the {@link ActivityKind} of the track, used for the sport of the activity.
+     */
+    public void setActivityKind(int activityKind) {
+        this.activityKind = activityKind;
+    }
+
+    @Override
+    protected void exportDocument(XmlSerializer ser, ActivityTrack track) throws IOException, GPXTrackEmptyException {
+        if (track.isEmpty()) {
+            throw new GPXTrackEmptyException();
+        }
+        long startTime = track.getTime(0);
+        long endTime = track.getTime(track.size() - 1);
+
+        ser.setPrefix("xsi", NS_XSI_URI);
+        ser.setPrefix("", NS_DEFAULT_URI);
+        ser.startTag(NS_DEFAULT_URI, "TrainingCenterDatabase");
+        ser.attribute(NS_XSI_URI, "schemaLocation", NS_DEFAULT_URI + " " + "http://www.garmin.com/xmlschemas/TrainingCenterDatabasev2.xsd");
+        ser.startTag(NS_DEFAULT_URI, "Activities");
+        ser.startTag(NS_DEFAULT_URI, "Activity");
+        ser.attribute(NS_DEFAULT, "Sport", getSport(activityKind));
+        ser.startTag(NS_DEFAULT_URI, "Id").text(formatTime(startTime)).endTag(NS_DEFAULT_URI, "Id");
+
+        ser.startTag(NS_DEFAULT_URI, "Lap");
+        ser.attribute(NS_DEFAULT, "StartTime", formatTime(startTime));
+        long durationSeconds = (endTime - startTime) / 1000;
+        ser.startTag(NS_DEFAULT_URI, "TotalTimeSeconds").text(String.valueOf(durationSeconds)).endTag(NS_DEFAULT_URI, "TotalTimeSeconds");
+        ser.startTag(NS_DEFAULT_URI, "DistanceMeters").text(formatDistance(getTotalDistance(track))).endTag(NS_DEFAULT_URI, "DistanceMeters");
+        ser.startTag(NS_DEFAULT_URI, "Intensity").text("Active").endTag(NS_DEFAULT_URI, "Intensity");
+        ser.startTag(NS_DEFAULT_URI, "TriggerMethod").text("Manual").endTag(NS_DEFAULT_URI, "TriggerMethod");
+
+        ser.startTag(NS_DEFAULT_URI, "Track");
+        double distance = 0;
+        int lastLocation = -1;
+        for (int i = 0; i < track.size(); i++) {
+            if (track.hasLocation(i)) {
+                if (lastLocation >= 0) {
+                    distance += getDistance(track, lastLocation, i);
+                }
+                lastLocation = i;
+            }
+            exportTrackPoint(ser, track, i, distance);
+        }
+        ser.endTag(NS_DEFAULT_URI, "Track");
+        ser.endTag(NS_DEFAULT_URI, "Lap");
+
+        ser.endTag(NS_DEFAULT_URI, "Activity");
+        ser.endTag(NS_DEFAULT_URI, "Activities");
+
+        ser.endTag(NS_DEFAULT_URI, "TrainingCenterDatabase");
+    }
+
+    private void exportTrackPoint(XmlSerializer ser, ActivityTrack track, int index, double distance) throws IOException {
+        ser.startTag(NS_DEFAULT_URI, "Trackpoint");
+        ser.startTag(NS_DEFAULT_URI, "Time").text(formatTime(track.getTime(index))).endTag(NS_DEFAULT_URI, "Time");
+
+        if (track.hasLocation(index)) {
+            ser.startTag(NS_DEFAULT_URI, "Position");
+            ser.startTag(NS_DEFAULT_URI, "LatitudeDegrees");
+            textLocation(ser, track.getLatitude(index));
+            ser.endTag(NS_DEFAULT_URI, "LatitudeDegrees");
+            ser.startTag(NS_DEFAULT_URI, "LongitudeDegrees");
+            textLocation(ser, track.getLongitude(index));
+            ser.endTag(NS_DEFAULT_URI, "LongitudeDegrees");
+            ser.endTag(NS_DEFAULT_URI, "Position");
+            ser.startTag(NS_DEFAULT_URI, "AltitudeMeters");
+            textLocation(ser, track.getAltitude(index));
+            ser.endTag(NS_DEFAULT_URI, "AltitudeMeters");
+            ser.startTag(NS_DEFAULT_URI, "DistanceMeters").text(formatDistance(distance)).endTag(NS_DEFAULT_URI, "DistanceMeters");
+        }
+
+        int hr = getHeartRate(index);
+        if (HeartRateUtils.isValidHeartRateValue(hr)) {
+            ser.startTag(NS_DEFAULT_URI, "HeartRateBpm");
+            ser.startTag(NS_DEFAULT_URI, "Value").text(String.valueOf(hr)).endTag(NS_DEFAULT_URI, "Value");
+            ser.endTag(NS_DEFAULT_URI, "HeartRateBpm");
+        }
+        ser.endTag(NS_DEFAULT_URI, "Trackpoint");
+    }
+
+    /**
+     * Returns the distance in meters along all located points of the given track.
+     */
+    private static double getTotalDistance(ActivityTrack track) {
+        double distance = 0;
+        int lastLocation = -1;
+        for (int i = 0; i < track.size(); i++) {
+            if (track.hasLocation(i)) {
+                if (lastLocation >= 0) {
+                    distance += getDistance(track, lastLocation, i);
+                }
+                lastLocation = i;
+            }
+        }
+        return distance;
+    }
+
+    /**
+     * Returns the great-circle distance in meters between the two given located points,
+     * using the haversine formula.
+     */
+    private static double getDistance(ActivityTrack track, int from, int to) {
+        double lat1 = Math.toRadians(track.getLatitude(from));
+        double lat2 = Math.toRadians(track.getLatitude(to));
+        double sinLat = Math.sin((lat2 - lat1) / 2);
+        double sinLon = Math.sin(Math.toRadians(track.getLongitude(to) - track.getLongitude(from)) / 2);
+        double a = sinLat * sinLat + Math.cos(lat1) * Math.cos(lat2) * sinLon * sinLon;
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private static String formatDistance(double meters) {
+        return String.valueOf(Math.round(meters * 10) / 10d);
+    }
+
+    private static String getSport(int activityKind) {
+        switch (activityKind) {
+            case ActivityKind.TYPE_RUNNING:
+            case ActivityKind.TYPE_TREADMILL:
+                return "Running";
+            case ActivityKind.TYPE_CYCLING:
+                return "Biking";
+            default:
+                return "Other";
+        }
+    }
+}
@@ -54,9 +54,11 @@ public class BluetoothPairingRequestReceiver extends BroadcastReceiver {
             return;
         }
 
-        GBDevice gbDevice = service.getGBDevice();
         BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-        if (gbDevice == null || device == null)
+        if (device == null)
+            return;
+        GBDevice gbDevice = service.getGBDevice(device.getAddress());
+        if (gbDevice == null)
             return;
 
         DeviceCoordinator coordinator = DeviceHelper.getInstance().getCoordinator(gbDevice);
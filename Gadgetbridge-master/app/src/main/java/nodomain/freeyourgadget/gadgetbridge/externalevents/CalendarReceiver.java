@@ -21,195 +21,183 @@ package nodomain.freeyourgadget.gadgetbridge.externalevents;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
 import android.widget.Toast;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Enumeration;
 import java.util.GregorianCalendar;
-import java.util.Hashtable;
 import java.util.List;
 
-import de.greenrobot.dao.query.QueryBuilder;
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
+import nodomain.freeyourgadget.gadgetbridge.database.DBWriter;
 import nodomain.freeyourgadget.gadgetbridge.entities.CalendarSyncState;
 import nodomain.freeyourgadget.gadgetbridge.entities.CalendarSyncStateDao;
-import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.CalendarEventSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.CalendarEvents;
+import nodomain.freeyourgadget.gadgetbridge.model.DeviceService;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
-
+import nodomain.freeyourgadget.gadgetbridge.util.LongIntMap;
+
+/**
+ * Keeps the calendar events of the next days in sync with one device.
+ * <p/>
+ * The hashes of the events on the device are loaded from the CalendarSyncState table once
+ * and then kept in memory, so that each sync is a single pass over the current events. Only
+ * added, changed and removed events are sent to the device, and the changed sync states are
+ * written in one transaction. Calendar providers tend to send several change broadcasts in a
+ * row, so they are coalesced into one sync.
+ */
 public class CalendarReceiver extends BroadcastReceiver {
     private static final Logger LOG = LoggerFactory.getLogger(CalendarReceiver.class);
-    private Hashtable<Long, EventSyncState> eventState = new Hashtable<>();
-
-    private GBDevice mGBDevice;
-
-    private class EventSyncState {
-        private int state;
-        private CalendarEvents.CalendarEvent event;
-
-        EventSyncState(CalendarEvents.CalendarEvent event, int state) {
-            this.state = state;
-            this.event = event;
-        }
 
-        public int getState() {
-            return state;
-        }
+    private static final long SYNC_DELAY_MILLIS = 2000;
 
-        public void setState(int state) {
-            this.state = state;
+    private final GBDevice mGBDevice;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sync();
         }
+    };
 
-        public CalendarEvents.CalendarEvent getEvent() {
-            return event;
-        }
-
-        public void setEvent(CalendarEvents.CalendarEvent event) {
-            this.event = event;
-        }
-    }
-
-    private static class EventState {
-        private static final int NOT_SYNCED = 0;
-        private static final int SYNCED = 1;
-        private static final int NEEDS_UPDATE = 2;
-        private static final int NEEDS_DELETE = 3;
-    }
+    private long mDeviceId = -1;
+    /**
+     * The hash of each event on the device, by calendar entry id, or null if not loaded yet.
+     */
+    private LongIntMap mSyncedHashes;
 
     public CalendarReceiver(GBDevice gbDevice) {
         LOG.info("Created calendar receiver.");
         mGBDevice = gbDevice;
-        onReceive(GBApplication.getContext(), new Intent());
+        sync();
     }
 
     @Override
     public void onReceive(Context context, Intent intent) {
         LOG.info("got calendar changed broadcast");
+        mHandler.removeCallbacks(mSyncRunnable);
+        mHandler.postDelayed(mSyncRunnable, SYNC_DELAY_MILLIS);
+    }
+
+    /**
+     * Cancels a pending sync, must be called when the receiver is unregistered.
+     */
+    public void dispose() {
+        mHandler.removeCallbacks(mSyncRunnable);
+    }
+
+    private void sync() {
         List<CalendarEvents.CalendarEvent> eventList = (new CalendarEvents()).getCalendarEventList(GBApplication.getContext());
         syncCalendar(eventList);
     }
 
     public void syncCalendar(List<CalendarEvents.CalendarEvent> eventList) {
-        try (DBHandler dbHandler = GBApplication.acquireDB()) {
-            DaoSession session = dbHandler.getDaoSession();
-            syncCalendar(eventList, session);
-        } catch (Exception e1) {
-            GB.toast("Database Error while syncing Calendar", Toast.LENGTH_SHORT, GB.ERROR);
+        if (mSyncedHashes == null) {
+            try (DBHandler dbHandler = GBApplication.acquireDB()) {
+                mDeviceId = DBHelper.getDevice(mGBDevice, dbHandler.getDaoSession()).getId();
+                mSyncedHashes = loadSyncedHashes(dbHandler.getDatabase(), mDeviceId);
+            } catch (Exception e1) {
+                GB.toast("Database Error while syncing Calendar", Toast.LENGTH_SHORT, GB.ERROR);
+                return;
+            }
         }
-    }
 
-    public void syncCalendar(List<CalendarEvents.CalendarEvent> eventList, DaoSession session) {
         LOG.info("Syncing with calendar.");
-        Hashtable<Long, CalendarEvents.CalendarEvent> eventTable = new Hashtable<>();
-        Long deviceId = DBHelper.getDevice(mGBDevice, session).getId();
-        QueryBuilder<CalendarSyncState> qb = session.getCalendarSyncStateDao().queryBuilder();
-
-
-        for (CalendarEvents.CalendarEvent e : eventList) {
-            long id = e.getId();
-            eventTable.put(id, e);
-            if (!eventState.containsKey(e.getId())) {
-                qb = session.getCalendarSyncStateDao().queryBuilder();
-
-                CalendarSyncState calendarSyncState = qb.where(qb.and(CalendarSyncStateDao.Properties.DeviceId.eq(deviceId), CalendarSyncStateDao.Properties.CalendarEntryId.eq(id)))
-                        .build().unique();
-                if (calendarSyncState == null) {
-                    eventState.put(id, new EventSyncState(e, EventState.NOT_SYNCED));
-                    LOG.info("event id=" + id + " is yet unknown to device id=" + deviceId);
-                } else if (calendarSyncState.getHash() == e.hashCode()) {
-                    eventState.put(id, new EventSyncState(e, EventState.SYNCED));
-                    LOG.info("event id=" + id + " is up to date on device id=" + deviceId);
-                }
-                else {
-                    eventState.put(id, new EventSyncState(e, EventState.NEEDS_UPDATE));
-                    LOG.info("event id=" + id + " is not up to date on device id=" + deviceId);
+        DeviceService deviceService = GBApplication.deviceService().forDevice(mGBDevice);
+        LongIntMap currentHashes = new LongIntMap(eventList.size());
+        final List<CalendarSyncState> changedStates = new ArrayList<>();
+        int updated = 0;
+
+        for (CalendarEvents.CalendarEvent event : eventList) {
+            long id = event.getId();
+            int hash = event.hashCode();
+            if (currentHashes.containsKey(id)) {
+                continue;
+            }
+            currentHashes.put(id, hash);
+            if (mSyncedHashes.containsKey(id)) {
+                if (mSyncedHashes.get(id, 0) == hash) {
+                    continue;
                 }
+                deviceService.onDeleteCalendarEvent(CalendarEventSpec.TYPE_UNKNOWN, id);
+                updated++;
             }
+            deviceService.onAddCalendarEvent(createCalendarEventSpec(event));
+            changedStates.add(new CalendarSyncState(null, mDeviceId, id, hash));
         }
 
-        // add all missing calendar ids on the device to sync status (so that they are deleted later)
-        List<CalendarSyncState> CalendarSyncStateList = qb.where(CalendarSyncStateDao.Properties.DeviceId.eq(deviceId)).build().list();
-        for (CalendarSyncState CalendarSyncState : CalendarSyncStateList) {
-            if (!eventState.containsKey(CalendarSyncState.getCalendarEntryId())) {
-                eventState.put(CalendarSyncState.getCalendarEntryId(), new EventSyncState(null, EventState.NEEDS_DELETE));
-                LOG.info("insert null event for orphanded calendar id=" + CalendarSyncState.getCalendarEntryId() + " for device=" + mGBDevice.getName());
+        final List<Long> removedIds = new ArrayList<>();
+        for (long id : mSyncedHashes.keys()) {
+            if (!currentHashes.containsKey(id)) {
+                deviceService.onDeleteCalendarEvent(CalendarEventSpec.TYPE_UNKNOWN, id);
+                removedIds.add(id);
             }
         }
+        mSyncedHashes = currentHashes;
 
-        Enumeration<Long> ids = eventState.keys();
-        while (ids.hasMoreElements()) {
-            qb = session.getCalendarSyncStateDao().queryBuilder();
-            Long i = ids.nextElement();
-            EventSyncState es = eventState.get(i);
-            if (eventTable.containsKey(i)) {
-                if (es.getState() == EventState.SYNCED) {
-                    if (!es.getEvent().equals(eventTable.get(i))) {
-                        eventState.put(i, new EventSyncState(eventTable.get(i), EventState.NEEDS_UPDATE));
-                    }
-                }
-            } else {
-                if (es.getState() == EventState.NOT_SYNCED) {
-                    // delete for current device only
-                    qb.where(qb.and(CalendarSyncStateDao.Properties.DeviceId.eq(deviceId), CalendarSyncStateDao.Properties.CalendarEntryId.eq(i)))
-                            .buildDelete().executeDeleteWithoutDetachingEntities();
-                    eventState.remove(i);
-                } else {
-                    es.setState(EventState.NEEDS_DELETE);
-                    eventState.put(i, es);
+        LOG.info("Calendar sync with device " + mGBDevice.getName() + ": " + (changedStates.size() - updated) + " added, "
+                + updated + " updated, " + removedIds.size() + " removed, " + eventList.size() + " events in total");
+        if (changedStates.isEmpty() && removedIds.isEmpty()) {
+            return;
+        }
+
+        final long deviceId = mDeviceId;
+        GBApplication.dbWriter().submit(new DBWriter.WriteTask() {
+            @Override
+            public void write(DBHandler handler) throws Exception {
+                handler.getDaoSession().getCalendarSyncStateDao().insertOrReplaceInTx(changedStates);
+                SQLiteDatabase db = handler.getDatabase();
+                String whereClause = CalendarSyncStateDao.Properties.DeviceId.columnName + "=? AND "
+                        + CalendarSyncStateDao.Properties.CalendarEntryId.columnName + "=?";
+                for (Long id : removedIds) {
+                    db.delete(CalendarSyncStateDao.TABLENAME, whereClause, new String[] { String.valueOf(deviceId), String.valueOf(id) });
                 }
             }
-            updateEvents(deviceId, session);
-        }
+        });
     }
 
-    private void updateEvents(Long deviceId, DaoSession session) {
-        Enumeration<Long> ids = eventState.keys();
-        while (ids.hasMoreElements()) {
-            Long i = ids.nextElement();
-            EventSyncState es = eventState.get(i);
-            int syncState = es.getState();
-            if (syncState == EventState.NOT_SYNCED || syncState == EventState.NEEDS_UPDATE) {
-                CalendarEvents.CalendarEvent calendarEvent = es.getEvent();
-                CalendarEventSpec calendarEventSpec = new CalendarEventSpec();
-                calendarEventSpec.id = i;
-                calendarEventSpec.title = calendarEvent.getTitle();
-                calendarEventSpec.allDay = calendarEvent.isAllDay();
-                calendarEventSpec.timestamp = calendarEvent.getBeginSeconds();
-                calendarEventSpec.durationInSeconds = calendarEvent.getDurationSeconds(); //FIXME: leads to problems right now
-                if (calendarEvent.isAllDay()) {
-                    //force the all day events to begin at midnight and last a whole day
-                    Calendar c = GregorianCalendar.getInstance();
-                    c.setTimeInMillis(calendarEvent.getBegin());
-                    c.set(Calendar.HOUR, 0);
-                    calendarEventSpec.timestamp = (int) (c.getTimeInMillis() / 1000);
-                    calendarEventSpec.durationInSeconds = 24 * 60 * 60;
-                }
-                calendarEventSpec.description = calendarEvent.getDescription();
-                calendarEventSpec.location = calendarEvent.getLocation();
-                calendarEventSpec.type = CalendarEventSpec.TYPE_UNKNOWN;
-                if (syncState == EventState.NEEDS_UPDATE) {
-                    GBApplication.deviceService().onDeleteCalendarEvent(CalendarEventSpec.TYPE_UNKNOWN, i);
-                }
-                GBApplication.deviceService().onAddCalendarEvent(calendarEventSpec);
-                es.setState(EventState.SYNCED);
-                eventState.put(i, es);
-                // update db
-                session.insertOrReplace(new CalendarSyncState(null, deviceId, i, es.event.hashCode()));
-            } else if (syncState == EventState.NEEDS_DELETE) {
-                GBApplication.deviceService().onDeleteCalendarEvent(CalendarEventSpec.TYPE_UNKNOWN, i);
-                eventState.remove(i);
-                // delete from db for current device only
-                QueryBuilder<CalendarSyncState> qb = session.getCalendarSyncStateDao().queryBuilder();
-                qb.where(qb.and(CalendarSyncStateDao.Properties.DeviceId.eq(deviceId), CalendarSyncStateDao.Properties.CalendarEntryId.eq(i)))
-                        .buildDelete().executeDeleteWithoutDetachingEntities();
+    private static LongIntMap loadSyncedHashes(SQLiteDatabase db, long deviceId) {
+        String query = "SELECT " + CalendarSyncStateDao.Properties.CalendarEntryId.columnName + "," + CalendarSyncStateDao.Properties.Hash.columnName
+                + " FROM " + CalendarSyncStateDao.TABLENAME
+                + " WHERE " + CalendarSyncStateDao.Properties.DeviceId.columnName + "=?";
+        try (Cursor cursor = db.rawQuery(query, new String[] { String.valueOf(deviceId) })) {
+            LongIntMap hashes = new LongIntMap(cursor.getCount());
+            while (cursor.moveToNext()) {
+                hashes.put(cursor.getLong(0), cursor.getInt(1));
             }
+            return hashes;
+        }
+    }
+
+    private static CalendarEventSpec createCalendarEventSpec(CalendarEvents.CalendarEvent calendarEvent) {
+        CalendarEventSpec calendarEventSpec = new CalendarEventSpec();
+        calendarEventSpec.id = calendarEvent.getId();
+        calendarEventSpec.title = calendarEvent.getTitle();
+        calendarEventSpec.allDay = calendarEvent.isAllDay();
+        calendarEventSpec.timestamp = calendarEvent.getBeginSeconds();
+        calendarEventSpec.durationInSeconds = calendarEvent.getDurationSeconds(); //FIXME: leads to problems right now
+        if (calendarEvent.isAllDay()) {
+            //force the all day events to begin at midnight and last a whole day
+            Calendar c = GregorianCalendar.getInstance();
+            c.setTimeInMillis(calendarEvent.getBegin());
+            c.set(Calendar.HOUR, 0);
+            calendarEventSpec.timestamp = (int) (c.getTimeInMillis() / 1000);
+            calendarEventSpec.durationInSeconds = 24 * 60 * 60;
         }
+        calendarEventSpec.description = calendarEvent.getDescription();
+        calendarEventSpec.location = calendarEvent.getLocation();
+        calendarEventSpec.type = CalendarEventSpec.TYPE_UNKNOWN;
+        return calendarEventSpec;
     }
 }
@@ -26,6 +26,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
@@ -35,11 +36,13 @@ import android.service.notification.StatusBarNotification;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.RemoteInput;
 import android.support.v4.content.LocalBroadcastManager;
+import android.util.LruCache;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
+import java.util.Objects;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.R;
@@ -65,8 +68,36 @@ public class NotificationListener extends NotificationListenerService {
     public static final String ACTION_REPLY
             = "nodomain.freeyourgadget.gadgetbridge.notificationlistener.action.reply";
 
+    private static final int MAX_CACHED_APPS = 64;
+    private static final int MAX_CACHED_NOTIFICATIONS = 128;
+
     private LimitedQueue mActionLookup = new LimitedQueue(16);
 
+    /**
+     * What is known about an application, so that it is not looked up for every notification.
+     */
+    private static class AppInfo {
+        private String label;
+        private NotificationType type;
+        private boolean ignored;
+    }
+
+    private final LruCache<String, AppInfo> mAppInfoCache = new LruCache<>(MAX_CACHED_APPS);
+    /**
+     * The content hash of the last forwarded notification, by notification key.
+     */
+    private final LruCache<String, Integer> mContentHashes = new LruCache<>(MAX_CACHED_NOTIFICATIONS);
+    private final NotificationRateLimiter mRateLimiter = new NotificationRateLimiter();
+    private int mDuplicateCount;
+
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPrefsListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            // e.g. the blacklist or SMS notification mode, just decide again
+            mAppInfoCache.evictAll();
+        }
+    };
+
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
 
         @Override
@@ -159,11 +190,15 @@ public class NotificationListener extends NotificationListenerService {
         filterLocal.addAction(ACTION_MUTE);
         filterLocal.addAction(ACTION_REPLY);
         LocalBroadcastManager.getInstance(this).registerReceiver(mReceiver, filterLocal);
+        GBApplication.getPrefs().getPreferences().registerOnSharedPreferenceChangeListener(mPrefsListener);
     }
 
     @Override
     public void onDestroy() {
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mReceiver);
+        GBApplication.getPrefs().getPreferences().unregisterOnSharedPreferenceChangeListener(mPrefsListener);
+        LOG.info("Ignored " + mDuplicateCount + " unchanged notification updates");
+        mRateLimiter.dispose();
         super.onDestroy();
     }
 
@@ -188,33 +223,20 @@ public class NotificationListener extends NotificationListenerService {
         NotificationSpec notificationSpec = new NotificationSpec();
         notificationSpec.id = (int) sbn.getPostTime(); //FIXME: a truly unique id would be better
 
-        // determinate Source App Name ("Label")
-        PackageManager pm = getPackageManager();
-        ApplicationInfo ai = null;
-        try {
-            ai = pm.getApplicationInfo(source, 0);
-        } catch (PackageManager.NameNotFoundException e) {
-            e.printStackTrace();
-        }
-        if (ai != null) {
-            notificationSpec.sourceName = (String) pm.getApplicationLabel(ai);
-        }
+        AppInfo appInfo = getAppInfo(sbn.getPackageName());
+        notificationSpec.sourceName = appInfo.label;
 
         boolean preferBigText = false;
 
         // Get the app ID that generated this notification. For now only used by pebble color, but may be more useful later.
         notificationSpec.sourceAppId = source;
 
-        notificationSpec.type = AppNotificationType.getInstance().get(source);
+        notificationSpec.type = appInfo.type;
 
         if (source.startsWith("com.fsck.k9")) {
             preferBigText = true;
         }
 
-        if (notificationSpec.type == null) {
-            notificationSpec.type = NotificationType.UNKNOWN;
-        }
-
         LOG.info("Processing notification " + notificationSpec.id + " from source " + source + " with flags: " + notification.flags);
 
         dissectNotificationTo(notification, notificationSpec, preferBigText);
@@ -226,6 +248,16 @@ public class NotificationListener extends NotificationListenerService {
             }
         }
 
+        // apps often post the same notification again, e.g. to update a progress or timestamp
+        String key = getKey(sbn);
+        int contentHash = Objects.hash(notificationSpec.title, notificationSpec.body);
+        Integer previousContentHash = mContentHashes.get(key);
+        if (previousContentHash != null && previousContentHash == contentHash) {
+            LOG.info("Ignoring unchanged update of notification " + key);
+            mDuplicateCount++;
+            return;
+        }
+
         NotificationCompat.WearableExtender wearableExtender = new NotificationCompat.WearableExtender(notification);
         List<NotificationCompat.Action> actions = wearableExtender.getActions();
 
@@ -243,7 +275,47 @@ public class NotificationListener extends NotificationListenerService {
             return;
         }
 
-        GBApplication.deviceService().onNotification(notificationSpec);
+        mContentHashes.put(key, contentHash);
+        mRateLimiter.submit(sbn.getPackageName(), key, notificationSpec);
+    }
+
+    /**
+     * Returns the cached information about the given application, looking it up if necessary.
+     */
+    private AppInfo getAppInfo(String packageName) {
+        AppInfo appInfo = mAppInfoCache.get(packageName);
+        if (appInfo != null) {
+            return appInfo;
+        }
+        appInfo = new AppInfo();
+        String source = packageName.toLowerCase();
+
+        // determinate Source App Name ("Label")
+        PackageManager pm = getPackageManager();
+        ApplicationInfo ai = null;
+        try {
+            ai = pm.getApplicationInfo(source, 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            e.printStackTrace();
+        }
+        if (ai != null) {
+            appInfo.label = (String) pm.getApplicationLabel(ai);
+        }
+
+        appInfo.type = AppNotificationType.getInstance().get(source);
+        if (appInfo.type == null) {
+            appInfo.type = NotificationType.UNKNOWN;
+        }
+        appInfo.ignored = shouldIgnoreSource(packageName);
+        mAppInfoCache.put(packageName, appInfo);
+        return appInfo;
+    }
+
+    private static String getKey(StatusBarNotification sbn) {
+        if (GBApplication.isRunningLollipopOrLater()) {
+            return sbn.getKey();
+        }
+        return sbn.getPackageName() + "|" + sbn.getId() + "|" + sbn.getTag();
     }
 
     private void dissectNotificationTo(Notification notification, NotificationSpec notificationSpec, boolean preferBigText) {
@@ -284,6 +356,8 @@ public class NotificationListener extends NotificationListenerService {
         if (shouldIgnore(sbn))
             return;
 
+        mContentHashes.remove(getKey(sbn));
+
         Prefs prefs = GBApplication.getPrefs();
         if (prefs.getBoolean("autoremove_notifications", false)) {
             LOG.info("notification removed, will ask device to delete it");
@@ -313,7 +387,7 @@ public class NotificationListener extends NotificationListenerService {
             return true;
         }
 
-        return shouldIgnoreSource(sbn.getPackageName()) || shouldIgnoreNotification(
+        return getAppInfo(sbn.getPackageName()).ignored || shouldIgnoreNotification(
                 sbn.getNotification(), sbn.getPackageName());
 
     }
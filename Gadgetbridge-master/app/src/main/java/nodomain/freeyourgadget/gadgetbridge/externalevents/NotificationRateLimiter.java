@@ -0,0 +1,222 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.externalevents;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.LruCache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.model.NotificationSpec;
+import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
+
+/**
+ * Limits the notifications forwarded to the devices with a token bucket per application.
+ * <p/>
+ * Each application may send a few notifications right away (see {@link #PREF_BURST_SIZE}),
+ * after that one more per interval (see {@link #PREF_INTERVAL}). Notifications exceeding the
+ * limit are not dropped, but held back until a token is available again. A held back
+ * notification that is updated is replaced by its update. If several different notifications
+ * were held back, they are forwarded as one summary containing all of them. So a burst of
+ * messages, e.g. in a group chat, results in a few notifications on the device instead of one
+ * for every message, without losing any of them.
+ */
+public class NotificationRateLimiter {
+    private static final Logger LOG = LoggerFactory.getLogger(NotificationRateLimiter.class);
+
+    /**
+     * The number of notifications of an application that are forwarded right away.
+     */
+    public static final String PREF_BURST_SIZE = "notifications_rate_limit_burst";
+    /**
+     * The seconds after which another notification of an application may be forwarded,
+     * 0 to disable the rate limit.
+     */
+    public static final String PREF_INTERVAL = "notifications_rate_limit_interval";
+
+    private static final int DEFAULT_BURST_SIZE = 2;
+    private static final int DEFAULT_INTERVAL_SECONDS = 5;
+    private static final int MAX_APPLICATIONS = 64;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final LruCache<String, Bucket> buckets = new LruCache<>(MAX_APPLICATIONS);
+
+    private int burstSize = DEFAULT_BURST_SIZE;
+    private long refillMillis = DEFAULT_INTERVAL_SECONDS * 1000L;
+    private int forwardedCount;
+    private int combinedCount;
+
+    private class Bucket implements Runnable {
+        private final String packageName;
+        private double tokens = burstSize;
+        private long lastRefill = SystemClock.uptimeMillis();
+        /**
+         * The held back notifications by key, in the order they were first posted.
+         */
+        private final LinkedHashMap<String, NotificationSpec> pending = new LinkedHashMap<>();
+
+        private Bucket(String packageName) {
+            this.packageName = packageName;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(burstSize, tokens + (double) (now - lastRefill) / refillMillis);
+            lastRefill = now;
+        }
+
+        private long getMillisUntilToken() {
+            return (long) Math.ceil((1 - tokens) * refillMillis);
+        }
+
+        @Override
+        public void run() {
+            List<NotificationSpec> notificationSpecs;
+            synchronized (NotificationRateLimiter.this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                readLimits();
+                refill(SystemClock.uptimeMillis());
+                if (tokens < 1) {
+                    handler.postDelayed(this, getMillisUntilToken());
+                    return;
+                }
+                tokens--;
+                notificationSpecs = new ArrayList<>(pending.values());
+                pending.clear();
+                if (notificationSpecs.size() > 1) {
+                    LOG.info("Combining " + notificationSpecs.size() + " notifications of " + packageName);
+                    combinedCount += notificationSpecs.size();
+                }
+            }
+            forward(combine(notificationSpecs));
+        }
+    }
+
+    /**
+     * Forwards the given notification of the given application now, or as soon as the
+     * rate limit permits. Until then, it is replaced by later notifications with the same key,
+     * and combined with those with other keys.
+     */
+    public void submit(String packageName, String key, NotificationSpec notificationSpec) {
+        synchronized (this) {
+            readLimits();
+            if (refillMillis > 0) {
+                Bucket bucket = buckets.get(packageName);
+                if (bucket == null) {
+                    bucket = new Bucket(packageName);
+                    buckets.put(packageName, bucket);
+                }
+                bucket.refill(SystemClock.uptimeMillis());
+                if (!bucket.pending.isEmpty()) {
+                    LOG.info("Holding back notification " + notificationSpec.id + " of " + packageName + ", "
+                            + (bucket.pending.containsKey(key) ? "replacing its previous version" : "others are pending"));
+                    bucket.pending.put(key, notificationSpec);
+                    return;
+                }
+                if (bucket.tokens < 1) {
+                    LOG.info("Holding back notification " + notificationSpec.id + " of " + packageName + ", rate limit exceeded");
+                    bucket.pending.put(key, notificationSpec);
+                    handler.postDelayed(bucket, bucket.getMillisUntilToken());
+                    return;
+                }
+                bucket.tokens--;
+            }
+        }
+        forward(notificationSpec);
+    }
+
+    /**
+     * Must be called while holding the monitor of this instance.
+     */
+    private void readLimits() {
+        Prefs prefs = getPrefs();
+        burstSize = Math.max(1, prefs.getInt(PREF_BURST_SIZE, DEFAULT_BURST_SIZE));
+        refillMillis = Math.max(0, prefs.getInt(PREF_INTERVAL, DEFAULT_INTERVAL_SECONDS)) * 1000L;
+    }
+
+    /**
+     * Returns a notification that contains the titles and bodies of all given ones (in the
+     * given order), and otherwise the properties of the last one.
+     */
+    private static NotificationSpec combine(List<NotificationSpec> notificationSpecs) {
+        NotificationSpec latest = notificationSpecs.get(notificationSpecs.size() - 1);
+        if (notificationSpecs.size() == 1) {
+            return latest;
+        }
+        StringBuilder body = new StringBuilder();
+        for (NotificationSpec notificationSpec : notificationSpecs) {
+            if (body.length() > 0) {
+                body.append('\n');
+            }
+            if (notificationSpec.title != null) {
+                body.append(notificationSpec.title);
+                if (notificationSpec.body != null) {
+                    body.append(": ");
+                }
+            }
+            if (notificationSpec.body != null) {
+                body.append(notificationSpec.body);
+            }
+        }
+
+        NotificationSpec summary = new NotificationSpec();
+        summary.flags = latest.flags;
+        summary.id = latest.id;
+        summary.sender = latest.sender;
+        summary.phoneNumber = latest.phoneNumber;
+        summary.title = latest.sourceName != null ? latest.sourceName : latest.title;
+        summary.body = body.toString();
+        summary.type = latest.type;
+        summary.sourceName = latest.sourceName;
+        summary.cannedReplies = latest.cannedReplies;
+        summary.sourceAppId = latest.sourceAppId;
+        summary.pebbleColor = latest.pebbleColor;
+        return summary;
+    }
+
+    protected Prefs getPrefs() {
+        return GBApplication.getPrefs();
+    }
+
+    /**
+     * Forwards the given notification to the devices.
+     */
+    protected void forward(NotificationSpec notificationSpec) {
+        synchronized (this) {
+            forwardedCount++;
+        }
+        GBApplication.deviceService().onNotification(notificationSpec);
+    }
+
+    /**
+     * Discards all pending notifications.
+     */
+    public synchronized void dispose() {
+        handler.removeCallbacksAndMessages(null);
+        LOG.info("Forwarded " + forwardedCount + " notifications, combined " + combinedCount + " into summaries");
+        buckets.evictAll();
+    }
+}
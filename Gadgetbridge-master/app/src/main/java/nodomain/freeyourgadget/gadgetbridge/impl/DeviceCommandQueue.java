@@ -0,0 +1,194 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.impl;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nodomain.freeyourgadget.gadgetbridge.service.DeviceCommand;
+import nodomain.freeyourgadget.gadgetbridge.service.DeviceCommunicationService;
+
+/**
+ * Hands {@link DeviceCommand}s from within the Gadgetbridge process to the bound
+ * {@link DeviceCommunicationService}, without packing them into Intents.
+ * <p/>
+ * Commands are collected in a bounded queue and handled on the main thread, like Intents, but
+ * in batches. When the queue is full, callers on other threads wait up to
+ * {@link #OFFER_TIMEOUT_MILLIS}; the main thread, which handles the queue, cannot wait and
+ * sends an Intent instead.
+ * <p/>
+ * Commands must not overtake each other. All Intents are therefore sent through
+ * {@link #sendIntent(DeviceCommand)}, which numbers them, and the service reports the number of
+ * the last Intent it handled. As long as the service is not bound, or has not handled all
+ * Intents sent so far, {@link #offer(DeviceCommand)} fails and the caller has to send an Intent
+ * as well. The pending commands of the queue are always handled before a later Intent, because
+ * the queue is drained by a message posted to the main thread before the Intent was sent.
+ */
+public class DeviceCommandQueue implements ServiceConnection {
+    private static final Logger LOG = LoggerFactory.getLogger(DeviceCommandQueue.class);
+
+    /**
+     * The sequence number of an Intent sent by {@link #sendIntent(DeviceCommand)}.
+     */
+    public static final String EXTRA_INTENT_SEQUENCE = "nodomain.freeyourgadget.gadgetbridge.intent_sequence";
+
+    private static final int CAPACITY = 64;
+    private static final long OFFER_TIMEOUT_MILLIS = 1000;
+
+    private final Context context;
+    private final ArrayBlockingQueue<DeviceCommand> queue = new ArrayBlockingQueue<>(CAPACITY);
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final AtomicBoolean bindRequested = new AtomicBoolean();
+    private final AtomicLong sentIntentSequence = new AtomicLong();
+    private volatile DeviceCommunicationService.LocalBinder binder;
+
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public DeviceCommandQueue(Context context) {
+        this.context = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+    }
+
+    /**
+     * Binds to the service once it has been started. Does not start the service itself,
+     * so stopping the service still works as before.
+     */
+    public void bind() {
+        if (bindRequested.compareAndSet(false, true)) {
+            if (!context.bindService(new Intent(context, DeviceCommunicationService.class), this, 0)) {
+                LOG.warn("Unable to bind to " + DeviceCommunicationService.class.getSimpleName());
+                bindRequested.set(false);
+            }
+        }
+    }
+
+    /**
+     * Unbinds from the service, the pending commands are still delivered as Intents.
+     */
+    public void unbind() {
+        if (bindRequested.compareAndSet(true, false)) {
+            binder = null;
+            context.unbindService(this);
+        }
+        handler.post(drainRunnable);
+    }
+
+    /**
+     * Enqueues the given command for the service.
+     *
+     * @return false if the command was not accepted and must be sent as an Intent
+     */
+    public boolean offer(DeviceCommand command) {
+        DeviceCommunicationService.LocalBinder currentBinder = binder;
+        if (currentBinder == null || currentBinder.getHandledIntentSequence() < sentIntentSequence.get()) {
+            // Intents sent earlier may still be on their way
+            return false;
+        }
+        if (!queue.offer(command)) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                // the main thread is the consumer, possibly handling a command right now,
+                // so it must neither wait nor drain the queue here
+                scheduleDrain();
+                return false;
+            } else {
+                try {
+                    if (!queue.offer(command, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        LOG.warn("Command queue still full after " + OFFER_TIMEOUT_MILLIS + "ms, sending " + command + " as Intent");
+                        return false;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        scheduleDrain();
+        return true;
+    }
+
+    /**
+     * Sends the given command as an Intent, numbered so that the queue can tell when the
+     * service has handled it.
+     */
+    public void sendIntent(DeviceCommand command) {
+        Intent intent = command.toIntent(context, DeviceCommunicationService.class);
+        intent.putExtra(EXTRA_INTENT_SEQUENCE, sentIntentSequence.incrementAndGet());
+        context.startService(intent);
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            handler.post(drainRunnable);
+        }
+    }
+
+    /**
+     * Hands all queued commands to the service, or sends them as Intents if the
+     * service is gone. Must be called on the main thread.
+     */
+    private void drain() {
+        drainScheduled.set(false);
+        List<DeviceCommand> commands = new ArrayList<>(queue.size());
+        queue.drainTo(commands);
+        if (commands.isEmpty()) {
+            return;
+        }
+        DeviceCommunicationService.LocalBinder currentBinder = binder;
+        if (currentBinder == null || !currentBinder.handleCommands(commands)) {
+            if (currentBinder != null) {
+                // destroyed, wait until the service is created again
+                binder = null;
+            }
+            for (DeviceCommand command : commands) {
+                sendIntent(command);
+            }
+        }
+    }
+
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder service) {
+        LOG.debug("Bound to " + name.getShortClassName());
+        binder = (DeviceCommunicationService.LocalBinder) service;
+    }
+
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+        LOG.debug("Unbound from " + name.getShortClassName());
+        binder = null;
+        handler.post(drainRunnable);
+    }
+}
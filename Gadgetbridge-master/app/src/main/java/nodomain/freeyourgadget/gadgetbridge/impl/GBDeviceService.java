@@ -36,59 +36,100 @@ import nodomain.freeyourgadget.gadgetbridge.model.CallSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.CannedMessagesSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.DeviceService;
 import nodomain.freeyourgadget.gadgetbridge.model.NotificationSpec;
+import nodomain.freeyourgadget.gadgetbridge.service.DeviceCommand;
 import nodomain.freeyourgadget.gadgetbridge.service.DeviceCommunicationService;
 import nodomain.freeyourgadget.gadgetbridge.util.LanguageUtils;
 
 import static nodomain.freeyourgadget.gadgetbridge.util.JavaExtensions.coalesce;
 
+/**
+ * Sends all commands to the {@link DeviceCommunicationService}. Within the Gadgetbridge process,
+ * commands are handed to the bound service directly via a shared {@link DeviceCommandQueue}.
+ * Notification, call and calendar specs are copied before they are changed on the way; other
+ * objects, e.g. alarms, are handed over as they are and must not be modified afterwards.
+ * Until the service has handled all Intents sent before, and for starting and stopping it,
+ * Intents are used.
+ */
 public class GBDeviceService implements DeviceService {
     protected final Context mContext;
     private final Class<? extends Service> mServiceClass;
-    private final String[] transliterationExtras = new String[]{
-            EXTRA_NOTIFICATION_PHONENUMBER,
-            EXTRA_NOTIFICATION_SENDER,
-            EXTRA_NOTIFICATION_SUBJECT,
-            EXTRA_NOTIFICATION_TITLE,
-            EXTRA_NOTIFICATION_BODY,
-            EXTRA_NOTIFICATION_SOURCENAME,
-            EXTRA_CALL_PHONENUMBER,
-            EXTRA_CALL_DISPLAYNAME,
-            EXTRA_MUSIC_ARTIST,
-            EXTRA_MUSIC_ALBUM,
-            EXTRA_MUSIC_TRACK,
-            EXTRA_CALENDAREVENT_TITLE,
-            EXTRA_CALENDAREVENT_DESCRIPTION
-    };
+    @Nullable
+    private final GBDevice mDevice;
+    private final DeviceCommandQueue mCommandQueue;
 
     public GBDeviceService(Context context) {
+        this(context, null, new DeviceCommandQueue(context));
+    }
+
+    protected GBDeviceService(Context context, @Nullable GBDevice device, DeviceCommandQueue commandQueue) {
         mContext = context;
         mServiceClass = DeviceCommunicationService.class;
+        mDevice = device;
+        mCommandQueue = commandQueue;
+    }
+
+    protected DeviceCommand createCommand(String action) {
+        DeviceCommand command = new DeviceCommand(action);
+        command.device = mDevice;
+        return command;
     }
 
-    protected Intent createIntent() {
-        return new Intent(mContext, mServiceClass);
+    @Override
+    public DeviceService forDevice(GBDevice device) {
+        return new GBDeviceService(mContext, device, mCommandQueue);
     }
 
-    protected void invokeService(Intent intent) {
+    protected void invokeService(DeviceCommand command) {
         if (LanguageUtils.transliterate()) {
-            for (String extra : transliterationExtras) {
-                if (intent.hasExtra(extra)) {
-                    intent.putExtra(extra, LanguageUtils.transliterate(intent.getStringExtra(extra)));
-                }
-            }
+            transliterate(command);
         }
 
-        mContext.startService(intent);
+        if (!mCommandQueue.offer(command)) {
+            mCommandQueue.sendIntent(command);
+        }
+    }
+
+    /**
+     * Sends the given command as an Intent, which also starts the service.
+     */
+    private void startService(DeviceCommand command) {
+        mCommandQueue.sendIntent(command);
+        mCommandQueue.bind();
     }
 
     protected void stopService(Intent intent) {
+        mCommandQueue.unbind();
         mContext.stopService(intent);
     }
 
+    /**
+     * Transliterates the texts of the command's specs, which are copies made by this class.
+     */
+    private void transliterate(DeviceCommand command) {
+        NotificationSpec notificationSpec = command.notificationSpec;
+        if (notificationSpec != null) {
+            notificationSpec.phoneNumber = LanguageUtils.transliterate(notificationSpec.phoneNumber);
+            notificationSpec.sender = LanguageUtils.transliterate(notificationSpec.sender);
+            notificationSpec.subject = LanguageUtils.transliterate(notificationSpec.subject);
+            notificationSpec.title = LanguageUtils.transliterate(notificationSpec.title);
+            notificationSpec.body = LanguageUtils.transliterate(notificationSpec.body);
+            notificationSpec.sourceName = LanguageUtils.transliterate(notificationSpec.sourceName);
+        }
+        CallSpec callSpec = command.callSpec;
+        if (callSpec != null) {
+            callSpec.number = LanguageUtils.transliterate(callSpec.number);
+            callSpec.name = LanguageUtils.transliterate(callSpec.name);
+        }
+        CalendarEventSpec calendarEventSpec = command.calendarEventSpec;
+        if (calendarEventSpec != null) {
+            calendarEventSpec.title = LanguageUtils.transliterate(calendarEventSpec.title);
+            calendarEventSpec.description = LanguageUtils.transliterate(calendarEventSpec.description);
+        }
+    }
+
     @Override
     public void start() {
-        Intent intent = createIntent().setAction(ACTION_START);
-        invokeService(intent);
+        startService(createCommand(ACTION_START));
     }
 
     @Override
@@ -103,69 +144,60 @@ public class GBDeviceService implements DeviceService {
 
     @Override
     public void connect(@Nullable GBDevice device, boolean firstTime) {
-        Intent intent = createIntent().setAction(ACTION_CONNECT)
-                .putExtra(GBDevice.EXTRA_DEVICE, device)
-                .putExtra(EXTRA_CONNECT_FIRST_TIME, firstTime);
-        invokeService(intent);
+        DeviceCommand command = createCommand(ACTION_CONNECT);
+        command.firstTime = firstTime;
+        if (device != null) {
+            command.device = device;
+        }
+        startService(command);
     }
 
     @Override
     public void disconnect() {
-        Intent intent = createIntent().setAction(ACTION_DISCONNECT);
-        invokeService(intent);
+        invokeService(createCommand(ACTION_DISCONNECT));
     }
 
     @Override
     public void quit() {
-        Intent intent = createIntent();
-        stopService(intent);
+        stopService(new Intent(mContext, mServiceClass));
     }
 
     @Override
     public void requestDeviceInfo() {
-        Intent intent = createIntent().setAction(ACTION_REQUEST_DEVICEINFO);
-        invokeService(intent);
+        invokeService(createCommand(ACTION_REQUEST_DEVICEINFO));
     }
 
     @Override
     public void onNotification(NotificationSpec notificationSpec) {
-        Intent intent = createIntent().setAction(ACTION_NOTIFICATION)
-                .putExtra(EXTRA_NOTIFICATION_FLAGS, notificationSpec.flags)
-                .putExtra(EXTRA_NOTIFICATION_PHONENUMBER, notificationSpec.phoneNumber)
-                .putExtra(EXTRA_NOTIFICATION_SENDER, coalesce(notificationSpec.sender, getContactDisplayNameByNumber(notificationSpec.phoneNumber)))
-                .putExtra(EXTRA_NOTIFICATION_SUBJECT, notificationSpec.subject)
-                .putExtra(EXTRA_NOTIFICATION_TITLE, notificationSpec.title)
-                .putExtra(EXTRA_NOTIFICATION_BODY, notificationSpec.body)
-                .putExtra(EXTRA_NOTIFICATION_ID, notificationSpec.id)
-                .putExtra(EXTRA_NOTIFICATION_TYPE, notificationSpec.type)
-                .putExtra(EXTRA_NOTIFICATION_SOURCENAME, notificationSpec.sourceName)
-                .putExtra(EXTRA_NOTIFICATION_PEBBLE_COLOR, notificationSpec.pebbleColor);
-        invokeService(intent);
+        notificationSpec = notificationSpec.copy();
+        notificationSpec.sender = coalesce(notificationSpec.sender, getContactDisplayNameByNumber(notificationSpec.phoneNumber));
+        DeviceCommand command = createCommand(ACTION_NOTIFICATION);
+        command.notificationSpec = notificationSpec;
+        invokeService(command);
     }
 
     @Override
     public void onDeleteNotification(int id) {
-        Intent intent = createIntent().setAction(ACTION_DELETE_NOTIFICATION)
-                .putExtra(EXTRA_NOTIFICATION_ID, id);
-        invokeService(intent);
-
+        DeviceCommand command = createCommand(ACTION_DELETE_NOTIFICATION);
+        command.intValue = id;
+        invokeService(command);
     }
 
     @Override
     public void onSetTime() {
-        Intent intent = createIntent().setAction(ACTION_SETTIME);
-        invokeService(intent);
+        invokeService(createCommand(ACTION_SETTIME));
     }
 
     @Override
     public void onSetAlarms(ArrayList<? extends Alarm> alarms) {
-        Intent intent = createIntent().setAction(ACTION_SET_ALARMS)
-                .putParcelableArrayListExtra(EXTRA_ALARMS, alarms);
-        invokeService(intent);
+        DeviceCommand command = createCommand(ACTION_SET_ALARMS);
+        command.alarms = alarms;
+        invokeService(command);
     }
 
     @Override
     public void onSetCallState(CallSpec callSpec) {
+        callSpec = callSpec.copy();
         Context context = GBApplication.getContext();
         String currentPrivacyMode = GBApplication.getPrefs().getString("pref_call_privacy_mode", GBApplication.getContext().getString(R.string.p_call_privacy_mode_off));
         if (currentPrivacyMode.equals(context.getString(R.string.p_call_privacy_mode_name))) {
@@ -182,167 +214,150 @@ public class GBDeviceService implements DeviceService {
             callSpec.name = coalesce(callSpec.name, getContactDisplayNameByNumber(callSpec.number));
         }
 
-        Intent intent = createIntent().setAction(ACTION_CALLSTATE)
-                .putExtra(EXTRA_CALL_PHONENUMBER, callSpec.number)
-                .putExtra(EXTRA_CALL_DISPLAYNAME, callSpec.name)
-                .putExtra(EXTRA_CALL_COMMAND, callSpec.command);
-        invokeService(intent);
+        DeviceCommand command = createCommand(ACTION_CALLSTATE);
+        command.callSpec = callSpec;
+        invokeService(command);
     }
 
     @Override
     public void onSetCannedMessages(CannedMessagesSpec cannedMessagesSpec) {
-        Intent intent = createIntent().setAction(ACTION_SETCANNEDMESSAGES)
-                .putExtra(EXTRA_CANNEDMESSAGES_TYPE, cannedMessagesSpec.type)
-                .putExtra(EXTRA_CANNEDMESSAGES, cannedMessagesSpec.cannedMessages);
-        invokeService(intent);
+        DeviceCommand command = createCommand(ACTION_SETCANNEDMESSAGES);
+        command.cannedMessagesSpec = cannedMessagesSpec;
+        invokeService(command);
     }
 
     @Override
     public void onInstallApp(Uri uri) {
-        Intent intent = createIntent().setAction(ACTION_INSTALL)
-                .putExtra(EXTRA_URI, uri);
-        invokeService(intent);
+        DeviceCommand command = createCommand(ACTION_INSTALL);
+        command.uri = uri;
+        invokeService(command);
     }
 
     @Override
     public void onAppInfoReq() {
-        Intent intent = createIntent().setAction(ACTION_REQUEST_APPINFO);
-        invokeService(intent);
+        invokeService(createCommand(ACTION_REQUEST_APPINFO));
     }
 
     @Override
     public void onAppStart(UUID uuid, boolean start) {
-        Intent intent = createIntent().setAction(ACTION_STARTAPP)
-                .putExtra(EXTRA_APP_UUID, uuid)
-                .putExtra(EXTRA_APP_START, start);
-        invokeService(intent);
+        DeviceCommand command = createCommand(ACTION_STARTAPP);
+        command.appUuid = uuid;
+        command.enable = start;
+        invokeService(command);
     }
 
     @Override
     public void onAppDelete(UUID uuid) {
-        Intent intent = createIntent().setAction(ACTION_DELETEAPP)
-                .putExtra(EXTRA_APP_UUID, uuid);
-        invokeService(intent);
+        DeviceCommand command = createCommand(ACTION_DELETEAPP);
+        command.appUuid = uuid;
+        invokeService(command);
     }
 
     @Override
     public void onAppConfiguration(UUID uuid, String config, Integer id) {
-        Intent intent = createIntent().setAction(ACTION_APP_CONFIGURE)
-                .putExtra(EXTRA_APP_UUID, uuid)
-                .putExtra(EXTRA_APP_CONFIG, config);
-
-        if (id != null) {
-            intent.putExtra(EXTRA_APP_CONFIG_ID, id);
-        }
-        invokeService(intent);
+        DeviceCommand command = createCommand(ACTION_APP_CONFIGURE);
+        command.appUuid = uuid;
+        command.config = config;
+        command.configId = id;
+        invokeService(command);
     }
 
     @Override
     public void onAppReorder(UUID[] uuids) {
-        Intent intent = createIntent().setAction(ACTION_APP_REORDER)
-                .putExtra(EXTRA_APP_UUID, uuids);
-        invokeService(intent);
+        DeviceCommand command = createCommand(ACTION_APP_REORDER);
+        command.appUuids = uuids;
+        invokeService(command);
     }
 
     @Override
     public void onFetchRecordedData(int dataTypes) {
-        Intent intent = createIntent().setAction(ACTION_FETCH_RECORDED_DATA)
-                .putExtra(EXTRA_RECORDED_DATA_TYPES, dataTypes);
-        invokeService(intent);
+        DeviceCommand command = createCommand(ACTION_FETCH_RECORDED_DATA);
+        command.intValue = dataTypes;
+        invokeService(command);
     }
 
     @Override
     public void onReboot() {
-        Intent intent = createIntent().setAction(ACTION_REBOOT);
-        invokeService(intent);
+        invokeService(createCommand(ACTION_REBOOT));
     }
 
     @Override
     public void onHeartRateTest() {
-        Intent intent = createIntent().setAction(ACTION_HEARTRATE_TEST);
-        invokeService(intent);
+        invokeService(createCommand(ACTION_HEARTRATE_TEST));
     }
 
     @Override
     public void onFindDevice(boolean start) {
-        Intent intent = createIntent().setAction(ACTION_FIND_DEVICE)
-                .putExtra(EXTRA_FIND_START, start);
-        invokeService(intent);
+        DeviceCommand command = createCommand(ACTION_FIND_DEVICE);
+        command.enable = start;
+        invokeService(command);
     }
 
     @Override
     public void onSetConstantVibration(int intensity) {
-        Intent intent = createIntent().setAction(ACTION_SET_CONSTANT_VIBRATION)
-                .putExtra(EXTRA_VIBRATION_INTENSITY, intensity);
-        invokeService(intent);
+        DeviceCommand command = createCommand(ACTION_SET_CONSTANT_VIBRATION);
+        command.intValue = intensity;
+        invokeService(command);
     }
 
     @Override
     public void onScreenshotReq() {
-        Intent intent = createIntent().setAction(ACTION_REQUEST_SCREENSHOT);
-        invokeService(intent);
+        invokeService(createCommand(ACTION_REQUEST_SCREENSHOT));
     }
 
     @Override
     public void onEnableRealtimeSteps(boolean enable) {
-        Intent intent = createIntent().setAction(ACTION_ENABLE_REALTIME_STEPS)
-                .putExtra(EXTRA_BOOLEAN_ENABLE, enable);
-        invokeService(intent);
+        DeviceCommand command = createCommand(ACTION_ENABLE_REALTIME_STEPS);
+        command.enable = enable;
+        invokeService(command);
     }
 
     @Override
     public void onEnableHeartRateSleepSupport(boolean enable) {
-        Intent intent = createIntent().setAction(ACTION_ENABLE_HEARTRATE_SLEEP_SUPPORT)
-                .putExtra(EXTRA_BOOLEAN_ENABLE, enable);
-        invokeService(intent);
+        DeviceCommand command = createCommand(ACTION_ENABLE_HEARTRATE_SLEEP_SUPPORT);
+        command.enable = enable;
+        invokeService(command);
     }
 
     @Override
     public void onSetHeartRateMeasurementInterval(int seconds) {
-        Intent intent = createIntent().setAction(ACTION_SET_HEARTRATE_MEASUREMENT_INTERVAL)
-                .putExtra(EXTRA_INTERVAL_SECONDS, seconds);
-        invokeService(intent);
+        DeviceCommand command = createCommand(ACTION_SET_HEARTRATE_MEASUREMENT_INTERVAL);
+        command.intValue = seconds;
+        invokeService(command);
     }
 
     @Override
     public void onEnableRealtimeHeartRateMeasurement(boolean enable) {
-        Intent intent = createIntent().setAction(ACTION_ENABLE_REALTIME_HEARTRATE_MEASUREMENT)
-                .putExtra(EXTRA_BOOLEAN_ENABLE, enable);
-        invokeService(intent);
+        DeviceCommand command = createCommand(ACTION_ENABLE_REALTIME_HEARTRATE_MEASUREMENT);
+        command.enable = enable;
+        invokeService(command);
     }
 
     @Override
     public void onAddCalendarEvent(CalendarEventSpec calendarEventSpec) {
-        Intent intent = createIntent().setAction(ACTION_ADD_CALENDAREVENT)
-                .putExtra(EXTRA_CALENDAREVENT_ID, calendarEventSpec.id)
-                .putExtra(EXTRA_CALENDAREVENT_TYPE, calendarEventSpec.type)
-                .putExtra(EXTRA_CALENDAREVENT_TIMESTAMP, calendarEventSpec.timestamp)
-                .putExtra(EXTRA_CALENDAREVENT_DURATION, calendarEventSpec.durationInSeconds)
-                .putExtra(EXTRA_CALENDAREVENT_TITLE, calendarEventSpec.title)
-                .putExtra(EXTRA_CALENDAREVENT_DESCRIPTION, calendarEventSpec.description)
-                .putExtra(EXTRA_CALENDAREVENT_LOCATION, calendarEventSpec.location);
-        invokeService(intent);
+        DeviceCommand command = createCommand(ACTION_ADD_CALENDAREVENT);
+        command.calendarEventSpec = calendarEventSpec.copy();
+        invokeService(command);
     }
 
     @Override
     public void onDeleteCalendarEvent(byte type, long id) {
-        Intent intent = createIntent().setAction(ACTION_DELETE_CALENDAREVENT)
-                .putExtra(EXTRA_CALENDAREVENT_TYPE, type)
-                .putExtra(EXTRA_CALENDAREVENT_ID, id);
-        invokeService(intent);
+        DeviceCommand command = createCommand(ACTION_DELETE_CALENDAREVENT);
+        command.calendarEventType = type;
+        command.calendarEventId = id;
+        invokeService(command);
     }
 
     @Override
     public void onSendConfiguration(String config) {
-        Intent intent = createIntent().setAction(ACTION_SEND_CONFIGURATION)
-                .putExtra(EXTRA_CONFIG, config);
-        invokeService(intent);
+        DeviceCommand command = createCommand(ACTION_SEND_CONFIGURATION);
+        command.config = config;
+        invokeService(command);
     }
 
     @Override
     public void onTestNewFunction() {
-        Intent intent = createIntent().setAction(ACTION_TEST_NEW_FUNCTION);
-        invokeService(intent);
+        invokeService(createCommand(ACTION_TEST_NEW_FUNCTION));
     }
 
     /**
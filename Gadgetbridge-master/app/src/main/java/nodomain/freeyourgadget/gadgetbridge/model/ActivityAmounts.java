@@ -22,6 +22,10 @@ import java.util.List;
 public class ActivityAmounts {
     private final List<ActivityAmount> amounts = new ArrayList<>(4);
     private long totalSeconds;
+    private int heartRateMin;
+    private int heartRateMax;
+    private int heartRateAverage;
+    private int heartRateCount;
 
     public void addAmount(ActivityAmount amount) {
         amounts.add(amount);
@@ -36,6 +40,34 @@ public class ActivityAmounts {
         return totalSeconds;
     }
 
+    /**
+     * Sets the heart rate statistics of the samples with a valid heart rate.
+     *
+     * @param count the number of those samples; if 0, the other values are ignored
+     */
+    public void setHeartRate(int min, int average, int max, int count) {
+        heartRateMin = min;
+        heartRateAverage = average;
+        heartRateMax = max;
+        heartRateCount = count;
+    }
+
+    public boolean hasHeartRate() {
+        return heartRateCount > 0;
+    }
+
+    public int getHeartRateMin() {
+        return heartRateMin;
+    }
+
+    public int getHeartRateAverage() {
+        return heartRateAverage;
+    }
+
+    public int getHeartRateMax() {
+        return heartRateMax;
+    }
+
     public void calculatePercentages() {
         for (ActivityAmount amount : amounts) {
             float fraction = amount.getTotalSeconds() / (float) totalSeconds;
@@ -1,18 +1,36 @@
 package nodomain.freeyourgadget.gadgetbridge.model;
 
+import android.support.annotation.Nullable;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import nodomain.freeyourgadget.gadgetbridge.entities.Device;
 import nodomain.freeyourgadget.gadgetbridge.entities.User;
 
+/**
+ * The points of a track, stored as primitive columns ordered by time. Points are
+ * appended with {@link #addPoint(long)} and then filled with location and heart rate.
+ * {@link ActivityPoint} objects are only created on demand, by {@link #getTrackPoints()}.
+ */
 public class ActivityTrack {
     private Date baseTime;
     private Device device;
     private User user;
     private String name;
 
+    private int size;
+    private long[] times = new long[64];
+    private double[] longitudes = new double[64];
+    private double[] latitudes = new double[64];
+    private double[] altitudes = new double[64];
+    private boolean[] hasLocation = new boolean[64];
+    private int[] heartRates = new int[64];
+    private Map<Integer, String> descriptions;
 
     public void setBaseTime(Date baseTime) {
         this.baseTime = baseTime;
@@ -35,16 +53,119 @@ public class ActivityTrack {
     }
 
     public void setTrackPoints(List<ActivityPoint> trackPoints) {
-        this.trackPoints = trackPoints;
+        size = 0;
+        descriptions = null;
+        for (ActivityPoint point : trackPoints) {
+            addTrackPoint(point);
+        }
     }
 
-    private List<ActivityPoint> trackPoints = new ArrayList<>();
-
     public void addTrackPoint(ActivityPoint point) {
-        trackPoints.add(point);
+        int index = addPoint(point.getTime().getTime());
+        GPSCoordinate location = point.getLocation();
+        if (location != null) {
+            setLocation(index, location.getLongitude(), location.getLatitude(), location.getAltitude());
+        }
+        heartRates[index] = point.getHeartRate();
+        if (point.getDescription() != null) {
+            setDescription(index, point.getDescription());
+        }
+    }
+
+    /**
+     * Appends a point without location and heart rate.
+     *
+     * @param time the time of the point in milliseconds, usually not before the last point
+     * @return the index of the new point
+     */
+    public int addPoint(long time) {
+        if (size == times.length) {
+            int capacity = size * 2;
+            times = Arrays.copyOf(times, capacity);
+            longitudes = Arrays.copyOf(longitudes, capacity);
+            latitudes = Arrays.copyOf(latitudes, capacity);
+            altitudes = Arrays.copyOf(altitudes, capacity);
+            hasLocation = Arrays.copyOf(hasLocation, capacity);
+            heartRates = Arrays.copyOf(heartRates, capacity);
+        }
+        times[size] = time;
+        hasLocation[size] = false;
+        heartRates[size] = 0;
+        return size++;
+    }
+
+    public void setLocation(int index, double longitude, double latitude, double altitude) {
+        longitudes[index] = longitude;
+        latitudes[index] = latitude;
+        altitudes[index] = altitude;
+        hasLocation[index] = true;
+    }
+
+    public void setHeartRate(int index, int heartRate) {
+        heartRates[index] = heartRate;
+    }
+
+    public void setDescription(int index, String description) {
+        if (descriptions == null) {
+            descriptions = new HashMap<>();
+        }
+        descriptions.put(index, description);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the time of the given point in milliseconds.
+     */
+    public long getTime(int index) {
+        return times[index];
+    }
+
+    public boolean hasLocation(int index) {
+        return hasLocation[index];
+    }
+
+    public double getLongitude(int index) {
+        return longitudes[index];
+    }
+
+    public double getLatitude(int index) {
+        return latitudes[index];
+    }
+
+    public double getAltitude(int index) {
+        return altitudes[index];
+    }
+
+    public int getHeartRate(int index) {
+        return heartRates[index];
+    }
+
+    @Nullable
+    public String getDescription(int index) {
+        return descriptions != null ? descriptions.get(index) : null;
     }
 
+    /**
+     * Returns a new list with the points of this track as objects.
+     */
     public List<ActivityPoint> getTrackPoints() {
+        List<ActivityPoint> trackPoints = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ActivityPoint point = new ActivityPoint(new Date(times[i]));
+            if (hasLocation[i]) {
+                point.setLocation(new GPSCoordinate(longitudes[i], latitudes[i], altitudes[i]));
+            }
+            point.setHeartRate(heartRates[i]);
+            point.setDescription(getDescription(i));
+            trackPoints.add(point);
+        }
         return trackPoints;
     }
 
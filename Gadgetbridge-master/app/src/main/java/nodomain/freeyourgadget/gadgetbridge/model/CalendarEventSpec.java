@@ -29,4 +29,17 @@ public class CalendarEventSpec {
     public String description;
     public String location;
     public boolean allDay;
+
+    public CalendarEventSpec copy() {
+        CalendarEventSpec copy = new CalendarEventSpec();
+        copy.type = type;
+        copy.id = id;
+        copy.timestamp = timestamp;
+        copy.durationInSeconds = durationInSeconds;
+        copy.title = title;
+        copy.description = description;
+        copy.location = location;
+        copy.allDay = allDay;
+        return copy;
+    }
 }
@@ -28,4 +28,12 @@ public class CallSpec {
     public String number;
     public String name;
     public int command;
+
+    public CallSpec copy() {
+        CallSpec copy = new CallSpec();
+        copy.number = number;
+        copy.name = name;
+        copy.command = command;
+        return copy;
+    }
 }
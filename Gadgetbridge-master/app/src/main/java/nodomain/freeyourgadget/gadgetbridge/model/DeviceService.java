@@ -55,7 +55,6 @@ public interface DeviceService extends EventHandler {
     String ACTION_SET_CONSTANT_VIBRATION = PREFIX + ".action.set_constant_vibration";
     String ACTION_SET_ALARMS = PREFIX + ".action.set_alarms";
     String ACTION_ENABLE_REALTIME_STEPS = PREFIX + ".action.enable_realtime_steps";
-    String ACTION_REALTIME_SAMPLES = PREFIX + ".action.realtime_samples";
     String ACTION_ENABLE_REALTIME_HEARTRATE_MEASUREMENT = PREFIX + ".action.realtime_hr_measurement";
     String ACTION_ENABLE_HEARTRATE_SLEEP_SUPPORT = PREFIX + ".action.enable_heartrate_sleep_support";
     String ACTION_SET_HEARTRATE_MEASUREMENT_INTERVAL = PREFIX + ".action.set_heartrate_measurement_intervarl";
@@ -146,4 +145,11 @@ public interface DeviceService extends EventHandler {
      * from the service will be reported.
      */
     void requestDeviceInfo();
+
+    /**
+     * Returns a DeviceService sending all commands to the given device only. Without that,
+     * device specific commands are sent to the most recently connected device, and all
+     * other commands to all connected devices.
+     */
+    DeviceService forDevice(GBDevice device);
 }
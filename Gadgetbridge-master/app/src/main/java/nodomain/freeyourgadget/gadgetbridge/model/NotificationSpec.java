@@ -39,4 +39,24 @@ public class NotificationSpec {
      * The color that should be assigned to this notification when displayed on a Pebble
      */
     public byte pebbleColor;
+
+    /**
+     * Returns a shallow copy of this spec.
+     */
+    public NotificationSpec copy() {
+        NotificationSpec copy = new NotificationSpec();
+        copy.flags = flags;
+        copy.id = id;
+        copy.sender = sender;
+        copy.phoneNumber = phoneNumber;
+        copy.title = title;
+        copy.subject = subject;
+        copy.body = body;
+        copy.type = type;
+        copy.sourceName = sourceName;
+        copy.cannedReplies = cannedReplies;
+        copy.sourceAppId = sourceAppId;
+        copy.pebbleColor = pebbleColor;
+        return copy;
+    }
 }
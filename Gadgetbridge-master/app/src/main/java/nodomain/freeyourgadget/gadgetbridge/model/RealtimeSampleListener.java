@@ -0,0 +1,76 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.model;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+
+/**
+ * Receives realtime samples (e.g. live steps and heart rate) directly from the device
+ * support, without going through the database or an Intent. Listeners are registered for
+ * one device and called on the thread producing its samples.
+ */
+public interface RealtimeSampleListener {
+    /**
+     * @param device the device that recorded the sample
+     * @param timestamp the timestamp in seconds
+     * @param steps the steps since the previous sample, or {@link ActivitySample#NOT_MEASURED}
+     * @param heartRate the heart rate, or {@link ActivitySample#NOT_MEASURED}
+     */
+    void onRealtimeSample(GBDevice device, int timestamp, int steps, int heartRate);
+
+    class Registry {
+        // by device address
+        private static final ConcurrentMap<String, List<RealtimeSampleListener>> listeners = new ConcurrentHashMap<>();
+
+        private Registry() {
+        }
+
+        public static void addListener(GBDevice device, RealtimeSampleListener listener) {
+            List<RealtimeSampleListener> deviceListeners = listeners.get(device.getAddress());
+            if (deviceListeners == null) {
+                List<RealtimeSampleListener> newListeners = new CopyOnWriteArrayList<>();
+                deviceListeners = listeners.putIfAbsent(device.getAddress(), newListeners);
+                if (deviceListeners == null) {
+                    deviceListeners = newListeners;
+                }
+            }
+            deviceListeners.add(listener);
+        }
+
+        public static void removeListener(GBDevice device, RealtimeSampleListener listener) {
+            List<RealtimeSampleListener> deviceListeners = listeners.get(device.getAddress());
+            if (deviceListeners != null) {
+                deviceListeners.remove(listener);
+            }
+        }
+
+        public static void publish(GBDevice device, int timestamp, int steps, int heartRate) {
+            List<RealtimeSampleListener> deviceListeners = listeners.get(device.getAddress());
+            if (deviceListeners == null) {
+                return;
+            }
+            for (RealtimeSampleListener listener : deviceListeners) {
+                listener.onRealtimeSample(device, timestamp, steps, heartRate);
+            }
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.model.Alarm;
+import nodomain.freeyourgadget.gadgetbridge.model.CalendarEventSpec;
+import nodomain.freeyourgadget.gadgetbridge.model.CallSpec;
+import nodomain.freeyourgadget.gadgetbridge.model.CannedMessagesSpec;
+import nodomain.freeyourgadget.gadgetbridge.model.NotificationSpec;
+import nodomain.freeyourgadget.gadgetbridge.model.NotificationType;
+
+import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.*;
+
+/**
+ * A command for the {@link DeviceCommunicationService}, identified by one of the
+ * DeviceService.ACTION_* constants.
+ * <p/>
+ * Commands from within Gadgetbridge are handed to the service as they are, so the spec objects
+ * must not be modified by the caller afterwards. Commands from other applications arrive as
+ * Intents and are converted with {@link #fromIntent(Intent)}; the extras are the same as before.
+ */
+public class DeviceCommand {
+    public final String action;
+    /**
+     * The device the command is sent to, or null for the default routing.
+     */
+    @Nullable
+    public GBDevice device;
+
+    public boolean firstTime;
+    public NotificationSpec notificationSpec;
+    public CallSpec callSpec;
+    public CannedMessagesSpec cannedMessagesSpec;
+    public CalendarEventSpec calendarEventSpec;
+    public ArrayList<? extends Alarm> alarms;
+    public Uri uri;
+    public UUID appUuid;
+    public UUID[] appUuids;
+    public String config;
+    public Integer configId;
+    /**
+     * The boolean argument of the command, e.g. whether to enable or start something.
+     */
+    public boolean enable;
+    /**
+     * The int argument of the command, e.g. the notification id or the interval in seconds.
+     */
+    public int intValue;
+    public byte calendarEventType;
+    public long calendarEventId;
+
+    public DeviceCommand(String action) {
+        this.action = action;
+    }
+
+    /**
+     * Converts the given Intent into a command.
+     */
+    public static DeviceCommand fromIntent(Intent intent) {
+        DeviceCommand command = new DeviceCommand(intent.getAction());
+        command.device = intent.getParcelableExtra(GBDevice.EXTRA_DEVICE);
+
+        switch (command.action) {
+            case ACTION_CONNECT:
+                command.firstTime = intent.getBooleanExtra(EXTRA_CONNECT_FIRST_TIME, false);
+                break;
+            case ACTION_NOTIFICATION: {
+                NotificationSpec notificationSpec = new NotificationSpec();
+                notificationSpec.phoneNumber = intent.getStringExtra(EXTRA_NOTIFICATION_PHONENUMBER);
+                notificationSpec.sender = intent.getStringExtra(EXTRA_NOTIFICATION_SENDER);
+                notificationSpec.subject = intent.getStringExtra(EXTRA_NOTIFICATION_SUBJECT);
+                notificationSpec.title = intent.getStringExtra(EXTRA_NOTIFICATION_TITLE);
+                notificationSpec.body = intent.getStringExtra(EXTRA_NOTIFICATION_BODY);
+                notificationSpec.sourceName = intent.getStringExtra(EXTRA_NOTIFICATION_SOURCENAME);
+                notificationSpec.type = (NotificationType) intent.getSerializableExtra(EXTRA_NOTIFICATION_TYPE);
+                notificationSpec.pebbleColor = (byte) intent.getSerializableExtra(EXTRA_NOTIFICATION_PEBBLE_COLOR);
+                notificationSpec.id = intent.getIntExtra(EXTRA_NOTIFICATION_ID, -1);
+                notificationSpec.flags = intent.getIntExtra(EXTRA_NOTIFICATION_FLAGS, 0);
+                command.notificationSpec = notificationSpec;
+                break;
+            }
+            case ACTION_DELETE_NOTIFICATION:
+                command.intValue = intent.getIntExtra(EXTRA_NOTIFICATION_ID, -1);
+                break;
+            case ACTION_ADD_CALENDAREVENT: {
+                CalendarEventSpec calendarEventSpec = new CalendarEventSpec();
+                calendarEventSpec.id = intent.getLongExtra(EXTRA_CALENDAREVENT_ID, -1);
+                calendarEventSpec.type = intent.getByteExtra(EXTRA_CALENDAREVENT_TYPE, (byte) -1);
+                calendarEventSpec.timestamp = intent.getIntExtra(EXTRA_CALENDAREVENT_TIMESTAMP, -1);
+                calendarEventSpec.durationInSeconds = intent.getIntExtra(EXTRA_CALENDAREVENT_DURATION, -1);
+                calendarEventSpec.title = intent.getStringExtra(EXTRA_CALENDAREVENT_TITLE);
+                calendarEventSpec.description = intent.getStringExtra(EXTRA_CALENDAREVENT_DESCRIPTION);
+                calendarEventSpec.location = intent.getStringExtra(EXTRA_CALENDAREVENT_LOCATION);
+                command.calendarEventSpec = calendarEventSpec;
+                break;
+            }
+            case ACTION_DELETE_CALENDAREVENT:
+                command.calendarEventId = intent.getLongExtra(EXTRA_CALENDAREVENT_ID, -1);
+                command.calendarEventType = intent.getByteExtra(EXTRA_CALENDAREVENT_TYPE, (byte) -1);
+                break;
+            case ACTION_FETCH_RECORDED_DATA:
+                command.intValue = intent.getIntExtra(EXTRA_RECORDED_DATA_TYPES, 0);
+                break;
+            case ACTION_FIND_DEVICE:
+                command.enable = intent.getBooleanExtra(EXTRA_FIND_START, false);
+                break;
+            case ACTION_SET_CONSTANT_VIBRATION:
+                command.intValue = intent.getIntExtra(EXTRA_VIBRATION_INTENSITY, 0);
+                break;
+            case ACTION_CALLSTATE: {
+                CallSpec callSpec = new CallSpec();
+                callSpec.command = intent.getIntExtra(EXTRA_CALL_COMMAND, CallSpec.CALL_UNDEFINED);
+                callSpec.number = intent.getStringExtra(EXTRA_CALL_PHONENUMBER);
+                callSpec.name = intent.getStringExtra(EXTRA_CALL_DISPLAYNAME);
+                command.callSpec = callSpec;
+                break;
+            }
+            case ACTION_SETCANNEDMESSAGES: {
+                CannedMessagesSpec cannedMessagesSpec = new CannedMessagesSpec();
+                cannedMessagesSpec.type = intent.getIntExtra(EXTRA_CANNEDMESSAGES_TYPE, -1);
+                cannedMessagesSpec.cannedMessages = intent.getStringArrayExtra(EXTRA_CANNEDMESSAGES);
+                command.cannedMessagesSpec = cannedMessagesSpec;
+                break;
+            }
+            case ACTION_STARTAPP:
+                command.appUuid = (UUID) intent.getSerializableExtra(EXTRA_APP_UUID);
+                command.enable = intent.getBooleanExtra(EXTRA_APP_START, true);
+                break;
+            case ACTION_DELETEAPP:
+                command.appUuid = (UUID) intent.getSerializableExtra(EXTRA_APP_UUID);
+                break;
+            case ACTION_APP_CONFIGURE:
+                command.appUuid = (UUID) intent.getSerializableExtra(EXTRA_APP_UUID);
+                command.config = intent.getStringExtra(EXTRA_APP_CONFIG);
+                if (intent.hasExtra(EXTRA_APP_CONFIG_ID)) {
+                    command.configId = intent.getIntExtra(EXTRA_APP_CONFIG_ID, 0);
+                }
+                break;
+            case ACTION_APP_REORDER:
+                command.appUuids = (UUID[]) intent.getSerializableExtra(EXTRA_APP_UUID);
+                break;
+            case ACTION_INSTALL:
+                command.uri = intent.getParcelableExtra(EXTRA_URI);
+                break;
+            case ACTION_SET_ALARMS:
+                command.alarms = intent.getParcelableArrayListExtra(EXTRA_ALARMS);
+                break;
+            case ACTION_ENABLE_REALTIME_STEPS:
+            case ACTION_ENABLE_HEARTRATE_SLEEP_SUPPORT:
+            case ACTION_ENABLE_REALTIME_HEARTRATE_MEASUREMENT:
+                command.enable = intent.getBooleanExtra(EXTRA_BOOLEAN_ENABLE, false);
+                break;
+            case ACTION_SET_HEARTRATE_MEASUREMENT_INTERVAL:
+                command.intValue = intent.getIntExtra(EXTRA_INTERVAL_SECONDS, 0);
+                break;
+            case ACTION_SEND_CONFIGURATION:
+                command.config = intent.getStringExtra(EXTRA_CONFIG);
+                break;
+        }
+        return command;
+    }
+
+    /**
+     * Converts this command into an Intent for the given service, the counterpart
+     * of {@link #fromIntent(Intent)}.
+     */
+    public Intent toIntent(Context context, Class<?> serviceClass) {
+        Intent intent = new Intent(context, serviceClass).setAction(action);
+        if (device != null) {
+            intent.putExtra(GBDevice.EXTRA_DEVICE, device);
+        }
+
+        switch (action) {
+            case ACTION_CONNECT:
+                intent.putExtra(EXTRA_CONNECT_FIRST_TIME, firstTime);
+                break;
+            case ACTION_NOTIFICATION:
+                intent.putExtra(EXTRA_NOTIFICATION_FLAGS, notificationSpec.flags)
+                        .putExtra(EXTRA_NOTIFICATION_PHONENUMBER, notificationSpec.phoneNumber)
+                        .putExtra(EXTRA_NOTIFICATION_SENDER, notificationSpec.sender)
+                        .putExtra(EXTRA_NOTIFICATION_SUBJECT, notificationSpec.subject)
+                        .putExtra(EXTRA_NOTIFICATION_TITLE, notificationSpec.title)
+                        .putExtra(EXTRA_NOTIFICATION_BODY, notificationSpec.body)
+                        .putExtra(EXTRA_NOTIFICATION_ID, notificationSpec.id)
+                        .putExtra(EXTRA_NOTIFICATION_TYPE, notificationSpec.type)
+                        .putExtra(EXTRA_NOTIFICATION_SOURCENAME, notificationSpec.sourceName)
+                        .putExtra(EXTRA_NOTIFICATION_PEBBLE_COLOR, notificationSpec.pebbleColor);
+                break;
+            case ACTION_DELETE_NOTIFICATION:
+                intent.putExtra(EXTRA_NOTIFICATION_ID, intValue);
+                break;
+            case ACTION_ADD_CALENDAREVENT:
+                intent.putExtra(EXTRA_CALENDAREVENT_ID, calendarEventSpec.id)
+                        .putExtra(EXTRA_CALENDAREVENT_TYPE, calendarEventSpec.type)
+                        .putExtra(EXTRA_CALENDAREVENT_TIMESTAMP, calendarEventSpec.timestamp)
+                        .putExtra(EXTRA_CALENDAREVENT_DURATION, calendarEventSpec.durationInSeconds)
+                        .putExtra(EXTRA_CALENDAREVENT_TITLE, calendarEventSpec.title)
+                        .putExtra(EXTRA_CALENDAREVENT_DESCRIPTION, calendarEventSpec.description)
+                        .putExtra(EXTRA_CALENDAREVENT_LOCATION, calendarEventSpec.location);
+                break;
+            case ACTION_DELETE_CALENDAREVENT:
+                intent.putExtra(EXTRA_CALENDAREVENT_TYPE, calendarEventType)
+                        .putExtra(EXTRA_CALENDAREVENT_ID, calendarEventId);
+                break;
+            case ACTION_FETCH_RECORDED_DATA:
+                intent.putExtra(EXTRA_RECORDED_DATA_TYPES, intValue);
+                break;
+            case ACTION_FIND_DEVICE:
+                intent.putExtra(EXTRA_FIND_START, enable);
+                break;
+            case ACTION_SET_CONSTANT_VIBRATION:
+                intent.putExtra(EXTRA_VIBRATION_INTENSITY, intValue);
+                break;
+            case ACTION_CALLSTATE:
+                intent.putExtra(EXTRA_CALL_PHONENUMBER, callSpec.number)
+                        .putExtra(EXTRA_CALL_DISPLAYNAME, callSpec.name)
+                        .putExtra(EXTRA_CALL_COMMAND, callSpec.command);
+                break;
+            case ACTION_SETCANNEDMESSAGES:
+                intent.putExtra(EXTRA_CANNEDMESSAGES_TYPE, cannedMessagesSpec.type)
+                        .putExtra(EXTRA_CANNEDMESSAGES, cannedMessagesSpec.cannedMessages);
+                break;
+            case ACTION_STARTAPP:
+                intent.putExtra(EXTRA_APP_UUID, appUuid)
+                        .putExtra(EXTRA_APP_START, enable);
+                break;
+            case ACTION_DELETEAPP:
+                intent.putExtra(EXTRA_APP_UUID, appUuid);
+                break;
+            case ACTION_APP_CONFIGURE:
+                intent.putExtra(EXTRA_APP_UUID, appUuid)
+                        .putExtra(EXTRA_APP_CONFIG, config);
+                if (configId != null) {
+                    intent.putExtra(EXTRA_APP_CONFIG_ID, configId);
+                }
+                break;
+            case ACTION_APP_REORDER:
+                intent.putExtra(EXTRA_APP_UUID, appUuids);
+                break;
+            case ACTION_INSTALL:
+                intent.putExtra(EXTRA_URI, uri);
+                break;
+            case ACTION_SET_ALARMS:
+                intent.putParcelableArrayListExtra(EXTRA_ALARMS, alarms);
+                break;
+            case ACTION_ENABLE_REALTIME_STEPS:
+            case ACTION_ENABLE_HEARTRATE_SLEEP_SUPPORT:
+            case ACTION_ENABLE_REALTIME_HEARTRATE_MEASUREMENT:
+                intent.putExtra(EXTRA_BOOLEAN_ENABLE, enable);
+                break;
+            case ACTION_SET_HEARTRATE_MEASUREMENT_INTERVAL:
+                intent.putExtra(EXTRA_INTERVAL_SECONDS, intValue);
+                break;
+            case ACTION_SEND_CONFIGURATION:
+                intent.putExtra(EXTRA_CONFIG, config);
+                break;
+        }
+        return intent;
+    }
+
+    @Override
+    public String toString() {
+        return action + (device != null ? " for " + device.getAddress() : "");
+    }
+}
@@ -29,7 +29,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.net.Uri;
+import android.os.Binder;
 import android.os.IBinder;
 import android.support.annotation.Nullable;
 import android.support.v4.content.ContextCompat;
@@ -40,8 +40,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.UUID;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.R;
@@ -52,11 +58,8 @@ import nodomain.freeyourgadget.gadgetbridge.externalevents.BluetoothConnectRecei
 import nodomain.freeyourgadget.gadgetbridge.externalevents.BluetoothPairingRequestReceiver;
 import nodomain.freeyourgadget.gadgetbridge.externalevents.CalendarReceiver;
 import nodomain.freeyourgadget.gadgetbridge.externalevents.TimeChangeReceiver;
+import nodomain.freeyourgadget.gadgetbridge.impl.DeviceCommandQueue;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
-import nodomain.freeyourgadget.gadgetbridge.model.Alarm;
-import nodomain.freeyourgadget.gadgetbridge.model.CalendarEventSpec;
-import nodomain.freeyourgadget.gadgetbridge.model.CallSpec;
-import nodomain.freeyourgadget.gadgetbridge.model.CannedMessagesSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.NotificationSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.NotificationType;
 import nodomain.freeyourgadget.gadgetbridge.util.DeviceHelper;
@@ -94,52 +97,32 @@ import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.ACTION_SE
 import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.ACTION_START;
 import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.ACTION_STARTAPP;
 import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.ACTION_TEST_NEW_FUNCTION;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_ALARMS;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_APP_CONFIG;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_APP_CONFIG_ID;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_APP_START;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_APP_UUID;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_BOOLEAN_ENABLE;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_CALENDAREVENT_DESCRIPTION;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_CALENDAREVENT_DURATION;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_CALENDAREVENT_ID;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_CALENDAREVENT_LOCATION;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_CALENDAREVENT_TIMESTAMP;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_CALENDAREVENT_TITLE;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_CALENDAREVENT_TYPE;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_CALL_COMMAND;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_CALL_DISPLAYNAME;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_CALL_PHONENUMBER;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_CANNEDMESSAGES;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_CANNEDMESSAGES_TYPE;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_CONFIG;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_CONNECT_FIRST_TIME;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_FIND_START;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_INTERVAL_SECONDS;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_NOTIFICATION_BODY;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_NOTIFICATION_FLAGS;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_NOTIFICATION_ID;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_NOTIFICATION_PEBBLE_COLOR;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_NOTIFICATION_PHONENUMBER;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_NOTIFICATION_SENDER;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_NOTIFICATION_SOURCENAME;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_NOTIFICATION_SUBJECT;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_NOTIFICATION_TITLE;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_NOTIFICATION_TYPE;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_RECORDED_DATA_TYPES;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_URI;
-import static nodomain.freeyourgadget.gadgetbridge.model.DeviceService.EXTRA_VIBRATION_INTENSITY;
 
+/**
+ * Keeps one session per connected device, each consisting of a {@link DeviceSupport} with its
+ * own connection, queue and fetch scheduling, so that several devices can be connected and
+ * synced at the same time.
+ * <p/>
+ * Commands sent with a {@link GBDevice#EXTRA_DEVICE} are only routed to that device.
+ * Otherwise, commands about the state of the phone (notifications, calls, time, calendar,
+ * settings...) are broadcast to all devices, and device specific commands (firmware installation,
+ * fetching data, find device...) are routed to the most recently connected one.
+ */
 public class DeviceCommunicationService extends Service implements SharedPreferences.OnSharedPreferenceChangeListener {
     private static final Logger LOG = LoggerFactory.getLogger(DeviceCommunicationService.class);
     @SuppressLint("StaticFieldLeak") // only used for test cases
     private static DeviceSupportFactory DEVICE_SUPPORT_FACTORY = null;
 
     private boolean mStarted = false;
+    private boolean mDestroyed = false;
+    private final LocalBinder mBinder = new LocalBinder();
+    private volatile long mHandledIntentSequence;
 
     private DeviceSupportFactory mFactory;
-    private GBDevice mGBDevice = null;
-    private DeviceSupport mDeviceSupport;
+    /**
+     * The device support of each device, by address, in the order they were connected.
+     */
+    private final LinkedHashMap<String, DeviceSupport> mDeviceSupports = new LinkedHashMap<>();
 
     private TimeChangeReceiver mTimeChangeReceiver = null;
     private BluetoothConnectReceiver mBlueToothConnectReceiver = null;
@@ -147,7 +130,7 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
     private AlarmClockReceiver mAlarmClockReceiver = null;
 
     private AlarmReceiver mAlarmReceiver = null;
-    private CalendarReceiver mCalendarReceiver = null;
+    private final Map<String, CalendarReceiver> mCalendarReceivers = new HashMap<>();
     private Random mRandom = new Random();
 
     private final String[] mMusicActions = {
@@ -176,18 +159,41 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
 
     }
 
+    /**
+     * Lets callers within the Gadgetbridge process hand {@link DeviceCommand}s to the service
+     * directly, instead of packing them into Intents.
+     */
+    public class LocalBinder extends Binder {
+        /**
+         * Handles the given commands on the calling thread, in order.
+         *
+         * @return false if the service has already been destroyed and the commands were not handled
+         */
+        public boolean handleCommands(List<DeviceCommand> commands) {
+            return DeviceCommunicationService.this.handleCommands(commands);
+        }
+
+        /**
+         * Returns the {@link DeviceCommandQueue#EXTRA_INTENT_SEQUENCE sequence number} of the
+         * last Intent handled by the service.
+         */
+        public long getHandledIntentSequence() {
+            return mHandledIntentSequence;
+        }
+    }
+
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
             if (GBDevice.ACTION_DEVICE_CHANGED.equals(action)) {
                 GBDevice device = intent.getParcelableExtra(GBDevice.EXTRA_DEVICE);
-                if (mGBDevice != null && mGBDevice.equals(device)) {
-                    mGBDevice = device;
-                    boolean enableReceivers = mDeviceSupport != null && (mDeviceSupport.useAutoConnect() || mGBDevice.isInitialized());
-                    setReceiversEnableState(enableReceivers, mGBDevice.isInitialized(), DeviceHelper.getInstance().getCoordinator(device));
-                } else {
-                    LOG.error("Got ACTION_DEVICE_CHANGED from unexpected device: " + device);
+                synchronized (DeviceCommunicationService.this) {
+                    if (device != null && mDeviceSupports.containsKey(device.getAddress())) {
+                        updateReceiversEnableState();
+                    } else {
+                        LOG.error("Got ACTION_DEVICE_CHANGED from unexpected device: " + device);
+                    }
                 }
             }
         }
@@ -219,15 +225,44 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
             LOG.info("no intent");
             return START_NOT_STICKY;
         }
+        // the commands queued afterwards are handled after this one, on the same thread
+        mHandledIntentSequence = Math.max(mHandledIntentSequence, intent.getLongExtra(DeviceCommandQueue.EXTRA_INTENT_SEQUENCE, 0));
 
-        String action = intent.getAction();
-        boolean firstTime = intent.getBooleanExtra(EXTRA_CONNECT_FIRST_TIME, false);
-
-        if (action == null) {
+        if (intent.getAction() == null) {
             LOG.info("no action");
             return START_NOT_STICKY;
         }
 
+        return handleCommand(DeviceCommand.fromIntent(intent));
+    }
+
+    /**
+     * Handles the given commands from within Gadgetbridge in one go.
+     *
+     * @return false if the service has already been destroyed
+     */
+    private synchronized boolean handleCommands(List<DeviceCommand> commands) {
+        if (mDestroyed) {
+            return false;
+        }
+        for (DeviceCommand command : commands) {
+            try {
+                handleCommand(command);
+            } catch (Exception e) {
+                LOG.error("Error handling command " + command, e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Handles a single command, with the lock of this service held.
+     *
+     * @return the result for {@link #onStartCommand(Intent, int, int)}
+     */
+    private int handleCommand(DeviceCommand command) {
+        String action = command.action;
+
         LOG.debug("Service startcommand: " + action);
 
         if (!action.equals(ACTION_START) && !action.equals(ACTION_CONNECT)) {
@@ -236,85 +271,50 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
                 LOG.info("Must start service with " + ACTION_START + " or " + ACTION_CONNECT + " before using it: " + action);
                 return START_NOT_STICKY;
             }
-
-            if (mDeviceSupport == null || (!isInitialized() && !mDeviceSupport.useAutoConnect())) {
-                // trying to send notification without valid Bluetooth connection
-                if (mGBDevice != null) {
-                    // at least send back the current device state
-                    mGBDevice.sendDeviceUpdateIntent(this);
-                }
-                return START_STICKY;
-            }
         }
 
-        // when we get past this, we should have valid mDeviceSupport and mGBDevice instances
-
         Prefs prefs = getPrefs();
         switch (action) {
             case ACTION_START:
                 start();
-                break;
+                return START_STICKY;
             case ACTION_CONNECT:
                 start(); // ensure started
-                GBDevice gbDevice = intent.getParcelableExtra(GBDevice.EXTRA_DEVICE);
-                String btDeviceAddress = null;
-                if (gbDevice == null) {
-                    if (prefs != null) { // may be null in test cases
-                        btDeviceAddress = prefs.getString("last_device_address", null);
-                        if (btDeviceAddress != null) {
-                            gbDevice = DeviceHelper.getInstance().findAvailableDevice(btDeviceAddress, this);
-                        }
-                    }
-                } else {
-                    btDeviceAddress = gbDevice.getAddress();
-                }
-
-                boolean autoReconnect = GBPrefs.AUTO_RECONNECT_DEFAULT;
-                if (prefs != null && prefs.getPreferences() != null) {
-                    prefs.getPreferences().edit().putString("last_device_address", btDeviceAddress).apply();
-                    autoReconnect = getGBPrefs().getAutoReconnect();
-                }
-
-                if (gbDevice != null && !isConnecting() && !isConnected()) {
-                    setDeviceSupport(null);
-                    try {
-                        DeviceSupport deviceSupport = mFactory.createDeviceSupport(gbDevice);
-                        if (deviceSupport != null) {
-                            setDeviceSupport(deviceSupport);
-                            if (firstTime) {
-                                deviceSupport.connectFirstTime();
-                            } else {
-                                deviceSupport.setAutoReconnect(autoReconnect);
-                                deviceSupport.connect();
-                            }
-                        } else {
-                            GB.toast(this, getString(R.string.cannot_connect, "Can't create device support"), Toast.LENGTH_SHORT, GB.ERROR);
-                        }
-                    } catch (Exception e) {
-                        GB.toast(this, getString(R.string.cannot_connect, e.getMessage()), Toast.LENGTH_SHORT, GB.ERROR, e);
-                        setDeviceSupport(null);
-                    }
-                } else if (mGBDevice != null) {
-                    // send an update at least
-                    mGBDevice.sendDeviceUpdateIntent(this);
-                }
-                break;
+                connect(command.device, command.firstTime, prefs);
+                return START_STICKY;
             case ACTION_REQUEST_DEVICEINFO:
-                mGBDevice.sendDeviceUpdateIntent(this);
-                break;
-            case ACTION_NOTIFICATION: {
-                NotificationSpec notificationSpec = new NotificationSpec();
-                notificationSpec.phoneNumber = intent.getStringExtra(EXTRA_NOTIFICATION_PHONENUMBER);
-                notificationSpec.sender = intent.getStringExtra(EXTRA_NOTIFICATION_SENDER);
-                notificationSpec.subject = intent.getStringExtra(EXTRA_NOTIFICATION_SUBJECT);
-                notificationSpec.title = intent.getStringExtra(EXTRA_NOTIFICATION_TITLE);
-                notificationSpec.body = intent.getStringExtra(EXTRA_NOTIFICATION_BODY);
-                notificationSpec.sourceName = intent.getStringExtra(EXTRA_NOTIFICATION_SOURCENAME);
-                notificationSpec.type = (NotificationType) intent.getSerializableExtra(EXTRA_NOTIFICATION_TYPE);
-                notificationSpec.pebbleColor = (byte) intent.getSerializableExtra(EXTRA_NOTIFICATION_PEBBLE_COLOR);
-                notificationSpec.id = intent.getIntExtra(EXTRA_NOTIFICATION_ID, -1);
-                notificationSpec.flags = intent.getIntExtra(EXTRA_NOTIFICATION_FLAGS, 0);
+                for (DeviceSupport deviceSupport : mDeviceSupports.values()) {
+                    deviceSupport.getDevice().sendDeviceUpdateIntent(this);
+                }
+                return START_STICKY;
+            case ACTION_DISCONNECT:
+                // also disconnects devices that are still connecting
+                for (DeviceSupport deviceSupport : getTargetDeviceSupports(command, false)) {
+                    GBDevice gbDevice = deviceSupport.getDevice();
+                    mDeviceSupports.remove(gbDevice.getAddress());
+                    deviceSupport.dispose();
+                    gbDevice.setState(GBDevice.State.NOT_CONNECTED);
+                    gbDevice.sendDeviceUpdateIntent(this);
+                }
+                updateReceiversEnableState();
+                return START_STICKY;
+        }
 
+        List<DeviceSupport> deviceSupports = getTargetDeviceSupports(command, true);
+        if (deviceSupports.isEmpty()) {
+            // trying to send notification without valid Bluetooth connection
+            for (DeviceSupport deviceSupport : getTargetDeviceSupports(command, false)) {
+                // at least send back the current device state
+                deviceSupport.getDevice().sendDeviceUpdateIntent(this);
+            }
+            return START_STICKY;
+        }
+
+        // when we get past this, we have at least one valid device support instance
+
+        switch (action) {
+            case ACTION_NOTIFICATION: {
+                NotificationSpec notificationSpec = command.notificationSpec;
                 if (notificationSpec.type == NotificationType.GENERIC_SMS && notificationSpec.phoneNumber != null) {
                     notificationSpec.id = mRandom.nextInt(); // FIXME: add this in external SMS Receiver?
                     GBApplication.getIDSenderLookup().add(notificationSpec.id, notificationSpec.phoneNumber);
@@ -337,224 +337,337 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
                     }
                 }
 
-                mDeviceSupport.onNotification(notificationSpec);
-                break;
-            }
-            case ACTION_DELETE_NOTIFICATION: {
-                mDeviceSupport.onDeleteNotification(intent.getIntExtra(EXTRA_NOTIFICATION_ID, -1));
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onNotification(notificationSpec);
+                }
                 break;
             }
-            case ACTION_ADD_CALENDAREVENT: {
-                CalendarEventSpec calendarEventSpec = new CalendarEventSpec();
-                calendarEventSpec.id = intent.getLongExtra(EXTRA_CALENDAREVENT_ID, -1);
-                calendarEventSpec.type = intent.getByteExtra(EXTRA_CALENDAREVENT_TYPE, (byte) -1);
-                calendarEventSpec.timestamp = intent.getIntExtra(EXTRA_CALENDAREVENT_TIMESTAMP, -1);
-                calendarEventSpec.durationInSeconds = intent.getIntExtra(EXTRA_CALENDAREVENT_DURATION, -1);
-                calendarEventSpec.title = intent.getStringExtra(EXTRA_CALENDAREVENT_TITLE);
-                calendarEventSpec.description = intent.getStringExtra(EXTRA_CALENDAREVENT_DESCRIPTION);
-                calendarEventSpec.location = intent.getStringExtra(EXTRA_CALENDAREVENT_LOCATION);
-                mDeviceSupport.onAddCalendarEvent(calendarEventSpec);
+            case ACTION_DELETE_NOTIFICATION:
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onDeleteNotification(command.intValue);
+                }
                 break;
-            }
-            case ACTION_DELETE_CALENDAREVENT: {
-                long id = intent.getLongExtra(EXTRA_CALENDAREVENT_ID, -1);
-                byte type = intent.getByteExtra(EXTRA_CALENDAREVENT_TYPE, (byte) -1);
-                mDeviceSupport.onDeleteCalendarEvent(type, id);
+            case ACTION_ADD_CALENDAREVENT:
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onAddCalendarEvent(command.calendarEventSpec);
+                }
                 break;
-            }
-            case ACTION_REBOOT: {
-                mDeviceSupport.onReboot();
+            case ACTION_DELETE_CALENDAREVENT:
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onDeleteCalendarEvent(command.calendarEventType, command.calendarEventId);
+                }
                 break;
-            }
-            case ACTION_HEARTRATE_TEST: {
-                mDeviceSupport.onHeartRateTest();
+            case ACTION_REBOOT:
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onReboot();
+                }
                 break;
-            }
-            case ACTION_FETCH_RECORDED_DATA: {
-                int dataTypes = intent.getIntExtra(EXTRA_RECORDED_DATA_TYPES, 0);
-                mDeviceSupport.onFetchRecordedData(dataTypes);
+            case ACTION_HEARTRATE_TEST:
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onHeartRateTest();
+                }
                 break;
-            }
-            case ACTION_DISCONNECT: {
-                mDeviceSupport.dispose();
-                if (mGBDevice != null) {
-                    mGBDevice.setState(GBDevice.State.NOT_CONNECTED);
-                    mGBDevice.sendDeviceUpdateIntent(this);
-                }
-                setReceiversEnableState(false, false, null);
-                mGBDevice = null;
-                mDeviceSupport = null;
+            case ACTION_FETCH_RECORDED_DATA:
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onFetchRecordedData(command.intValue);
+                }
                 break;
-            }
-            case ACTION_FIND_DEVICE: {
-                boolean start = intent.getBooleanExtra(EXTRA_FIND_START, false);
-                mDeviceSupport.onFindDevice(start);
+            case ACTION_FIND_DEVICE:
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onFindDevice(command.enable);
+                }
                 break;
-            }
-            case ACTION_SET_CONSTANT_VIBRATION: {
-                int intensity = intent.getIntExtra(EXTRA_VIBRATION_INTENSITY, 0);
-                mDeviceSupport.onSetConstantVibration(intensity);
+            case ACTION_SET_CONSTANT_VIBRATION:
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onSetConstantVibration(command.intValue);
+                }
                 break;
-            }
             case ACTION_CALLSTATE:
-                CallSpec callSpec = new CallSpec();
-                callSpec.command = intent.getIntExtra(EXTRA_CALL_COMMAND, CallSpec.CALL_UNDEFINED);
-                callSpec.number = intent.getStringExtra(EXTRA_CALL_PHONENUMBER);
-                callSpec.name = intent.getStringExtra(EXTRA_CALL_DISPLAYNAME);
-                mDeviceSupport.onSetCallState(callSpec);
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onSetCallState(command.callSpec);
+                }
                 break;
             case ACTION_SETCANNEDMESSAGES:
-                int type = intent.getIntExtra(EXTRA_CANNEDMESSAGES_TYPE, -1);
-                String[] cannedMessages = intent.getStringArrayExtra(EXTRA_CANNEDMESSAGES);
-
-                CannedMessagesSpec cannedMessagesSpec = new CannedMessagesSpec();
-                cannedMessagesSpec.type = type;
-                cannedMessagesSpec.cannedMessages = cannedMessages;
-                mDeviceSupport.onSetCannedMessages(cannedMessagesSpec);
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onSetCannedMessages(command.cannedMessagesSpec);
+                }
                 break;
             case ACTION_SETTIME:
-                mDeviceSupport.onSetTime();
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onSetTime();
+                }
                 break;
             case ACTION_REQUEST_APPINFO:
-                mDeviceSupport.onAppInfoReq();
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onAppInfoReq();
+                }
                 break;
             case ACTION_REQUEST_SCREENSHOT:
-                mDeviceSupport.onScreenshotReq();
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onScreenshotReq();
+                }
                 break;
-            case ACTION_STARTAPP: {
-                UUID uuid = (UUID) intent.getSerializableExtra(EXTRA_APP_UUID);
-                boolean start = intent.getBooleanExtra(EXTRA_APP_START, true);
-                mDeviceSupport.onAppStart(uuid, start);
+            case ACTION_STARTAPP:
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onAppStart(command.appUuid, command.enable);
+                }
                 break;
-            }
-            case ACTION_DELETEAPP: {
-                UUID uuid = (UUID) intent.getSerializableExtra(EXTRA_APP_UUID);
-                mDeviceSupport.onAppDelete(uuid);
+            case ACTION_DELETEAPP:
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onAppDelete(command.appUuid);
+                }
                 break;
-            }
-            case ACTION_APP_CONFIGURE: {
-                UUID uuid = (UUID) intent.getSerializableExtra(EXTRA_APP_UUID);
-                String config = intent.getStringExtra(EXTRA_APP_CONFIG);
-                Integer id = null;
-                if (intent.hasExtra(EXTRA_APP_CONFIG_ID)) {
-                    id = intent.getIntExtra(EXTRA_APP_CONFIG_ID, 0);
-                }
-                mDeviceSupport.onAppConfiguration(uuid, config, id);
+            case ACTION_APP_CONFIGURE:
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onAppConfiguration(command.appUuid, command.config, command.configId);
+                }
                 break;
-            }
-            case ACTION_APP_REORDER: {
-                UUID[] uuids = (UUID[]) intent.getSerializableExtra(EXTRA_APP_UUID);
-                mDeviceSupport.onAppReorder(uuids);
+            case ACTION_APP_REORDER:
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onAppReorder(command.appUuids);
+                }
                 break;
-            }
             case ACTION_INSTALL:
-                Uri uri = intent.getParcelableExtra(EXTRA_URI);
-                if (uri != null) {
+                if (command.uri != null) {
                     LOG.info("will try to install app/fw");
-                    mDeviceSupport.onInstallApp(uri);
+                    for (DeviceSupport deviceSupport : deviceSupports) {
+                        deviceSupport.onInstallApp(command.uri);
+                    }
                 }
                 break;
             case ACTION_SET_ALARMS:
-                ArrayList<Alarm> alarms = intent.getParcelableArrayListExtra(EXTRA_ALARMS);
-                mDeviceSupport.onSetAlarms(alarms);
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onSetAlarms(command.alarms);
+                }
                 break;
-            case ACTION_ENABLE_REALTIME_STEPS: {
-                boolean enable = intent.getBooleanExtra(EXTRA_BOOLEAN_ENABLE, false);
-                mDeviceSupport.onEnableRealtimeSteps(enable);
+            case ACTION_ENABLE_REALTIME_STEPS:
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onEnableRealtimeSteps(command.enable);
+                }
                 break;
-            }
-            case ACTION_ENABLE_HEARTRATE_SLEEP_SUPPORT: {
-                boolean enable = intent.getBooleanExtra(EXTRA_BOOLEAN_ENABLE, false);
-                mDeviceSupport.onEnableHeartRateSleepSupport(enable);
+            case ACTION_ENABLE_HEARTRATE_SLEEP_SUPPORT:
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onEnableHeartRateSleepSupport(command.enable);
+                }
                 break;
-            }
-            case ACTION_SET_HEARTRATE_MEASUREMENT_INTERVAL: {
-                Integer seconds = intent.getIntExtra(EXTRA_INTERVAL_SECONDS, 0);
-                mDeviceSupport.onSetHeartRateMeasurementInterval(seconds);
+            case ACTION_SET_HEARTRATE_MEASUREMENT_INTERVAL:
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onSetHeartRateMeasurementInterval(command.intValue);
+                }
                 break;
-            }
-            case ACTION_ENABLE_REALTIME_HEARTRATE_MEASUREMENT: {
-                boolean enable = intent.getBooleanExtra(EXTRA_BOOLEAN_ENABLE, false);
-                mDeviceSupport.onEnableRealtimeHeartRateMeasurement(enable);
+            case ACTION_ENABLE_REALTIME_HEARTRATE_MEASUREMENT:
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onEnableRealtimeHeartRateMeasurement(command.enable);
+                }
                 break;
-            }
-            case ACTION_SEND_CONFIGURATION: {
-                String config = intent.getStringExtra(EXTRA_CONFIG);
-                mDeviceSupport.onSendConfiguration(config);
+            case ACTION_SEND_CONFIGURATION:
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onSendConfiguration(command.config);
+                }
                 break;
-            }
-            case ACTION_TEST_NEW_FUNCTION: {
-                mDeviceSupport.onTestNewFunction();
+            case ACTION_TEST_NEW_FUNCTION:
+                for (DeviceSupport deviceSupport : deviceSupports) {
+                    deviceSupport.onTestNewFunction();
+                }
                 break;
-            }
         }
 
         return START_STICKY;
     }
 
+    private void connect(@Nullable GBDevice gbDevice, boolean firstTime, Prefs prefs) {
+        String btDeviceAddress = null;
+        if (gbDevice == null) {
+            if (prefs != null) { // may be null in test cases
+                btDeviceAddress = prefs.getString("last_device_address", null);
+                if (btDeviceAddress != null) {
+                    gbDevice = DeviceHelper.getInstance().findAvailableDevice(btDeviceAddress, this);
+                }
+            }
+        } else {
+            btDeviceAddress = gbDevice.getAddress();
+        }
+
+        boolean autoReconnect = GBPrefs.AUTO_RECONNECT_DEFAULT;
+        if (prefs != null && prefs.getPreferences() != null) {
+            prefs.getPreferences().edit().putString("last_device_address", btDeviceAddress).apply();
+            autoReconnect = getGBPrefs().getAutoReconnect();
+        }
+
+        if (gbDevice == null) {
+            return;
+        }
+        DeviceSupport existingSupport = mDeviceSupports.get(gbDevice.getAddress());
+        if (existingSupport != null && (existingSupport.getDevice().isConnecting() || existingSupport.getDevice().isConnected())) {
+            // send an update at least
+            existingSupport.getDevice().sendDeviceUpdateIntent(this);
+            return;
+        }
+
+        // only replaces the session of this device, other devices stay connected
+        removeDeviceSupport(gbDevice.getAddress());
+        try {
+            DeviceSupport deviceSupport = mFactory.createDeviceSupport(gbDevice);
+            if (deviceSupport != null) {
+                mDeviceSupports.put(gbDevice.getAddress(), deviceSupport);
+                if (firstTime) {
+                    deviceSupport.connectFirstTime();
+                } else {
+                    deviceSupport.setAutoReconnect(autoReconnect);
+                    deviceSupport.connect();
+                }
+            } else {
+                GB.toast(this, getString(R.string.cannot_connect, "Can't create device support"), Toast.LENGTH_SHORT, GB.ERROR);
+            }
+        } catch (Exception e) {
+            GB.toast(this, getString(R.string.cannot_connect, e.getMessage()), Toast.LENGTH_SHORT, GB.ERROR, e);
+            removeDeviceSupport(gbDevice.getAddress());
+        }
+    }
+
     /**
-     * Disposes the current DeviceSupport instance (if any) and sets a new device support instance
-     * (if not null).
+     * Returns the device supports the given command shall be sent to.
      *
-     * @param deviceSupport
+     * @param usableOnly whether to only include devices that are initialized or will connect automatically
      */
-    private void setDeviceSupport(@Nullable DeviceSupport deviceSupport) {
-        if (deviceSupport != mDeviceSupport && mDeviceSupport != null) {
-            mDeviceSupport.dispose();
-            mDeviceSupport = null;
-            mGBDevice = null;
-        }
-        mDeviceSupport = deviceSupport;
-        mGBDevice = mDeviceSupport != null ? mDeviceSupport.getDevice() : null;
+    private List<DeviceSupport> getTargetDeviceSupports(DeviceCommand command, boolean usableOnly) {
+        Collection<DeviceSupport> candidates;
+        GBDevice target = command.device;
+        if (target != null) {
+            DeviceSupport deviceSupport = mDeviceSupports.get(target.getAddress());
+            candidates = deviceSupport != null ? Collections.singletonList(deviceSupport) : Collections.<DeviceSupport>emptyList();
+        } else if (isBroadcastAction(command.action)) {
+            candidates = mDeviceSupports.values();
+        } else {
+            candidates = getLatestDeviceSupport();
+        }
+
+        List<DeviceSupport> result = new ArrayList<>(candidates.size());
+        for (DeviceSupport deviceSupport : candidates) {
+            if (!usableOnly || deviceSupport.getDevice().isInitialized() || deviceSupport.useAutoConnect()) {
+                result.add(deviceSupport);
+            }
+        }
+        return result;
     }
 
-    private void start() {
-        if (!mStarted) {
-            startForeground(GB.NOTIFICATION_ID, GB.createNotification(getString(R.string.gadgetbridge_running), this));
-            mStarted = true;
+    private Collection<DeviceSupport> getLatestDeviceSupport() {
+        DeviceSupport latest = null;
+        for (DeviceSupport deviceSupport : mDeviceSupports.values()) {
+            latest = deviceSupport;
         }
+        return latest != null ? Collections.singletonList(latest) : Collections.<DeviceSupport>emptyList();
     }
 
-    public boolean isStarted() {
-        return mStarted;
+    /**
+     * Returns true if the given command is about the state of the phone, rather
+     * than a particular device, and shall be sent to all devices.
+     */
+    private static boolean isBroadcastAction(String action) {
+        switch (action) {
+            case ACTION_NOTIFICATION:
+            case ACTION_DELETE_NOTIFICATION:
+            case ACTION_CALLSTATE:
+            case ACTION_SETCANNEDMESSAGES:
+            case ACTION_SETTIME:
+            case ACTION_SET_ALARMS:
+            case ACTION_ADD_CALENDAREVENT:
+            case ACTION_DELETE_CALENDAREVENT:
+            case ACTION_SEND_CONFIGURATION:
+            case ACTION_ENABLE_HEARTRATE_SLEEP_SUPPORT:
+            case ACTION_SET_HEARTRATE_MEASUREMENT_INTERVAL:
+                return true;
+            default:
+                return false;
+        }
     }
 
-    private boolean isConnected() {
-        return mGBDevice != null && mGBDevice.isConnected();
+    /**
+     * Disposes the device support of the device with the given address, if any.
+     */
+    private void removeDeviceSupport(String address) {
+        DeviceSupport deviceSupport = mDeviceSupports.remove(address);
+        if (deviceSupport != null) {
+            deviceSupport.dispose();
+        }
+        updateReceiversEnableState();
     }
 
-    private boolean isConnecting() {
-        return mGBDevice != null && mGBDevice.isConnecting();
+    private void removeAllDeviceSupports() {
+        for (Iterator<DeviceSupport> it = mDeviceSupports.values().iterator(); it.hasNext(); ) {
+            DeviceSupport deviceSupport = it.next();
+            it.remove();
+            deviceSupport.dispose();
+        }
     }
 
-    private boolean isInitialized() {
-        return mGBDevice != null && mGBDevice.isInitialized();
+    private void start() {
+        if (!mStarted) {
+            startForeground(GB.NOTIFICATION_ID, GB.createNotification(getString(R.string.gadgetbridge_running), this));
+            mStarted = true;
+        }
     }
 
+    public boolean isStarted() {
+        return mStarted;
+    }
 
-    private void setReceiversEnableState(boolean enable, boolean initialized, DeviceCoordinator coordinator) {
-        LOG.info("Setting broadcast receivers to: " + enable);
+    /**
+     * Enables or disables the broadcast receivers, depending on the state of all devices.
+     */
+    private void updateReceiversEnableState() {
+        boolean enable = false;
+        boolean calendarDevices = false;
+        for (DeviceSupport deviceSupport : mDeviceSupports.values()) {
+            GBDevice gbDevice = deviceSupport.getDevice();
+            boolean initialized = gbDevice.isInitialized();
+            enable |= deviceSupport.useAutoConnect() || initialized;
+            DeviceCoordinator coordinator = DeviceHelper.getInstance().getCoordinator(gbDevice);
+            boolean calendar = initialized && coordinator != null && coordinator.supportsCalendarEvents();
+            calendarDevices |= calendar;
+            setCalendarReceiverEnableState(gbDevice, calendar);
+        }
+        // remove calendar receivers of devices without a session
+        for (String address : new ArrayList<>(mCalendarReceivers.keySet())) {
+            if (!mDeviceSupports.containsKey(address)) {
+                CalendarReceiver calendarReceiver = mCalendarReceivers.remove(address);
+                calendarReceiver.dispose();
+                unregisterReceiver(calendarReceiver);
+            }
+        }
+        setReceiversEnableState(enable, calendarDevices);
+    }
 
-        if (enable && initialized && coordinator != null && coordinator.supportsCalendarEvents()) {
-            if (mCalendarReceiver == null && getPrefs().getBoolean("enable_calendar_sync", true)) {
+    private void setCalendarReceiverEnableState(GBDevice gbDevice, boolean enable) {
+        CalendarReceiver calendarReceiver = mCalendarReceivers.get(gbDevice.getAddress());
+        if (enable) {
+            if (calendarReceiver == null && getPrefs().getBoolean("enable_calendar_sync", true)) {
                 if (!(GBApplication.isRunningMarshmallowOrLater() && ContextCompat.checkSelfPermission(this, Manifest.permission.READ_CALENDAR) == PackageManager.PERMISSION_DENIED)) {
                     IntentFilter calendarIntentFilter = new IntentFilter();
                     calendarIntentFilter.addAction("android.intent.action.PROVIDER_CHANGED");
                     calendarIntentFilter.addDataScheme("content");
                     calendarIntentFilter.addDataAuthority("com.android.calendar", null);
-                    mCalendarReceiver = new CalendarReceiver(mGBDevice);
-                    registerReceiver(mCalendarReceiver, calendarIntentFilter);
+                    calendarReceiver = new CalendarReceiver(gbDevice);
+                    registerReceiver(calendarReceiver, calendarIntentFilter);
+                    mCalendarReceivers.put(gbDevice.getAddress(), calendarReceiver);
                 }
             }
+        } else if (calendarReceiver != null) {
+            calendarReceiver.dispose();
+            unregisterReceiver(calendarReceiver);
+            mCalendarReceivers.remove(gbDevice.getAddress());
+        }
+    }
+
+    private void setReceiversEnableState(boolean enable, boolean initialized) {
+        LOG.info("Setting broadcast receivers to: " + enable);
+
+        if (enable && initialized) {
             if (mAlarmReceiver == null) {
                 mAlarmReceiver = new AlarmReceiver();
                 registerReceiver(mAlarmReceiver, new IntentFilter("DAILY_ALARM"));
             }
         } else {
-            if (mCalendarReceiver != null) {
-                unregisterReceiver(mCalendarReceiver);
-                mCalendarReceiver = null;
-            }
             if (mAlarmReceiver != null) {
                 unregisterReceiver(mAlarmReceiver);
                 mAlarmReceiver = null;
@@ -615,9 +728,12 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
         super.onDestroy();
 
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mReceiver);
-        setReceiversEnableState(false, false, null); // disable BroadcastReceivers
 
-        setDeviceSupport(null);
+        synchronized (this) {
+            mDestroyed = true;
+            removeAllDeviceSupports();
+            updateReceiversEnableState(); // disable BroadcastReceivers
+        }
         NotificationManager nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
         if (nm != null) {
             nm.cancel(GB.NOTIFICATION_ID); // need to do this because the updated notification won't be cancelled when service stops
@@ -626,15 +742,15 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
 
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return mBinder;
     }
 
     @Override
-    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+    public synchronized void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
         if (GBPrefs.AUTO_RECONNECT.equals(key)) {
             boolean autoReconnect = getGBPrefs().getAutoReconnect();
-            if (mDeviceSupport != null) {
-                mDeviceSupport.setAutoReconnect(autoReconnect);
+            for (DeviceSupport deviceSupport : mDeviceSupports.values()) {
+                deviceSupport.setAutoReconnect(autoReconnect);
             }
         }
     }
@@ -651,7 +767,23 @@ public class DeviceCommunicationService extends Service implements SharedPrefere
         return GBApplication.getGBPrefs();
     }
 
-    public GBDevice getGBDevice() {
-        return mGBDevice;
+    /**
+     * Returns the device with the given address, if there is a session for it.
+     */
+    @Nullable
+    public synchronized GBDevice getGBDevice(String address) {
+        DeviceSupport deviceSupport = mDeviceSupports.get(address);
+        return deviceSupport != null ? deviceSupport.getDevice() : null;
+    }
+
+    /**
+     * Returns the devices of all sessions, in the order they were connected.
+     */
+    public synchronized List<GBDevice> getGBDevices() {
+        List<GBDevice> devices = new ArrayList<>(mDeviceSupports.size());
+        for (DeviceSupport deviceSupport : mDeviceSupports.values()) {
+            devices.add(deviceSupport.getDevice());
+        }
+        return devices;
     }
 }
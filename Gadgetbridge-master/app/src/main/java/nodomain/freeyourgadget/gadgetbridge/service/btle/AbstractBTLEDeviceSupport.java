@@ -58,6 +58,8 @@ public abstract class AbstractBTLEDeviceSupport extends AbstractDeviceSupport im
     private Logger logger;
 
     private final List<AbstractBleProfile<?>> mSupportedProfiles = new ArrayList<>();
+    private final Map<UUID, NotificationDispatcher.Handler> mNotificationHandlers = new HashMap<>();
+    private volatile NotificationDispatcher mNotificationDispatcher;
     public static final String BASE_UUID = "0000%s-0000-1000-8000-00805f9b34fb"; //this is common for all BTLE devices. see http://stackoverflow.com/questions/18699251/finding-out-android-bluetooth-le-gatt-profiles
     private final Object characteristicsMonitor = new Object();
 
@@ -97,6 +99,7 @@ public abstract class AbstractBTLEDeviceSupport extends AbstractDeviceSupport im
 
     @Override
     public void dispose() {
+        logNotificationStatistics();
         if (mQueue != null) {
             mQueue.dispose();
             mQueue = null;
@@ -178,6 +181,46 @@ public abstract class AbstractBTLEDeviceSupport extends AbstractDeviceSupport im
         mSupportedProfiles.add(profile);
     }
 
+    /**
+     * Subclasses should call this method (typically in their constructor) to handle
+     * change notifications of the given characteristic. Notifications without a handler
+     * are passed to the supported profiles.
+     *
+     * @param characteristic the UUID of the characteristic
+     * @param handler the handler, replacing a previously added handler of that characteristic
+     * @see #onCharacteristicChanged(BluetoothGatt, BluetoothGattCharacteristic)
+     */
+    protected void addNotificationHandler(UUID characteristic, NotificationDispatcher.Handler handler) {
+        mNotificationHandlers.put(characteristic, handler);
+    }
+
+    /**
+     * Lets a running operation handle change notifications of the given characteristics
+     * with priority over the handlers of this instance, until
+     * {@link #clearNotificationOverrides(Object)} is called or the device reconnects.
+     *
+     * @param owner the operation
+     * @param handlers the handlers, by characteristic UUID
+     */
+    public void setNotificationOverrides(Object owner, Map<UUID, NotificationDispatcher.Handler> handlers) {
+        NotificationDispatcher dispatcher = mNotificationDispatcher;
+        if (dispatcher != null) {
+            dispatcher.setOverrides(owner, handlers);
+        } else {
+            logger.warn("Services not discovered yet, ignoring notification handlers of " + owner);
+        }
+    }
+
+    /**
+     * Removes the handlers set by the given owner with {@link #setNotificationOverrides(Object, Map)}.
+     */
+    public void clearNotificationOverrides(Object owner) {
+        NotificationDispatcher dispatcher = mNotificationDispatcher;
+        if (dispatcher != null) {
+            dispatcher.clearOverrides(owner);
+        }
+    }
+
     /**
      * Returns the characteristic matching the given UUID. Only characteristics
      * are returned whose service is marked as supported.
@@ -224,6 +267,15 @@ public abstract class AbstractBTLEDeviceSupport extends AbstractDeviceSupport im
                 logger.debug("discovered unsupported service: " + BleNamesResolver.resolveServiceName(service.getUuid().toString()) + ": " + service.getUuid());
             }
         }
+        logNotificationStatistics();
+        mNotificationDispatcher = new NotificationDispatcher(mNotificationHandlers, newCharacteristics.keySet());
+    }
+
+    private void logNotificationStatistics() {
+        NotificationDispatcher dispatcher = mNotificationDispatcher;
+        if (dispatcher != null) {
+            dispatcher.logStatistics(logger);
+        }
     }
 
     protected Set<UUID> getSupportedServices() {
@@ -304,6 +356,10 @@ public abstract class AbstractBTLEDeviceSupport extends AbstractDeviceSupport im
     @Override
     public boolean onCharacteristicChanged(BluetoothGatt gatt,
                                            BluetoothGattCharacteristic characteristic) {
+        NotificationDispatcher dispatcher = mNotificationDispatcher;
+        if (dispatcher != null && dispatcher.dispatch(characteristic)) {
+            return true;
+        }
         for (AbstractBleProfile profile : mSupportedProfiles) {
             if (profile.onCharacteristicChanged(gatt, characteristic)) {
                 return true;
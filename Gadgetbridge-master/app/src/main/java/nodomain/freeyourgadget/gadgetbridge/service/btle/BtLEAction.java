@@ -32,6 +32,11 @@ import nodomain.freeyourgadget.gadgetbridge.util.DateTimeUtils;
  * has been posted before invoking the next action.
  */
 public abstract class BtLEAction {
+    /**
+     * Long enough for requests answered by the device, which may have to bond first.
+     */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+
     private final BluetoothGattCharacteristic characteristic;
     private final long creationTimestamp;
 
@@ -49,6 +54,26 @@ public abstract class BtLEAction {
      */
     public abstract boolean expectsResult();
 
+    /**
+     * Returns true if the stack reports the completion of this action through a GATT
+     * callback, even though it does not {@link #expectsResult() expect a result}.
+     * This is the case for writes without response, which are flow controlled by the stack.
+     * Pipelined transactions only wait for the callback before the next action with a
+     * characteristic, so that at most one such action is outstanding. Other transactions
+     * wait for it right away, like for any other result.
+     */
+    public boolean hasCompletionCallback() {
+        return false;
+    }
+
+    /**
+     * Returns the time in milliseconds after which the queue gives up waiting for the GATT
+     * callback of this action and aborts the transaction. Must be positive.
+     */
+    public long getTimeoutMillis() {
+        return DEFAULT_TIMEOUT_MILLIS;
+    }
+
     /**
      * Executes this action, e.g. reads or write a GATT characteristic.
      *
@@ -66,6 +91,14 @@ public abstract class BtLEAction {
         return characteristic;
     }
 
+    /**
+     * Invoked by the queue when this action is done.
+     *
+     * @param success whether the action was executed successfully
+     */
+    public void complete(boolean success) {
+    }
+
     protected String getCreationTime() {
         return DateTimeUtils.formatDateTime(new Date(creationTimestamp));
     }
@@ -31,38 +31,83 @@ import android.support.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import nodomain.freeyourgadget.gadgetbridge.Logging;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice.State;
 import nodomain.freeyourgadget.gadgetbridge.service.DeviceSupport;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.WriteWithoutResponseAction;
 
 /**
  * One queue/thread per connectable device.
+ * <p/>
+ * GATT callbacks are forwarded to the {@link GattCallback GattCallbacks} on the Bluetooth
+ * callback thread. Completions of actions are then handed to the dispatch thread through a
+ * {@link GattEventRing}, so the callback thread never waits for the dispatch thread.
+ * The dispatch thread keeps track of all actions waiting for their callback and gives up
+ * on them after their {@link BtLEAction#getTimeoutMillis() timeout}. Actions given up on are
+ * remembered with the generation of their transaction until their late callback arrives,
+ * so that it is discarded instead of completing a newer action of the same characteristic.
+ * <p/>
+ * Disconnects are not passed through the ring, which drops events when it is full. They are
+ * counted instead, and the dispatch thread is woken up unconditionally.
  */
 public final class BtLEQueue {
     private static final Logger LOG = LoggerFactory.getLogger(BtLEQueue.class);
 
+    /**
+     * The maximum payload of a single write with the default ATT MTU of 23 bytes.
+     */
+    public static final int DEFAULT_MAX_WRITE_LENGTH = 20;
+    private static final int EVENT_RING_CAPACITY = 64;
+    private static final int MAX_ABANDONED_ACTIONS = 16;
+    /**
+     * The dispatch thread re-checks the connection state at least this often while
+     * waiting for a connection, in case a wake-up got lost.
+     */
+    private static final long CONNECTION_CHECK_INTERVAL_MILLIS = 1000;
+
     private final Object mGattMonitor = new Object();
     private final GBDevice mGbDevice;
     private final BluetoothAdapter mBluetoothAdapter;
-    private BluetoothGatt mBluetoothGatt;
+    private final AtomicReference<BluetoothGatt> mBluetoothGatt = new AtomicReference<>();
 
     private final BlockingQueue<Transaction> mTransactions = new LinkedBlockingQueue<>();
     private volatile boolean mDisposed;
     private volatile boolean mCrashed;
-    private volatile boolean mAbortTransaction;
 
     private final Context mContext;
-    private CountDownLatch mWaitForActionResultLatch;
-    private CountDownLatch mConnectionLatch;
-    private BluetoothGattCharacteristic mWaitCharacteristic;
+    private final GattEventRing mEvents = new GattEventRing(EVENT_RING_CAPACITY);
+    private volatile int mMaxWriteLength = DEFAULT_MAX_WRITE_LENGTH;
+    private final AtomicInteger mDisconnectCount = new AtomicInteger();
+
+    // only accessed by the dispatch thread
+    private final Deque<PendingAction> mPendingActions = new ArrayDeque<>();
+    // actions given up on, whose callback may still arrive
+    private final Deque<PendingAction> mAbandonedActions = new ArrayDeque<>();
+    private final GattEventRing.Event mEvent = new GattEventRing.Event();
+    private Transaction mCurrentTransaction;
+    private boolean mAbortTransaction;
+    private long mNextToken;
+    private long mGeneration;
+    private boolean mConnectionLost;
+    private int mHandledDisconnectCount;
+    private int mTimedOutActions;
+    private int mLastEventType;
+    private BluetoothGattCharacteristic mLastEventCharacteristic;
+    private long mLastEventTimestampNanos;
+
     private final InternalGattCallback internalGattCallback;
     private boolean mAutoReconnect;
 
@@ -86,49 +131,73 @@ public final class BtLEQueue {
                         // on the outside typically by the DeviceSupport. The reason is that
                         // devices have different kinds of initializations and this class has no
                         // idea about them.
-                        mConnectionLatch = new CountDownLatch(1);
-                        mConnectionLatch.await();
-                        mConnectionLatch = null;
+                        while (!isConnected()) {
+                            processEvents();
+                            mEvents.await(CONNECTION_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                        }
                     }
 
                     internalGattCallback.setTransactionGattCallback(transaction.getGattCallback());
+                    mCurrentTransaction = transaction;
+                    mGeneration++;
+                    // late events and disconnects of previous transactions must not abort this one
+                    processEvents();
+                    mConnectionLost = false;
                     mAbortTransaction = false;
+                    boolean pipelined = transaction.isPipelined();
+                    List<BtLEAction> actions = pipelined ? mergeWrites(transaction.getActions()) : transaction.getActions();
+                    int started = 0;
                     // Run all actions of the transaction until one doesn't succeed
-                    for (BtLEAction action : transaction.getActions()) {
+                    for (BtLEAction action : actions) {
+                        checkDisconnected();
                         if (mAbortTransaction) { // got disconnected
                             LOG.info("Aborting running transaction");
                             break;
                         }
-                        mWaitCharacteristic = action.getCharacteristic();
-                        mWaitForActionResultLatch = new CountDownLatch(1);
+                        if (pipelined && isWriteWithoutResponse(action)) {
+                            if (!runPipelined(action)) {
+                                LOG.error("Pipelined action failed: " + action);
+                                break;
+                            }
+                            started++;
+                            continue;
+                        }
+                        if (action.getCharacteristic() != null && !awaitPendingActions(0)) {
+                            break;
+                        }
                         if (LOG.isDebugEnabled()) {
                             LOG.debug("About to run action: " + action);
                         }
-                        if (action.run(mBluetoothGatt)) {
+                        if (action.run(mBluetoothGatt.get())) {
+                            started++;
                             // check again, maybe due to some condition, action did not need to write, so we can't wait
-                            boolean waitForResult = action.expectsResult();
+                            boolean waitForResult = action.expectsResult() || action.hasCompletionCallback();
                             if (waitForResult) {
-                                mWaitForActionResultLatch.await();
-                                mWaitForActionResultLatch = null;
-                                if (mAbortTransaction) {
+                                // completed by its callback
+                                addPendingAction(action);
+                                if (!awaitPendingActions(0)) {
                                     break;
                                 }
+                            } else {
+                                action.complete(true);
                             }
                         } else {
                             LOG.error("Action returned false: " + action);
                             break; // abort the transaction
                         }
                     }
+                    if (!awaitPendingActions(0) && started == actions.size()) {
+                        LOG.warn("Actions of transaction not acknowledged: " + transaction);
+                    }
+                    discardActions(actions.subList(started, actions.size()));
                 } catch (InterruptedException ignored) {
-                    mConnectionLatch = null;
                     LOG.debug("Thread interrupted");
                 } catch (Throwable ex) {
                     LOG.error("Queue Dispatch Thread died: " + ex.getMessage(), ex);
                     mCrashed = true;
-                    mConnectionLatch = null;
                 } finally {
-                    mWaitForActionResultLatch = null;
-                    mWaitCharacteristic = null;
+                    failPendingActions();
+                    mCurrentTransaction = null;
                 }
             }
             LOG.info("Queue Dispatch Thread terminated.");
@@ -141,6 +210,7 @@ public final class BtLEQueue {
         internalGattCallback = new InternalGattCallback(externalGattCallback);
         mContext = context;
 
+        mEvents.setConsumer(dispatchThread);
         dispatchThread.start();
     }
 
@@ -164,59 +234,274 @@ public final class BtLEQueue {
             LOG.warn("Ingoring connect() because already connected.");
             return false;
         }
+        BluetoothGatt gatt;
         synchronized (mGattMonitor) {
-            if (mBluetoothGatt != null) {
+            if (mBluetoothGatt.get() != null) {
                 // Tribal knowledge says you're better off not reusing existing BluetoothGatt connections,
                 // so create a new one.
                 LOG.info("connect() requested -- disconnecting previous connection: " + mGbDevice.getName());
                 disconnect();
             }
-        }
-        LOG.info("Attempting to connect to " + mGbDevice.getName());
-        mBluetoothAdapter.cancelDiscovery();
-        BluetoothDevice remoteDevice = mBluetoothAdapter.getRemoteDevice(mGbDevice.getAddress());
-        synchronized (mGattMonitor) {
+            LOG.info("Attempting to connect to " + mGbDevice.getName());
+            mBluetoothAdapter.cancelDiscovery();
+            BluetoothDevice remoteDevice = mBluetoothAdapter.getRemoteDevice(mGbDevice.getAddress());
             // connectGatt with true doesn't really work ;( too often connection problems
-            mBluetoothGatt = remoteDevice.connectGatt(mContext, false, internalGattCallback);
+            gatt = remoteDevice.connectGatt(mContext, false, internalGattCallback);
+            mBluetoothGatt.set(gatt);
         }
-        boolean result = mBluetoothGatt != null;
+        boolean result = gatt != null;
         if (result) {
             setDeviceConnectionState(State.CONNECTING);
         }
         return result;
     }
 
+    /**
+     * Sets the maximum number of bytes of a single write, e.g. after a larger MTU has
+     * been negotiated. Used for merging writes of pipelined transactions.
+     */
+    public void setMaxWriteLength(int maxWriteLength) {
+        mMaxWriteLength = maxWriteLength;
+    }
+
+    public int getMaxWriteLength() {
+        return mMaxWriteLength;
+    }
+
+    /**
+     * Returns whether the given action writes without response, i.e. is acknowledged by
+     * the local stack instead of the device.
+     */
+    private static boolean isWriteWithoutResponse(BtLEAction action) {
+        BluetoothGattCharacteristic characteristic = action.getCharacteristic();
+        return action instanceof WriteWithoutResponseAction && characteristic != null
+                && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0;
+    }
+
+    /**
+     * Runs the given write without response of a pipelined transaction without waiting for
+     * its acknowledgement. BluetoothGatt refuses new requests while one is outstanding, so
+     * the previous write is awaited first.
+     *
+     * @return true if the action was sent, false otherwise
+     */
+    private boolean runPipelined(BtLEAction action) throws InterruptedException {
+        if (!awaitPendingActions(0)) {
+            return false;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("About to run pipelined action: " + action);
+        }
+        if (action.run(mBluetoothGatt.get())) {
+            addPendingAction(action);
+            return true;
+        }
+        return false;
+    }
+
+    private void addPendingAction(BtLEAction action) {
+        mPendingActions.addLast(new PendingAction(mNextToken++, mGeneration, action));
+    }
+
+    /**
+     * Processes GATT events until at most the given number of actions are waiting for
+     * their callback. Fails all waiting actions if one of them failed or timed out,
+     * or the connection was lost.
+     *
+     * @return false if the transaction has to be aborted
+     */
+    private boolean awaitPendingActions(int maxPending) throws InterruptedException {
+        processEvents();
+        while (mPendingActions.size() > maxPending && !mAbortTransaction) {
+            PendingAction oldest = mPendingActions.getFirst();
+            long timeoutMillis = oldest.action.getTimeoutMillis();
+            if (timeoutMillis <= 0) {
+                timeoutMillis = BtLEAction.DEFAULT_TIMEOUT_MILLIS;
+            }
+            long remaining = oldest.startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) - System.nanoTime();
+            if (remaining <= 0) {
+                logTimeout(oldest);
+                mAbortTransaction = true;
+                break;
+            }
+            mEvents.await(remaining, TimeUnit.NANOSECONDS);
+            processEvents();
+        }
+        if (mAbortTransaction) {
+            failPendingActions();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Completes the waiting actions the received GATT events belong to. Since the stack
+     * executes requests one after another, the oldest waiting action of the event's
+     * characteristic is the one that completed. For the same reason, the late callback of an
+     * abandoned action arrives before those of newer actions, and is discarded.
+     */
+    private void processEvents() {
+        while (mEvents.poll(mEvent)) {
+            mLastEventType = mEvent.type;
+            mLastEventCharacteristic = mEvent.characteristic;
+            mLastEventTimestampNanos = mEvent.timestampNanos;
+            PendingAction abandoned = removePendingAction(mAbandonedActions, mEvent.characteristic);
+            if (abandoned != null) {
+                LOG.info("Discarding late " + GattEventRing.getEventName(mEvent.type) + " of action #" + abandoned.token
+                        + " of transaction generation " + abandoned.generation + " (current: " + mGeneration + ")");
+                continue;
+            }
+            // a failed mtu request only means that the default mtu remains in effect
+            boolean success = mEvent.status == BluetoothGatt.GATT_SUCCESS || mEvent.type == GattEventRing.EVENT_MTU_CHANGED;
+            if (!success) {
+                LOG.debug("failed btle action, aborting transaction: " + GattEventRing.getEventName(mEvent.type) + " " + getUuidString(mEvent.characteristic) + " (failed: " + mEvent.status + ")");
+                mAbortTransaction = true;
+            }
+            PendingAction pending = removePendingAction(mPendingActions, mEvent.characteristic);
+            if (pending != null) {
+                pending.action.complete(success);
+            } else if (!mPendingActions.isEmpty()) {
+                LOG.error("mismatched " + GattEventRing.getEventName(mEvent.type) + " received: " + getUuidString(mEvent.characteristic));
+            }
+        }
+        mEvent.characteristic = null;
+        checkDisconnected();
+    }
+
+    /**
+     * Aborts the current transaction if the connection was lost since the last check.
+     */
+    private void checkDisconnected() {
+        int disconnectCount = mDisconnectCount.get();
+        if (disconnectCount != mHandledDisconnectCount) {
+            mHandledDisconnectCount = disconnectCount;
+            mAbortTransaction = true;
+            // the stack drops all outstanding requests
+            mConnectionLost = true;
+            mAbandonedActions.clear();
+        }
+    }
+
+    private static PendingAction removePendingAction(Deque<PendingAction> actions, BluetoothGattCharacteristic characteristic) {
+        for (Iterator<PendingAction> it = actions.iterator(); it.hasNext(); ) {
+            PendingAction pending = it.next();
+            BluetoothGattCharacteristic expected = pending.action.getCharacteristic();
+            if (expected == null ? characteristic == null : characteristic != null && expected.getUuid().equals(characteristic.getUuid())) {
+                it.remove();
+                return pending;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Fails all waiting actions. Unless the connection was lost, they are still remembered
+     * as abandoned, because the stack may report their completion later.
+     */
+    private void failPendingActions() {
+        PendingAction pending;
+        while ((pending = mPendingActions.pollFirst()) != null) {
+            pending.action.complete(false);
+            if (mConnectionLost) {
+                continue;
+            }
+            if (mAbandonedActions.size() == MAX_ABANDONED_ACTIONS) {
+                // their callbacks will never arrive, or the stack would refuse new requests
+                mAbandonedActions.pollFirst();
+            }
+            mAbandonedActions.addLast(pending);
+        }
+    }
+
+    private void logTimeout(PendingAction pending) {
+        mTimedOutActions++;
+        long now = System.nanoTime();
+        StringBuilder message = new StringBuilder("Action #").append(pending.token)
+                .append(" not acknowledged within ").append(TimeUnit.NANOSECONDS.toMillis(now - pending.startNanos)).append("ms: ")
+                .append(pending.action)
+                .append("; transaction: ").append(mCurrentTransaction)
+                .append(", waiting actions: ").append(mPendingActions.size())
+                .append(", timeouts so far: ").append(mTimedOutActions)
+                .append(", dropped events: ").append(mEvents.getDroppedCount());
+        if (mLastEventTimestampNanos != 0) {
+            message.append(", last event: ").append(GattEventRing.getEventName(mLastEventType))
+                    .append(" ").append(getUuidString(mLastEventCharacteristic))
+                    .append(" ").append(TimeUnit.NANOSECONDS.toMillis(now - mLastEventTimestampNanos)).append("ms ago");
+        } else {
+            message.append(", no events received");
+        }
+        LOG.error(message.toString());
+    }
+
+    private static String getUuidString(BluetoothGattCharacteristic characteristic) {
+        return characteristic != null ? characteristic.getUuid().toString() : "(null)";
+    }
+
+    /**
+     * Merges adjacent writes without response to the same characteristic that are marked as
+     * mergeable, as long as the result fits into a single write.
+     */
+    private List<BtLEAction> mergeWrites(List<BtLEAction> actions) {
+        List<BtLEAction> result = new ArrayList<>(actions.size());
+        for (BtLEAction action : actions) {
+            int last = result.size() - 1;
+            if (last >= 0 && result.get(last) instanceof WriteWithoutResponseAction) {
+                WriteWithoutResponseAction previous = (WriteWithoutResponseAction) result.get(last);
+                if (previous.canMergeWith(action, mMaxWriteLength)) {
+                    result.set(last, previous.mergeWith((WriteWithoutResponseAction) action));
+                    continue;
+                }
+            }
+            result.add(action);
+        }
+        if (result.size() < actions.size() && LOG.isDebugEnabled()) {
+            LOG.debug("Merged " + actions.size() + " actions into " + result.size());
+        }
+        return result;
+    }
+
+    private void discardActions(List<BtLEAction> actions) {
+        for (BtLEAction action : actions) {
+            action.complete(false);
+        }
+    }
+
+    private void discardTransactions() {
+        List<Transaction> discarded = new ArrayList<>(mTransactions.size());
+        mTransactions.drainTo(discarded);
+        for (Transaction transaction : discarded) {
+            discardActions(transaction.getActions());
+        }
+    }
+
     private void setDeviceConnectionState(State newState) {
         LOG.debug("new device connection state: " + newState);
         mGbDevice.setState(newState);
         mGbDevice.sendDeviceUpdateIntent(mContext);
-        if (mConnectionLatch != null && newState == State.CONNECTED) {
-            mConnectionLatch.countDown();
+        if (newState == State.CONNECTED) {
+            // the dispatch thread might be waiting for the connection
+            mEvents.wakeUpConsumer();
         }
     }
 
     public void disconnect() {
-        synchronized (mGattMonitor) {
-            LOG.debug("disconnect()");
-            BluetoothGatt gatt = mBluetoothGatt;
-            if (gatt != null) {
-                mBluetoothGatt = null;
-                LOG.info("Disconnecting BtLEQueue from GATT device");
-                gatt.disconnect();
-                gatt.close();
-                setDeviceConnectionState(State.NOT_CONNECTED);
-            }
+        LOG.debug("disconnect()");
+        BluetoothGatt gatt = mBluetoothGatt.getAndSet(null);
+        if (gatt != null) {
+            LOG.info("Disconnecting BtLEQueue from GATT device");
+            gatt.disconnect();
+            gatt.close();
+            setDeviceConnectionState(State.NOT_CONNECTED);
         }
     }
 
     private void handleDisconnected(int status) {
         LOG.debug("handleDisconnected: " + status);
         internalGattCallback.reset();
-        mTransactions.clear();
-        mAbortTransaction = true;
-        if (mWaitForActionResultLatch != null) {
-            mWaitForActionResultLatch.countDown();
-        }
+        discardTransactions();
+        mDisconnectCount.incrementAndGet();
+        mEvents.wakeUpConsumer();
+        mMaxWriteLength = DEFAULT_MAX_WRITE_LENGTH;
         boolean wasInitialized = mGbDevice.isInitialized();
         setDeviceConnectionState(State.NOT_CONNECTED);
 
@@ -226,7 +511,7 @@ public final class BtLEQueue {
         // alive (we do not close() it). Unfortunately we sometimes have problems
         // reconnecting automatically, so we try to fix this by re-creating mBluetoothGatt.
         // Not sure if this actually works without re-initializing the device...
-        if (mBluetoothGatt != null) {
+        if (mBluetoothGatt.get() != null) {
             if (!wasInitialized || !maybeReconnect()) {
                 disconnect(); // ensure that we start over cleanly next time
             }
@@ -239,9 +524,10 @@ public final class BtLEQueue {
      * @return true if a reconnection attempt was made, or false otherwise
      */
     private boolean maybeReconnect() {
-        if (mAutoReconnect && mBluetoothGatt != null) {
+        BluetoothGatt gatt = mBluetoothGatt.get();
+        if (mAutoReconnect && gatt != null) {
             LOG.info("Enabling automatic ble reconnect...");
-            boolean result = mBluetoothGatt.connect();
+            boolean result = gatt.connect();
             if (result) {
                 setDeviceConnectionState(State.WAITING_FOR_RECONNECT);
             }
@@ -295,7 +581,7 @@ public final class BtLEQueue {
     }
 
     public void clear() {
-        mTransactions.clear();
+        discardTransactions();
     }
 
     /**
@@ -305,25 +591,50 @@ public final class BtLEQueue {
      * @return A {@code List} of supported services.
      */
     public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) {
+        BluetoothGatt gatt = mBluetoothGatt.get();
+        if (gatt == null) {
             LOG.warn("BluetoothGatt is null => no services available.");
             return Collections.emptyList();
         }
-        return mBluetoothGatt.getServices();
+        return gatt.getServices();
+    }
+
+    private void publishEvent(int type, BluetoothGattCharacteristic characteristic, int status) {
+        if (!mEvents.offer(type, characteristic, status)) {
+            LOG.warn("GATT event ring full, dropping " + GattEventRing.getEventName(type) + " event");
+        }
     }
 
     private boolean checkCorrectGattInstance(BluetoothGatt gatt, String where) {
-        if (gatt != mBluetoothGatt && mBluetoothGatt != null) {
+        BluetoothGatt currentGatt = mBluetoothGatt.get();
+        if (gatt != currentGatt && currentGatt != null) {
             LOG.info("Ignoring event from wrong BluetoothGatt instance: " + where + "; " + gatt);
             return false;
         }
         return true;
     }
 
+    /**
+     * An action that has been run and waits for its GATT callback.
+     */
+    private static final class PendingAction {
+        private final long token;
+        private final long generation;
+        private final BtLEAction action;
+        private final long startNanos;
+
+        private PendingAction(long token, long generation, BtLEAction action) {
+            this.token = token;
+            this.generation = generation;
+            this.action = action;
+            startNanos = System.nanoTime();
+        }
+    }
+
     // Implements callback methods for GATT events that the app cares about.  For example,
     // connection change and services discovered.
     private final class InternalGattCallback extends BluetoothGattCallback {
-        private
+        private volatile
         @Nullable
         GattCallback mTransactionGattCallback;
         private final GattCallback mExternalGattCallback;
@@ -347,11 +658,7 @@ public final class BtLEQueue {
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
             LOG.debug("connection state change, newState: " + newState + getStatusString(status));
 
-            synchronized (mGattMonitor) {
-                if (mBluetoothGatt == null) {
-                    mBluetoothGatt = gatt;
-                }
-            }
+            mBluetoothGatt.compareAndSet(null, gatt);
 
             if (!checkCorrectGattInstance(gatt, "connection state event")) {
                 return;
@@ -409,9 +716,13 @@ public final class BtLEQueue {
                 return;
             }
             if (getCallbackToUse() != null) {
-                getCallbackToUse().onCharacteristicWrite(gatt, characteristic, status);
+                try {
+                    getCallbackToUse().onCharacteristicWrite(gatt, characteristic, status);
+                } catch (Throwable ex) {
+                    LOG.error("onCharacteristicWrite: " + ex.getMessage(), ex);
+                }
             }
-            checkWaitingCharacteristic(characteristic, status);
+            publishEvent(GattEventRing.EVENT_CHARACTERISTIC_WRITE, characteristic, status);
         }
 
         @Override
@@ -429,7 +740,7 @@ public final class BtLEQueue {
                     LOG.error("onCharacteristicRead: " + ex.getMessage(), ex);
                 }
             }
-            checkWaitingCharacteristic(characteristic, status);
+            publishEvent(GattEventRing.EVENT_CHARACTERISTIC_READ, characteristic, status);
         }
 
         @Override
@@ -445,7 +756,7 @@ public final class BtLEQueue {
                     LOG.error("onDescriptorRead: " + ex.getMessage(), ex);
                 }
             }
-            checkWaitingCharacteristic(descriptor.getCharacteristic(), status);
+            publishEvent(GattEventRing.EVENT_DESCRIPTOR_READ, descriptor.getCharacteristic(), status);
         }
 
         @Override
@@ -461,7 +772,7 @@ public final class BtLEQueue {
                     LOG.error("onDescriptorWrite: " + ex.getMessage(), ex);
                 }
             }
-            checkWaitingCharacteristic(descriptor.getCharacteristic(), status);
+            publishEvent(GattEventRing.EVENT_DESCRIPTOR_WRITE, descriptor.getCharacteristic(), status);
         }
 
         @Override
@@ -500,20 +811,17 @@ public final class BtLEQueue {
             }
         }
 
-        private void checkWaitingCharacteristic(BluetoothGattCharacteristic characteristic, int status) {
-            if (status != BluetoothGatt.GATT_SUCCESS) {
-                LOG.debug("failed btle action, aborting transaction: " + characteristic.getUuid() + getStatusString(status));
-                mAbortTransaction = true;
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            LOG.debug("mtu changed: " + mtu + getStatusString(status));
+            if (!checkCorrectGattInstance(gatt, "mtu changed")) {
+                return;
             }
-            if (characteristic != null && BtLEQueue.this.mWaitCharacteristic != null && characteristic.getUuid().equals(BtLEQueue.this.mWaitCharacteristic.getUuid())) {
-                if (mWaitForActionResultLatch != null) {
-                    mWaitForActionResultLatch.countDown();
-                }
-            } else {
-                if (BtLEQueue.this.mWaitCharacteristic != null) {
-                    LOG.error("checkWaitingCharacteristic: mismatched characteristic received: " + ((characteristic != null && characteristic.getUuid() != null) ? characteristic.getUuid().toString() : "(null)"));
-                }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                // 3 bytes ATT header: opcode + attribute handle
+                setMaxWriteLength(mtu - 3);
             }
+            publishEvent(GattEventRing.EVENT_MTU_CHANGED, null, status);
         }
 
         private String getStatusString(int status) {
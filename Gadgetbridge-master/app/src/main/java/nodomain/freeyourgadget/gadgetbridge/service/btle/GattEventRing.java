@@ -0,0 +1,169 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer, single-consumer ring buffer passing GATT completion events
+ * from the Bluetooth callback thread to the dispatch thread of a {@link BtLEQueue}.
+ * <p/>
+ * The producer never blocks: if the ring is full, the event is dropped and counted,
+ * see {@link #getDroppedCount()}. Only events of the current <code>BluetoothGatt</code>
+ * are published, and Android delivers those one at a time, so there is a single producer.
+ */
+final class GattEventRing {
+    static final int EVENT_CHARACTERISTIC_WRITE = 1;
+    static final int EVENT_CHARACTERISTIC_READ = 2;
+    static final int EVENT_DESCRIPTOR_WRITE = 3;
+    static final int EVENT_DESCRIPTOR_READ = 4;
+    static final int EVENT_MTU_CHANGED = 5;
+
+    /**
+     * A consumed event. Only valid until the next call of {@link #poll(Event)}.
+     */
+    static final class Event {
+        int type;
+        BluetoothGattCharacteristic characteristic;
+        int status;
+        long timestampNanos;
+    }
+
+    private final int mask;
+    private final int[] types;
+    private final BluetoothGattCharacteristic[] characteristics;
+    private final int[] statuses;
+    private final long[] timestamps;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile Thread consumer;
+
+    /**
+     * @param capacity the capacity, must be a power of two
+     */
+    GattEventRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        mask = capacity - 1;
+        types = new int[capacity];
+        characteristics = new BluetoothGattCharacteristic[capacity];
+        statuses = new int[capacity];
+        timestamps = new long[capacity];
+    }
+
+    /**
+     * Sets the thread that is woken up when an event is published.
+     */
+    void setConsumer(Thread consumer) {
+        this.consumer = consumer;
+    }
+
+    /**
+     * Publishes an event. Must only be called by the producer.
+     *
+     * @return false if the ring was full and the event was dropped
+     */
+    boolean offer(int type, BluetoothGattCharacteristic characteristic, int status) {
+        long t = tail.get();
+        if (t - head.get() > mask) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        int index = (int) t & mask;
+        types[index] = type;
+        characteristics[index] = characteristic;
+        statuses[index] = status;
+        timestamps[index] = System.nanoTime();
+        tail.lazySet(t + 1);
+        wakeUpConsumer();
+        return true;
+    }
+
+    /**
+     * Takes the oldest event, if any. Must only be called by the consumer.
+     *
+     * @return true if an event was copied into the given one
+     */
+    boolean poll(Event event) {
+        long h = head.get();
+        if (h == tail.get()) {
+            return false;
+        }
+        int index = (int) h & mask;
+        event.type = types[index];
+        event.characteristic = characteristics[index];
+        event.status = statuses[index];
+        event.timestampNanos = timestamps[index];
+        characteristics[index] = null;
+        head.lazySet(h + 1);
+        return true;
+    }
+
+    boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /**
+     * Wakes up the consumer, e.g. because something else it waits for has happened.
+     */
+    void wakeUpConsumer() {
+        Thread thread = consumer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Parks the consumer until an event is available, it is woken up otherwise,
+     * or the given time has elapsed.
+     */
+    void await(long timeout, TimeUnit unit) throws InterruptedException {
+        if (isEmpty()) {
+            LockSupport.parkNanos(this, unit.toNanos(timeout));
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    static String getEventName(int type) {
+        switch (type) {
+            case EVENT_CHARACTERISTIC_WRITE:
+                return "characteristic write";
+            case EVENT_CHARACTERISTIC_READ:
+                return "characteristic read";
+            case EVENT_DESCRIPTOR_WRITE:
+                return "descriptor write";
+            case EVENT_DESCRIPTOR_READ:
+                return "descriptor read";
+            case EVENT_MTU_CHANGED:
+                return "mtu changed";
+            default:
+                return "unknown event " + type;
+        }
+    }
+}
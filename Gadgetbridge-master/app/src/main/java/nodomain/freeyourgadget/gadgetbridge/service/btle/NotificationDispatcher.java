@@ -0,0 +1,161 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.slf4j.Logger;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Dispatches characteristic change notifications to handlers registered per characteristic UUID.
+ * <p/>
+ * The table is built once, after the services of the device were discovered, and is not
+ * modified afterwards. A running operation may temporarily take over individual characteristics
+ * with {@link #setOverrides(Object, Map)}; those handlers take precedence over the regular ones
+ * until the operation calls {@link #clearOverrides(Object)}.
+ * <p/>
+ * For every discovered characteristic, the number of notifications and the time spent in the
+ * handlers is recorded, see {@link #logStatistics(Logger)}. The counters are only updated from
+ * the gatt callback thread.
+ */
+public final class NotificationDispatcher {
+
+    public interface Handler {
+        /**
+         * Handles a change of the given characteristic.
+         *
+         * @return true if the notification was consumed
+         */
+        boolean onCharacteristicChanged(BluetoothGattCharacteristic characteristic);
+    }
+
+    private static final class Entry {
+        private final Handler handler;
+        private long count;
+        private long handlerCount;
+        private long totalNanos;
+        private long maxNanos;
+
+        private Entry(Handler handler) {
+            this.handler = handler;
+        }
+    }
+
+    private final Map<UUID, Entry> entries;
+    private volatile Map<UUID, Handler> overrides = Collections.emptyMap();
+    private volatile Object overridesOwner;
+
+    /**
+     * @param handlers the handlers to use, by characteristic UUID
+     * @param availableCharacteristics the UUIDs of all discovered characteristics
+     */
+    public NotificationDispatcher(Map<UUID, Handler> handlers, Collection<UUID> availableCharacteristics) {
+        Map<UUID, Entry> newEntries = new HashMap<>(availableCharacteristics.size() * 2);
+        for (UUID uuid : availableCharacteristics) {
+            newEntries.put(uuid, new Entry(handlers.get(uuid)));
+        }
+        entries = Collections.unmodifiableMap(newEntries);
+    }
+
+    /**
+     * Lets the given owner handle the given characteristics, replacing all overrides
+     * of a previous owner.
+     */
+    public synchronized void setOverrides(Object owner, Map<UUID, Handler> handlers) {
+        overrides = Collections.unmodifiableMap(new HashMap<>(handlers));
+        overridesOwner = owner;
+    }
+
+    /**
+     * Removes the overrides of the given owner, if they are still active.
+     */
+    public synchronized void clearOverrides(Object owner) {
+        if (overridesOwner == owner) {
+            overrides = Collections.emptyMap();
+            overridesOwner = null;
+        }
+    }
+
+    /**
+     * Passes the given characteristic to its handler.
+     *
+     * @return true if the notification was consumed, false if there is no handler for it
+     * or the handler did not consume it
+     */
+    public boolean dispatch(BluetoothGattCharacteristic characteristic) {
+        UUID uuid = characteristic.getUuid();
+        Entry entry = entries.get(uuid);
+        if (entry == null) {
+            return false;
+        }
+        Map<UUID, Handler> currentOverrides = overrides;
+        Handler handler = currentOverrides.isEmpty() ? null : currentOverrides.get(uuid);
+        if (handler == null) {
+            handler = entry.handler;
+        }
+        entry.count++;
+        if (handler == null) {
+            return false;
+        }
+
+        long start = System.nanoTime();
+        try {
+            return handler.onCharacteristicChanged(characteristic);
+        } finally {
+            long duration = System.nanoTime() - start;
+            entry.handlerCount++;
+            entry.totalNanos += duration;
+            if (duration > entry.maxNanos) {
+                entry.maxNanos = duration;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of notifications received for the given characteristic.
+     */
+    public long getNotificationCount(UUID characteristic) {
+        Entry entry = entries.get(characteristic);
+        return entry != null ? entry.count : 0;
+    }
+
+    /**
+     * Logs the notification count and handler latency of every characteristic that
+     * received notifications.
+     */
+    public void logStatistics(Logger logger) {
+        for (Map.Entry<UUID, Entry> mapEntry : entries.entrySet()) {
+            Entry entry = mapEntry.getValue();
+            if (entry.count == 0) {
+                continue;
+            }
+            if (entry.handlerCount == 0) {
+                logger.info("notifications of " + mapEntry.getKey() + ": " + entry.count + ", unhandled");
+            } else {
+                logger.info("notifications of " + mapEntry.getKey() + ": " + entry.count
+                        + ", handler time avg: " + (entry.totalNanos / entry.handlerCount / 1000) + "us"
+                        + ", max: " + (entry.maxNanos / 1000) + "us");
+            }
+        }
+    }
+}
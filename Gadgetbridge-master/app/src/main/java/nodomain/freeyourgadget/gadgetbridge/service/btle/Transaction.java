@@ -35,6 +35,7 @@ public class Transaction {
     private final String mName;
     private final List<BtLEAction> mActions = new ArrayList<>(4);
     private final long creationTimestamp = System.currentTimeMillis();
+    private boolean pipelined;
     private
     @Nullable
     GattCallback gattCallback;
@@ -55,6 +56,19 @@ public class Transaction {
         return Collections.unmodifiableList(mActions);
     }
 
+    /**
+     * Returns true if writes without response are merged and sent back to back.
+     *
+     * @see TransactionBuilder#setPipelined(boolean)
+     */
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
     public boolean isEmpty() {
         return mActions.isEmpty();
     }
@@ -65,7 +79,7 @@ public class Transaction {
 
     @Override
     public String toString() {
-        return String.format(Locale.US, "%s: Transaction task: %s with %d actions", getCreationTime(), getTaskName(), mActions.size());
+        return String.format(Locale.US, "%s: %sTransaction task: %s with %d actions", getCreationTime(), pipelined ? "Pipelined " : "", getTaskName(), mActions.size());
     }
 
     public void setGattCallback(@Nullable GattCallback callback) {
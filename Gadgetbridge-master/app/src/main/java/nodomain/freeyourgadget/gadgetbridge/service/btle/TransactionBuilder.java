@@ -26,6 +26,7 @@ import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.NotifyAction;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.ReadAction;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.WaitAction;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.WriteAction;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.WriteWithoutResponseAction;
 
 public class TransactionBuilder {
     private static final Logger LOG = LoggerFactory.getLogger(TransactionBuilder.class);
@@ -55,6 +56,35 @@ public class TransactionBuilder {
         return add(action);
     }
 
+    /**
+     * Writes the given data without requesting a response from the device.
+     * In {@link #setPipelined(boolean) pipelined} transactions, the following actions
+     * without a characteristic run without waiting for the stack to acknowledge this write.
+     */
+    public TransactionBuilder writeWithoutResponse(BluetoothGattCharacteristic characteristic, byte[] data) {
+        if (characteristic == null) {
+            LOG.warn("Unable to write characteristic: null");
+            return this;
+        }
+        WriteWithoutResponseAction action = new WriteWithoutResponseAction(characteristic, data);
+        return add(action);
+    }
+
+    /**
+     * Writes the given data without requesting a response from the device. In
+     * {@link #setPipelined(boolean) pipelined} transactions, adjacent mergeable writes to the
+     * same characteristic may be sent as a single write. Only use this if the device treats
+     * the characteristic as a byte stream, not each write as a separate command.
+     */
+    public TransactionBuilder writeMergeable(BluetoothGattCharacteristic characteristic, byte[] data) {
+        if (characteristic == null) {
+            LOG.warn("Unable to write characteristic: null");
+            return this;
+        }
+        WriteWithoutResponseAction action = new WriteWithoutResponseAction(characteristic, data, true);
+        return add(action);
+    }
+
     public TransactionBuilder notify(BluetoothGattCharacteristic characteristic, boolean enable) {
         if (characteristic == null) {
             LOG.warn("Unable to notify characteristic: null");
@@ -88,6 +118,22 @@ public class TransactionBuilder {
         mTransaction.setGattCallback(callback);
     }
 
+    /**
+     * Enables pipelined execution of the transaction: adjacent {@link #writeMergeable mergeable}
+     * writes to the same characteristic are merged into a single write, and each write without
+     * response is only awaited when the next write is due. Only writes to characteristics that actually support
+     * writing without response are pipelined, all other actions run as usual.
+     * <p/>
+     * There is never more than one write in flight, because BluetoothGatt refuses new
+     * requests while one is outstanding, also for writes without response. Those are
+     * acknowledged as soon as the local stack has buffered the data though, without a
+     * round trip to the device.
+     */
+    public TransactionBuilder setPipelined(boolean pipelined) {
+        mTransaction.setPipelined(pipelined);
+        return this;
+    }
+
     public
     @Nullable
     GattCallback getGattCallback() {
@@ -0,0 +1,66 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service.btle.actions;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Build;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nodomain.freeyourgadget.gadgetbridge.service.btle.BtLEAction;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.BtLEQueue;
+
+/**
+ * Requests a larger ATT MTU from the device. The negotiated MTU will be made available
+ * through {@link BtLEQueue#getMaxWriteLength()}.
+ * <p/>
+ * On devices before Lollipop, or if the request cannot be sent, this action does nothing
+ * and the default MTU of 23 bytes remains in effect.
+ */
+public class RequestMtuAction extends BtLEAction {
+    private static final Logger LOG = LoggerFactory.getLogger(RequestMtuAction.class);
+
+    private final int mtu;
+    private boolean requested;
+
+    public RequestMtuAction(int mtu) {
+        super(null);
+        this.mtu = mtu;
+    }
+
+    @Override
+    public boolean run(BluetoothGatt gatt) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            requested = gatt.requestMtu(mtu);
+            if (!requested) {
+                LOG.warn("Unable to request MTU of " + mtu);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean expectsResult() {
+        return requested;
+    }
+
+    @Override
+    public String toString() {
+        return getCreationTime() + ": " + getClass().getSimpleName() + ": " + mtu;
+    }
+}
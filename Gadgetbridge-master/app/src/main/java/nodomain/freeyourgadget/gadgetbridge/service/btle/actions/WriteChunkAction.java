@@ -0,0 +1,93 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service.btle.actions;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * Writes a slice of a larger byte array or buffer without response, e.g. a firmware chunk.
+ * The slice is only copied when the action is run, into a buffer that may be shared
+ * by all chunks of the same length, because the value is handed over to the stack
+ * synchronously by {@link BluetoothGatt#writeCharacteristic(BluetoothGattCharacteristic)}.
+ * <p/>
+ * Chunk actions are never merged with each other.
+ */
+public class WriteChunkAction extends WriteWithoutResponseAction {
+    private final ByteBuffer source;
+    private final int offset;
+    private final byte[] chunkBuffer;
+    @Nullable
+    private final Checksum checksum;
+
+    /**
+     * @param characteristic the characteristic to write to
+     * @param source the array containing the whole data
+     * @param offset the offset of the chunk in source
+     * @param chunkBuffer the buffer to copy the chunk into; its length determines the chunk length
+     */
+    public WriteChunkAction(BluetoothGattCharacteristic characteristic, byte[] source, int offset, byte[] chunkBuffer) {
+        this(characteristic, ByteBuffer.wrap(source), offset, chunkBuffer, null);
+    }
+
+    /**
+     * @param checksum if not null, updated with the chunk once it has been handed over to the stack,
+     *                 so that the checksum of all data actually written can be verified
+     */
+    public WriteChunkAction(BluetoothGattCharacteristic characteristic, ByteBuffer source, int offset, byte[] chunkBuffer, @Nullable Checksum checksum) {
+        super(characteristic, null);
+        this.source = source;
+        this.offset = offset;
+        this.chunkBuffer = chunkBuffer;
+        this.checksum = checksum;
+    }
+
+    @Override
+    public boolean run(BluetoothGatt gatt) {
+        BluetoothGattCharacteristic characteristic = getCharacteristic();
+        int properties = characteristic.getProperties();
+        if ((properties & BluetoothGattCharacteristic.PROPERTY_WRITE) > 0 || ((properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) > 0)) {
+            copyChunk();
+            boolean written = writeValue(gatt, characteristic, chunkBuffer);
+            if (written && checksum != null) {
+                checksum.update(chunkBuffer, 0, chunkBuffer.length);
+            }
+            return written;
+        }
+        return false;
+    }
+
+    private void copyChunk() {
+        if (source.hasArray()) {
+            System.arraycopy(source.array(), source.arrayOffset() + offset, chunkBuffer, 0, chunkBuffer.length);
+        } else {
+            // e.g. a memory-mapped file; absolute reads, so the buffer may be shared
+            for (int i = 0; i < chunkBuffer.length; i++) {
+                chunkBuffer[i] = source.get(offset + i);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getCreationTime() + ": " + getClass().getSimpleName() + " on characteristic: " + getCharacteristic().getUuid() + ", offset: " + offset + ", length: " + chunkBuffer.length;
+    }
+}
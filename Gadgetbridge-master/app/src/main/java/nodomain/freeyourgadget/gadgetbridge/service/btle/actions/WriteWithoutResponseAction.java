@@ -0,0 +1,144 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service.btle.actions;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.service.btle.BtLEAction;
+
+/**
+ * Writes to a GATT characteristic using {@link BluetoothGattCharacteristic#WRITE_TYPE_NO_RESPONSE},
+ * if the characteristic supports it. In pipelined transactions, the queue does not wait for
+ * this action to be acknowledged before running the next one.
+ * <p/>
+ * Adjacent {@link #isMergeable() mergeable} actions on the same characteristic may be merged
+ * by the queue into a single write. Only mark writes as mergeable if the device treats the
+ * characteristic as a byte stream, rather than each write as a separate command.
+ */
+public class WriteWithoutResponseAction extends WriteAction {
+    /**
+     * The stack acknowledges these writes as soon as it has buffered them, so a
+     * missing callback means that it is stuck.
+     */
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final boolean mergeable;
+    private final List<BtLEAction> mergedActions;
+
+    public WriteWithoutResponseAction(BluetoothGattCharacteristic characteristic, byte[] value) {
+        this(characteristic, value, false);
+    }
+
+    /**
+     * @param mergeable whether this write may be merged with adjacent mergeable writes to
+     *                  the same characteristic
+     */
+    public WriteWithoutResponseAction(BluetoothGattCharacteristic characteristic, byte[] value, boolean mergeable) {
+        this(characteristic, value, mergeable, Collections.<BtLEAction>emptyList());
+    }
+
+    private WriteWithoutResponseAction(BluetoothGattCharacteristic characteristic, byte[] value, boolean mergeable, List<BtLEAction> mergedActions) {
+        super(characteristic, value);
+        this.mergeable = mergeable;
+        this.mergedActions = mergedActions;
+    }
+
+    public boolean isMergeable() {
+        return mergeable;
+    }
+
+    @Override
+    protected boolean writeValue(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value) {
+        int writeType = characteristic.getWriteType();
+        if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) > 0) {
+            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        }
+        try {
+            return super.writeValue(gatt, characteristic, value);
+        } finally {
+            characteristic.setWriteType(writeType);
+        }
+    }
+
+    /**
+     * Returns true if both actions are mergeable and the given one may be appended to this one
+     * without exceeding the given maximum payload length.
+     */
+    public boolean canMergeWith(BtLEAction next, int maxLength) {
+        if (!mergeable || !(next instanceof WriteWithoutResponseAction) || next.getCharacteristic() != getCharacteristic()) {
+            return false;
+        }
+        if (!((WriteWithoutResponseAction) next).isMergeable()) {
+            return false;
+        }
+        byte[] nextValue = ((WriteWithoutResponseAction) next).getValue();
+        return getValue() != null && nextValue != null && getValue().length + nextValue.length <= maxLength;
+    }
+
+    /**
+     * Returns a new action writing the value of this action followed by the value of the
+     * given one. Completing the merged action completes both source actions.
+     */
+    public WriteWithoutResponseAction mergeWith(WriteWithoutResponseAction next) {
+        byte[] value = getValue();
+        byte[] nextValue = next.getValue();
+        byte[] merged = new byte[value.length + nextValue.length];
+        System.arraycopy(value, 0, merged, 0, value.length);
+        System.arraycopy(nextValue, 0, merged, value.length, nextValue.length);
+
+        List<BtLEAction> sources = new ArrayList<>(mergedActions.size() + next.mergedActions.size() + 2);
+        addSources(this, sources);
+        addSources(next, sources);
+        return new WriteWithoutResponseAction(getCharacteristic(), merged, true, sources);
+    }
+
+    private static void addSources(WriteWithoutResponseAction action, List<BtLEAction> sources) {
+        if (action.mergedActions.isEmpty()) {
+            sources.add(action);
+        } else {
+            sources.addAll(action.mergedActions);
+        }
+    }
+
+    @Override
+    public void complete(boolean success) {
+        super.complete(success);
+        for (BtLEAction action : mergedActions) {
+            action.complete(success);
+        }
+    }
+
+    @Override
+    public boolean expectsResult() {
+        return false;
+    }
+
+    @Override
+    public boolean hasCompletionCallback() {
+        return true;
+    }
+
+    @Override
+    public long getTimeoutMillis() {
+        return TIMEOUT_MILLIS;
+    }
+}
@@ -3,17 +3,18 @@ package nodomain.freeyourgadget.gadgetbridge.service.devices.amazfitbip;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.util.Date;
-
 import nodomain.freeyourgadget.gadgetbridge.GBException;
 import nodomain.freeyourgadget.gadgetbridge.entities.BaseActivitySummary;
-import nodomain.freeyourgadget.gadgetbridge.model.ActivityPoint;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
-import nodomain.freeyourgadget.gadgetbridge.model.GPSCoordinate;
-import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
 
+/**
+ * Decodes the sports details of an activity into an {@link ActivityTrack}.
+ * <p/>
+ * The data may be passed in arbitrary pieces with {@link #feed(byte[], int, int)}, e.g. one
+ * BLE notification at a time, so that it is decoded while it is still being transferred.
+ * Records spanning two pieces are assembled in a small buffer. {@link #finish()} returns the
+ * track once all data has been fed.
+ */
 public class ActivityDetailsParser {
     private static final Logger LOG = LoggerFactory.getLogger(ActivityDetailsParser.class);
 
@@ -25,15 +26,26 @@ public class ActivityDetailsParser {
     private static final byte TYPE_SPEED5 = 5;
     private static final byte TYPE_GPS_SPEED6 = 6;
 
-    public static final BigDecimal HUAMI_TO_DECIMAL_DEGREES_DIVISOR = new BigDecimal(3000000.0);
+    private static final int HEADER_LENGTH = 2;
+    private static final int PAYLOAD_LENGTH = 6;
+    /** The length of a packet including the counter byte, see {@link #setSkipCounterByte(boolean)} */
+    private static final int PACKET_LENGTH = 17;
+
+    /** Huami coordinates are in units of 1/3000000 degrees */
+    public static final long HUAMI_TO_DECIMAL_DEGREES_DIVISOR = 3000000;
     private final BaseActivitySummary summary;
     private final ActivityTrack activityTrack;
-//    private final int version;
-    private final Date baseDate;
+    private final long baseTime;
     private long baseLongitude;
     private long baseLatitude;
     private int baseAltitude;
-    private ActivityPoint lastActivityPoint;
+
+    private final byte[] record = new byte[HEADER_LENGTH + PAYLOAD_LENGTH];
+    private int recordLength;
+    private long streamPosition;
+    private long totalTimeOffset;
+    private int lastTimeOffset;
+    private boolean loggedNewHeartRateVersion;
 
     public boolean getSkipCounterByte() {
         return skipCounterByte;
@@ -47,13 +59,11 @@ public class ActivityDetailsParser {
 
     public ActivityDetailsParser(BaseActivitySummary summary) {
         this.summary = summary;
-//        this.version = version;
-//        this.baseDate = baseDate;
-//
+
         this.baseLongitude = summary.getBaseLongitude();
         this.baseLatitude = summary.getBaseLatitude();
         this.baseAltitude = summary.getBaseAltitude();
-        this.baseDate = summary.getStartTime();
+        this.baseTime = summary.getStartTime().getTime();
 
         this.activityTrack = new ActivityTrack();
         activityTrack.setUser(summary.getUser());
@@ -61,156 +71,144 @@ public class ActivityDetailsParser {
         activityTrack.setName(summary.getName() + "-" + summary.getId());
     }
 
+    /**
+     * Decodes all of the given data at once.
+     */
     public ActivityTrack parse(byte[] bytes) throws GBException {
-        int i = 0;
-        try {
-            long totalTimeOffset = 0;
-            int lastTimeOffset = 0;
-            while (i < bytes.length) {
-                if (skipCounterByte && (i % 17) == 0) {
-                    i++;
-                }
-
-                byte type = bytes[i++];
-                int timeOffset = BLETypeConversions.toUnsigned(bytes[i++]);
-                // handle timeOffset overflows (1 byte, always increasing, relative to base)
-                if (lastTimeOffset <= timeOffset) {
-                    timeOffset = timeOffset - lastTimeOffset;
-                    lastTimeOffset += timeOffset;
-                } else {
-                    lastTimeOffset = timeOffset;
-                }
-                totalTimeOffset += timeOffset;
-
-                switch (type) {
-                    case TYPE_GPS:
-                        i += consumeGPSAndUpdateBaseLocation(bytes, i, totalTimeOffset);
-                        break;
-                    case TYPE_HR:
-                        i += consumeHeartRate(bytes, i, totalTimeOffset);
-                        break;
-                    case TYPE_UNKNOWN2:
-                        i += consumeUnknown2(bytes, i);
-                        break;
-                    case TYPE_PAUSE:
-                        i += consumePause(bytes, i);
-                        break;
-                    case TYPE_SPEED4:
-                        i += consumeSpeed4(bytes, i);
-                        break;
-                    case TYPE_SPEED5:
-                        i += consumeSpeed5(bytes, i);
-                        break;
-                    case TYPE_GPS_SPEED6:
-                        i += consumeSpeed6(bytes, i);
-                        break;
-                }
+        feed(bytes, 0, bytes.length);
+        return finish();
+    }
+
+    /**
+     * Decodes the given piece of data, following the pieces fed before.
+     */
+    public void feed(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            if (skipCounterByte && (streamPosition++ % PACKET_LENGTH) == 0) {
+                continue;
+            }
+            record[recordLength++] = bytes[i];
+            if (recordLength >= HEADER_LENGTH && recordLength == getRecordLength(record[0])) {
+                consumeRecord();
+                recordLength = 0;
             }
-        } catch (IndexOutOfBoundsException ex) {
-            throw new GBException("Error parsing activity details: " + ex.getMessage(), ex);
         }
+    }
 
+    /**
+     * Returns the decoded track after all data has been fed.
+     *
+     * @throws GBException if the data ended within a record
+     */
+    public ActivityTrack finish() throws GBException {
+        if (recordLength != 0) {
+            throw new GBException("Error parsing activity details: incomplete record of " + recordLength + " bytes at the end");
+        }
         return activityTrack;
     }
 
-    private int consumeGPSAndUpdateBaseLocation(byte[] bytes, int offset, long timeOffset) {
-        int i = 0;
-        int longitudeDelta = BLETypeConversions.toInt16(bytes[offset + i++], bytes[offset + i++]);
-        int latitudeDelta = BLETypeConversions.toInt16(bytes[offset + i++], bytes[offset + i++]);
-        int altitudeDelta = BLETypeConversions.toInt16(bytes[offset + i++], bytes[offset + i++]);
+    private static int getRecordLength(byte type) {
+        switch (type) {
+            case TYPE_GPS:
+            case TYPE_HR:
+            case TYPE_UNKNOWN2:
+            case TYPE_PAUSE:
+            case TYPE_SPEED4:
+            case TYPE_SPEED5:
+            case TYPE_GPS_SPEED6:
+                return HEADER_LENGTH + PAYLOAD_LENGTH;
+            default:
+                return HEADER_LENGTH; // unknown type, no idea how long the payload is
+        }
+    }
 
-        baseLongitude += longitudeDelta;
-        baseLatitude += latitudeDelta;
-        baseAltitude += altitudeDelta;
+    private void consumeRecord() {
+        byte type = record[0];
+        int timeOffset = record[1] & 0xff;
+        // handle timeOffset overflows (1 byte, always increasing, relative to base)
+        if (lastTimeOffset <= timeOffset) {
+            timeOffset = timeOffset - lastTimeOffset;
+            lastTimeOffset += timeOffset;
+        } else {
+            lastTimeOffset = timeOffset;
+        }
+        totalTimeOffset += timeOffset;
+
+        switch (type) {
+            case TYPE_GPS:
+                consumeGPSAndUpdateBaseLocation(totalTimeOffset);
+                break;
+            case TYPE_HR:
+                consumeHeartRate(totalTimeOffset);
+                break;
+            default:
+                // unknown2, pause and speed records are not evaluated yet
+                break;
+        }
+    }
 
-        GPSCoordinate coordinate = new GPSCoordinate(
+    private void consumeGPSAndUpdateBaseLocation(long timeOffset) {
+        int offset = HEADER_LENGTH;
+        baseLongitude += toInt16(offset);
+        baseLatitude += toInt16(offset + 2);
+        baseAltitude += toInt16(offset + 4);
+
+        int index = getPointFor(timeOffset);
+        activityTrack.setLocation(index,
                 convertHuamiValueToDecimalDegrees(baseLongitude),
                 convertHuamiValueToDecimalDegrees(baseLatitude),
                 baseAltitude);
+    }
 
-        ActivityPoint ap = getActivityPointFor(timeOffset);
-        ap.setLocation(coordinate);
-        add(ap);
-
-        return i;
+    private int toInt16(int offset) {
+        return (short) ((record[offset] & 0xff) | ((record[offset + 1] & 0xff) << 8));
     }
 
-    private double convertHuamiValueToDecimalDegrees(long huamiValue) {
-        BigDecimal result = new BigDecimal(huamiValue).divide(HUAMI_TO_DECIMAL_DEGREES_DIVISOR, GPSCoordinate.GPS_DECIMAL_DEGREES_SCALE, RoundingMode.HALF_UP);
-        return result.doubleValue();
+    /**
+     * Converts to decimal degrees with 6 decimal places, rounding half up. The millionths are
+     * value / 3, which can never be exactly half way, so this just rounds to the nearest one.
+     */
+    private static double convertHuamiValueToDecimalDegrees(long huamiValue) {
+        long divisor = HUAMI_TO_DECIMAL_DEGREES_DIVISOR / 1000000;
+        long abs = Math.abs(huamiValue);
+        long millionths = (abs + divisor / 2) / divisor;
+        return (huamiValue < 0 ? -millionths : millionths) / 1000000.0;
     }
 
-    private int consumeHeartRate(byte[] bytes, int offset, long timeOffsetSeconds) {
-        int v1 = BLETypeConversions.toUint16(bytes[offset]);
-        int v2 = BLETypeConversions.toUint16(bytes[offset + 1]);
-        int v3 = BLETypeConversions.toUint16(bytes[offset + 2]);
-        int v4 = BLETypeConversions.toUint16(bytes[offset + 3]);
-        int v5 = BLETypeConversions.toUint16(bytes[offset + 4]);
-        int v6 = BLETypeConversions.toUint16(bytes[offset + 5]);
+    private void consumeHeartRate(long timeOffsetSeconds) {
+        int offset = HEADER_LENGTH;
+        int v1 = record[offset] & 0xff;
+        int v2 = record[offset + 1] & 0xff;
+        int v3 = record[offset + 2] & 0xff;
+        int v4 = record[offset + 3] & 0xff;
+        int v5 = record[offset + 4] & 0xff;
+        int v6 = record[offset + 5] & 0xff;
 
         if (v2 == 0 && v3 == 0 && v4 == 0 && v5 == 0 && v6 == 0) {
             // new version
-//            LOG.info("detected heart rate in 'new' version, where version is: " + summary.getVersion());
-            LOG.info("detected heart rate in 'new' version format");
-            ActivityPoint ap = getActivityPointFor(timeOffsetSeconds);
-            ap.setHeartRate(v1);
-            add(ap);
-        } else {
-            ActivityPoint ap = getActivityPointFor(v1);
-            ap.setHeartRate(v2);
-            add(ap);
-
-            ap = getActivityPointFor(v3);
-            ap.setHeartRate(v4);
-            add(ap);
-
-            ap = getActivityPointFor(v5);
-            ap.setHeartRate(v6);
-            add(ap);
-        }
-        return 6;
-    }
-
-    private ActivityPoint getActivityPointFor(long timeOffsetSeconds) {
-        Date time = makeAbsolute(timeOffsetSeconds);
-        if (lastActivityPoint != null) {
-            if (lastActivityPoint.getTime().equals(time)) {
-                return lastActivityPoint;
+            if (!loggedNewHeartRateVersion) {
+                LOG.info("detected heart rate in 'new' version format");
+                loggedNewHeartRateVersion = true;
             }
-        }
-        return new ActivityPoint(time);
-    }
-
-    private Date makeAbsolute(long timeOffsetSeconds) {
-        return new Date(baseDate.getTime() + timeOffsetSeconds * 1000);
-    }
-
-    private void add(ActivityPoint ap) {
-        if (ap != lastActivityPoint) {
-            lastActivityPoint = ap;
-            activityTrack.addTrackPoint(ap);
+            activityTrack.setHeartRate(getPointFor(timeOffsetSeconds), v1);
         } else {
-            LOG.info("skipping point!");
+            activityTrack.setHeartRate(getPointFor(v1), v2);
+            activityTrack.setHeartRate(getPointFor(v3), v4);
+            activityTrack.setHeartRate(getPointFor(v5), v6);
         }
     }
 
-    private int consumeUnknown2(byte[] bytes, int offset) {
-        return 6; // just guessing...
-    }
-
-    private int consumePause(byte[] bytes, int i) {
-        return 6; // just guessing...
-    }
-
-    private int consumeSpeed4(byte[] bytes, int offset) {
-        return 6;
-    }
-
-    private int consumeSpeed5(byte[] bytes, int offset) {
-        return 6;
-    }
-
-    private int consumeSpeed6(byte[] bytes, int offset) {
-        return 6;
+    /**
+     * Returns the index of the point for the given time, which is the last point
+     * if it has the same time, or a new one otherwise.
+     */
+    private int getPointFor(long timeOffsetSeconds) {
+        long time = baseTime + timeOffsetSeconds * 1000;
+        int last = activityTrack.size() - 1;
+        if (last >= 0 && activityTrack.getTime(last) == time) {
+            return last;
+        }
+        return activityTrack.addPoint(time);
     }
 }
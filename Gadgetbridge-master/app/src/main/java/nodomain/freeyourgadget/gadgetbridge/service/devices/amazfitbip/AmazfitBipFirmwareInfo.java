@@ -16,6 +16,7 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.service.devices.amazfitbip;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -128,10 +129,18 @@ public class AmazfitBipFirmwareInfo extends HuamiFirmwareInfo {
         super(bytes);
     }
 
+    public AmazfitBipFirmwareInfo(ByteBuffer buffer, int crc16) {
+        super(buffer, crc16);
+    }
+
+    public AmazfitBipFirmwareInfo(ByteBuffer buffer, int crc16, long crc32) {
+        super(buffer, crc16, crc32);
+    }
+
     @Override
-    protected HuamiFirmwareType determineFirmwareType(byte[] bytes) {
+    protected HuamiFirmwareType determineFirmwareType(ByteBuffer bytes) {
         if (ArrayUtils.startsWith(bytes, RES_HEADER) || ArrayUtils.startsWith(bytes, NEWRES_HEADER)) {
-            if (bytes.length > 700000) { // dont know how to distinguish from Cor .res
+            if (bytes.capacity() > 700000) { // dont know how to distinguish from Cor .res
                 return HuamiFirmwareType.INVALID;
             }
             return HuamiFirmwareType.RES;
@@ -146,7 +155,7 @@ public class AmazfitBipFirmwareInfo extends HuamiFirmwareInfo {
             return HuamiFirmwareType.GPS_CEP;
         }
         if (ArrayUtils.startsWith(bytes, FW_HEADER)) {
-            String foundVersion = searchFirmwareVersion(bytes);
+            String foundVersion = findFirmwareVersion();
             if (foundVersion != null) {
                 Version version = new Version(foundVersion);
                 if ((version.compareTo(new Version("0.0.8.00")) >= 0) && (version.compareTo(new Version("1.0.5.00")) < 0)) {
@@ -159,9 +168,9 @@ public class AmazfitBipFirmwareInfo extends HuamiFirmwareInfo {
             return HuamiFirmwareType.WATCHFACE;
         }
         if (ArrayUtils.startsWith(bytes, NEWFT_HEADER)) {
-            if (bytes[10] == 0x01) {
+            if (bytes.get(10) == 0x01) {
                 return HuamiFirmwareType.FONT;
-            } else if (bytes[10] == 0x02) {
+            } else if (bytes.get(10) == 0x02) {
                 return HuamiFirmwareType.FONT_LATIN;
             }
         }
@@ -16,7 +16,6 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.service.devices.amazfitbip;
 
-import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.content.Context;
 import android.net.Uri;
@@ -27,7 +26,6 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.Locale;
 import java.util.Set;
-import java.util.UUID;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.devices.huami.HuamiFWHelper;
@@ -39,6 +37,7 @@ import nodomain.freeyourgadget.gadgetbridge.model.DeviceType;
 import nodomain.freeyourgadget.gadgetbridge.model.NotificationSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.NotificationType;
 import nodomain.freeyourgadget.gadgetbridge.model.RecordedDataTypes;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.NotificationDispatcher;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.ConditionalWriteAction;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.profiles.alertnotification.AlertCategory;
@@ -60,6 +59,12 @@ public class AmazfitBipSupport extends MiBand2Support {
 
     public AmazfitBipSupport() {
         super(LOG);
+        addNotificationHandler(MiBand2Service.UUID_CHARACTERISTIC_3_CONFIGURATION, new NotificationDispatcher.Handler() {
+            @Override
+            public boolean onCharacteristicChanged(BluetoothGattCharacteristic characteristic) {
+                return handleConfigurationInfo(characteristic.getValue());
+            }
+        });
     }
 
     @Override
@@ -217,19 +222,6 @@ public class AmazfitBipSupport extends MiBand2Support {
         }
     }
 
-    @Override
-    public boolean onCharacteristicChanged(BluetoothGatt gatt,
-                                           BluetoothGattCharacteristic characteristic) {
-        boolean handled = super.onCharacteristicChanged(gatt, characteristic);
-        if (!handled) {
-            UUID characteristicUUID = characteristic.getUuid();
-            if (MiBand2Service.UUID_CHARACTERISTIC_3_CONFIGURATION.equals(characteristicUUID)) {
-                return handleConfigurationInfo(characteristic.getValue());
-            }
-        }
-        return false;
-    }
-
     private boolean handleConfigurationInfo(byte[] value) {
         if (value == null || value.length < 4) {
             return false;
@@ -18,11 +18,11 @@
 package nodomain.freeyourgadget.gadgetbridge.service.devices.huami;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.Map;
 
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.util.ArrayUtils;
+import nodomain.freeyourgadget.gadgetbridge.util.BytePatternSearch;
 import nodomain.freeyourgadget.gadgetbridge.util.CheckSums;
 
 
@@ -48,26 +48,36 @@ public abstract class HuamiFirmwareInfo {
             0x4e, 0x45, 0x5a, 0x4b
     };
 
+    /**
+     * The format string of the version, "V%d.%d.%d.%d", followed by 4 zero bytes and the version.
+     */
+    private static final BytePatternSearch VERSION_MARKER_SEARCH = new BytePatternSearch(new byte[]{
+            0x56, 0x25, 0x64, 0x2e, 0x25, 0x64, 0x2e, 0x25, 0x64, 0x2e, 0x25, 0x64, 0x00, 0x00, 0x00, 0x00
+    });
+    private static final int VERSION_LENGTH = 8;
+
     private HuamiFirmwareType firmwareType = HuamiFirmwareType.FIRMWARE;
+    private String firmwareVersion;
+    private boolean firmwareVersionSearched;
 
     public String toVersion(int crc16) {
         String version = getCrcMap().get(crc16);
         if (version == null) {
             switch (firmwareType) {
                 case FIRMWARE:
-                    version = searchFirmwareVersion(bytes);
+                    version = findFirmwareVersion();
                     break;
                 case RES:
-                    version = "RES " + Integer.toString(bytes[5]);
+                    version = "RES " + Integer.toString(buffer.get(5));
                     break;
                 case RES_COMPRESSED:
-                    version = "RES " + Integer.toString(bytes[14]);
+                    version = "RES " + Integer.toString(buffer.get(14));
                     break;
                 case FONT:
-                    version = "FONT " + Integer.toString(bytes[4]);
+                    version = "FONT " + Integer.toString(buffer.get(4));
                     break;
                 case FONT_LATIN:
-                    version = "FONT LATIN " + Integer.toString(bytes[4]);
+                    version = "FONT LATIN " + Integer.toString(buffer.get(4));
                     break;
             }
         }
@@ -103,12 +113,38 @@ public abstract class HuamiFirmwareInfo {
 
     private final int crc16;
 
-    private byte[] bytes;
+    private final ByteBuffer buffer;
 
     public HuamiFirmwareInfo(byte[] bytes) {
-        this.bytes = bytes;
-        crc16 = CheckSums.getCRC16(bytes);
-        firmwareType = determineFirmwareType(bytes);
+        this(ByteBuffer.wrap(bytes).asReadOnlyBuffer(), CheckSums.getCRC16(bytes));
+    }
+
+    /**
+     * @param buffer the whole firmware file, e.g. memory-mapped, see {@link nodomain.freeyourgadget.gadgetbridge.util.FirmwareSource}
+     * @param crc16 the CRC16 of the whole file, computed while reading it
+     */
+    public HuamiFirmwareInfo(ByteBuffer buffer, int crc16) {
+        this.buffer = buffer;
+        this.crc16 = crc16;
+        firmwareType = determineFirmwareType(buffer);
+    }
+
+    /**
+     * Like {@link #HuamiFirmwareInfo(ByteBuffer, int)}, but takes the type from
+     * {@link HuamiFirmwareTypeCache} if the same file was opened before.
+     *
+     * @param crc32 the CRC32 of the whole file, computed while reading it
+     */
+    public HuamiFirmwareInfo(ByteBuffer buffer, int crc16, long crc32) {
+        this.buffer = buffer;
+        this.crc16 = crc16;
+        HuamiFirmwareType cachedType = HuamiFirmwareTypeCache.get(getClass(), crc32, buffer.capacity());
+        if (cachedType != null) {
+            firmwareType = cachedType;
+        } else {
+            firmwareType = determineFirmwareType(buffer);
+            HuamiFirmwareTypeCache.put(getClass(), crc32, buffer.capacity(), firmwareType);
+        }
     }
 
     public abstract boolean isGenerallyCompatibleWith(GBDevice device);
@@ -126,11 +162,14 @@ public abstract class HuamiFirmwareInfo {
      * @return
      */
     public int getSize() {
-        return bytes.length;
+        return buffer.capacity();
     }
 
-    public byte[] getBytes() {
-        return bytes;
+    /**
+     * Returns a new read-only view of the firmware, positioned at 0.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer.asReadOnlyBuffer();
     }
 
     public int getCrc16() {
@@ -147,29 +186,37 @@ public abstract class HuamiFirmwareInfo {
 
     protected abstract Map<Integer, String> getCrcMap();
 
-    protected abstract HuamiFirmwareType determineFirmwareType(byte[] bytes);
-
-    protected String searchFirmwareVersion(byte[] fwbytes) {
-        ByteBuffer buf = ByteBuffer.wrap(fwbytes);
-        buf.order(ByteOrder.BIG_ENDIAN);
-        while (buf.remaining() > 3) {
-            int word = buf.getInt();
-            if (word == 0x5625642e) {
-                word = buf.getInt();
-                if (word == 0x25642e25) {
-                    word = buf.getInt();
-                    if (word == 0x642e2564) {
-                        word = buf.getInt();
-                        if (word == 0x00000000) {
-                            byte version[] = new byte[8];
-                            buf.get(version);
-                            return new String(version);
-                        }
-                    }
-                }
-            }
+    /**
+     * Must only use absolute reads on the given buffer, or a duplicate of it.
+     */
+    protected abstract HuamiFirmwareType determineFirmwareType(ByteBuffer buffer);
+
+    /**
+     * Returns the version embedded in the firmware, see {@link #searchFirmwareVersion(ByteBuffer)}.
+     * The firmware is only searched on the first call.
+     */
+    protected String findFirmwareVersion() {
+        if (!firmwareVersionSearched) {
+            firmwareVersion = searchFirmwareVersion(buffer);
+            firmwareVersionSearched = true;
         }
-        return null;
+        return firmwareVersion;
     }
 
+    protected String searchFirmwareVersion(ByteBuffer fwbuffer) {
+        // the marker is word-aligned in all known firmwares
+        int index = VERSION_MARKER_SEARCH.indexOf(fwbuffer, 0, 4);
+        if (index < 0) {
+            return null;
+        }
+        int start = index + VERSION_MARKER_SEARCH.getPatternLength();
+        if (start + VERSION_LENGTH > fwbuffer.limit()) {
+            return null;
+        }
+        byte version[] = new byte[VERSION_LENGTH];
+        for (int i = 0; i < VERSION_LENGTH; i++) {
+            version[i] = fwbuffer.get(start + i);
+        }
+        return new String(version);
+    }
 }
@@ -0,0 +1,92 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service.devices.huami;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nodomain.freeyourgadget.gadgetbridge.BuildConfig;
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+
+/**
+ * Remembers the detected type of firmware files across app restarts, so that opening the
+ * same file again does not need to search it. Files are identified by their CRC32 and
+ * length, the type is stored per firmware info class, as each device detects types differently.
+ * <p/>
+ * The cache is cleared whenever the app is updated, as the detection may have changed.
+ */
+final class HuamiFirmwareTypeCache {
+    private static final Logger LOG = LoggerFactory.getLogger(HuamiFirmwareTypeCache.class);
+
+    private static final String PREFS_NAME = "huami_firmware_types";
+    private static final String KEY_VERSION_CODE = "version_code";
+    private static final int MAX_ENTRIES = 64;
+
+    private HuamiFirmwareTypeCache() {
+    }
+
+    @Nullable
+    static synchronized HuamiFirmwareType get(Class<? extends HuamiFirmwareInfo> infoClass, long crc32, int length) {
+        SharedPreferences prefs = getPreferences();
+        if (prefs == null) {
+            return null;
+        }
+        String name = prefs.getString(getKey(infoClass, crc32, length), null);
+        if (name == null) {
+            return null;
+        }
+        try {
+            return HuamiFirmwareType.valueOf(name);
+        } catch (IllegalArgumentException ex) {
+            LOG.warn("Ignoring unknown cached firmware type: " + name);
+            return null;
+        }
+    }
+
+    static synchronized void put(Class<? extends HuamiFirmwareInfo> infoClass, long crc32, int length, HuamiFirmwareType type) {
+        SharedPreferences prefs = getPreferences();
+        if (prefs == null) {
+            return;
+        }
+        SharedPreferences.Editor editor = prefs.edit();
+        if (prefs.getAll().size() > MAX_ENTRIES) {
+            editor.clear().putInt(KEY_VERSION_CODE, BuildConfig.VERSION_CODE);
+        }
+        editor.putString(getKey(infoClass, crc32, length), type.name()).apply();
+    }
+
+    private static String getKey(Class<? extends HuamiFirmwareInfo> infoClass, long crc32, int length) {
+        return infoClass.getSimpleName() + "_" + Long.toHexString(crc32) + "_" + length;
+    }
+
+    @Nullable
+    private static SharedPreferences getPreferences() {
+        Context context = GBApplication.getContext();
+        if (context == null) {
+            return null;
+        }
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (prefs.getInt(KEY_VERSION_CODE, -1) != BuildConfig.VERSION_CODE) {
+            prefs.edit().clear().putInt(KEY_VERSION_CODE, BuildConfig.VERSION_CODE).apply();
+        }
+        return prefs;
+    }
+}
@@ -16,6 +16,7 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.service.devices.huami.amazfitcor;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -55,10 +56,18 @@ public class AmazfitCorFirmwareInfo extends HuamiFirmwareInfo {
         super(bytes);
     }
 
+    public AmazfitCorFirmwareInfo(ByteBuffer buffer, int crc16) {
+        super(buffer, crc16);
+    }
+
+    public AmazfitCorFirmwareInfo(ByteBuffer buffer, int crc16, long crc32) {
+        super(buffer, crc16, crc32);
+    }
+
     @Override
-    protected HuamiFirmwareType determineFirmwareType(byte[] bytes) {
+    protected HuamiFirmwareType determineFirmwareType(ByteBuffer bytes) {
         if (ArrayUtils.startsWith(bytes, RES_HEADER)) {
-            if (bytes.length < 700000) { // dont know how to distinguish from Bip .res
+            if (bytes.capacity() < 700000) { // dont know how to distinguish from Bip .res
                 return HuamiFirmwareType.INVALID;
             }
             return HuamiFirmwareType.RES;
@@ -67,7 +76,7 @@ public class AmazfitCorFirmwareInfo extends HuamiFirmwareInfo {
             return HuamiFirmwareType.RES_COMPRESSED;
         }
         if (ArrayUtils.startsWith(bytes, FW_HEADER)) {
-            String foundVersion = searchFirmwareVersion(bytes);
+            String foundVersion = findFirmwareVersion();
             if (foundVersion != null) {
                 Version version = new Version(foundVersion);
                 if ((version.compareTo(new Version("1.0.5.00")) >= 0) && (version.compareTo(new Version("2.0.0.00")) < 0)) {
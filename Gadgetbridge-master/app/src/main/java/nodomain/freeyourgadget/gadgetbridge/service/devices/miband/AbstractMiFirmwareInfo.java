@@ -21,6 +21,7 @@ import android.support.annotation.NonNull;
 import java.util.Arrays;
 
 import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+import nodomain.freeyourgadget.gadgetbridge.util.CheckSums;
 
 public abstract class AbstractMiFirmwareInfo {
 
@@ -106,6 +107,13 @@ public abstract class AbstractMiFirmwareInfo {
         return Arrays.copyOfRange(wholeFirmwareBytes, getFirmwareOffset(), getFirmwareOffset() + getFirmwareLength());
     }
 
+    /**
+     * Returns the CRC16 of the firmware bytes, without copying them.
+     */
+    public int getFirmwareCrc16() {
+        return CheckSums.getCRC16(wholeFirmwareBytes, getFirmwareOffset(), getFirmwareLength());
+    }
+
     public int getFirmwareVersionMajor() {
         int version = getFirmwareVersion();
         if (version > 0) {
@@ -20,10 +20,9 @@ package nodomain.freeyourgadget.gadgetbridge.service.devices.miband;
 
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.content.Intent;
+import android.bluetooth.BluetoothProfile;
 import android.net.Uri;
 import android.support.annotation.Nullable;
-import android.support.v4.content.LocalBroadcastManager;
 import android.widget.Toast;
 
 import org.slf4j.Logger;
@@ -66,7 +65,6 @@ import nodomain.freeyourgadget.gadgetbridge.model.CalendarEventSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.CalendarEvents;
 import nodomain.freeyourgadget.gadgetbridge.model.CallSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.CannedMessagesSpec;
-import nodomain.freeyourgadget.gadgetbridge.model.DeviceService;
 import nodomain.freeyourgadget.gadgetbridge.model.NotificationSpec;
 import nodomain.freeyourgadget.gadgetbridge.model.NotificationType;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.AbstractBTLEDeviceSupport;
@@ -124,6 +122,7 @@ public class MiBandSupport extends AbstractBTLEDeviceSupport {
     private final GBDeviceEventVersionInfo versionCmd = new GBDeviceEventVersionInfo();
     private final GBDeviceEventBatteryInfo batteryCmd = new GBDeviceEventBatteryInfo();
     private RealtimeSamplesSupport realtimeSamplesSupport;
+    private RealtimeHeartRateKeepAlive heartRateKeepAlive;
     private boolean alarmClockRining;
     private boolean alarmClockRinging;
 
@@ -136,6 +135,25 @@ public class MiBandSupport extends AbstractBTLEDeviceSupport {
         addSupportedService(GattService.UUID_SERVICE_IMMEDIATE_ALERT);
     }
 
+    @Override
+    public void dispose() {
+        if (heartRateKeepAlive != null) {
+            heartRateKeepAlive.stop();
+        }
+        if (realtimeSamplesSupport != null) {
+            realtimeSamplesSupport.stop();
+        }
+        super.dispose();
+    }
+
+    @Override
+    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        super.onConnectionStateChange(gatt, status, newState);
+        if (newState == BluetoothProfile.STATE_DISCONNECTED && realtimeSamplesSupport != null) {
+            realtimeSamplesSupport.flush();
+        }
+    }
+
     @Override
     protected TransactionBuilder initializeDevice(TransactionBuilder builder) {
         builder.add(new SetDeviceStateAction(getDevice(), State.INITIALIZING, getContext()));
@@ -707,21 +725,41 @@ public class MiBandSupport extends AbstractBTLEDeviceSupport {
     public void onEnableRealtimeHeartRateMeasurement(boolean enable) {
         if (supportsHeartRate()) {
             try {
-                TransactionBuilder builder = performInitialized("EnableRealtimeHeartRateMeasurement");
-                if (enable) {
-                    builder.write(getCharacteristic(MiBandService.UUID_CHARACTERISTIC_HEART_RATE_CONTROL_POINT), stopHeartMeasurementManual);
-                    builder.write(getCharacteristic(MiBandService.UUID_CHARACTERISTIC_HEART_RATE_CONTROL_POINT), startHeartMeasurementContinuous);
-                } else {
-                    builder.write(getCharacteristic(MiBandService.UUID_CHARACTERISTIC_HEART_RATE_CONTROL_POINT), stopHeartMeasurementContinuous);
-                }
-                builder.queue(getQueue());
-                enableRealtimeSamplesTimer(enable);
+                getHeartRateKeepAlive().setEnabled(enable);
             } catch (IOException ex) {
                 LOG.error("Unable to enable realtime heart rate measurement in  MI1S", ex);
             }
         }
     }
 
+    private RealtimeHeartRateKeepAlive getHeartRateKeepAlive() {
+        if (heartRateKeepAlive == null) {
+            heartRateKeepAlive = new RealtimeHeartRateKeepAlive(getContext(), gbDevice) {
+                @Override
+                protected void sendEnable(boolean enable) throws IOException {
+                    TransactionBuilder builder = performInitialized("EnableRealtimeHeartRateMeasurement");
+                    if (enable) {
+                        builder.write(getCharacteristic(MiBandService.UUID_CHARACTERISTIC_HEART_RATE_CONTROL_POINT), stopHeartMeasurementManual);
+                        builder.write(getCharacteristic(MiBandService.UUID_CHARACTERISTIC_HEART_RATE_CONTROL_POINT), startHeartMeasurementContinuous);
+                    } else {
+                        builder.write(getCharacteristic(MiBandService.UUID_CHARACTERISTIC_HEART_RATE_CONTROL_POINT), stopHeartMeasurementContinuous);
+                    }
+                    builder.queue(getQueue());
+                    enableRealtimeSamplesTimer(enable);
+                }
+
+                @Override
+                protected void sendRenewal() throws IOException {
+                    TransactionBuilder builder = performInitialized("RenewRealtimeHeartRateMeasurement");
+                    builder.write(getCharacteristic(MiBandService.UUID_CHARACTERISTIC_HEART_RATE_CONTROL_POINT), stopHeartMeasurementManual);
+                    builder.write(getCharacteristic(MiBandService.UUID_CHARACTERISTIC_HEART_RATE_CONTROL_POINT), startHeartMeasurementContinuous);
+                    builder.queue(getQueue());
+                }
+            };
+        }
+        return heartRateKeepAlive;
+    }
+
     public boolean supportsHeartRate() {
         return getDeviceInfo() != null && getDeviceInfo().supportsHeartrate();
     }
@@ -968,6 +1006,7 @@ public class MiBandSupport extends AbstractBTLEDeviceSupport {
 
     private void enableRealtimeSamplesTimer(boolean enable) {
         if (enable) {
+            getRealtimeSamplesSupport().setFlushInterval(MiBandCoordinator.getRealtimeFlushInterval());
             getRealtimeSamplesSupport().start();
         } else {
             if (realtimeSamplesSupport != null) {
@@ -988,40 +1027,28 @@ public class MiBandSupport extends AbstractBTLEDeviceSupport {
 
     private RealtimeSamplesSupport getRealtimeSamplesSupport() {
         if (realtimeSamplesSupport == null) {
-            realtimeSamplesSupport = new RealtimeSamplesSupport(1000, 1000) {
+            realtimeSamplesSupport = new RealtimeSamplesSupport(gbDevice, 1000, 1000) {
                 @Override
-                public void doCurrentSample() {
-
-                    try (DBHandler handler = GBApplication.acquireDB()) {
-                        DaoSession session = handler.getDaoSession();
-
-                        Device device = DBHelper.getDevice(getDevice(), session);
-                        User user = DBHelper.getUser(session);
-                        int ts = (int) (System.currentTimeMillis() / 1000);
-                        MiBandSampleProvider provider = new MiBandSampleProvider(gbDevice, session);
-                        MiBandActivitySample sample = createActivitySample(device, user, ts, provider);
-                        sample.setHeartRate(getHeartrateBpm());
+                protected void saveSamples(DBHandler handler, RealtimeSampleBuffer samples) {
+                    DaoSession session = handler.getDaoSession();
+
+                    Device device = DBHelper.getDevice(gbDevice, session);
+                    User user = DBHelper.getUser(session);
+                    MiBandSampleProvider provider = new MiBandSampleProvider(gbDevice, session);
+                    MiBandActivitySample[] activitySamples = new MiBandActivitySample[samples.size()];
+                    for (int i = 0; i < activitySamples.length; i++) {
+                        MiBandActivitySample sample = createActivitySample(device, user, samples.getTimestamp(i), provider);
+                        sample.setHeartRate(samples.getHeartRate(i));
+                        // realtime steps are also recorded in the regular samples
+                        // and we must not count them twice
                         sample.setRawIntensity(ActivitySample.NOT_MEASURED);
                         sample.setRawKind(MiBandSampleProvider.TYPE_ACTIVITY); // to make it visible in the charts TODO: add a MANUAL kind for that?
+                        activitySamples[i] = sample;
+                    }
+                    provider.addGBActivitySamples(activitySamples);
 
-                        provider.addGBActivitySample(sample);
-
-                        // set the steps only afterwards, since realtime steps are also recorded
-                        // in the regular samples and we must not count them twice
-                        // Note: we know that the DAO sample is never committed again, so we simply
-                        // change the value here in memory.
-                        sample.setSteps(getSteps());
-
-                        if (LOG.isDebugEnabled()) {
-                            LOG.debug("realtime sample: " + sample);
-                        }
-
-                        Intent intent = new Intent(DeviceService.ACTION_REALTIME_SAMPLES)
-                                .putExtra(DeviceService.EXTRA_REALTIME_SAMPLE, sample);
-                        LocalBroadcastManager.getInstance(getContext()).sendBroadcast(intent);
-
-                    } catch (Exception e) {
-                        LOG.warn("Unable to acquire db for saving realtime samples", e);
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("saved " + activitySamples.length + " realtime samples");
                     }
                 }
             };
@@ -0,0 +1,197 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service.devices.miband;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.support.v4.content.LocalBroadcastManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
+
+/**
+ * Keeps the realtime heart rate measurement of a device running while it is enabled.
+ * <p/>
+ * The device stops a continuous measurement unless it is renewed within its measurement
+ * window. Rather than renewing it whenever a client asks for it, it is renewed shortly before
+ * the window expires, and repeated enable or disable requests are dropped. When the measurement
+ * is disabled, the number of transactions that were sent is logged as an indication of the
+ * radio duty cycle.
+ * <p/>
+ * While enabled, the device state is watched: when the device disconnects, the measurement
+ * is set up again as soon as it is initialized after reconnecting.
+ */
+public abstract class RealtimeHeartRateKeepAlive {
+    private static final Logger LOG = LoggerFactory.getLogger(RealtimeHeartRateKeepAlive.class);
+
+    /**
+     * Mi Bands stop a continuous measurement after about 15 seconds without renewal.
+     */
+    public static final long DEFAULT_MEASUREMENT_WINDOW_MILLIS = 15000;
+    public static final long DEFAULT_MARGIN_MILLIS = 3000;
+
+    private final Context context;
+    private final GBDevice device;
+    private final long renewalInterval;
+
+    private Timer renewalTimer;
+    private boolean reenable;
+    private long startMillis;
+    private int transactionCount;
+    private int droppedRequestCount;
+
+    private final BroadcastReceiver deviceChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (GBDevice.ACTION_DEVICE_CHANGED.equals(intent.getAction())) {
+                GBDevice changedDevice = intent.getParcelableExtra(GBDevice.EXTRA_DEVICE);
+                if (changedDevice != null && device.getAddress().equals(changedDevice.getAddress())) {
+                    onDeviceChanged(changedDevice.isInitialized());
+                }
+            }
+        }
+    };
+
+    public RealtimeHeartRateKeepAlive(Context context, GBDevice device) {
+        this(context, device, DEFAULT_MEASUREMENT_WINDOW_MILLIS, DEFAULT_MARGIN_MILLIS);
+    }
+
+    /**
+     * @param context the context to watch the device state with
+     * @param device the device
+     * @param measurementWindowMillis the time after which the device stops measuring, unless renewed
+     * @param marginMillis the time before the end of the measurement window to renew the measurement
+     */
+    public RealtimeHeartRateKeepAlive(Context context, GBDevice device, long measurementWindowMillis, long marginMillis) {
+        this.context = context;
+        this.device = device;
+        renewalInterval = measurementWindowMillis - marginMillis;
+        if (renewalInterval <= 0) {
+            throw new IllegalArgumentException("margin must be smaller than the measurement window");
+        }
+    }
+
+    /**
+     * Sends the transaction to enable or disable the measurement.
+     */
+    protected abstract void sendEnable(boolean enable) throws IOException;
+
+    /**
+     * Sends the transaction to renew a running measurement.
+     */
+    protected abstract void sendRenewal() throws IOException;
+
+    public synchronized boolean isEnabled() {
+        return renewalTimer != null;
+    }
+
+    /**
+     * Enables or disables the measurement, unless it is already in the requested state.
+     */
+    public synchronized void setEnabled(boolean enable) throws IOException {
+        if (enable == isEnabled()) {
+            droppedRequestCount++;
+            return;
+        }
+        if (enable) {
+            sendEnable(true);
+            reenable = false;
+            startMillis = System.currentTimeMillis();
+            transactionCount = 1;
+            droppedRequestCount = 0;
+            renewalTimer = new Timer("Realtime Heart Rate Keepalive");
+            renewalTimer.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    renew();
+                }
+            }, renewalInterval, renewalInterval);
+            LocalBroadcastManager.getInstance(context).registerReceiver(deviceChangedReceiver,
+                    new IntentFilter(GBDevice.ACTION_DEVICE_CHANGED));
+        } else {
+            cancelRenewal();
+            sendEnable(false);
+            transactionCount++;
+            logDutyCycle();
+        }
+    }
+
+    /**
+     * Stops renewing the measurement without sending anything, e.g. because the
+     * device is going away.
+     */
+    public synchronized void stop() {
+        if (isEnabled()) {
+            cancelRenewal();
+            logDutyCycle();
+        }
+    }
+
+    private synchronized void onDeviceChanged(boolean initialized) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (!initialized) {
+            // the measurement has to be set up again after reconnecting
+            reenable = true;
+        } else if (reenable) {
+            renew();
+        }
+    }
+
+    private synchronized void renew() {
+        if (!isEnabled()) {
+            return;
+        }
+        if (!device.isInitialized()) {
+            reenable = true;
+            return;
+        }
+        try {
+            if (reenable) {
+                sendEnable(true);
+                reenable = false;
+            } else {
+                sendRenewal();
+            }
+            transactionCount++;
+        } catch (IOException ex) {
+            LOG.warn("Unable to renew realtime heart rate measurement", ex);
+        }
+    }
+
+    private void cancelRenewal() {
+        LocalBroadcastManager.getInstance(context).unregisterReceiver(deviceChangedReceiver);
+        renewalTimer.cancel();
+        renewalTimer = null;
+    }
+
+    private void logDutyCycle() {
+        long duration = Math.max(System.currentTimeMillis() - startMillis, 1);
+        LOG.info("Realtime heart rate measurement ran for " + (duration / 1000) + "s with "
+                + transactionCount + " transactions (" + (transactionCount * 60000L / duration) + " per minute), "
+                + droppedRequestCount + " duplicate requests dropped");
+    }
+}
@@ -0,0 +1,104 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service.devices.miband;
+
+/**
+ * A ring buffer of realtime samples, stored as primitive columns. When the buffer is full,
+ * the oldest samples are overwritten.
+ */
+public class RealtimeSampleBuffer {
+    private final int[] timestamps;
+    private final int[] steps;
+    private final int[] heartRates;
+    private int start;
+    private int size;
+    private int overwritten;
+
+    public RealtimeSampleBuffer(int capacity) {
+        timestamps = new int[capacity];
+        steps = new int[capacity];
+        heartRates = new int[capacity];
+    }
+
+    public void add(int timestamp, int steps, int heartRate) {
+        int index = (start + size) % timestamps.length;
+        if (size == timestamps.length) {
+            start = (start + 1) % timestamps.length;
+            overwritten++;
+        } else {
+            size++;
+        }
+        timestamps[index] = timestamp;
+        this.steps[index] = steps;
+        heartRates[index] = heartRate;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the number of samples that were overwritten since the last #clear().
+     */
+    public int getOverwrittenCount() {
+        return overwritten;
+    }
+
+    /**
+     * Returns the timestamp (in seconds) of the i-th oldest sample.
+     */
+    public int getTimestamp(int i) {
+        return timestamps[indexOf(i)];
+    }
+
+    public int getSteps(int i) {
+        return steps[indexOf(i)];
+    }
+
+    public int getHeartRate(int i) {
+        return heartRates[indexOf(i)];
+    }
+
+    private int indexOf(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", size: " + size);
+        }
+        return (start + i) % timestamps.length;
+    }
+
+    /**
+     * Returns a new buffer with just the samples of this one.
+     */
+    public RealtimeSampleBuffer copy() {
+        RealtimeSampleBuffer copy = new RealtimeSampleBuffer(Math.max(size, 1));
+        for (int i = 0; i < size; i++) {
+            int index = (start + i) % timestamps.length;
+            copy.add(timestamps[index], steps[index], heartRates[index]);
+        }
+        return copy;
+    }
+
+    public void clear() {
+        start = 0;
+        size = 0;
+        overwritten = 0;
+    }
+}
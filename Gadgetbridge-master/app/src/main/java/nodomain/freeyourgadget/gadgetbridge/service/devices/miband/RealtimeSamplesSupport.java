@@ -16,10 +16,19 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.service.devices.miband;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.util.Timer;
 import java.util.TimerTask;
 
+import nodomain.freeyourgadget.gadgetbridge.GBApplication;
+import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
+import nodomain.freeyourgadget.gadgetbridge.database.DBWriter;
+import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandConst;
+import nodomain.freeyourgadget.gadgetbridge.impl.GBDevice;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
+import nodomain.freeyourgadget.gadgetbridge.model.RealtimeSampleListener;
 
 /**
  * Basic support for aggregating different sources of realtime data that comes in in a mostly
@@ -29,12 +38,28 @@ import nodomain.freeyourgadget.gadgetbridge.model.ActivitySample;
  * stop the timer.
  * manner.
  *
- * Subclasses must implement #doCurrentSample() and should override #resetCurrentValues()
+ * Each sample is published to the {@link RealtimeSampleListener}s immediately, and buffered
+ * until the flush interval has passed, the timer is stopped or #flush() is called. Then all
+ * buffered samples are stored in one go on the database writer thread.
+ *
+ * Subclasses must implement #saveSamples() and should override #resetCurrentValues()
  * (but call super!).
  */
 public abstract class RealtimeSamplesSupport {
+    private static final Logger LOG = LoggerFactory.getLogger(RealtimeSamplesSupport.class);
+
+    /**
+     * Ten minutes of samples in the default interval, in case the database is not
+     * accessible for a while.
+     */
+    private static final int BUFFER_CAPACITY = 600;
+
+    private final GBDevice device;
     private final long delay;
     private final long period;
+    private final RealtimeSampleBuffer buffer = new RealtimeSampleBuffer(BUFFER_CAPACITY);
+    private int flushInterval = MiBandConst.DEFAULT_VALUE_REALTIME_FLUSH_INTERVAL;
+    private int lastFlushTimestamp;
 
     protected int steps;
     protected int heartrateBpm;
@@ -43,11 +68,20 @@ public abstract class RealtimeSamplesSupport {
 
     private Timer realtimeStorageTimer;
 
-    public RealtimeSamplesSupport(long delay, long period) {
+    public RealtimeSamplesSupport(GBDevice device, long delay, long period) {
+        this.device = device;
         this.delay = delay;
         this.period = period;
     }
 
+    /**
+     * Sets the maximum time in seconds that samples are kept in memory before being stored,
+     * see {@link MiBandConst#PREF_MIBAND_REALTIME_FLUSH_INTERVAL}.
+     */
+    public synchronized void setFlushInterval(int flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
     public synchronized void start() {
         if (isRunning()) {
             return; // already running
@@ -67,6 +101,7 @@ public abstract class RealtimeSamplesSupport {
             realtimeStorageTimer.purge();
             realtimeStorageTimer = null;
         }
+        flush();
     }
 
     public synchronized boolean isRunning() {
@@ -105,8 +140,49 @@ public abstract class RealtimeSamplesSupport {
     }
 
     public void triggerCurrentSample() {
-        doCurrentSample();
-        resetCurrentValues();
+        int timestamp = (int) (System.currentTimeMillis() / 1000);
+        int steps;
+        int heartRate;
+        boolean flush;
+        synchronized (this) {
+            steps = getSteps();
+            heartRate = getHeartrateBpm();
+            buffer.add(timestamp, steps, heartRate);
+            resetCurrentValues();
+            if (lastFlushTimestamp == 0) {
+                lastFlushTimestamp = timestamp;
+            }
+            // single shot measurements are stored right away
+            flush = !isRunning() || timestamp - lastFlushTimestamp >= flushInterval;
+        }
+        RealtimeSampleListener.Registry.publish(device, timestamp, steps, heartRate);
+        if (flush) {
+            flush();
+        }
+    }
+
+    /**
+     * Stores all buffered samples asynchronously.
+     */
+    public void flush() {
+        final RealtimeSampleBuffer samples;
+        synchronized (this) {
+            lastFlushTimestamp = (int) (System.currentTimeMillis() / 1000);
+            if (buffer.isEmpty()) {
+                return;
+            }
+            if (buffer.getOverwrittenCount() > 0) {
+                LOG.warn("Realtime sample buffer overflow, lost " + buffer.getOverwrittenCount() + " samples");
+            }
+            samples = buffer.copy();
+            buffer.clear();
+        }
+        GBApplication.dbWriter().submit(new DBWriter.WriteTask() {
+            @Override
+            public void write(DBHandler handler) throws Exception {
+                saveSamples(handler, samples);
+            }
+        });
     }
 
     protected synchronized void resetCurrentValues() {
@@ -117,5 +193,8 @@ public abstract class RealtimeSamplesSupport {
         heartrateBpm = ActivitySample.NOT_MEASURED;
     }
 
-    protected abstract void doCurrentSample();
+    /**
+     * Stores the given samples. Called on the database writer thread.
+     */
+    protected abstract void saveSamples(DBHandler handler, RealtimeSampleBuffer samples) throws Exception;
 }
@@ -386,6 +386,9 @@ public class FetchActivityOperation extends AbstractMiBand1Operation {
                     timestampInSeconds += 60;
                 }
                 provider.addGBActivitySamples(samples);
+                if (numSamples > 0) {
+                    provider.updateSampleColumns(samples[0].getTimestamp(), samples[numSamples - 1].getTimestamp());
+                }
             } finally {
                 activityStruct.bufferFlushed(minutes);
             }
@@ -210,10 +210,10 @@ public class UpdateFirmwareOperation extends AbstractMiBand1Operation {
         int encodedMac = (Integer.decode("0x" + mMacOctets[4]) << 8 | Integer.decode("0x" + mMacOctets[5]));
 
         byte[] fw2Bytes = info.getSecond().getFirmwareBytes();
-        int fw2Checksum = CheckSums.getCRC16(fw2Bytes) ^ encodedMac;
+        int fw2Checksum = info.getSecond().getFirmwareCrc16() ^ encodedMac;
 
         byte[] fw1Bytes = info.getFirst().getFirmwareBytes();
-        int fw1Checksum = encodedMac ^ CheckSums.getCRC16(fw1Bytes);
+        int fw1Checksum = encodedMac ^ info.getFirst().getFirmwareCrc16();
 
         // check firmware validity?
 
@@ -17,6 +17,7 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.service.devices.miband2;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -74,7 +75,15 @@ public class Mi2FirmwareInfo extends HuamiFirmwareInfo {
         super(bytes);
     }
 
-    protected HuamiFirmwareType determineFirmwareType(byte[] bytes) {
+    public Mi2FirmwareInfo(ByteBuffer buffer, int crc16) {
+        super(buffer, crc16);
+    }
+
+    public Mi2FirmwareInfo(ByteBuffer buffer, int crc16, long crc32) {
+        super(buffer, crc16, crc32);
+    }
+
+    protected HuamiFirmwareType determineFirmwareType(ByteBuffer bytes) {
         if (ArrayUtils.startsWith(bytes, HuamiFirmwareInfo.FT_HEADER)) {
             return HuamiFirmwareType.FONT;
         }
@@ -94,7 +103,7 @@ public class Mi2FirmwareInfo extends HuamiFirmwareInfo {
     }
 
     @Override
-    protected String searchFirmwareVersion(byte[] fwbytes) {
+    protected String searchFirmwareVersion(ByteBuffer fwbuffer) {
         // does not work for Mi Band 2
         return null;
     }
@@ -20,6 +20,7 @@ package nodomain.freeyourgadget.gadgetbridge.service.devices.miband2;
 
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothProfile;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -90,6 +91,7 @@ import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.BtLEAction;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.GattCharacteristic;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.GattService;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.NotificationDispatcher;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.AbortTransactionAction;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.SetDeviceStateAction;
@@ -99,6 +101,8 @@ import nodomain.freeyourgadget.gadgetbridge.service.btle.profiles.heartrate.Hear
 import nodomain.freeyourgadget.gadgetbridge.service.devices.common.SimpleNotification;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.HuamiDeviceEvent;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.miband.NotificationStrategy;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.miband.RealtimeSampleBuffer;
+import nodomain.freeyourgadget.gadgetbridge.service.devices.miband.RealtimeHeartRateKeepAlive;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.miband.RealtimeSamplesSupport;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.miband2.actions.StopNotificationAction;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.miband2.operations.FetchActivityOperation;
@@ -161,6 +165,7 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
     private final GBDeviceEventFindPhone findPhoneEvent = new GBDeviceEventFindPhone();
 
     private RealtimeSamplesSupport realtimeSamplesSupport;
+    private RealtimeHeartRateKeepAlive heartRateKeepAlive;
     private boolean alarmClockRinging;
 
     public MiBand2Support() {
@@ -185,6 +190,8 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
         heartRateProfile = new HeartRateProfile<>(this);
         addSupportedProfile(heartRateProfile);
 
+        addNotificationHandlers();
+
         LocalBroadcastManager broadcastManager = LocalBroadcastManager.getInstance(getContext());
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(DeviceInfoProfile.ACTION_DEVICE_INFO);
@@ -192,13 +199,68 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
         broadcastManager.registerReceiver(mReceiver, intentFilter);
     }
 
+    private void addNotificationHandlers() {
+        addNotificationHandler(MiBand2Service.UUID_CHARACTERISTIC_6_BATTERY_INFO, new NotificationDispatcher.Handler() {
+            @Override
+            public boolean onCharacteristicChanged(BluetoothGattCharacteristic characteristic) {
+                handleBatteryInfo(characteristic.getValue(), BluetoothGatt.GATT_SUCCESS);
+                return true;
+            }
+        });
+        NotificationDispatcher.Handler realtimeStepsHandler = new NotificationDispatcher.Handler() {
+            @Override
+            public boolean onCharacteristicChanged(BluetoothGattCharacteristic characteristic) {
+                handleRealtimeSteps(characteristic.getValue());
+                return true;
+            }
+        };
+        addNotificationHandler(MiBandService.UUID_CHARACTERISTIC_REALTIME_STEPS, realtimeStepsHandler);
+        addNotificationHandler(MiBand2Service.UUID_CHARACTERISTIC_7_REALTIME_STEPS, realtimeStepsHandler);
+        addNotificationHandler(GattCharacteristic.UUID_CHARACTERISTIC_HEART_RATE_MEASUREMENT, new NotificationDispatcher.Handler() {
+            @Override
+            public boolean onCharacteristicChanged(BluetoothGattCharacteristic characteristic) {
+                handleHeartrate(characteristic.getValue());
+                return true;
+            }
+        });
+        addNotificationHandler(MiBand2Service.UUID_CHARACTERISTIC_AUTH, new NotificationDispatcher.Handler() {
+            @Override
+            public boolean onCharacteristicChanged(BluetoothGattCharacteristic characteristic) {
+                LOG.info("AUTHENTICATION?? " + characteristic.getUuid());
+                logMessageContent(characteristic.getValue());
+                return true;
+            }
+        });
+        addNotificationHandler(MiBand2Service.UUID_CHARACTERISTIC_DEVICEEVENT, new NotificationDispatcher.Handler() {
+            @Override
+            public boolean onCharacteristicChanged(BluetoothGattCharacteristic characteristic) {
+                handleDeviceEvent(characteristic.getValue());
+                return true;
+            }
+        });
+    }
+
     @Override
     public void dispose() {
         LocalBroadcastManager broadcastManager = LocalBroadcastManager.getInstance(getContext());
         broadcastManager.unregisterReceiver(mReceiver);
+        if (heartRateKeepAlive != null) {
+            heartRateKeepAlive.stop();
+        }
+        if (realtimeSamplesSupport != null) {
+            realtimeSamplesSupport.stop();
+        }
         super.dispose();
     }
 
+    @Override
+    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        super.onConnectionStateChange(gatt, status, newState);
+        if (newState == BluetoothProfile.STATE_DISCONNECTED && realtimeSamplesSupport != null) {
+            realtimeSamplesSupport.flush();
+        }
+    }
+
     @Override
     protected TransactionBuilder initializeDevice(TransactionBuilder builder) {
         try {
@@ -258,6 +320,15 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
         return this;
     }
 
+    /**
+     * Returns whether firmware data chunks larger than 20 bytes should be sent, if a larger
+     * MTU can be negotiated. The Mi Band 2 and the Amazfit Bip are only known to work with
+     * 20 byte chunks, so this is an experimental developer option.
+     */
+    public boolean supportsLargeFirmwareChunks() {
+        return GBApplication.getPrefs().getBoolean(MiBandConst.PREF_MI2_LARGE_FIRMWARE_PACKETS, false);
+    }
+
     /**
      * Last action of initialization sequence. Sets the device to initialized.
      * It is only invoked if all other actions were successfully run, so the device
@@ -748,24 +819,44 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
             return;
         }
         try {
-            TransactionBuilder builder = performInitialized("Enable realtime heart rate measurement");
-            BluetoothGattCharacteristic heartrateCharacteristic = getCharacteristic(GattCharacteristic.UUID_CHARACTERISTIC_HEART_RATE_MEASUREMENT);
-            if (heartrateCharacteristic != null) {
-                builder.notify(heartrateCharacteristic, enable);
-            }
-            if (enable) {
-                builder.write(characteristicHRControlPoint, stopHeartMeasurementManual);
-                builder.write(characteristicHRControlPoint, startHeartMeasurementContinuous);
-            } else {
-                builder.write(characteristicHRControlPoint, stopHeartMeasurementContinuous);
-            }
-            builder.queue(getQueue());
-            enableRealtimeSamplesTimer(enable);
+            getHeartRateKeepAlive().setEnabled(enable);
         } catch (IOException ex) {
             LOG.error("Unable to enable realtime heart rate measurement", ex);
         }
     }
 
+    private RealtimeHeartRateKeepAlive getHeartRateKeepAlive() {
+        if (heartRateKeepAlive == null) {
+            heartRateKeepAlive = new RealtimeHeartRateKeepAlive(getContext(), gbDevice) {
+                @Override
+                protected void sendEnable(boolean enable) throws IOException {
+                    TransactionBuilder builder = performInitialized("Enable realtime heart rate measurement");
+                    BluetoothGattCharacteristic heartrateCharacteristic = getCharacteristic(GattCharacteristic.UUID_CHARACTERISTIC_HEART_RATE_MEASUREMENT);
+                    if (heartrateCharacteristic != null) {
+                        builder.notify(heartrateCharacteristic, enable);
+                    }
+                    if (enable) {
+                        builder.write(characteristicHRControlPoint, stopHeartMeasurementManual);
+                        builder.write(characteristicHRControlPoint, startHeartMeasurementContinuous);
+                    } else {
+                        builder.write(characteristicHRControlPoint, stopHeartMeasurementContinuous);
+                    }
+                    builder.queue(getQueue());
+                    enableRealtimeSamplesTimer(enable);
+                }
+
+                @Override
+                protected void sendRenewal() throws IOException {
+                    TransactionBuilder builder = performInitialized("Renew realtime heart rate measurement");
+                    builder.write(characteristicHRControlPoint, stopHeartMeasurementManual);
+                    builder.write(characteristicHRControlPoint, startHeartMeasurementContinuous);
+                    builder.queue(getQueue());
+                }
+            };
+        }
+        return heartRateKeepAlive;
+    }
+
     @Override
     public void onFindDevice(boolean start) {
         isLocatingDevice = start;
@@ -1021,33 +1112,11 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
     @Override
     public boolean onCharacteristicChanged(BluetoothGatt gatt,
                                            BluetoothGattCharacteristic characteristic) {
-        super.onCharacteristicChanged(gatt, characteristic);
-
-        UUID characteristicUUID = characteristic.getUuid();
-        if (MiBand2Service.UUID_CHARACTERISTIC_6_BATTERY_INFO.equals(characteristicUUID)) {
-            handleBatteryInfo(characteristic.getValue(), BluetoothGatt.GATT_SUCCESS);
-            return true;
-        } else if (MiBandService.UUID_CHARACTERISTIC_REALTIME_STEPS.equals(characteristicUUID)) {
-            handleRealtimeSteps(characteristic.getValue());
-            return true;
-        } else if (GattCharacteristic.UUID_CHARACTERISTIC_HEART_RATE_MEASUREMENT.equals(characteristicUUID)) {
-            handleHeartrate(characteristic.getValue());
-            return true;
-        } else if (MiBand2Service.UUID_CHARACTERISTIC_AUTH.equals(characteristicUUID)) {
-            LOG.info("AUTHENTICATION?? " + characteristicUUID);
-            logMessageContent(characteristic.getValue());
-            return true;
-        } else if (MiBand2Service.UUID_CHARACTERISTIC_DEVICEEVENT.equals(characteristicUUID)) {
-            handleDeviceEvent(characteristic.getValue());
+        if (super.onCharacteristicChanged(gatt, characteristic)) {
             return true;
-        } else if (MiBand2Service.UUID_CHARACTERISTIC_7_REALTIME_STEPS.equals(characteristicUUID)) {
-            handleRealtimeSteps(characteristic.getValue());
-            return true;
-        } else {
-            LOG.info("Unhandled characteristic changed: " + characteristicUUID);
-            logMessageContent(characteristic.getValue());
         }
-
+        LOG.info("Unhandled characteristic changed: " + characteristic.getUuid());
+        logMessageContent(characteristic.getValue());
         return false;
     }
 
@@ -1139,6 +1208,7 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
 
     private void enableRealtimeSamplesTimer(boolean enable) {
         if (enable) {
+            getRealtimeSamplesSupport().setFlushInterval(MiBandCoordinator.getRealtimeFlushInterval());
             getRealtimeSamplesSupport().start();
         } else {
             if (realtimeSamplesSupport != null) {
@@ -1159,41 +1229,27 @@ public class MiBand2Support extends AbstractBTLEDeviceSupport {
 
     private RealtimeSamplesSupport getRealtimeSamplesSupport() {
         if (realtimeSamplesSupport == null) {
-            realtimeSamplesSupport = new RealtimeSamplesSupport(1000, 1000) {
+            realtimeSamplesSupport = new RealtimeSamplesSupport(gbDevice, 1000, 1000) {
                 @Override
-                public void doCurrentSample() {
-
-                    try (DBHandler handler = GBApplication.acquireDB()) {
-                        DaoSession session = handler.getDaoSession();
-
-                        Device device = DBHelper.getDevice(getDevice(), session);
-                        User user = DBHelper.getUser(session);
-                        int ts = (int) (System.currentTimeMillis() / 1000);
-                        MiBand2SampleProvider provider = new MiBand2SampleProvider(gbDevice, session);
-                        MiBandActivitySample sample = createActivitySample(device, user, ts, provider);
-                        sample.setHeartRate(getHeartrateBpm());
-                        sample.setSteps(getSteps());
+                protected void saveSamples(DBHandler handler, RealtimeSampleBuffer samples) {
+                    DaoSession session = handler.getDaoSession();
+
+                    Device device = DBHelper.getDevice(gbDevice, session);
+                    User user = DBHelper.getUser(session);
+                    MiBand2SampleProvider provider = new MiBand2SampleProvider(gbDevice, session);
+                    MiBandActivitySample[] activitySamples = new MiBandActivitySample[samples.size()];
+                    for (int i = 0; i < activitySamples.length; i++) {
+                        MiBandActivitySample sample = createActivitySample(device, user, samples.getTimestamp(i), provider);
+                        sample.setHeartRate(samples.getHeartRate(i));
+                        sample.setSteps(samples.getSteps(i));
                         sample.setRawIntensity(ActivitySample.NOT_MEASURED);
                         sample.setRawKind(MiBand2Const.TYPE_ACTIVITY); // to make it visible in the charts TODO: add a MANUAL kind for that?
+                        activitySamples[i] = sample;
+                    }
+                    provider.addGBActivitySamples(activitySamples);
 
-                        provider.addGBActivitySample(sample);
-
-                        // set the steps only afterwards, since realtime steps are also recorded
-                        // in the regular samples and we must not count them twice
-                        // Note: we know that the DAO sample is never committed again, so we simply
-                        // change the value here in memory.
-                        sample.setSteps(getSteps());
-
-                        if (LOG.isDebugEnabled()) {
-                            LOG.debug("realtime sample: " + sample);
-                        }
-
-                        Intent intent = new Intent(DeviceService.ACTION_REALTIME_SAMPLES)
-                                .putExtra(DeviceService.EXTRA_REALTIME_SAMPLE, sample);
-                        LocalBroadcastManager.getInstance(getContext()).sendBroadcast(intent);
-
-                    } catch (Exception e) {
-                        LOG.warn("Unable to acquire db for saving realtime samples", e);
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("saved " + activitySamples.length + " realtime samples");
                     }
                 }
             };
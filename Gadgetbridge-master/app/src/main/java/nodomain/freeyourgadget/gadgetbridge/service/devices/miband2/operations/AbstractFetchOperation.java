@@ -16,7 +16,6 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.service.devices.miband2.operations;
 
-import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.content.SharedPreferences;
 import android.support.annotation.CallSuper;
@@ -31,6 +30,8 @@ import java.text.DateFormat;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
@@ -38,6 +39,7 @@ import nodomain.freeyourgadget.gadgetbridge.Logging;
 import nodomain.freeyourgadget.gadgetbridge.R;
 import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBand2Service;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.NotificationDispatcher;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.SetDeviceBusyAction;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.miband2.AbstractMiBand2Operation;
@@ -58,9 +60,24 @@ public abstract class AbstractFetchOperation extends AbstractMiBand2Operation {
     protected BluetoothGattCharacteristic characteristicFetch;
     protected Calendar startTimestamp;
     protected int expectedDataLength;
+    private final Map<UUID, NotificationDispatcher.Handler> notificationHandlers = new HashMap<>(2);
 
     public AbstractFetchOperation(MiBand2Support support) {
         super(support);
+        notificationHandlers.put(MiBand2Service.UUID_CHARACTERISTIC_5_ACTIVITY_DATA, new NotificationDispatcher.Handler() {
+            @Override
+            public boolean onCharacteristicChanged(BluetoothGattCharacteristic characteristic) {
+                handleActivityNotif(characteristic.getValue());
+                return true;
+            }
+        });
+        notificationHandlers.put(MiBand2Service.UUID_UNKNOWN_CHARACTERISTIC4, new NotificationDispatcher.Handler() {
+            @Override
+            public boolean onCharacteristicChanged(BluetoothGattCharacteristic characteristic) {
+                handleActivityMetadata(characteristic.getValue());
+                return true;
+            }
+        });
     }
 
     @Override
@@ -93,6 +110,9 @@ public abstract class AbstractFetchOperation extends AbstractMiBand2Operation {
         characteristicFetch = getCharacteristic(MiBand2Service.UUID_UNKNOWN_CHARACTERISTIC4);
         builder.notify(characteristicFetch, true);
 
+        // the fetch characteristics are ours until the fetch is finished
+        getSupport().setNotificationOverrides(this, notificationHandlers);
+
         startFetching(builder);
         builder.queue(getQueue());
     }
@@ -101,23 +121,9 @@ public abstract class AbstractFetchOperation extends AbstractMiBand2Operation {
 
     protected abstract String getLastSyncTimeKey();
 
-    @Override
-    public boolean onCharacteristicChanged(BluetoothGatt gatt,
-                                           BluetoothGattCharacteristic characteristic) {
-        UUID characteristicUUID = characteristic.getUuid();
-        if (MiBand2Service.UUID_CHARACTERISTIC_5_ACTIVITY_DATA.equals(characteristicUUID)) {
-            handleActivityNotif(characteristic.getValue());
-            return true;
-        } else if (MiBand2Service.UUID_UNKNOWN_CHARACTERISTIC4.equals(characteristicUUID)) {
-            handleActivityMetadata(characteristic.getValue());
-            return true;
-        } else {
-            return super.onCharacteristicChanged(gatt, characteristic);
-        }
-    }
-
     @CallSuper
     protected void handleActivityFetchFinish(boolean success) {
+        getSupport().clearNotificationOverrides(this);
         operationFinished();
         unsetBusy();
     }
@@ -23,21 +23,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
-import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHandler;
 import nodomain.freeyourgadget.gadgetbridge.database.DBHelper;
-import nodomain.freeyourgadget.gadgetbridge.devices.SampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBand2SampleProvider;
 import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBand2Service;
-import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandSampleProvider;
+import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBandActivitySampleWriter;
 import nodomain.freeyourgadget.gadgetbridge.entities.DaoSession;
 import nodomain.freeyourgadget.gadgetbridge.entities.Device;
-import nodomain.freeyourgadget.gadgetbridge.entities.MiBandActivitySample;
 import nodomain.freeyourgadget.gadgetbridge.entities.User;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
@@ -53,7 +50,12 @@ import nodomain.freeyourgadget.gadgetbridge.util.GB;
 public class FetchActivityOperation extends AbstractFetchOperation {
     private static final Logger LOG = LoggerFactory.getLogger(FetchActivityOperation.class);
 
-    private List<MiBandActivitySample> samples = new ArrayList<>(60*24); // 1day per default
+    private final MiBandActivitySampleWriter sampleWriter = new MiBandActivitySampleWriter(MiBandActivitySampleWriter.DEFAULT_BATCH_SIZE);
+    /**
+     * The timestamp after the last sample saved in the current round, or null if none was saved.
+     */
+    private GregorianCalendar lastSavedTimestamp;
+    private boolean saveFailed;
 
     public FetchActivityOperation(MiBand2Support support) {
         super(support);
@@ -62,10 +64,17 @@ public class FetchActivityOperation extends AbstractFetchOperation {
 
     @Override
     protected void startFetching() throws IOException {
-        samples.clear();
+        sampleWriter.setStartTimestamp(0);
+        lastSavedTimestamp = null;
         super.startFetching();
     }
 
+    @Override
+    protected void setStartTimestamp(Calendar startTimestamp) {
+        super.setStartTimestamp(startTimestamp);
+        sampleWriter.setStartTimestamp((int) (startTimestamp.getTimeInMillis() / 1000));
+    }
+
     @Override
     protected void startFetching(TransactionBuilder builder) {
         GregorianCalendar sinceWhen = getLastSuccessfulSyncTime();
@@ -108,41 +117,43 @@ public class FetchActivityOperation extends AbstractFetchOperation {
         return true;
     }
 
+    /**
+     * Saves the buffered samples and remembers the timestamp after the last saved sample as the
+     * last successful sync time, so that data saved so far is kept even if the fetch is interrupted.
+     *
+     * @return the timestamp after the last sample saved in this round, or null if none was saved
+     */
     private GregorianCalendar saveSamples() {
-        if (samples.size() > 0) {
-            // save all the samples that we got
+        if (sampleWriter.size() > 0) {
+            if (saveFailed) {
+                // don't leave a gap by saving newer samples after older ones failed
+                LOG.warn("Discarding " + sampleWriter.size() + " samples after an earlier error");
+                sampleWriter.setStartTimestamp(sampleWriter.getNextTimestamp());
+                return null;
+            }
             try (DBHandler handler = GBApplication.acquireDB()) {
                 DaoSession session = handler.getDaoSession();
-                SampleProvider<MiBandActivitySample> sampleProvider = new MiBandSampleProvider(getDevice(), session);
                 Device device = DBHelper.getDevice(getDevice(), session);
                 User user = DBHelper.getUser(session);
-
-                GregorianCalendar timestamp = (GregorianCalendar) startTimestamp.clone();
-                for (MiBandActivitySample sample : samples) {
-                    sample.setDevice(device);
-                    sample.setUser(user);
-                    sample.setTimestamp((int) (timestamp.getTimeInMillis() / 1000));
-                    sample.setProvider(sampleProvider);
-
-                    if (LOG.isDebugEnabled()) {
-//                        LOG.debug("sample: " + sample);
-                    }
-
-                    timestamp.add(Calendar.MINUTE, 1);
-                }
-                sampleProvider.addGBActivitySamples(samples.toArray(new MiBandActivitySample[0]));
-
+                int firstTimestamp = sampleWriter.getNextTimestamp() - sampleWriter.size() * 60;
+                int count = sampleWriter.flush(handler.getDatabase(), device.getId(), user.getId());
+                MiBand2SampleProvider provider = new MiBand2SampleProvider(getDevice(), session);
+                provider.updateActivityRollups(firstTimestamp, sampleWriter.getNextTimestamp() - 60);
+                provider.updateSampleColumns(firstTimestamp, sampleWriter.getNextTimestamp() - 60);
+
+                GregorianCalendar timestamp = BLETypeConversions.createCalendar();
+                timestamp.setTimeInMillis(sampleWriter.getNextTimestamp() * 1000L);
                 saveLastSyncTimestamp(timestamp);
-                LOG.info("Mi2 activity data: last sample timestamp: " + DateTimeUtils.formatDateTime(timestamp.getTime()));
-                return timestamp;
-
+                lastSavedTimestamp = timestamp;
+                LOG.info("Mi2 activity data: saved " + count + " samples, last sample timestamp: " + DateTimeUtils.formatDateTime(timestamp.getTime()));
             } catch (Exception ex) {
+                LOG.error("Error saving activity samples", ex);
+                saveFailed = true;
+                sampleWriter.setStartTimestamp(sampleWriter.getNextTimestamp());
                 GB.toast(getContext(), "Error saving activity samples", Toast.LENGTH_LONG, GB.ERROR);
-            } finally {
-                samples.clear();
             }
         }
-        return null;
+        return saveFailed ? null : lastSavedTimestamp;
     }
 
     /**
@@ -178,7 +189,8 @@ public class FetchActivityOperation extends AbstractFetchOperation {
     }
 
     /**
-     * Creates samples from the given 17-length array
+     * Buffers the samples from the given 17-length array, saving them
+     * whenever the buffer is full.
      * @param value
      */
     protected void bufferActivityData(byte[] value) {
@@ -189,21 +201,14 @@ public class FetchActivityOperation extends AbstractFetchOperation {
         }
 
         for (int i = 1; i < len; i+=4) {
-            MiBandActivitySample sample = createSample(value[i], value[i + 1], value[i + 2], value[i + 3]);
-            samples.add(sample);
+            if (sampleWriter.isFull()) {
+                saveSamples();
+            }
+            // category, intensity, steps, heart rate
+            sampleWriter.add(value[i], value[i + 1], value[i + 2], value[i + 3]);
         }
     }
 
-    private MiBandActivitySample createSample(byte category, byte intensity, byte steps, byte heartrate) {
-        MiBandActivitySample sample = new MiBandActivitySample();
-        sample.setRawKind(category & 0xff);
-        sample.setRawIntensity(intensity & 0xff);
-        sample.setSteps(steps & 0xff);
-        sample.setHeartRate(heartrate & 0xff);
-
-        return sample;
-    }
-
     @Override
     protected String getLastSyncTimeKey() {
         return getDevice().getAddress() + "_" + "lastSyncTimeMillis";
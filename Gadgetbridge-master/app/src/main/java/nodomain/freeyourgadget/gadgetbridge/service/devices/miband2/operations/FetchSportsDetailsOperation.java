@@ -22,7 +22,6 @@ import android.widget.Toast;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.util.GregorianCalendar;
 import java.util.concurrent.TimeUnit;
@@ -35,6 +34,7 @@ import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBand2Service;
 import nodomain.freeyourgadget.gadgetbridge.entities.BaseActivitySummary;
 import nodomain.freeyourgadget.gadgetbridge.export.ActivityTrackExporter;
 import nodomain.freeyourgadget.gadgetbridge.export.GPXExporter;
+import nodomain.freeyourgadget.gadgetbridge.export.TCXExporter;
 import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
@@ -54,7 +54,7 @@ public class FetchSportsDetailsOperation extends AbstractFetchOperation {
     private final BaseActivitySummary summary;
     private final String lastSyncTimeKey;
 
-    private ByteArrayOutputStream buffer;
+    private ActivityDetailsParser parser;
 
     public FetchSportsDetailsOperation(@NonNull BaseActivitySummary summary, @NonNull MiBand2Support support, @NonNull String lastSyncTimeKey) {
         super(support);
@@ -66,7 +66,8 @@ public class FetchSportsDetailsOperation extends AbstractFetchOperation {
     @Override
     protected void startFetching(TransactionBuilder builder) {
         LOG.info("start " + getName());
-        buffer = new ByteArrayOutputStream(1024);
+        parser = new ActivityDetailsParser(summary);
+        parser.setSkipCounterByte(false); // stripped by bufferActivityData()
         GregorianCalendar sinceWhen = getLastSuccessfulSyncTime();
 
         builder.write(characteristicFetch, BLETypeConversions.join(new byte[] {
@@ -93,12 +94,11 @@ public class FetchSportsDetailsOperation extends AbstractFetchOperation {
 
 
         if (success) {
-            ActivityDetailsParser parser = new ActivityDetailsParser(summary);
-            parser.setSkipCounterByte(false); // is already stripped
             try {
-                ActivityTrack track = parser.parse(buffer.toByteArray());
+                ActivityTrack track = parser.finish();
                 ActivityTrackExporter exporter = createExporter();
-                String fileName = FileUtils.makeValidFileName("gadgetbridge-track-" + DateTimeUtils.formatIso8601(summary.getStartTime()) + ".gpx");
+                String baseName = "gadgetbridge-track-" + DateTimeUtils.formatIso8601(summary.getStartTime());
+                String fileName = FileUtils.makeValidFileName(baseName + ".gpx");
                 File targetFile = new File(FileUtils.getExternalFilesDir(), fileName);
 
                 try {
@@ -112,6 +112,14 @@ public class FetchSportsDetailsOperation extends AbstractFetchOperation {
                     GB.toast(getContext(), "This activity does not contain GPX tracks.", Toast.LENGTH_LONG, GB.ERROR, ex);
                 }
 
+                // TCX also keeps the heart rate of points without a location, e.g. indoor activities
+                File tcxFile = new File(FileUtils.getExternalFilesDir(), FileUtils.makeValidFileName(baseName + ".tcx"));
+                try {
+                    createTCXExporter().performExport(track, tcxFile);
+                } catch (ActivityTrackExporter.GPXTrackEmptyException ex) {
+                    LOG.info("Activity details contain no track points, not exporting TCX");
+                }
+
                 GregorianCalendar endTime = BLETypeConversions.createCalendar();
                 endTime.setTime(summary.getEndTime());
                 saveLastSyncTimestamp(endTime);
@@ -129,6 +137,13 @@ public class FetchSportsDetailsOperation extends AbstractFetchOperation {
         return exporter;
     }
 
+    protected ActivityTrackExporter createTCXExporter() {
+        TCXExporter exporter = new TCXExporter();
+        exporter.setCreator(GBApplication.app().getNameAndVersion());
+        exporter.setActivityKind(summary.getActivityKind());
+        return exporter;
+    }
+
     /**
      * Method to handle the incoming activity data.
      * There are two kind of messages we currently know:
@@ -166,13 +181,13 @@ public class FetchSportsDetailsOperation extends AbstractFetchOperation {
     }
 
     /**
-     * Buffers the given activity summary data. If the total size is reached,
-     * it is converted to an object and saved in the database.
+     * Decodes the given sports details data right away. The track is
+     * exported when the fetch has finished.
      * @param value
      */
     @Override
     protected void bufferActivityData(byte[] value) {
-        buffer.write(value, 1, value.length - 1); // skip the counter
+        parser.feed(value, 1, value.length - 1); // skip the counter
     }
 
     @Override
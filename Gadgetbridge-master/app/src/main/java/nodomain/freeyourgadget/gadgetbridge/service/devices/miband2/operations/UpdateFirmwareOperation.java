@@ -26,8 +26,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.UUID;
+import java.util.zip.Checksum;
 
 import nodomain.freeyourgadget.gadgetbridge.GBApplication;
 import nodomain.freeyourgadget.gadgetbridge.R;
@@ -36,25 +37,46 @@ import nodomain.freeyourgadget.gadgetbridge.devices.huami.HuamiFWHelper;
 import nodomain.freeyourgadget.gadgetbridge.devices.miband.MiBand2Service;
 import nodomain.freeyourgadget.gadgetbridge.devices.huami.miband2.MiBand2FWHelper;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.BLETypeConversions;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.BtLEQueue;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.TransactionBuilder;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.PlainAction;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.RequestMtuAction;
 import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.SetDeviceBusyAction;
-import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.SetProgressAction;
+import nodomain.freeyourgadget.gadgetbridge.service.btle.actions.WriteChunkAction;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.HuamiFirmwareInfo;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.miband2.AbstractMiBand2Operation;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.huami.HuamiFirmwareType;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.miband2.Mi2FirmwareInfo;
 import nodomain.freeyourgadget.gadgetbridge.service.devices.miband2.MiBand2Support;
+import nodomain.freeyourgadget.gadgetbridge.util.CheckSums;
 import nodomain.freeyourgadget.gadgetbridge.util.GB;
 import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
 
 public class UpdateFirmwareOperation extends AbstractMiBand2Operation {
     private static final Logger LOG = LoggerFactory.getLogger(UpdateFirmwareOperation.class);
 
+    /**
+     * The MTU to request before sending the firmware, if the device supports larger chunks
+     * (see {@link MiBand2Support#supportsLargeFirmwareChunks()}). Devices that don't support
+     * it will negotiate a smaller one, down to the default of 23 bytes.
+     */
+    private static final int FIRMWARE_MTU = 247;
+    /**
+     * The firmware bytes sent between two sync commands, 100 chunks of the default size.
+     * With larger chunks, the sync commands are sent after fewer chunks accordingly.
+     */
+    private static final int BYTES_PER_SYNC = 100 * BtLEQueue.DEFAULT_MAX_WRITE_LENGTH;
+
     protected final Uri uri;
     protected final BluetoothGattCharacteristic fwCControlChar;
     protected final BluetoothGattCharacteristic fwCDataChar;
     protected final Prefs prefs = GBApplication.getPrefs();
     protected HuamiFirmwareInfo firmwareInfo;
+    /**
+     * Whether the CRC16 of the firmware data actually written matches the one of the file,
+     * or null if the transfer has not finished yet.
+     */
+    private volatile Boolean sentDataValid;
 
     public UpdateFirmwareOperation(Uri uri, MiBand2Support support) {
         super(support);
@@ -195,6 +217,9 @@ public class UpdateFirmwareOperation extends AbstractMiBand2Operation {
             TransactionBuilder builder = performInitialized("send firmware info");
 //                getSupport().setLowLatency(builder);
             builder.add(new SetDeviceBusyAction(getDevice(), getContext().getString(R.string.updating_firmware), getContext()));
+            if (getSupport().supportsLargeFirmwareChunks()) {
+                builder.add(new RequestMtuAction(FIRMWARE_MTU));
+            }
             int fwSize = getFirmwareInfo().getSize();
             byte[] sizeBytes = BLETypeConversions.fromUint24(fwSize);
             int arraySize = 4;
@@ -223,7 +248,12 @@ public class UpdateFirmwareOperation extends AbstractMiBand2Operation {
 
     /**
      * Method that uploads a firmware (fwbytes) to the Mi Band.
-     * The firmware has to be split into chunks of 20 bytes each, and periodically a COMMAND_SYNC command has to be issued to the Mi Band.
+     * The firmware has to be split into chunks of 20 bytes (or of the negotiated MTU minus 3 bytes,
+     * if the device supports that), and periodically a COMMAND_SYNC command has to be issued to the Mi Band.
+     * <p/>
+     * The chunks are written without response in a pipelined transaction, straight from the
+     * firmware bytes. The band does not acknowledge the sync commands, so they act as barriers:
+     * all chunks sent before a sync have to be acknowledged by the stack before the sync is written.
      * <p/>
      * The Mi Band will send a notification after receiving this data to confirm if the firmware looks good to it.
      *
@@ -232,41 +262,52 @@ public class UpdateFirmwareOperation extends AbstractMiBand2Operation {
      * @see #handleNotificationNotif
      */
     private boolean sendFirmwareData(HuamiFirmwareInfo info) {
-        byte[] fwbytes = info.getBytes();
-        int len = fwbytes.length;
-        final int packetLength = 20;
+        ByteBuffer fwbytes = info.getBuffer();
+        int len = info.getSize();
+        int packetLength = BtLEQueue.DEFAULT_MAX_WRITE_LENGTH;
+        if (getSupport().supportsLargeFirmwareChunks()) {
+            // only larger if the mtu request was granted
+            packetLength = Math.max(getQueue().getMaxWriteLength(), BtLEQueue.DEFAULT_MAX_WRITE_LENGTH);
+        }
+        final int packetsPerSync = Math.max(1, BYTES_PER_SYNC / packetLength);
         int packets = len / packetLength;
+        byte[] packetBuffer = new byte[packetLength];
+        CheckSums.CRC16 sentCrc16 = new CheckSums.CRC16();
+        sentDataValid = null;
+        LOG.info("Sending " + len + " bytes of firmware in packets of " + packetLength + " bytes");
 
         try {
             // going from 0 to len
             int firmwareProgress = 0;
 
             TransactionBuilder builder = performInitialized("send firmware packet");
+            builder.setPipelined(true);
             if (prefs.getBoolean("mi_low_latency_fw_update", true)) {
                 getSupport().setLowLatency(builder);
             }
             builder.write(fwCControlChar, new byte[] { MiBand2Service.COMMAND_FIRMWARE_START_DATA });
+            TransferMeter meter = new TransferMeter();
+            builder.add(new ThroughputProgressAction(meter, 0, 0));
 
             for (int i = 0; i < packets; i++) {
-                byte[] fwChunk = Arrays.copyOfRange(fwbytes, i * packetLength, i * packetLength + packetLength);
-
-                builder.write(fwCDataChar, fwChunk);
+                builder.add(new WriteChunkAction(fwCDataChar, fwbytes, i * packetLength, packetBuffer, sentCrc16));
                 firmwareProgress += packetLength;
 
                 int progressPercent = (int) ((((float) firmwareProgress) / len) * 100);
-                if ((i > 0) && (i % 100 == 0)) {
+                if ((i > 0) && (i % packetsPerSync == 0)) {
                     builder.write(fwCControlChar, new byte[]{MiBand2Service.COMMAND_FIRMWARE_UPDATE_SYNC});
-                    builder.add(new SetProgressAction(getContext().getString(R.string.updatefirmwareoperation_update_in_progress), true, progressPercent, getContext()));
+                    builder.add(new ThroughputProgressAction(meter, firmwareProgress, progressPercent));
                 }
             }
 
             if (firmwareProgress < len) {
-                byte[] lastChunk = Arrays.copyOfRange(fwbytes, packets * packetLength, len);
-                builder.write(fwCDataChar, lastChunk);
+                builder.add(new WriteChunkAction(fwCDataChar, fwbytes, packets * packetLength, new byte[len - firmwareProgress], sentCrc16));
                 firmwareProgress = len;
             }
+            builder.add(new VerifyChecksumAction(sentCrc16, info.getCrc16()));
 
             builder.write(fwCControlChar, new byte[]{MiBand2Service.COMMAND_FIRMWARE_UPDATE_SYNC});
+            builder.add(new ThroughputProgressAction(meter, firmwareProgress, 100));
             builder.queue(getQueue());
 
         } catch (IOException ex) {
@@ -277,8 +318,10 @@ public class UpdateFirmwareOperation extends AbstractMiBand2Operation {
         return true;
     }
 
-
     private void sendChecksum(HuamiFirmwareInfo firmwareInfo) throws IOException {
+        if (Boolean.FALSE.equals(sentDataValid)) {
+            throw new IOException("Checksum of the sent firmware data does not match the firmware file");
+        }
         TransactionBuilder builder = performInitialized("send firmware checksum");
         int crc16 = firmwareInfo.getCrc16();
         byte[] bytes = BLETypeConversions.fromUint16(crc16);
@@ -293,4 +336,70 @@ public class UpdateFirmwareOperation extends AbstractMiBand2Operation {
     private HuamiFirmwareInfo getFirmwareInfo() {
         return firmwareInfo;
     }
+
+    /**
+     * Updates the install notification with the progress and the throughput of the
+     * firmware transfer so far.
+     */
+    private class ThroughputProgressAction extends PlainAction {
+        private final TransferMeter meter;
+        private final int bytesSent;
+        private final int percentage;
+
+        ThroughputProgressAction(TransferMeter meter, int bytesSent, int percentage) {
+            this.meter = meter;
+            this.bytesSent = bytesSent;
+            this.percentage = percentage;
+        }
+
+        @Override
+        public boolean run(BluetoothGatt gatt) {
+            long now = System.currentTimeMillis();
+            if (meter.startMillis == 0) {
+                meter.startMillis = now;
+                return true;
+            }
+            long elapsed = Math.max(1, now - meter.startMillis);
+            int kbPerSecond = (int) (bytesSent * 1000L / elapsed / 1024);
+            if (percentage == 100) {
+                LOG.info("Sent " + bytesSent + " bytes of firmware in " + elapsed + "ms (" + kbPerSecond + " KB/s)");
+            }
+            GB.updateInstallNotification(getContext().getString(R.string.updatefirmwareoperation_update_in_progress_throughput, kbPerSecond), true, percentage, getContext());
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return getCreationTime() + ": " + getClass().getSimpleName() + ": " + bytesSent + " bytes; " + percentage + "%";
+        }
+    }
+
+    /**
+     * Compares the checksum of the chunks written so far with the expected one.
+     * A mismatch aborts the transfer before the final sync.
+     */
+    private class VerifyChecksumAction extends PlainAction {
+        private final Checksum sentChecksum;
+        private final int expectedCrc16;
+
+        VerifyChecksumAction(Checksum sentChecksum, int expectedCrc16) {
+            this.sentChecksum = sentChecksum;
+            this.expectedCrc16 = expectedCrc16;
+        }
+
+        @Override
+        public boolean run(BluetoothGatt gatt) {
+            int sentCrc16 = (int) sentChecksum.getValue();
+            sentDataValid = sentCrc16 == expectedCrc16;
+            if (!sentDataValid) {
+                LOG.error("CRC16 of the sent firmware data is " + sentCrc16 + ", expected " + expectedCrc16);
+                operationFailed();
+            }
+            return sentDataValid;
+        }
+    }
+
+    private static class TransferMeter {
+        long startMillis;
+    }
 }
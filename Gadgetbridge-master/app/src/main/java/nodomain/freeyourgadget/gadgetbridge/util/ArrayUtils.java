@@ -16,6 +16,7 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package nodomain.freeyourgadget.gadgetbridge.util;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
 
 public class ArrayUtils {
@@ -78,4 +79,37 @@ public class ArrayUtils {
     public static boolean startsWith(byte[] array, byte[] values) {
         return equals(array, values, 0);
     }
+
+    /**
+     * Like {@link #equals(byte[], byte[], int)}, but comparing with the given buffer, using absolute
+     * indexes. The position of the buffer is not changed.
+     */
+    public static boolean equals(ByteBuffer first, byte[] second, int startIndex) {
+        if (first == null) {
+            throw new IllegalArgumentException("first must not be null");
+        }
+        if (second == null) {
+            throw new IllegalArgumentException("second must not be null");
+        }
+        if (startIndex < 0) {
+            throw new IllegalArgumentException("startIndex must be >= 0");
+        }
+
+        if (second.length + startIndex > first.limit()) {
+            return false;
+        }
+        for (int i = 0; i < second.length; i++) {
+            if (first.get(startIndex + i) != second[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the given buffer starts with the given values
+     */
+    public static boolean startsWith(ByteBuffer buffer, byte[] values) {
+        return equals(buffer, values, 0);
+    }
 }
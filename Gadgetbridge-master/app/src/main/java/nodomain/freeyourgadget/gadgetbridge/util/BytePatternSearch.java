@@ -0,0 +1,85 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Searches a byte pattern using the Boyer-Moore-Horspool algorithm, which skips up to the
+ * length of the pattern per comparison. Instances are immutable and may be shared.
+ */
+public class BytePatternSearch {
+    private final byte[] pattern;
+    private final int[] shift = new int[256];
+
+    public BytePatternSearch(byte[] pattern) {
+        if (pattern.length == 0) {
+            throw new IllegalArgumentException("pattern must not be empty");
+        }
+        this.pattern = pattern.clone();
+        int last = pattern.length - 1;
+        for (int i = 0; i < shift.length; i++) {
+            shift[i] = pattern.length;
+        }
+        for (int i = 0; i < last; i++) {
+            shift[pattern[i] & 0xff] = last - i;
+        }
+    }
+
+    public int getPatternLength() {
+        return pattern.length;
+    }
+
+    /**
+     * Returns the index of the first occurrence of the pattern in the given buffer at or after
+     * the given index, which is a multiple of the given alignment, or -1 if there is none.
+     * Only absolute reads are used, so the position of the buffer is not changed.
+     */
+    public int indexOf(ByteBuffer buffer, int fromIndex, int alignment) {
+        int last = pattern.length - 1;
+        int end = buffer.limit() - pattern.length;
+        int pos = Math.max(0, fromIndex);
+        while (pos <= end) {
+            byte b = buffer.get(pos + last);
+            if (b == pattern[last] && matchesAt(buffer, pos)) {
+                if (pos % alignment == 0) {
+                    return pos;
+                }
+                pos++;
+            } else {
+                pos += shift[b & 0xff];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the first occurrence of the pattern in the given buffer, or -1.
+     */
+    public int indexOf(ByteBuffer buffer) {
+        return indexOf(buffer, 0, 1);
+    }
+
+    private boolean matchesAt(ByteBuffer buffer, int pos) {
+        for (int i = pattern.length - 2; i >= 0; i--) {
+            if (buffer.get(pos + i) != pattern[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
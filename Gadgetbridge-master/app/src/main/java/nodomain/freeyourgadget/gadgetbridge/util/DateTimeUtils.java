@@ -20,6 +20,7 @@ import android.text.format.DateUtils;
 
 import com.github.pfichtner.durationformatter.DurationFormatter;
 
+import java.text.DateFormat;
 import java.text.FieldPosition;
 import java.text.ParseException;
 import java.text.ParsePosition;
@@ -61,11 +62,22 @@ public class DateTimeUtils {
 
     public static String formatIso8601(Date date) {
         if(GBApplication.isRunningNougatOrLater()){
-            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX", Locale.US).format(date);
+            return createIso8601Format().format(date);
         }
         return ISO_8601_FORMAT.format(date);
     }
 
+    /**
+     * Returns a new format producing the same output as {@link #formatIso8601(Date)}, for
+     * callers formatting many dates. Like all date formats, it must not be shared between threads.
+     */
+    public static DateFormat createIso8601Format() {
+        if(GBApplication.isRunningNougatOrLater()){
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX", Locale.US);
+        }
+        return (DateFormat) ISO_8601_FORMAT.clone();
+    }
+
     public static String formatDate(Date date) {
         return DateUtils.formatDateTime(GBApplication.getContext(), date.getTime(), DateUtils.FORMAT_SHOW_DATE);
 //        long dateMillis = date.getTime();
@@ -78,11 +78,7 @@ public class FileUtils {
      */
     public static void copyStreamToFile(InputStream inputStream, File destFile) throws IOException {
         try (FileOutputStream fout = new FileOutputStream(destFile)) {
-            byte[] buf = new byte[4096];
-            while (inputStream.available() > 0) {
-                int bytes = inputStream.read(buf);
-                fout.write(buf, 0, bytes);
-            }
+            copyStream(inputStream, fout);
         }
     }
 
@@ -94,11 +90,16 @@ public class FileUtils {
      */
     public static void copyFileToStream(File src, OutputStream dst) throws IOException {
         try (FileInputStream in = new FileInputStream(src)) {
-            byte[] buf = new byte[4096];
-            while(in.available() > 0) {
-                int bytes = in.read(buf);
-                dst.write(buf, 0, bytes);
-            }
+            copyStream(in, dst);
+        }
+    }
+
+    private static void copyStream(InputStream in, OutputStream out) throws IOException {
+        // available() is only an estimate, so read until the end of the stream
+        byte[] buf = new byte[64 * 1024];
+        int bytes;
+        while ((bytes = in.read(buf)) != -1) {
+            out.write(buf, 0, bytes);
         }
     }
 
@@ -0,0 +1,126 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.util;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * The contents of a firmware or resource file, memory-mapped instead of held on the heap.
+ * <p/>
+ * The data is copied once from the Uri to a file in the cache directory, checksumming it on
+ * the way (see {@link CheckSums.CRC16} and {@link CRC32}), and then mapped read-only. The file is deleted right
+ * after mapping; the mapping stays valid until this instance is garbage collected.
+ */
+public class FirmwareSource {
+    private final ByteBuffer buffer;
+    private final int crc16;
+    private final long crc32;
+    private byte[] bytes;
+
+    private FirmwareSource(ByteBuffer buffer, int crc16, long crc32) {
+        this.buffer = buffer;
+        this.crc16 = crc16;
+        this.crc32 = crc32;
+    }
+
+    /**
+     * @param maxLength the maximum accepted length of the data
+     * @throws IOException if the data cannot be read or is longer than maxLength
+     */
+    public static FirmwareSource open(Uri uri, Context context, long maxLength) throws IOException {
+        UriHelper uriHelper = UriHelper.get(uri, context);
+        File file = File.createTempFile("firmware", ".bin", context.getCacheDir());
+        try {
+            CheckSums.CRC16 crc16 = new CheckSums.CRC16();
+            CRC32 crc32 = new CRC32();
+            try (InputStream in = uriHelper.openInputStream();
+                 OutputStream out = new FileOutputStream(file)) {
+                byte[] buf = new byte[64 * 1024];
+                long totalRead = 0;
+                int read;
+                while ((read = in.read(buf)) > 0) {
+                    totalRead += read;
+                    if (totalRead > maxLength) {
+                        throw new IOException("Firmware file too large. Got already " + totalRead + " bytes");
+                    }
+                    crc16.update(buf, 0, read);
+                    crc32.update(buf, 0, read);
+                    out.write(buf, 0, read);
+                }
+            }
+            try (RandomAccessFile mapped = new RandomAccessFile(file, "r")) {
+                ByteBuffer buffer = mapped.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, mapped.length());
+                return new FirmwareSource(buffer, (int) crc16.getValue(), crc32.getValue());
+            }
+        } finally {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Returns a new read-only view of the whole data, positioned at 0, in big endian order.
+     */
+    @NonNull
+    public ByteBuffer getBuffer() {
+        return buffer.duplicate();
+    }
+
+    public int size() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Returns the CRC16 of the whole data, see {@link CheckSums#getCRC16(byte[])}.
+     */
+    public int getCrc16() {
+        return crc16;
+    }
+
+    /**
+     * Returns the CRC32 of the whole data, see {@link CheckSums#getCRC32(byte[])}.
+     */
+    public long getCrc32() {
+        return crc32;
+    }
+
+    /**
+     * Returns the data as an array, which is copied to the heap on the first call.
+     * Only use this for small files.
+     */
+    @NonNull
+    public synchronized byte[] toByteArray() {
+        if (bytes == null) {
+            bytes = new byte[size()];
+            getBuffer().get(bytes);
+        }
+        return bytes;
+    }
+}
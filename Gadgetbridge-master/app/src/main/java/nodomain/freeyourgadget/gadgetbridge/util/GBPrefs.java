@@ -28,6 +28,7 @@ public class GBPrefs {
     public static final String AUTO_EXPORT_ENABLED = "auto_export_enabled";
     public static final String AUTO_EXPORT_LOCATION = "auto_export_location";
     public static final String AUTO_EXPORT_INTERVAL = "auto_export_interval";
+    public static final String AUTO_EXPORT_SAMPLES = "auto_export_samples";
     private static final boolean AUTO_START_DEFAULT = true;
     public static boolean AUTO_RECONNECT_DEFAULT = true;
 
@@ -0,0 +1,149 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.activities.charts;
+
+import com.github.mikephil.charting.data.Entry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LiveChartSeriesTest {
+
+    @Test
+    public void testDecimatesIntoTiers() {
+        // the last 3 seconds as they are, the 4 seconds before in buckets of 2 seconds
+        LiveChartSeries series = new LiveChartSeries(new int[] { 3, 4 }, new int[] { 1, 2 });
+        for (int x = 0; x < 10; x++) {
+            series.add(x, x * 10);
+        }
+
+        // bucket [0, 2) is dropped, [4, 6) is still being filled
+        assertEntries(series, new float[][] {
+                { 2, 25 }, { 4, 45 }, { 6, 60 }, { 7, 70 }, { 8, 80 }, { 9, 90 }
+        });
+    }
+
+    @Test
+    public void testSingleTier() {
+        LiveChartSeries series = LiveChartSeries.forWindow(60);
+        for (int x = 0; x < 200; x++) {
+            series.add(x, 1);
+        }
+
+        assertEquals(61, series.size());
+        assertEquals(139, series.get(0).getX(), 0);
+        assertEquals(199, series.get(60).getX(), 0);
+    }
+
+    @Test
+    public void testBoundedAndSorted() {
+        int window = 60 * 60;
+        LiveChartSeries series = LiveChartSeries.forWindow(window);
+        int last = 0;
+        for (int x = 0; x < 3 * window; x++) {
+            series.add(x, x);
+            last = x;
+            if (x % 997 == 0) {
+                assertValid(series, x, window);
+            }
+        }
+        assertValid(series, last, window);
+        // 5 minutes of single values, 30 minutes of 10 second buckets, the rest as minutes
+        assertTrue("size " + series.size(), series.size() <= 300 + 1 + 180 + 2 + 25 + 2);
+    }
+
+    @Test
+    public void testIrregularValues() {
+        LiveChartSeries series = LiveChartSeries.forWindow(600);
+        int x = 0;
+        for (int i = 0; i < 5000; i++) {
+            // several values per second at times, and gaps at others
+            x += i % 50 == 0 ? 37 : i % 3;
+            series.add(x, x);
+        }
+        assertValid(series, x, 600);
+    }
+
+    @Test
+    public void testEntriesAreReused() {
+        LiveChartSeries series = new LiveChartSeries(new int[] { 3 }, new int[] { 1 });
+        for (int x = 0; x < 10; x++) {
+            series.add(x, x);
+        }
+        Entry oldest = series.get(0);
+        for (int x = 10; x < 100; x++) {
+            series.add(x, x);
+        }
+        boolean reused = false;
+        for (int i = 0; i < series.size(); i++) {
+            reused |= series.get(i) == oldest;
+        }
+        assertTrue(reused);
+        assertSame(series.get(0), series.get(0));
+    }
+
+    @Test
+    public void testIndexOutOfBounds() {
+        LiveChartSeries series = LiveChartSeries.forWindow(60);
+        series.add(0, 1);
+        try {
+            series.get(1);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        try {
+            series.get(-1);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTiers() {
+        new LiveChartSeries(new int[] { 60, 0 }, new int[] { 1, 10 });
+    }
+
+    /**
+     * Checks that the entries are sorted and within the window, and, as the y values equal
+     * the x values they were added with, that every entry is the average of its bucket.
+     */
+    private static void assertValid(LiveChartSeries series, int now, int window) {
+        float lastX = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < series.size(); i++) {
+            Entry entry = series.get(i);
+            // several values may have been added for the same second
+            assertTrue("entry " + i + " is not sorted: " + entry.getX(), entry.getX() >= lastX);
+            // buckets are shown at their start, so they may start before the window
+            assertTrue("entry " + i + " is too old: " + entry.getX(), entry.getX() > now - window - 60);
+            assertTrue("entry " + i + " has invalid average: " + entry, entry.getY() >= entry.getX() && entry.getY() < entry.getX() + 60);
+            lastX = entry.getX();
+        }
+        assertEquals(now, series.get(series.size() - 1).getX(), 0);
+    }
+
+    private static void assertEntries(LiveChartSeries series, float[][] expected) {
+        assertEquals(expected.length, series.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("x of entry " + i, expected[i][0], series.get(i).getX(), 1e-6);
+            assertEquals("y of entry " + i, expected[i][1], series.get(i).getY(), 1e-6);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.export;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import nodomain.freeyourgadget.gadgetbridge.activities.HeartRateUtils;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
+
+import static org.junit.Assert.assertEquals;
+
+public class HeartRateMergerTest {
+    private static final long BASE_TIME = 1500000000000L;
+
+    @Test
+    public void testValidHeartRateIsKept() {
+        ActivityTrack track = createTrack(new long[] { 0, 1000 }, new int[] { 80, 90 });
+        HeartRateMerger merger = new HeartRateMerger(track, true);
+
+        assertEquals(80, merger.getHeartRate(0));
+        assertEquals(90, merger.getHeartRate(1));
+    }
+
+    @Test
+    public void testHeartRateOfPrecedingPoint() {
+        ActivityTrack track = createTrack(
+                new long[] { 0, 1000, 60000, 119999, 120000, 200000 },
+                new int[] { 0, 80, 0, 0, 0, 0 });
+        HeartRateMerger merger = new HeartRateMerger(track, true);
+
+        assertEquals(0, merger.getHeartRate(0));
+        assertEquals(80, merger.getHeartRate(1));
+        assertEquals(80, merger.getHeartRate(2));
+        assertEquals(80, merger.getHeartRate(3));
+        // just less than two minutes after the heart rate
+        assertEquals(80, merger.getHeartRate(4));
+        assertEquals(0, merger.getHeartRate(5));
+    }
+
+    @Test
+    public void testInvalidHeartRatesAreSkipped() {
+        ActivityTrack track = createTrack(
+                new long[] { 0, 1000, 2000, 3000 },
+                new int[] { 70, HeartRateUtils.MAX_HEART_RATE_VALUE, -1, 0 });
+        HeartRateMerger merger = new HeartRateMerger(track, true);
+
+        assertEquals(70, merger.getHeartRate(0));
+        assertEquals(70, merger.getHeartRate(1));
+        assertEquals(70, merger.getHeartRate(2));
+        assertEquals(70, merger.getHeartRate(3));
+    }
+
+    @Test
+    public void testPointsWithSameTimeAreNotMerged() {
+        ActivityTrack track = createTrack(new long[] { 1000, 1000 }, new int[] { 0, 80 });
+        HeartRateMerger merger = new HeartRateMerger(track, true);
+
+        assertEquals(0, merger.getHeartRate(0));
+        assertEquals(80, merger.getHeartRate(1));
+    }
+
+    @Test
+    public void testWithoutNearestSample() {
+        ActivityTrack track = createTrack(new long[] { 0, 1000 }, new int[] { 80, 0 });
+        HeartRateMerger merger = new HeartRateMerger(track, false);
+
+        assertEquals(80, merger.getHeartRate(0));
+        assertEquals(0, merger.getHeartRate(1));
+    }
+
+    @Test
+    public void testRandomTracksAgainstBruteForce() {
+        Random random = new Random(42);
+        for (int round = 0; round < 100; round++) {
+            int size = random.nextInt(200);
+            long[] times = new long[size];
+            int[] heartRates = new int[size];
+            long time = 0;
+            for (int i = 0; i < size; i++) {
+                time += random.nextInt(4) == 0 ? 0 : random.nextInt(60000);
+                times[i] = time;
+                heartRates[i] = random.nextInt(3) == 0 ? 60 + random.nextInt(100) : 0;
+            }
+            ActivityTrack track = createTrack(times, heartRates);
+            HeartRateMerger merger = new HeartRateMerger(track, true);
+            for (int i = 0; i < size; i++) {
+                assertEquals("round " + round + ", point " + i, getHeartRateBruteForce(track, i), merger.getHeartRate(i));
+            }
+        }
+    }
+
+    /**
+     * Searches the latest valid heart rate before the given point from scratch.
+     */
+    private static int getHeartRateBruteForce(ActivityTrack track, int index) {
+        if (HeartRateUtils.isValidHeartRateValue(track.getHeartRate(index))) {
+            return track.getHeartRate(index);
+        }
+        long time = track.getTime(index);
+        for (int i = track.size() - 1; i >= 0; i--) {
+            if (track.getTime(i) < time && HeartRateUtils.isValidHeartRateValue(track.getHeartRate(i))) {
+                return time - track.getTime(i) < 2 * 60 * 1000 ? track.getHeartRate(i) : 0;
+            }
+        }
+        return 0;
+    }
+
+    private static ActivityTrack createTrack(long[] times, int[] heartRates) {
+        ActivityTrack track = new ActivityTrack();
+        for (int i = 0; i < times.length; i++) {
+            int index = track.addPoint(BASE_TIME + times[i]);
+            track.setHeartRate(index, heartRates[i]);
+        }
+        return track;
+    }
+}
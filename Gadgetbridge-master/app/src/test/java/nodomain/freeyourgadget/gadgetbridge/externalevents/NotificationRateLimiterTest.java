@@ -0,0 +1,222 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.externalevents;
+
+import android.app.Application;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nodomain.freeyourgadget.gadgetbridge.model.NotificationSpec;
+import nodomain.freeyourgadget.gadgetbridge.util.Prefs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 19, application = Application.class)
+public class NotificationRateLimiterTest {
+    private static final String APP = "org.example.chat";
+    private static final String OTHER_APP = "org.example.mail";
+
+    private SharedPreferences sharedPreferences;
+    private RecordingRateLimiter limiter;
+
+    /**
+     * Records the forwarded notifications instead of sending them to the devices.
+     */
+    private class RecordingRateLimiter extends NotificationRateLimiter {
+        private final List<NotificationSpec> forwarded = new ArrayList<>();
+
+        @Override
+        protected Prefs getPrefs() {
+            return new Prefs(sharedPreferences);
+        }
+
+        @Override
+        protected void forward(NotificationSpec notificationSpec) {
+            forwarded.add(notificationSpec);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(RuntimeEnvironment.application);
+        setLimits(2, 5);
+        limiter = new RecordingRateLimiter();
+    }
+
+    @After
+    public void tearDown() {
+        limiter.dispose();
+    }
+
+    @Test
+    public void testBurstThenHoldBack() {
+        NotificationSpec first = createSpec(1, "Alice", "one");
+        NotificationSpec second = createSpec(2, "Alice", "two");
+        NotificationSpec third = createSpec(3, "Alice", "three");
+        limiter.submit(APP, "1", first);
+        limiter.submit(APP, "2", second);
+        limiter.submit(APP, "3", third);
+        assertEquals(2, limiter.forwarded.size());
+        assertSame(first, limiter.forwarded.get(0));
+        assertSame(second, limiter.forwarded.get(1));
+
+        ShadowLooper.idleMainLooper(4999);
+        assertEquals(2, limiter.forwarded.size());
+        ShadowLooper.idleMainLooper(1);
+        assertEquals(3, limiter.forwarded.size());
+        assertSame(third, limiter.forwarded.get(2));
+    }
+
+    @Test
+    public void testTokensRefill() {
+        exhaustBurst(APP);
+
+        ShadowLooper.idleMainLooper(5000);
+        limiter.submit(APP, "3", createSpec(3, "Alice", "three"));
+        assertEquals(3, limiter.forwarded.size());
+        limiter.submit(APP, "4", createSpec(4, "Alice", "four"));
+        assertEquals(3, limiter.forwarded.size());
+
+        // the bucket does not fill beyond the burst size
+        ShadowLooper.idleMainLooper(60000);
+        assertEquals(4, limiter.forwarded.size());
+        limiter.submit(APP, "5", createSpec(5, "Alice", "five"));
+        limiter.submit(APP, "6", createSpec(6, "Alice", "six"));
+        limiter.submit(APP, "7", createSpec(7, "Alice", "seven"));
+        assertEquals(6, limiter.forwarded.size());
+    }
+
+    @Test
+    public void testUpdateReplacesHeldBackNotification() {
+        exhaustBurst(APP);
+        limiter.submit(APP, "3", createSpec(3, "Alice", "typing"));
+        NotificationSpec update = createSpec(3, "Alice", "typing more");
+        limiter.submit(APP, "3", update);
+
+        ShadowLooper.idleMainLooper(5000);
+        assertEquals(3, limiter.forwarded.size());
+        assertSame(update, limiter.forwarded.get(2));
+    }
+
+    @Test
+    public void testHeldBackNotificationsAreCombined() {
+        exhaustBurst(APP);
+        NotificationSpec fromAlice = createSpec(3, "Alice", "hi");
+        NotificationSpec fromBob = createSpec(4, "Bob", "yo");
+        NotificationSpec withoutBody = createSpec(5, "Carol", null);
+        limiter.submit(APP, "3", fromAlice);
+        limiter.submit(APP, "4", fromBob);
+        limiter.submit(APP, "5", withoutBody);
+        limiter.submit(APP, "3", createSpec(3, "Alice", "hi again"));
+
+        ShadowLooper.idleMainLooper(5000);
+        assertEquals(3, limiter.forwarded.size());
+        NotificationSpec summary = limiter.forwarded.get(2);
+        assertEquals("Chat", summary.title);
+        assertEquals("Alice: hi again\nBob: yo\nCarol", summary.body);
+        assertEquals(withoutBody.id, summary.id);
+        assertEquals(APP, summary.sourceAppId);
+
+        // nothing left to forward
+        ShadowLooper.idleMainLooper(60000);
+        assertEquals(3, limiter.forwarded.size());
+    }
+
+    @Test
+    public void testSummaryTitleWithoutSourceName() {
+        exhaustBurst(APP);
+        NotificationSpec fromAlice = createSpec(3, "Alice", "hi");
+        NotificationSpec fromBob = createSpec(4, "Bob", "yo");
+        fromBob.sourceName = null;
+        limiter.submit(APP, "3", fromAlice);
+        limiter.submit(APP, "4", fromBob);
+
+        ShadowLooper.idleMainLooper(5000);
+        assertEquals(3, limiter.forwarded.size());
+        assertEquals("Bob", limiter.forwarded.get(2).title);
+        assertEquals("Alice: hi\nBob: yo", limiter.forwarded.get(2).body);
+    }
+
+    @Test
+    public void testApplicationsAreLimitedSeparately() {
+        exhaustBurst(APP);
+        limiter.submit(APP, "3", createSpec(3, "Alice", "three"));
+        assertEquals(2, limiter.forwarded.size());
+
+        NotificationSpec mail = createSpec(10, "Dave", "mail");
+        limiter.submit(OTHER_APP, "10", mail);
+        assertEquals(3, limiter.forwarded.size());
+        assertSame(mail, limiter.forwarded.get(2));
+    }
+
+    @Test
+    public void testZeroIntervalDisablesLimit() {
+        setLimits(2, 0);
+        for (int i = 0; i < 10; i++) {
+            limiter.submit(APP, String.valueOf(i), createSpec(i, "Alice", "message " + i));
+        }
+        assertEquals(10, limiter.forwarded.size());
+    }
+
+    @Test
+    public void testDisposeDiscardsPending() {
+        exhaustBurst(APP);
+        limiter.submit(APP, "3", createSpec(3, "Alice", "three"));
+        limiter.dispose();
+
+        ShadowLooper.idleMainLooper(60000);
+        assertEquals(2, limiter.forwarded.size());
+    }
+
+    private void exhaustBurst(String packageName) {
+        int count = limiter.forwarded.size();
+        limiter.submit(packageName, "1", createSpec(1, "Alice", "one"));
+        limiter.submit(packageName, "2", createSpec(2, "Alice", "two"));
+        assertEquals(count + 2, limiter.forwarded.size());
+    }
+
+    private void setLimits(int burstSize, int intervalSeconds) {
+        sharedPreferences.edit()
+                .putString(NotificationRateLimiter.PREF_BURST_SIZE, String.valueOf(burstSize))
+                .putString(NotificationRateLimiter.PREF_INTERVAL, String.valueOf(intervalSeconds))
+                .commit();
+    }
+
+    private static NotificationSpec createSpec(int id, String title, String body) {
+        NotificationSpec notificationSpec = new NotificationSpec();
+        notificationSpec.id = id;
+        notificationSpec.title = title;
+        notificationSpec.body = body;
+        notificationSpec.sourceName = "Chat";
+        notificationSpec.sourceAppId = APP;
+        return notificationSpec;
+    }
+}
@@ -0,0 +1,175 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service.btle;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GattEventRingTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacityMustBePowerOfTwo() {
+        new GattEventRing(6);
+    }
+
+    @Test
+    public void testEventsInOrder() {
+        GattEventRing ring = new GattEventRing(4);
+        GattEventRing.Event event = new GattEventRing.Event();
+        assertTrue(ring.isEmpty());
+        assertFalse(ring.poll(event));
+
+        assertTrue(ring.offer(GattEventRing.EVENT_CHARACTERISTIC_WRITE, null, 0));
+        assertTrue(ring.offer(GattEventRing.EVENT_DESCRIPTOR_WRITE, null, 5));
+        assertFalse(ring.isEmpty());
+
+        assertTrue(ring.poll(event));
+        assertEquals(GattEventRing.EVENT_CHARACTERISTIC_WRITE, event.type);
+        assertEquals(0, event.status);
+        assertNull(event.characteristic);
+        assertTrue(ring.poll(event));
+        assertEquals(GattEventRing.EVENT_DESCRIPTOR_WRITE, event.type);
+        assertEquals(5, event.status);
+        assertFalse(ring.poll(event));
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void testDropsWhenFull() {
+        GattEventRing ring = new GattEventRing(2);
+        GattEventRing.Event event = new GattEventRing.Event();
+
+        assertTrue(ring.offer(GattEventRing.EVENT_CHARACTERISTIC_READ, null, 1));
+        assertTrue(ring.offer(GattEventRing.EVENT_CHARACTERISTIC_READ, null, 2));
+        assertFalse(ring.offer(GattEventRing.EVENT_CHARACTERISTIC_READ, null, 3));
+        assertEquals(1, ring.getDroppedCount());
+
+        assertTrue(ring.poll(event));
+        assertEquals(1, event.status);
+        assertTrue(ring.offer(GattEventRing.EVENT_CHARACTERISTIC_READ, null, 4));
+        assertTrue(ring.poll(event));
+        assertEquals(2, event.status);
+        assertTrue(ring.poll(event));
+        assertEquals(4, event.status);
+        assertEquals(1, ring.getDroppedCount());
+    }
+
+    @Test
+    public void testWrapsAround() {
+        GattEventRing ring = new GattEventRing(4);
+        GattEventRing.Event event = new GattEventRing.Event();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(ring.offer(GattEventRing.EVENT_MTU_CHANGED, null, i));
+            assertTrue(ring.offer(GattEventRing.EVENT_MTU_CHANGED, null, i + 1000));
+            assertTrue(ring.poll(event));
+            assertEquals(i, event.status);
+            assertTrue(ring.poll(event));
+            assertEquals(i + 1000, event.status);
+        }
+        assertEquals(0, ring.getDroppedCount());
+    }
+
+    @Test
+    public void testConcurrentProducerAndConsumer() throws Exception {
+        final int count = 100000;
+        final GattEventRing ring = new GattEventRing(16);
+        final AtomicReference<String> error = new AtomicReference<>();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                GattEventRing.Event event = new GattEventRing.Event();
+                int expected = 0;
+                try {
+                    while (expected < count) {
+                        if (ring.poll(event)) {
+                            if (event.status != expected) {
+                                error.set("expected event " + expected + ", got " + event.status);
+                                return;
+                            }
+                            expected++;
+                        } else {
+                            ring.await(10, TimeUnit.MILLISECONDS);
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    error.set("interrupted at event " + expected);
+                }
+            }
+        });
+        ring.setConsumer(consumer);
+        consumer.start();
+
+        for (int i = 0; i < count; i++) {
+            while (!ring.offer(GattEventRing.EVENT_CHARACTERISTIC_WRITE, null, i)) {
+                Thread.yield();
+            }
+        }
+        consumer.join(10000);
+        assertFalse("consumer did not finish", consumer.isAlive());
+        assertNull(error.get());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void testOfferWakesUpConsumer() throws Exception {
+        final GattEventRing ring = new GattEventRing(4);
+        final long[] waitedNanos = new long[1];
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    ring.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ignored) {
+                }
+                waitedNanos[0] = System.nanoTime() - start;
+            }
+        });
+        ring.setConsumer(consumer);
+        consumer.start();
+        Thread.sleep(100);
+        ring.offer(GattEventRing.EVENT_CHARACTERISTIC_WRITE, null, 0);
+        consumer.join(10000);
+
+        assertFalse(consumer.isAlive());
+        assertTrue("waited " + waitedNanos[0] + "ns", waitedNanos[0] < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    public void testAwaitReturnsImmediatelyIfNotEmpty() throws Exception {
+        GattEventRing ring = new GattEventRing(4);
+        ring.offer(GattEventRing.EVENT_CHARACTERISTIC_WRITE, null, 0);
+
+        long start = System.nanoTime();
+        ring.await(10, TimeUnit.SECONDS);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test(expected = InterruptedException.class)
+    public void testAwaitInterrupted() throws Exception {
+        GattEventRing ring = new GattEventRing(4);
+        Thread.currentThread().interrupt();
+        ring.await(10, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,191 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.service.devices.amazfitbip;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Random;
+
+import nodomain.freeyourgadget.gadgetbridge.GBException;
+import nodomain.freeyourgadget.gadgetbridge.entities.BaseActivitySummary;
+import nodomain.freeyourgadget.gadgetbridge.entities.Device;
+import nodomain.freeyourgadget.gadgetbridge.entities.User;
+import nodomain.freeyourgadget.gadgetbridge.model.ActivityTrack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ActivityDetailsParserTest {
+    private static final String DETAILS_1 = "ActivityDetailsDump1.txt";
+    private static final long BASE_TIME = 1484920800000L; // 2017-01-20T14:00:00Z
+
+    @Test
+    public void testActivityDetailsDump() throws Exception {
+        ActivityDetailsParser parser = new ActivityDetailsParser(createSummary(0, 0, 0));
+        parser.setSkipCounterByte(true);
+        ActivityTrack track = parser.parse(readDump(DETAILS_1));
+
+        assertFalse(track.isEmpty());
+        // the first packet contains two heart rate records in the new format
+        assertEquals(BASE_TIME + 7000, track.getTime(0));
+        assertEquals(0x47, track.getHeartRate(0));
+        assertEquals(BASE_TIME + 8000, track.getTime(1));
+        assertEquals(0x46, track.getHeartRate(1));
+        assertEquals(BASE_TIME + 10000, track.getTime(2));
+        assertEquals(0x43, track.getHeartRate(2));
+
+        boolean hasLocation = false;
+        for (int i = 1; i < track.size(); i++) {
+            assertTrue("time of point " + i, track.getTime(i) >= track.getTime(i - 1));
+            hasLocation |= track.hasLocation(i);
+        }
+        assertTrue(hasLocation);
+    }
+
+    @Test
+    public void testFeedInPiecesMatchesParse() throws Exception {
+        byte[] dump = readDump(DETAILS_1);
+        ActivityDetailsParser wholeParser = new ActivityDetailsParser(createSummary(0, 0, 0));
+        wholeParser.setSkipCounterByte(true);
+        ActivityTrack expected = wholeParser.parse(dump);
+
+        Random random = new Random(1);
+        for (int maxPieceLength : new int[] { 1, 7, 17, 20, 1000 }) {
+            ActivityDetailsParser parser = new ActivityDetailsParser(createSummary(0, 0, 0));
+            parser.setSkipCounterByte(true);
+            int offset = 0;
+            while (offset < dump.length) {
+                int length = Math.min(dump.length - offset, 1 + random.nextInt(maxPieceLength));
+                parser.feed(dump, offset, length);
+                offset += length;
+            }
+            assertSameTrack(expected, parser.finish());
+        }
+    }
+
+    @Test
+    public void testGPSRecords() throws Exception {
+        // 1 and 2 degrees, 10m
+        ActivityDetailsParser parser = new ActivityDetailsParser(createSummary(3000000, 6000000, 10));
+        ActivityTrack track = parser.parse(new byte[] {
+                0, 5, 0x2c, 0x01, (byte) 0xd4, (byte) 0xfe, 0x02, 0x00, // +300, -300, +2
+                0, 6, 0x2c, 0x01, 0x00, 0x00, (byte) 0xff, (byte) 0xff, // +300, 0, -1
+        });
+
+        assertEquals(2, track.size());
+        assertEquals(BASE_TIME + 5000, track.getTime(0));
+        assertTrue(track.hasLocation(0));
+        assertEquals(1.0001, track.getLongitude(0), 1e-9);
+        assertEquals(1.9999, track.getLatitude(0), 1e-9);
+        assertEquals(12, track.getAltitude(0), 1e-9);
+
+        assertEquals(BASE_TIME + 6000, track.getTime(1));
+        assertEquals(1.0002, track.getLongitude(1), 1e-9);
+        assertEquals(1.9999, track.getLatitude(1), 1e-9);
+        assertEquals(11, track.getAltitude(1), 1e-9);
+    }
+
+    @Test
+    public void testHeartRateRecords() throws Exception {
+        ActivityDetailsParser parser = new ActivityDetailsParser(createSummary(0, 0, 0));
+        ActivityTrack track = parser.parse(new byte[] {
+                0, 5, 0, 0, 0, 0, 0, 0, // location at 5s
+                1, 5, 80, 0, 0, 0, 0, 0, // new format, same point
+                1, 10, 20, 60, 21, 61, 22, 62, // old format, with absolute times
+        });
+
+        assertEquals(4, track.size());
+        assertEquals(BASE_TIME + 5000, track.getTime(0));
+        assertTrue(track.hasLocation(0));
+        assertEquals(80, track.getHeartRate(0));
+        assertEquals(BASE_TIME + 20000, track.getTime(1));
+        assertEquals(60, track.getHeartRate(1));
+        assertEquals(BASE_TIME + 21000, track.getTime(2));
+        assertEquals(61, track.getHeartRate(2));
+        assertEquals(BASE_TIME + 22000, track.getTime(3));
+        assertEquals(62, track.getHeartRate(3));
+    }
+
+    @Test
+    public void testTimeOffsetOverflow() throws Exception {
+        ActivityDetailsParser parser = new ActivityDetailsParser(createSummary(0, 0, 0));
+        ActivityTrack track = parser.parse(new byte[] {
+                0, (byte) 250, 0, 0, 0, 0, 0, 0,
+                0, 4, 0, 0, 0, 0, 0, 0, // the one byte offset wrapped around
+        });
+
+        assertEquals(2, track.size());
+        assertEquals(BASE_TIME + 250000, track.getTime(0));
+        assertEquals(BASE_TIME + 254000, track.getTime(1));
+    }
+
+    @Test(expected = GBException.class)
+    public void testIncompleteRecord() throws Exception {
+        ActivityDetailsParser parser = new ActivityDetailsParser(createSummary(0, 0, 0));
+        parser.parse(new byte[] { 0, 5, 0, 0 });
+    }
+
+    private static void assertSameTrack(ActivityTrack expected, ActivityTrack actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getTime(i), actual.getTime(i));
+            assertEquals(expected.hasLocation(i), actual.hasLocation(i));
+            assertEquals(expected.getLongitude(i), actual.getLongitude(i), 0);
+            assertEquals(expected.getLatitude(i), actual.getLatitude(i), 0);
+            assertEquals(expected.getAltitude(i), actual.getAltitude(i), 0);
+            assertEquals(expected.getHeartRate(i), actual.getHeartRate(i));
+        }
+    }
+
+    private static BaseActivitySummary createSummary(int baseLongitude, int baseLatitude, int baseAltitude) {
+        BaseActivitySummary summary = new BaseActivitySummary();
+        summary.setBaseLongitude(baseLongitude);
+        summary.setBaseLatitude(baseLatitude);
+        summary.setBaseAltitude(baseAltitude);
+        summary.setStartTime(new Date(BASE_TIME));
+        summary.setUser(new User(1L));
+        summary.setDevice(new Device(1L));
+        return summary;
+    }
+
+    /**
+     * Reads a dump of notifications, one per line, as space separated hex bytes.
+     */
+    private byte[] readDump(String name) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream(name);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                for (String value : line.trim().split("\\s+")) {
+                    if (!value.isEmpty()) {
+                        out.write(Integer.decode(value));
+                    }
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+}
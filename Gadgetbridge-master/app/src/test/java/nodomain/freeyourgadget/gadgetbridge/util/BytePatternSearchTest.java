@@ -0,0 +1,126 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class BytePatternSearchTest {
+
+    @Test
+    public void testFindsFirstOccurrence() {
+        BytePatternSearch search = new BytePatternSearch(new byte[] { 1, 2, 3 });
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] { 0, 1, 2, 1, 2, 3, 4, 1, 2, 3 });
+
+        assertEquals(3, search.indexOf(buffer));
+        assertEquals(3, search.indexOf(buffer, 3, 1));
+        assertEquals(7, search.indexOf(buffer, 4, 1));
+        assertEquals(-1, search.indexOf(buffer, 8, 1));
+    }
+
+    @Test
+    public void testAlignment() {
+        BytePatternSearch search = new BytePatternSearch(new byte[] { 5, 5 });
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] { 0, 5, 5, 5, 5, 0, 0, 0 });
+
+        assertEquals(1, search.indexOf(buffer, 0, 1));
+        assertEquals(2, search.indexOf(buffer, 0, 2));
+        assertEquals(-1, search.indexOf(buffer, 0, 4));
+    }
+
+    @Test
+    public void testPatternAtEnd() {
+        BytePatternSearch search = new BytePatternSearch(new byte[] { 7, 8 });
+
+        assertEquals(2, search.indexOf(ByteBuffer.wrap(new byte[] { 0, 0, 7, 8 })));
+        assertEquals(-1, search.indexOf(ByteBuffer.wrap(new byte[] { 0, 0, 0, 7 })));
+        assertEquals(-1, search.indexOf(ByteBuffer.wrap(new byte[] { 7 })));
+        assertEquals(-1, search.indexOf(ByteBuffer.wrap(new byte[0])));
+    }
+
+    @Test
+    public void testRespectsLimitAndKeepsPosition() {
+        BytePatternSearch search = new BytePatternSearch(new byte[] { 1, 2 });
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] { 0, 0, 0, 1, 2 });
+        buffer.position(1);
+        buffer.limit(4);
+
+        assertEquals(-1, search.indexOf(buffer));
+        assertEquals(1, buffer.position());
+        buffer.limit(5);
+        assertEquals(3, search.indexOf(buffer));
+        assertEquals(1, buffer.position());
+    }
+
+    @Test
+    public void testPatternIsCopied() {
+        byte[] pattern = new byte[] { 1, 2 };
+        BytePatternSearch search = new BytePatternSearch(pattern);
+        pattern[0] = 9;
+
+        assertEquals(1, search.indexOf(ByteBuffer.wrap(new byte[] { 0, 1, 2 })));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyPattern() {
+        new BytePatternSearch(new byte[0]);
+    }
+
+    @Test
+    public void testRandomDataAgainstNaiveSearch() {
+        Random random = new Random(18);
+        for (int round = 0; round < 2000; round++) {
+            // a small alphabet, so that there are many partial matches
+            byte[] pattern = randomBytes(random, 1 + random.nextInt(6), 3);
+            byte[] data = randomBytes(random, random.nextInt(200), 3);
+            int fromIndex = random.nextInt(10) - 2;
+            int alignment = 1 << random.nextInt(3);
+
+            BytePatternSearch search = new BytePatternSearch(pattern);
+            assertEquals("round " + round, naiveIndexOf(data, pattern, fromIndex, alignment),
+                    search.indexOf(ByteBuffer.wrap(data), fromIndex, alignment));
+        }
+    }
+
+    private static byte[] randomBytes(Random random, int length, int alphabetSize) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (0xfe + random.nextInt(alphabetSize));
+        }
+        return bytes;
+    }
+
+    private static int naiveIndexOf(byte[] data, byte[] pattern, int fromIndex, int alignment) {
+        outer:
+        for (int i = Math.max(0, fromIndex); i <= data.length - pattern.length; i++) {
+            if (i % alignment != 0) {
+                continue;
+            }
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
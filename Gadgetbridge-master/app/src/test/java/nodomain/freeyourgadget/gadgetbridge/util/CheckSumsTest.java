@@ -0,0 +1,140 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.util;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import static org.junit.Assert.assertEquals;
+
+public class CheckSumsTest {
+    private static final byte[] CHECK_INPUT = "123456789".getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    public void testCheckValues() {
+        assertEquals(0xa1, CheckSums.getCRC8(CHECK_INPUT));
+        assertEquals(0x29b1, CheckSums.getCRC16(CHECK_INPUT));
+        assertEquals(0xcbf43926L, CheckSums.getCRC32(CHECK_INPUT));
+    }
+
+    @Test
+    public void testEmpty() {
+        assertEquals(0, CheckSums.getCRC8(new byte[0]));
+        assertEquals(0xffff, CheckSums.getCRC16(new byte[0]));
+        assertEquals(0, CheckSums.getCRC32(new byte[0]));
+    }
+
+    @Test
+    public void testSameAsBitwiseVersions() {
+        Random random = new Random(16);
+        for (int length = 0; length < 1000; length += 1 + length / 10) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            assertEquals("CRC8 of " + length + " bytes", getBitwiseCRC8(data), CheckSums.getCRC8(data));
+            assertEquals("CRC16 of " + length + " bytes", getBitwiseCRC16(data), CheckSums.getCRC16(data));
+
+            CRC32 crc32 = new CRC32();
+            crc32.update(data);
+            assertEquals("CRC32 of " + length + " bytes", crc32.getValue(), CheckSums.getCRC32(data));
+        }
+    }
+
+    @Test
+    public void testCRC16OfRange() {
+        byte[] data = new byte[100];
+        new Random(17).nextBytes(data);
+        byte[] range = new byte[50];
+        System.arraycopy(data, 20, range, 0, range.length);
+
+        assertEquals(getBitwiseCRC16(range), CheckSums.getCRC16(data, 20, 50));
+    }
+
+    @Test
+    public void testStreamingUpdates() {
+        byte[] data = new byte[4096];
+        new Random(18).nextBytes(data);
+
+        assertStreamingUpdates(new CheckSums.CRC8(), data, getBitwiseCRC8(data));
+        assertStreamingUpdates(new CheckSums.CRC16(), data, getBitwiseCRC16(data));
+    }
+
+    /**
+     * Feeds the data to the checksum in random pieces, mixing single byte and array updates,
+     * and then once more after a reset.
+     */
+    private static void assertStreamingUpdates(Checksum checksum, byte[] data, long expected) {
+        Random random = new Random(19);
+        for (int round = 0; round < 2; round++) {
+            int offset = 0;
+            while (offset < data.length) {
+                if (random.nextBoolean()) {
+                    checksum.update(data[offset++]);
+                } else {
+                    int length = Math.min(data.length - offset, random.nextInt(100));
+                    checksum.update(data, offset, length);
+                    offset += length;
+                }
+            }
+            assertEquals(checksum.getClass().getSimpleName() + ", round " + round, expected, checksum.getValue());
+            checksum.reset();
+        }
+    }
+
+    /**
+     * The former bitwise implementation of {@link CheckSums#getCRC8(byte[])}.
+     */
+    private static int getBitwiseCRC8(byte[] seq) {
+        int len = seq.length;
+        int i = 0;
+        byte crc = 0x00;
+
+        while (len-- > 0) {
+            byte extract = seq[i++];
+            for (byte tempI = 8; tempI != 0; tempI--) {
+                byte sum = (byte) ((crc & 0xff) ^ (extract & 0xff));
+                sum = (byte) ((sum & 0xff) & 0x01);
+                crc = (byte) ((crc & 0xff) >>> 1);
+                if (sum != 0) {
+                    crc = (byte) ((crc & 0xff) ^ 0x8c);
+                }
+                extract = (byte) ((extract & 0xff) >>> 1);
+            }
+        }
+        return (crc & 0xff);
+    }
+
+    /**
+     * The former bitwise implementation of {@link CheckSums#getCRC16(byte[])}.
+     */
+    private static int getBitwiseCRC16(byte[] seq) {
+        int crc = 0xFFFF;
+
+        for (int j = 0; j < seq.length; j++) {
+            crc = ((crc >>> 8) | (crc << 8)) & 0xffff;
+            crc ^= (seq[j] & 0xff);//byte to int, trunc sign
+            crc ^= ((crc & 0xff) >> 4);
+            crc ^= (crc << 12) & 0xffff;
+            crc ^= ((crc & 0xFF) << 5) & 0xffff;
+        }
+        crc &= 0xffff;
+        return crc;
+    }
+}
@@ -0,0 +1,129 @@
+/*  Copyright (C) 2018 Andreas Shimokawa, Carsten Pfeiffer
+
+    This file is part of Gadgetbridge.
+
+    Gadgetbridge is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Gadgetbridge is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package nodomain.freeyourgadget.gadgetbridge.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LongIntMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        LongIntMap map = new LongIntMap();
+        assertTrue(map.isEmpty());
+        assertEquals(-1, map.get(1, -1));
+
+        map.put(1, 10);
+        map.put(-5, 20);
+        map.put(Long.MAX_VALUE, 30);
+        map.put(0, 40);
+        assertEquals(4, map.size());
+        assertEquals(10, map.get(1, -1));
+        assertEquals(20, map.get(-5, -1));
+        assertEquals(30, map.get(Long.MAX_VALUE, -1));
+        assertEquals(40, map.get(0, -1));
+        assertFalse(map.containsKey(2));
+
+        map.put(1, 11);
+        assertEquals(4, map.size());
+        assertEquals(11, map.get(1, -1));
+
+        assertTrue(map.remove(-5));
+        assertFalse(map.remove(-5));
+        assertFalse(map.containsKey(-5));
+        assertEquals(3, map.size());
+    }
+
+    @Test
+    public void testGrowsBeyondExpectedSize() {
+        LongIntMap map = new LongIntMap(2);
+        for (int i = 0; i < 10000; i++) {
+            map.put(i * 31L, i);
+        }
+        assertEquals(10000, map.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, map.get(i * 31L, -1));
+        }
+    }
+
+    @Test
+    public void testKeysAndClear() {
+        LongIntMap map = new LongIntMap();
+        map.put(3, 0);
+        map.put(1, 0);
+        map.put(2, 0);
+
+        long[] keys = map.keys();
+        Arrays.sort(keys);
+        assertArrayEquals(new long[] { 1, 2, 3 }, keys);
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertEquals(0, map.keys().length);
+        assertFalse(map.containsKey(1));
+        map.put(1, 5);
+        assertEquals(5, map.get(1, -1));
+    }
+
+    @Test
+    public void testRandomOperationsAgainstHashMap() {
+        Random random = new Random(24);
+        LongIntMap map = new LongIntMap();
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            // few distinct keys with large common factors, so that there are many collisions
+            // and removals have to move entries of long probe sequences
+            long key = (random.nextInt(500) - 250) * (1L << 32);
+            switch (random.nextInt(3)) {
+                case 0:
+                case 1:
+                    int value = random.nextInt();
+                    map.put(key, value);
+                    expected.put(key, value);
+                    break;
+                default:
+                    assertEquals(expected.remove(key) != null, map.remove(key));
+            }
+            if (i % 1000 == 0) {
+                assertSameContents(expected, map);
+            }
+        }
+        assertSameContents(expected, map);
+    }
+
+    private static void assertSameContents(Map<Long, Integer> expected, LongIntMap map) {
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertTrue(map.containsKey(entry.getKey()));
+            assertEquals(entry.getValue().intValue(), map.get(entry.getKey(), 0));
+        }
+        long[] keys = map.keys();
+        assertEquals(expected.size(), keys.length);
+        for (long key : keys) {
+            assertTrue(expected.containsKey(key));
+        }
+    }
+}